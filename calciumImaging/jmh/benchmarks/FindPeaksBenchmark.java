@@ -0,0 +1,178 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FindPeaks.accessory.classes.FindPeaksTools;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * Throughput of the peak search in a z-profile (FindPeaksTools), per trace: 
+ * the complete search as done per pixel by FindPeaks (threshold, candidates, filtering), also with a 
+ * running threshold and with the array-returning functions, the search in
+ * thresholded values with and without workspace, and the filtering of the candidates alone
+ * @author thomasbraschler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindPeaksBenchmark {
+
+	/**
+	 * Complete peak detection in an 8-bit z-profile, including the threshold calculation
+	 * (FindPeaksTools.findPeaksInProfile)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int findPeaksInProfile(TraceState s)
+	{
+		int n = 0;
+		for(int[] trace : s.traces)
+		{
+			System.arraycopy(trace, 0, s.ws.getSection(), 0, trace.length);
+			n += FindPeaksTools.findPeaksInProfile(s.ws, trace.length, TraceState.peak_fraction,
+					TraceState.minD, TraceState.doFiltering, TraceState.minW, TraceState.maxW, TraceState.minH);
+		}
+		return n;
+	}
+
+	/**
+	 * Complete peak detection in an 8-bit z-profile with a running threshold over a window of 200 frames
+	 * (FindPeaksTools.findPeaksInProfileRollingThreshold)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int findPeaksInProfileRollingThreshold(TraceState s)
+	{
+		int n = 0;
+		for(int[] trace : s.traces)
+		{
+			System.arraycopy(trace, 0, s.ws.getSection(), 0, trace.length);
+			n += FindPeaksTools.findPeaksInProfileRollingThreshold(s.ws, trace.length, TraceState.peak_fraction,
+					200, TraceState.minD, TraceState.doFiltering, TraceState.minW, TraceState.maxW, TraceState.minH);
+		}
+		return n;
+	}
+
+	/**
+	 * Peak search in thresholded values, reusing a workspace
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int findPeaks(TraceState s)
+	{
+		int n = 0;
+		for(double[] vals : s.values)
+		{
+			n += FindPeaksTools.findPeaks(vals, vals.length, 0, TraceState.minD, TraceState.doFiltering,
+					TraceState.minW, TraceState.maxW, TraceState.minH, s.ws);
+		}
+		return n;
+	}
+
+	/**
+	 * Complete peak detection in an 8-bit z-profile with the array-returning functions, as done per pixel before
+	 * the workspaces: new histogram, thresholded values and peak arrays for each trace. Compare with 
+	 * findPeaksInProfile, with -prof gc for the allocation per trace
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int findPeaksInProfileAllocating(TraceState s)
+	{
+		int n = 0;
+		for(int[] trace : s.traces)
+		{
+			double threshold = StatisticsTools.getQuantile(StatisticsTools.getHistogram(trace), 1-TraceState.peak_fraction);
+			double[] vals = new double[trace.length];
+			for(int ind=0; ind<vals.length; ind++)
+			{
+				vals[ind]=((double)trace[ind])-threshold;
+			}
+			n += FindPeaksTools.findPeaks(vals, 0, TraceState.minD, TraceState.doFiltering,
+					TraceState.minW, TraceState.maxW, TraceState.minH).length;
+		}
+		return n;
+	}
+
+	/**
+	 * Peak search in thresholded values, with the array-returning function (new workspace for each trace)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int findPeaksAllocating(TraceState s)
+	{
+		int n = 0;
+		for(double[] vals : s.values)
+		{
+			n += FindPeaksTools.findPeaks(vals, 0, TraceState.minD, TraceState.doFiltering,
+					TraceState.minW, TraceState.maxW, TraceState.minH).length;
+		}
+		return n;
+	}
+
+	/**
+	 * Filtering of the peak candidates for width and height by parabola fitting
+	 * (FindPeaksTools.filterPeaks, without memory allocation)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int filterPeaks(TraceState s)
+	{
+		int n = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			int[] candidates = s.candidates[t];
+			double[] vals = s.values[t];
+			n += FindPeaksTools.filterPeaks(candidates, candidates.length, vals, vals.length, TraceState.minD,
+					TraceState.minW, TraceState.maxW, TraceState.minH, 0, s.params, s.filtered);
+		}
+		return n;
+	}
+
+	/**
+	 * Filtering of the peak candidates, with the parabolas fitted from prefix sums (ParabolaFitter)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int filterPeaksWithFitter(TraceState s)
+	{
+		int n = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			int[] candidates = s.candidates[t];
+			double[] vals = s.values[t];
+			n += FindPeaksTools.filterPeaks(candidates, candidates.length, vals, vals.length, TraceState.minD,
+					TraceState.minW, TraceState.maxW, TraceState.minH, 0, s.params, s.filtered, s.fitter);
+		}
+		return n;
+	}
+
+}
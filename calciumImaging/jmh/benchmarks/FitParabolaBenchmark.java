@@ -0,0 +1,199 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tbgitoo.tools.FitParabola;
+
+/**
+ * Throughput of the parabola fits (FitParabola), per trace: each peak candidate of a trace is fitted
+ * over its environment of +/-minD/2, as in FindPeaksTools.filterPeaks
+ * @author thomasbraschler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FitParabolaBenchmark {
+
+	/**
+	 * Free parabola fits, without memory allocation
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double fitParabola(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] vals = s.values[t];
+			for(int peak : s.candidates[t])
+			{
+				int lower_bound = getLowerBound(peak);
+				FitParabola.fitParabola(vals, lower_bound, getUpperBound(peak, vals.length)-lower_bound+1, s.params);
+				sum += s.params[2];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Free parabola fits, on a copy of the environment of each peak (array-returning function)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double fitParabolaAllocating(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] vals = s.values[t];
+			for(int peak : s.candidates[t])
+			{
+				int lower_bound = getLowerBound(peak);
+				double[] local = new double[getUpperBound(peak, vals.length)-lower_bound+1];
+				System.arraycopy(vals, lower_bound, local, 0, local.length);
+				sum += FitParabola.fitParabola(local)[2];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Parabola fits with the apex fixed at the candidate, without memory allocation
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double fitParabolaFixedExtremum(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] vals = s.values[t];
+			for(int peak : s.candidates[t])
+			{
+				int lower_bound = getLowerBound(peak);
+				FitParabola.fitParabolaFixedExtremum(vals, lower_bound, getUpperBound(peak, vals.length)-lower_bound+1,
+						peak-lower_bound, true, s.params);
+				sum += s.params[2];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Parabola fits with the apex fixed at the candidate, on a copy of the environment of each peak
+	 * (array-returning function)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double fitParabolaFixedExtremumAllocating(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] vals = s.values[t];
+			for(int peak : s.candidates[t])
+			{
+				int lower_bound = getLowerBound(peak);
+				double[] local = new double[getUpperBound(peak, vals.length)-lower_bound+1];
+				System.arraycopy(vals, lower_bound, local, 0, local.length);
+				sum += FitParabola.fitParabolaFixedExtremum(local, peak-lower_bound)[2];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Free parabola fits from prefix sums (ParabolaFitter), including the construction of the prefix sums
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double fitParabolaPrefixSums(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] vals = s.values[t];
+			s.fitter.setValues(vals, vals.length);
+			for(int peak : s.candidates[t])
+			{
+				int lower_bound = getLowerBound(peak);
+				s.fitter.fitParabola(lower_bound, getUpperBound(peak, vals.length)-lower_bound+1, s.params);
+				sum += s.params[2];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Parabola fits with the apex fixed at the candidate from prefix sums (ParabolaFitter), including the
+	 * construction of the prefix sums
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double fitParabolaFixedExtremumPrefixSums(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] vals = s.values[t];
+			s.fitter.setValues(vals, vals.length);
+			for(int peak : s.candidates[t])
+			{
+				int lower_bound = getLowerBound(peak);
+				s.fitter.fitParabolaFixedExtremum(lower_bound, getUpperBound(peak, vals.length)-lower_bound+1,
+						peak-lower_bound, true, s.params);
+				sum += s.params[2];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @param peak Position of the peak candidate
+	 * @return First position of the fitting environment, as in FindPeaksTools.filterPeaks
+	 */
+	static int getLowerBound(int peak)
+	{
+		return (int)Math.max(Math.floor(-TraceState.minD/2+peak), 0);
+	}
+
+	/**
+	 * @param peak Position of the peak candidate
+	 * @param n_vals Length of the trace
+	 * @return Last position of the fitting environment, as in FindPeaksTools.filterPeaks
+	 */
+	static int getUpperBound(int peak, int n_vals)
+	{
+		return (int)Math.min(Math.ceil(TraceState.minD/2+peak), n_vals-1);
+	}
+
+}
@@ -0,0 +1,222 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FindPeaks.accessory.classes.PeakDetectionWorkspace;
+import tbgitoo.tools.VectorTools;
+
+/**
+ * Throughput of the element-wise kernels of VectorTools, per trace, each against the plain loop it replaces
+ * (the *Loop benchmarks): conversion of a z-profile and subtraction of the threshold, extraction of the peak
+ * candidates, sum and scalar product. Whether and how much the kernels gain depends on the SIMD instructions
+ * of the processor and on the JIT compiler; run with -jvmArgs -XX:UseAVX=0 (x86) to compare with the 
+ * SSE-only code
+ * @author thomasbraschler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+
+	/** Threshold subtracted from the 8-bit traces */
+	public static final double THRESHOLD=127.5;
+
+	/**
+	 * Conversion and subtraction in a single loop, as previously in FindPeaksTools.findPeaksInProfile
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double subtractThresholdLoop(TraceState s)
+	{
+		double sum = 0;
+		for(int[] trace : s.traces)
+		{
+			double[] values = s.converted;
+			for(int ind=0; ind<trace.length; ind++)
+			{
+				values[ind]=((double)trace[ind])-THRESHOLD;
+			}
+			sum += values[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * VectorTools.subtract(int[], int, double, double[]), as for 16-bit profiles
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double subtractThreshold(TraceState s)
+	{
+		double sum = 0;
+		for(int[] trace : s.traces)
+		{
+			VectorTools.subtract(trace, trace.length, THRESHOLD, s.converted);
+			sum += s.converted[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Lookup of the values relative to the threshold by grey level (VectorTools.lookup), as for 8-bit profiles
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double subtractThresholdLookup(TraceState s)
+	{
+		double sum = 0;
+		for(int[] trace : s.traces)
+		{
+			for(int level=0; level<PeakDetectionWorkspace.N_LEVELS; level++)
+			{
+				s.level_values[level]=((double)level)-THRESHOLD;
+			}
+			VectorTools.lookup(trace, trace.length, s.level_values, s.converted);
+			sum += s.converted[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Extraction of the candidates with a branch per value, as previously in 
+	 * VectorTools.getIndexesOfValuesExceedingThreshold
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int candidatesLoop(TraceState s)
+	{
+		int n = 0;
+		for(double[] vals : s.values)
+		{
+			int[] idx = s.filtered;
+			int index=0;
+			for(int ind=0; ind<vals.length; ind++)
+			{
+				if(vals[ind]>=0)
+				{
+					idx[index]=ind;
+					index++;
+				}
+			}
+			n += index;
+		}
+		return n;
+	}
+
+	/**
+	 * Branch-free extraction of the candidates, VectorTools.getIndexesOfValuesExceedingThreshold
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int candidates(TraceState s)
+	{
+		int n = 0;
+		for(double[] vals : s.values)
+		{
+			n += VectorTools.getIndexesOfValuesExceedingThreshold(vals, 0, vals.length, 0, s.filtered);
+		}
+		return n;
+	}
+
+	/**
+	 * Sequential sum of the values
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double sumLoop(TraceState s)
+	{
+		double sum = 0;
+		for(double[] vals : s.values)
+		{
+			double t = 0;
+			for(int ind=0; ind<vals.length; ind++)
+			{
+				t = t + vals[ind];
+			}
+			sum += t;
+		}
+		return sum;
+	}
+
+	/**
+	 * Sum of the values with partial sums, VectorTools.sum
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double sum(TraceState s)
+	{
+		double sum = 0;
+		for(double[] vals : s.values)
+		{
+			sum += VectorTools.sum(vals);
+		}
+		return sum;
+	}
+
+	/**
+	 * Sequential scalar product of successive traces
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double scalarProductLoop(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			double[] x = s.values[t];
+			double[] y = s.values[(t+1)%TraceState.N_TRACES];
+			double p = 0;
+			for(int ind=0; ind<x.length; ind++)
+			{
+				p = p + x[ind]*y[ind];
+			}
+			sum += p;
+		}
+		return sum;
+	}
+
+	/**
+	 * Scalar product of successive traces with partial sums, VectorTools.scalar_product
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double scalarProduct(TraceState s)
+	{
+		double sum = 0;
+		for(int t=0; t<TraceState.N_TRACES; t++)
+		{
+			sum += VectorTools.scalar_product(s.values[t], s.values[(t+1)%TraceState.N_TRACES]);
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,129 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FindPeaks.accessory.classes.LocalPhaseTools;
+import FindPeaks.accessory.classes.ReferencePhaseTable;
+
+/**
+ * Throughput of the phase evaluation relative to a reference pixel (LocalPhaseTools), per pixel: 
+ * the peak list of each pixel follows the peaks of the reference with a delay and some jitter
+ * @author thomasbraschler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseCorrelationBenchmark {
+
+	/**
+	 * In-phase and out-of-phase components of the peaks relative to the reference
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getCorrelationInformation(TraceState s)
+	{
+		double sum = 0;
+		for(int[] idx : s.idx)
+		{
+			double[] info = LocalPhaseTools.getCorrelationInformation(idx, s.idx_ref);
+			sum += info[0]+info[1];
+		}
+		return sum;
+	}
+
+	/**
+	 * Phase relative to the reference, as evaluated per pixel by LocalPhase
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getPhase(TraceState s)
+	{
+		double sum = 0;
+		for(int[] idx : s.idx)
+		{
+			sum += LocalPhaseTools.getPhase(idx, s.idx_ref);
+		}
+		return sum;
+	}
+
+	/**
+	 * Phase relative to the reference, walking the sorted peaks and reference peaks together
+	 * (LocalPhaseTools.getPhaseSorted)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getPhaseSorted(TraceState s)
+	{
+		double sum = 0;
+		for(int[] idx : s.idx)
+		{
+			sum += LocalPhaseTools.getPhaseSorted(idx, s.idx_ref);
+		}
+		return sum;
+	}
+
+	/**
+	 * Phase relative to the reference, from the reference compiled into a table over the frames
+	 * (ReferencePhaseTable, built once per invocation, as once per image in LocalPhase)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getPhaseFromTable(TraceState s)
+	{
+		ReferencePhaseTable reference = new ReferencePhaseTable(s.idx_ref, s.traceLength);
+		double[] info = new double[3];
+
+		double sum = 0;
+		for(int[] idx : s.idx)
+		{
+			sum += reference.getPhase(idx, 0, idx.length, info);
+		}
+		return sum;
+	}
+
+	/**
+	 * Correlation strength relative to the reference, walking the sorted peaks and reference peaks together
+	 * (LocalPhaseTools.getCorrelationStrengthSorted)
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getCorrelationStrengthSorted(TraceState s)
+	{
+		double sum = 0;
+		for(int[] idx : s.idx)
+		{
+			sum += LocalPhaseTools.getCorrelationStrengthSorted(idx, s.idx_ref);
+		}
+		return sum;
+	}
+
+}
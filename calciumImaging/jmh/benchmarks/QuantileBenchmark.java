@@ -0,0 +1,113 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import FindPeaks.accessory.classes.PeakDetectionWorkspace;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * Throughput of the threshold calculation (StatisticsTools), per trace: quantile of a given histogram,
+ * histogram and quantile of an 8-bit trace, and quantile of an integer trace by the adaptive
+ * method used for 16-bit stacks
+ * @author thomasbraschler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantileBenchmark {
+
+	/**
+	 * Quantile of a normalized 256-bin histogram, without memory allocation
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getQuantile(TraceState s)
+	{
+		double sum = 0;
+		for(double[] hist : s.histograms)
+		{
+			sum += StatisticsTools.getQuantile(hist, 1-TraceState.peak_fraction, s.cumsum);
+		}
+		return sum;
+	}
+
+	/**
+	 * Quantile of a normalized 256-bin histogram, with a new work array for each call
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getQuantileAllocating(TraceState s)
+	{
+		double sum = 0;
+		for(double[] hist : s.histograms)
+		{
+			sum += StatisticsTools.getQuantile(hist, 1-TraceState.peak_fraction);
+		}
+		return sum;
+	}
+
+	/**
+	 * Histogram and quantile of an 8-bit trace, as for the threshold of FindPeaksTools.findPeaksInProfile
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double histogramAndQuantile(TraceState s)
+	{
+		double sum = 0;
+		for(int[] trace : s.traces)
+		{
+			StatisticsTools.getHistogram(trace, trace.length, 0, PeakDetectionWorkspace.N_LEVELS, 
+					s.counts, s.histogram);
+			sum += StatisticsTools.getQuantile(s.histogram, 0, PeakDetectionWorkspace.N_LEVELS, 
+					1-TraceState.peak_fraction, s.cumsum);
+		}
+		return sum;
+	}
+
+	/**
+	 * Quantile of an integer trace by histogram over its range, as for the threshold of 
+	 * FindPeaksTools.findPeaksInShortProfile
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public double getQuantileOfIntegers(TraceState s)
+	{
+		double sum = 0;
+		for(int[] trace : s.traces)
+		{
+			sum += StatisticsTools.getQuantileOfIntegers(trace, trace.length, 1-TraceState.peak_fraction, 65536,
+					s.counts, s.histogram, s.cumsum, s.filtered);
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tbgitoo.tools.ArraySortTools;
+
+/**
+ * Throughput of the index sorts (ArraySortTools) that order the peak candidates, per trace. The whole trace
+ * is sorted by decreasing value: by comparison on the values relative to the threshold, as for 32-bit
+ * profiles and running thresholds, and by counting sort on the 8-bit pixel values. For reference, the 
+ * sort of boxed indexes with ArrayIndexComparator
+ * @author thomasbraschler
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SortBenchmark {
+
+	/**
+	 * Dual-pivot index sort of the double values, without memory allocation
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int sortIndexesDouble(TraceState s)
+	{
+		int sum = 0;
+		for(double[] vals : s.values)
+		{
+			ArraySortTools.sortIndexes(vals, vals.length, true, s.order);
+			sum += s.order[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Counting sort of the 8-bit values, without memory allocation
+	 */
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int sortIndexesInteger(TraceState s)
+	{
+		int sum = 0;
+		for(int[] trace : s.traces)
+		{
+			ArraySortTools.sortIndexes(trace, trace.length, true, s.order, s.work, s.radix_counts);
+			sum += s.order[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Sort of boxed indexes by ArrayIndexComparator (increasing order)
+	 */
+	@SuppressWarnings("deprecation")
+	@Benchmark
+	@OperationsPerInvocation(TraceState.N_TRACES)
+	public int sortBoxedIndexes(TraceState s)
+	{
+		int sum = 0;
+		for(double[] vals : s.values)
+		{
+			// Fully qualified, as imports of deprecated classes are not covered by @SuppressWarnings
+			tbgitoo.tools.ArrayIndexComparator comparator = new tbgitoo.tools.ArrayIndexComparator(vals);
+			Integer[] indexes = comparator.createIndexArray();
+			Arrays.sort(indexes, comparator);
+			sum += indexes[0];
+		}
+		return sum;
+	}
+
+}
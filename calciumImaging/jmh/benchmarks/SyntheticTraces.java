@@ -0,0 +1,203 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic calcium imaging data for the benchmarks: z-profiles with calcium transients (fast rise,
+ * exponential decay) at random times on a slowly bleaching baseline, with Gaussian noise, and the
+ * corresponding peak lists. Everything is generated from a seed, so that the benchmark input is reproducible
+ * @author thomasbraschler
+ *
+ */
+public class SyntheticTraces {
+
+	/** Baseline intensity of the traces */
+	public static final double BASELINE=60;
+
+	/** Rise time of the transients, in frames */
+	public static final double RISE=2;
+
+	/** Decay time constant of the transients, in frames */
+	public static final double DECAY=8;
+
+	/**
+	 * Random times of transients: the intervals between transients vary by +/-50% around the mean
+	 * interval 1/peakDensity, as in irregularly beating cardiomyocytes
+	 * @param length Length of the trace, in frames
+	 * @param peakDensity Mean number of transients per frame (between 0 and 1)
+	 * @param r Random number generator
+	 * @return Sorted times of the transients, in frames (0-based)
+	 */
+	public static int[] makePeakTimes(int length, double peakDensity, Random r)
+	{
+		double interval = 1.0/peakDensity;
+
+		int[] times = new int[length];
+		int n = 0;
+
+		double t = r.nextDouble()*interval;
+
+		while(t<length)
+		{
+			times[n++]=(int)t;
+			t += interval*(0.5+r.nextDouble());
+		}
+
+		return Arrays.copyOf(times, n);
+	}
+
+	/**
+	 * 8-bit z-profile with calcium transients at given times: linear rise over RISE frames to an amplitude
+	 * between 20 and 80, exponential decay with time constant DECAY, on a baseline bleaching by 10% over
+	 * the trace, and Gaussian noise
+	 * @param length Length of the trace, in frames
+	 * @param peakTimes Times of the transients, in frames
+	 * @param noise Standard deviation of the noise, in grey levels
+	 * @param r Random number generator
+	 * @return The pixel values along the profile, in the range 0..255
+	 */
+	public static int[] makeTrace(int length, int[] peakTimes, double noise, Random r)
+	{
+		double[] signal = new double[length];
+
+		for(int z=0; z<length; z++)
+		{
+			signal[z]=BASELINE*(1-0.1*z/length);
+		}
+
+		for(int peak : peakTimes)
+		{
+			double amplitude = 20+60*r.nextDouble();
+			int start = (int)Math.max(0, peak-RISE);
+
+			for(int z=start; z<length; z++)
+			{
+				double dt = z-peak;
+				double v = dt<0 ? amplitude*(1+dt/RISE) : amplitude*Math.exp(-dt/DECAY);
+
+				// The transient has decayed below the quantization level
+				if(v<0.05)
+				{
+					break;
+				}
+
+				signal[z]+=v;
+			}
+		}
+
+		int[] trace = new int[length];
+
+		for(int z=0; z<length; z++)
+		{
+			double v = signal[z]+r.nextGaussian()*noise;
+			trace[z]=(int)Math.max(0, Math.min(255, Math.round(v)));
+		}
+
+		return trace;
+	}
+
+	/**
+	 * Synthetic z-profile with transients at random times, see makePeakTimes and makeTrace
+	 * @param length Length of the trace, in frames
+	 * @param peakDensity Mean number of transients per frame
+	 * @param noise Standard deviation of the noise, in grey levels
+	 * @param r Random number generator
+	 * @return The pixel values along the profile, in the range 0..255
+	 */
+	public static int[] makeTrace(int length, double peakDensity, double noise, Random r)
+	{
+		return makeTrace(length, makePeakTimes(length, peakDensity, r), noise, r);
+	}
+
+	/**
+	 * Peak list of a pixel following a reference pixel with a constant delay and some jitter, as
+	 * seen by LocalPhase for a propagating wave. Some peaks of the reference are missed and
+	 * spurious peaks are added
+	 * @param idx_ref Sorted peak list of the reference pixel
+	 * @param length Length of the trace, in frames
+	 * @param delay Delay relative to the reference, in frames
+	 * @param jitter Maximal jitter (+/-) of the individual peaks, in frames
+	 * @param r Random number generator
+	 * @return Sorted peak list, without duplicates
+	 */
+	public static int[] makeFollowingPeaks(int[] idx_ref, int length, int delay, int jitter, Random r)
+	{
+		int[] idx = new int[2*idx_ref.length+1];
+		int n = 0;
+
+		for(int peak : idx_ref)
+		{
+			// Missed peak
+			if(r.nextDouble()<0.05)
+			{
+				continue;
+			}
+
+			int t = peak+delay+r.nextInt(2*jitter+1)-jitter;
+
+			if(t>=0 && t<length)
+			{
+				idx[n++]=t;
+			}
+
+			// Spurious peak
+			if(r.nextDouble()<0.05)
+			{
+				idx[n++]=r.nextInt(length);
+			}
+		}
+
+		idx = Arrays.copyOf(idx, n);
+		Arrays.sort(idx);
+
+		// Remove duplicates, peak lists from FindPeaks contain each frame at most once
+		int n_unique = 0;
+		for(int ind=0; ind<n; ind++)
+		{
+			if(n_unique==0 || idx[ind]!=idx[n_unique-1])
+			{
+				idx[n_unique++]=idx[ind];
+			}
+		}
+
+		return Arrays.copyOf(idx, n_unique);
+	}
+
+	/**
+	 * Convert an integer trace to double values relative to a threshold, as done by FindPeaksTools
+	 * before searching the peaks
+	 * @param trace The pixel values
+	 * @param threshold Threshold subtracted from the pixel values
+	 * @return trace-threshold
+	 */
+	public static double[] subtractThreshold(int[] trace, double threshold)
+	{
+		double[] vals = new double[trace.length];
+
+		for(int z=0; z<trace.length; z++)
+		{
+			vals[z]=trace[z]-threshold;
+		}
+
+		return vals;
+	}
+
+}
@@ -0,0 +1,158 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package benchmarks;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import FindPeaks.accessory.classes.FindPeaksTools;
+import FindPeaks.accessory.classes.PeakDetectionWorkspace;
+import tbgitoo.tools.ArraySortTools;
+import tbgitoo.tools.ParabolaFitter;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * Benchmark input shared by the kernel benchmarks: a batch of synthetic z-profiles (see SyntheticTraces) with
+ * the intermediate results the kernels work on (thresholded values, peak candidates, peak lists of a pixel
+ * and of a reference pixel). The batch holds several traces, so that the benchmarks do not repeatedly
+ * analyze the same trace; the scores are per trace (OperationsPerInvocation(N_TRACES)).
+ * Parameterized by trace length, peak density and noise level
+ * @author thomasbraschler
+ *
+ */
+@State(Scope.Thread)
+public class TraceState {
+
+	/** Number of traces in the batch */
+	public static final int N_TRACES=16;
+
+	/** Peak detection options, as the defaults of the FindPeaks plugin */
+	public static final double peak_fraction=0.5;
+	public static final double minD=20;
+	public static final boolean doFiltering=true;
+	public static final double minW=1;
+	public static final double maxW=100;
+	public static final double minH=5.5;
+
+	/** Length of the z-profiles, in frames */
+	@Param({"500", "2000", "10000"})
+	public int traceLength;
+
+	/** Mean number of calcium transients per frame */
+	@Param({"0.01", "0.04"})
+	public double peakDensity;
+
+	/** Standard deviation of the noise, in grey levels */
+	@Param({"2", "8"})
+	public double noise;
+
+	/** The 8-bit z-profiles */
+	public int[][] traces;
+
+	/** The z-profiles relative to their threshold (quantile 1-peak_fraction), as passed to FindPeaksTools.findPeaks */
+	public double[][] values;
+
+	/** Normalized histograms of the z-profiles, PeakDetectionWorkspace.N_LEVELS bins */
+	public double[][] histograms;
+
+	/** Peak candidates in each z-profile (FindPeaksTools.identifyPeaksAtMinimalDistance), before filtering */
+	public int[][] candidates;
+
+	/** Peaks of a reference pixel, sorted */
+	public int[] idx_ref;
+
+	/** Peaks of pixels following the reference with various delays, sorted */
+	public int[][] idx;
+
+	/** Workspace for the peak detection */
+	public PeakDetectionWorkspace ws;
+
+	/** Work arrays for the histogram and quantile calculation, PeakDetectionWorkspace.N_LEVELS bins */
+	public long[] counts;
+	public double[] histogram;
+	public double[] cumsum;
+
+	/** Work array for the parabola fits */
+	public double[] params;
+
+	/** Parabola fits from prefix sums */
+	public ParabolaFitter fitter;
+
+	/** Output array for the peak filtering */
+	public int[] filtered;
+
+	/** Output array for the conversion of the z-profiles, and values relative to the threshold by grey level */
+	public double[] converted;
+	public double[] level_values;
+
+	/** Ordering indexes, and work arrays for the index sorts */
+	public int[] order;
+	public int[] work;
+	public int[] radix_counts;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random r = new Random(42);
+
+		traces = new int[N_TRACES][];
+		values = new double[N_TRACES][];
+		histograms = new double[N_TRACES][];
+		candidates = new int[N_TRACES][];
+		idx = new int[N_TRACES][];
+
+		ws = new PeakDetectionWorkspace(traceLength);
+		counts = new long[PeakDetectionWorkspace.N_LEVELS];
+		histogram = new double[PeakDetectionWorkspace.N_LEVELS];
+		cumsum = new double[PeakDetectionWorkspace.N_LEVELS+1];
+		params = new double[3];
+		fitter = new ParabolaFitter(traceLength);
+		filtered = new int[traceLength];
+		converted = new double[traceLength];
+		level_values = new double[PeakDetectionWorkspace.N_LEVELS];
+		order = new int[traceLength];
+		work = new int[traceLength];
+		radix_counts = new int[ArraySortTools.RADIX];
+
+		idx_ref = SyntheticTraces.makePeakTimes(traceLength, peakDensity, r);
+
+		for(int t=0; t<N_TRACES; t++)
+		{
+			traces[t] = SyntheticTraces.makeTrace(traceLength, peakDensity, noise, r);
+
+			histograms[t] = StatisticsTools.getHistogram(traces[t]);
+
+			double threshold = StatisticsTools.getQuantile(histograms[t], 1-peak_fraction);
+
+			values[t] = SyntheticTraces.subtractThreshold(traces[t], threshold);
+
+			int n_candidates = FindPeaksTools.identifyPeaksAtMinimalDistance(values[t], traceLength, 0, minD, ws);
+			candidates[t] = FindPeaksTools.copyPeaks(ws, n_candidates);
+
+			// Delays over a full mean interval, so that all phases are represented
+			int delay = (int)(t/peakDensity/N_TRACES);
+			idx[t] = SyntheticTraces.makeFollowingPeaks(idx_ref, traceLength, delay, 2, r);
+		}
+	}
+
+}
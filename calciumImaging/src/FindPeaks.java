@@ -42,17 +42,27 @@
 
 
 import java.awt.AWTEvent;
+import java.io.File;
+import java.io.IOException;
 
+import FindPeaks.accessory.classes.ActivityIndex;
 import FindPeaks.accessory.classes.FindPeaksTools;
+import FindPeaks.accessory.classes.PeakDetectionStatistics;
+import FindPeaks.accessory.classes.PeakDetectionWorkspace;
+import FindPeaks.accessory.classes.PeakEventStack;
+import FindPeaks.accessory.classes.PeakEventTable;
+import FindPeaks.accessory.classes.StackPeakDetector;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import tbgitoo.tools.ImageTools;
-import tbgitoo.tools.StatisticsTools;
+import tbgitoo.tools.PixelSpans;
+import tbgitoo.tools.ZProfileCache;
 
 // The basic idea of this plugin is that it identifies the peak location in the z-axis of the stack
 // it is inspired by Octave findpeaks code.
@@ -70,11 +80,24 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 	/** image processor at the time of starting the analysis */
 	protected ImageProcessor ip;
 
+	/** Stack under analysis, obtained once at the start of the analysis so that the
+	 * worker threads do not need to go through the ImagePlus object */
+	protected ImageStack stack;
+
+	/** Transposed copy of the stack, with contiguous z-profiles. Null if not available
+	 * (for instance for virtual stacks), in which case the profiles are read from the stack */
+	protected ZProfileCache profiles;
+
 
 	/** Expected fraction of pixels above the threshold to be set and thus to be
 	 * eligible for being a peak */
 	public static double peak_fraction = 0.5;
 
+	/** Length, in frames, of the window over which the threshold is calculated for each frame (running threshold,
+	 * following slow changes of the baseline such as photobleaching). 0 means a single threshold
+	 * over the whole z-profile */
+	public static int thresholdWindow=0;
+
 	/** Minimal distance, in pixels, in the z-direction. This is the minD argument to the 
 	 * Octave function findPeaks */
 	public static double minD=20;
@@ -98,10 +121,46 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 	 */
 	public static boolean doFiltering=true;
 
+	/** Skip the pixels whose range of values is too small for a peak of height minH (see ActivityIndex);
+	 * only with filtering */
+	public static boolean skip_inactive=false;
+
+	/** Show the signal-to-noise map of the pixels, from their activity index */
+	public static boolean show_snr=false;
+
+	/** Number of threads used for the analysis, 0 means that all the available processors are used */
+	public static int n_threads=0;
+
+	/** Build the full peak stack (true), or show the peaks through a virtual stack generated from 
+	 * the sparse peak table (false) */
+	public static boolean createPeakStack=false;
+
+	/** Should we analyze only the pixels that are positive in a mask (or inside the selection)? */
+	public static boolean do_masking=false;
+
+	/** The title of the mask used in the last run (to remember the user choice) */
+	public static String lastMaskTitle=null;
+
+	/** Mask image, positive values mean analyze; null to use the selection of the image */
+	public ImagePlus mask=null;
+
+	/** Report the time spent in each stage of the analysis, the throughput and the memory use (in a results table).
+	 * The JSON report is written next to the file of the analyzed image whenever it has one (see reportStatistics) */
+	public static boolean report_timing=false;
+
+	/** Timing of the current run, null if not timed */
+	protected PeakDetectionStatistics statistics;
+
+	/** Pixels to be analyzed, compiled from the mask or selection; null for all the pixels */
+	protected PixelSpans spans;
+
+	/** Activity index of the last analysis, null if the inactive pixels were not skipped */
+	protected ActivityIndex activity_index;
+
 
 	/**
-	 * Read the peak_fraction, minD, doFiltering, minW, maxW and minH parameters
-	 * from the dialog 
+	 * Read the peak_fraction, thresholdWindow, minD, doFiltering, minW, maxW, minH, skip_inactive, show_snr,
+	 * n_threads, createPeakStack, masking and timing parameters from the dialog 
 	 * 
 	 */
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
@@ -126,6 +185,20 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 		}
 		peak_fraction=n;
 
+		// Get the window for the threshold from the dialog
+		n = gd.getNextNumber();
+		// Do basic checking, should be a valid number
+		if (gd.invalidNumber())
+			return false;
+		// Negative values are treated as 0, meaning a threshold over the whole z-profile
+
+		if(n<0)
+		{
+			n=0;
+		}
+
+		thresholdWindow=(int)Math.round(n);
+
 		// Get the first number from the dialog
 		n = gd.getNextNumber();
 		// Do basic checking, should be a valid number
@@ -184,12 +257,34 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 
 		minH=n;
 
+		skip_inactive = gd.getNextBoolean();
 
+		show_snr = gd.getNextBoolean();
 
+		// Get the number of threads from the dialog
+		n = gd.getNextNumber();
+		// Do basic checking, should be a valid number
+		if (gd.invalidNumber())
+			return false;
+		// Negative values are treated as 0, meaning all processors
 
+		if(n<0)
+		{
+			n=0;
+		}
 
+		n_threads=(int)Math.round(n);
 
+		createPeakStack = gd.getNextBoolean();
 
+		do_masking = gd.getNextBoolean();
+
+		// null for the selection of the analyzed image
+		mask = ImageTools.getMaskChoice(gd.getNextChoiceIndex());
+
+		lastMaskTitle = (mask==null) ? ImageTools.SELECTION_CHOICE : mask.getTitle();
+
+		report_timing = gd.getNextBoolean();
 
 		return true;
 	}
@@ -205,8 +300,8 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 		// Store an internal reference to the assigned image
 		this.imp = imp;
 
-		// For now, restricted to 8bit greyscale images
-		return DOES_8G+NO_CHANGES;
+		// 8-bit, 16-bit and 32-bit greyscale images
+		return DOES_8G+DOES_16+DOES_32+NO_CHANGES;
 	}
 	
 	/**
@@ -220,20 +315,143 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 	public int[] getStackSection(int x, int y)
 	{
 
-		int[] vals=new int[imp.getStackSize()];
+		int[] vals=new int[getStackDepth()];
+
+		getStackSection(x, y, vals);
+
+		return vals;
 
+	}
 
-		for(int z=1; z<=imp.getStackSize(); z++)
+	/**
+	 * Get the pixel values along the z direction in a stack, at a horizontal location
+	 * specified by x and y, into a provided array
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param vals Array of length at least the stack size, receives the pixel values along the z-profile
+	 */
+
+	public void getStackSection(int x, int y, int[] vals)
+	{
+
+		getDetector().getProfile(x, y, vals);
+
+	}
+
+	/**
+	 * Get the pixel values along the z direction in a stack, at a horizontal location
+	 * specified by x and y, into a provided array. Unlike the integer version, this
+	 * keeps the fractional part of the values of 32-bit stacks
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param vals Array of length at least the stack size, receives the pixel values along the z-profile
+	 */
+
+	public void getStackSection(int x, int y, double[] vals)
+	{
+
+		getDetector().getProfile(x, y, vals);
+
+	}
+
+	/**
+	 * Peak detector for the stack under analysis, with the current options
+	 * @return The detector, using the transposed copy of the stack if available
+	 */
+	protected StackPeakDetector getDetector()
+	{
+		StackPeakDetector detector = new StackPeakDetector(getStack(), peak_fraction, minD, doFiltering, 
+				minW, maxW, minH);
+		detector.setThresholdWindow(thresholdWindow);
+		detector.setProfiles(profiles);
+		detector.setSpans(spans);
+		detector.setStatistics(statistics);
+		detector.setSkipInactive(skip_inactive);
+		return detector;
+	}
+
+	/**
+	 * Show the timing of a run, as a row in the "Timing" results table
+	 * @param statistics Timing of the run
+	 * @param title Title of the image analyzed, used as row label
+	 */
+	public static void showStatistics(PeakDetectionStatistics statistics, String title)
+	{
+		ResultsTable rt = new ResultsTable();
+		statistics.addTo(rt, title);
+		rt.show("Timing");
+	}
+
+	/**
+	 * Should a run on an image be timed: if the timing is shown (report_timing), or if the image has a file
+	 * location, next to which the JSON report is written (see PeakDetectionStatistics.getReportFile)
+	 * @param imp The analyzed image
+	 * @return A new, not yet started, PeakDetectionStatistics; null if the run is not timed
+	 */
+	public static PeakDetectionStatistics getStatistics(ImagePlus imp)
+	{
+		if(report_timing || PeakDetectionStatistics.getReportLocation(imp)!=null)
 		{
-			ImageProcessor p=imp.getStack().getProcessor(z);
+			return new PeakDetectionStatistics();
+		}
+		return null;
+	}
 
-			vals[z-1]=(int)p.getPixelValue(x, y);
+	/**
+	 * Report the timing of a run: as a row in the "Timing" results table if report_timing is set, and as
+	 * JSON report next to the file of the analyzed image if it has one (name_analysis_report.json)
+	 * @param statistics Timing of the run, stopped
+	 * @param imp The analyzed image
+	 * @param analysis Name of the analysis, for the file name of the report
+	 */
+	public static void reportStatistics(PeakDetectionStatistics statistics, ImagePlus imp, String analysis)
+	{
+		if(report_timing)
+		{
+			showStatistics(statistics, imp.getTitle());
+		}
 
+		File file = PeakDetectionStatistics.getReportFile(imp, analysis);
 
+		if(file!=null)
+		{
+			try
+			{
+				statistics.writeJSON(file, imp.getTitle());
+			} catch(IOException e)
+			{
+				IJ.log("Timing report not written to "+file+": "+e.getMessage());
+			}
 		}
+	}
 
-		return vals;
+	/**
+	 * Restrict the analysis to some pixels, typically those of a mask or a selection. The other pixels have no peaks
+	 * @param spans The pixels to be analyzed, null for all the pixels
+	 */
+	public void setSpans(PixelSpans spans)
+	{
+		this.spans=spans;
+	}
 
+	/**
+	 * @return The stack under analysis
+	 */
+	protected ImageStack getStack()
+	{
+		if(stack!=null)
+		{
+			return stack;
+		}
+		return imp.getStack();
+	}
+
+	/**
+	 * @return Number of slices in the stack under analysis, and so length of the z-profiles
+	 */
+	public int getStackDepth()
+	{
+		return getStack().getSize();
 	}
 
 
@@ -244,9 +462,12 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 
 	/**  
 	 *  Displays the dialog for setting the custom options.
-	 *  Then finds the temporal peaks with these options for each xy pixel position.
+	 *  Then finds the temporal peaks with these options for each xy pixel position (see findPeaksInStack).
 	 *  Output: creates and shows a new stack with identical dimensions to the stack analyzed,
-	 *  where non-peak pixels are black (0) and peak pixels white (255)
+	 *  where non-peak pixels are black (0) and peak pixels white (255). Unless createPeakStack is set,
+	 *  this is a virtual view of the sparse peak table, which is attached to the output image 
+	 *  (see PeakEventTable). With masking, only the pixels inside the mask (or selection) are analyzed,
+	 *  the other pixels have no peaks
 	 */
 	public void run(ImageProcessor theIp) {
 
@@ -269,36 +490,101 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 		}
 
 
-		ImageStack outputStack = ImageTools.getEmptyByteStack(imp.getStack());
-		
-		
-		for(int x=0; x<imp.getWidth(); x++)
+		// The mask image, or the selection of the analyzed image, compiled into the pixels to analyze
+		spans = do_masking ? PixelSpans.fromMaskOrSelection(imp, mask) : null;
+
+		statistics = getStatistics(imp);
+
+		if(statistics!=null)
 		{
-			for(int y=0; y<imp.getHeight(); y++)
-			{
-				int[] idx = findPeaksInSection(x,y);
-				for(int ind=0; ind<idx.length; ind++)
-				{
-					outputStack.getProcessor(idx[ind]+1).set(x, y, 255);
-				}
-			}
-			
-			IJ.showProgress(((double) x)/((double) imp.getWidth()));
+			statistics.start();
 		}
-		
-		
+
+		PeakEventTable table = findPeaksInStack(imp.getStack(), true);
+
+		long start = System.nanoTime();
+
+		// The peaks are kept in the sparse table; the full peak stack is only built on request,
+		// otherwise the peaks are shown through a virtual stack generating the slices on demand
+		ImageStack outputStack;
+
+		if(createPeakStack)
+		{
+			outputStack = table.toByteStack();
+		} else
+		{
+			outputStack = new PeakEventStack(table);
+		}
+
 		ImagePlus outputPlus = new ImagePlus();
 		
 		outputPlus.setStack("Result findpeaks - "+imp.getTitle(), outputStack);
+
+		// LocalPhase and LocalFrequency on the peaks report next to the analyzed file
+		PeakDetectionStatistics.setReportLocation(outputPlus, PeakDetectionStatistics.getReportLocation(imp));
 		
-		
+		// LocalPhase and LocalFrequency use the table directly; the full peak stack can be edited,
+		// so its peaks are read from its pixels instead (see PeakEventTable.get)
+		if(!createPeakStack)
+		{
+			table.attachTo(outputPlus);
+		}
+
+		// and skip the same inactive pixels
+		if(activity_index!=null)
+		{
+			activity_index.attachTo(outputPlus);
+		}
 		
 		outputPlus.show();
+
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_OUTPUT, start);
+			statistics.stop();
+			reportStatistics(statistics, imp, "FindPeaks");
+		}
+
+		if(show_snr)
+		{
+			if(activity_index==null)
+			{
+				activity_index = ActivityIndex.compute(imp.getStack(), spans, n_threads);
+			}
+			new ImagePlus("SNR - "+imp.getTitle(), activity_index.getSNRImage()).show();
+		}
 		
 		
 
 
 	}
+
+	/**
+	 * Finds the peaks in all the z-profiles of a stack, with the current options.
+	 * The pixels to be analyzed (all, or those set with setSpans) are distributed over n_threads threads.
+	 * Virtual 8-bit stacks are read slice by slice instead (see StreamingPeakFinder), other virtual stacks
+	 * band of rows by band of rows (see StackPeakDetector.processSpans).
+	 * @param theStack Stack to be analyzed
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 * @return Sparse table of the peak positions in each z-profile
+	 */
+	public PeakEventTable findPeaksInStack(ImageStack theStack, boolean showProgress)
+	{
+		stack = theStack;
+		profiles = null;
+
+		StackPeakDetector detector = getDetector();
+
+		// Transpose the stack once so that the z-profiles can be read as contiguous arrays
+		detector.cacheProfiles();
+		profiles = detector.getProfiles();
+
+		PeakEventTable table = detector.findPeaks(n_threads, showProgress);
+
+		activity_index = detector.getActivityIndex();
+
+		return table;
+	}
 	
 	
 	
@@ -311,33 +597,29 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 	public int[] findPeaksInSection(int x, int y)
 	{
 		
-		int[] intSection = getStackSection(x,y);
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(getStackDepth());
 
-		double[] theSection = new double [intSection.length];
-
-		for(int ind=0; ind<theSection.length; ind++)
-		{
-			theSection[ind]=(double)intSection[ind];
-		}
-
-		double threshold = StatisticsTools.getQuantile(
-				StatisticsTools.getHistogram(intSection)
-				, 1-peak_fraction);
-		
+		int n_peaks = findPeaksInSection(x, y, ws);
 		
-		
-		for(int ind=0; ind<theSection.length;ind++)
-		{
-			theSection[ind]=theSection[ind]-threshold;
-		}
-		
-		int[] idx=FindPeaksTools.findPeaks(theSection, 0, minD, doFiltering, 
-				minW,  maxW,  minH);
+		return FindPeaksTools.copyPeaks(ws, n_peaks);
 
 		
-		return idx;
+	}
+
+	/**
+	 * Finds the indexes of the peaks in the z-Profile at a given xy position, using the buffers of a workspace
+	 * instead of allocating memory
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param ws Workspace with capacity at least the stack size, receives the peak positions 
+	 * (pixel units, 0-based) in the z-profile
+	 * @return Number of peaks found
+	 */
+	public int findPeaksInSection(int x, int y, PeakDetectionWorkspace ws)
+	{
+
+		return getDetector().findPeaks(x, y, ws);
 
-		
 	}
 
 
@@ -362,6 +644,8 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 
 		gd.addNumericField("Target fraction of time activated", peak_fraction, 2);
 
+		gd.addNumericField("Window for threshold in frames (0 for whole recording)", thresholdWindow, 0);
+
 		gd.addNumericField("Minimal distance between peaks in pixels (z-direction)", minD, 1);
 		
 		gd.addCheckbox("Do Filtering with options below", doFiltering);
@@ -372,6 +656,21 @@ public class FindPeaks implements PlugInFilter,DialogListener {
 
 		gd.addNumericField("Minimum peak intensity above background", minH, 1);
 
+		gd.addCheckbox("Skip inactive pixels (range of values below minimum peak intensity)", skip_inactive);
+
+		gd.addCheckbox("Signal-to-noise map ((max-mean)/sd of each pixel)", show_snr);
+
+		gd.addNumericField("Threads (0 for all processors)", n_threads, 0);
+
+		gd.addCheckbox("Create full peak stack (otherwise, peaks are shown as a virtual stack)", createPeakStack);
+
+		gd.addCheckbox("Use mask (>0 means evaluate)", do_masking);
+
+		// The selection of the analyzed image, or any open image
+		gd.addChoice("Mask", ImageTools.getMaskChoices(), lastMaskTitle);
+
+		gd.addCheckbox("Timing report (time per stage, throughput, memory)", report_timing);
+
 		// We need to follow the dialog to update the class variables
 		gd.addDialogListener(this);
 		// Show the dialog
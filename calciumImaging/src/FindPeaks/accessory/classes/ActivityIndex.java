@@ -0,0 +1,498 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import tbgitoo.tools.ParallelTools;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * Activity index of a stack: minimum, maximum, mean and variance of the z-profile of each pixel, obtained in a
+ * single sweep over the slices (Welford's update of mean and variance, frame by frame), before any peak detection.
+ *
+ * A peak needs to be at least minH above the threshold of its pixel (when filtering, see FindPeaksTools.filterPeaks),
+ * and the threshold, the quantile 1-peak_fraction of the z-profile, cannot be lower than the minimum of the profile,
+ * nor, by Cantelli's inequality, lower than mean-sd*sqrt(peak_fraction/(1-peak_fraction)). Pixels whose maximum is
+ * less than minH above this bound (see findActiveSpans) have no value high enough for a peak, and can be skipped by
+ * FindPeaks, and, through the attached index (attachTo), by LocalFrequency and LocalPhase.
+ * Only the values of the profile are bounded: a parabola fitted around a candidate can in rare cases extrapolate
+ * above all the values, and such peaks are lost when skipping.
+ *
+ * The index is also available as a signal-to-noise map (getSNRImage): for each pixel, how many standard deviations
+ * the maximum is above the mean.
+ * @author thomasbraschler
+ *
+ */
+public class ActivityIndex {
+
+	/** Key of the ImagePlus property holding the index */
+	public static final String PROPERTY_KEY="FindPeaks.ActivityIndex";
+
+	/** Stack width */
+	protected final int width;
+
+	/** Stack height */
+	protected final int height;
+
+	/** Number of slices */
+	protected final int depth;
+
+	/** Pixels evaluated */
+	protected final PixelSpans spans;
+
+	/** Minimum of each z-profile, indexed y*width+x */
+	protected final float[] min;
+
+	/** Maximum of each z-profile */
+	protected final float[] max;
+
+	/** Mean of each z-profile */
+	protected final double[] mean;
+
+	/** Sum of the squared deviations from the mean of each z-profile */
+	protected final double[] m2;
+
+	/** Pixels with enough range for a peak, when set by the peak detection (see setActiveSpans); null if not screened */
+	protected PixelSpans active_spans;
+
+	/**
+	 * Empty index, to be filled by compute
+	 * @param width Stack width
+	 * @param height Stack height
+	 * @param depth Number of slices
+	 * @param spans Pixels evaluated
+	 */
+	protected ActivityIndex(int width, int height, int depth, PixelSpans spans)
+	{
+		this.width=width;
+		this.height=height;
+		this.depth=depth;
+		this.spans=spans;
+
+		min=new float[width*height];
+		max=new float[width*height];
+		mean=new double[width*height];
+		m2=new double[width*height];
+	}
+
+	/**
+	 * Compute the index of some pixels of a stack. Stacks in memory are distributed over threads span by span;
+	 * virtual stacks, which decode the slices when accessed, are read once slice by slice
+	 * @param stack 8-bit, 16-bit or 32-bit greyscale stack
+	 * @param spans Pixels to evaluate, null for all the pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @return The index
+	 */
+	public static ActivityIndex compute(final ImageStack stack, PixelSpans spans, int n_threads)
+	{
+		if(spans==null)
+		{
+			spans = PixelSpans.all(stack.getWidth(), stack.getHeight());
+		}
+
+		final ActivityIndex index = new ActivityIndex(stack.getWidth(), stack.getHeight(), stack.getSize(), spans);
+		final int bit_depth = stack.getBitDepth();
+
+		if(stack.isVirtual())
+		{
+			for(int z=0; z<index.depth; z++)
+			{
+				Object pixels = stack.getPixels(z+1);
+
+				for(int s=0; s<spans.getNumberOfSpans(); s++)
+				{
+					int offset = spans.getRow(s)*index.width;
+					index.update(pixels, bit_depth, z, offset+spans.getStart(s), offset+spans.getEnd(s));
+				}
+			}
+		} else
+		{
+			ParallelTools.processSpans(spans, n_threads, new ParallelTools.SpanProcessor() {
+
+				public void processSpan(int y, int x_start, int x_end) {
+
+					// Frame by frame, so that the slices are read sequentially
+					for(int z=0; z<index.depth; z++)
+					{
+						index.update(stack.getPixels(z+1), bit_depth, z, y*index.width+x_start, y*index.width+x_end);
+					}
+				}
+			}, false);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Welford update with a slice, for the pixels from index i_start to i_end-1
+	 * @param pixels Pixels of the slice (byte[], short[] or float[])
+	 * @param bit_depth Bit depth of the stack
+	 * @param z Slice index, 0-based
+	 * @param i_start First pixel (included)
+	 * @param i_end Last pixel (excluded)
+	 */
+	protected void update(Object pixels, int bit_depth, int z, int i_start, int i_end)
+	{
+		double inv_n = 1.0/(z+1);
+
+		switch(bit_depth)
+		{
+		case 8:
+			byte[] bytes = (byte[])pixels;
+			for(int i=i_start; i<i_end; i++)
+			{
+				update(i, z, bytes[i]&0xff, inv_n);
+			}
+			break;
+		case 16:
+			short[] shorts = (short[])pixels;
+			for(int i=i_start; i<i_end; i++)
+			{
+				update(i, z, shorts[i]&0xffff, inv_n);
+			}
+			break;
+		default:
+			float[] floats = (float[])pixels;
+			for(int i=i_start; i<i_end; i++)
+			{
+				update(i, z, floats[i], inv_n);
+			}
+		}
+	}
+
+	/**
+	 * Welford update of one pixel with one value
+	 * @param i Pixel index
+	 * @param z Slice index, 0-based
+	 * @param v The value
+	 * @param inv_n 1/(z+1)
+	 */
+	protected final void update(int i, int z, float v, double inv_n)
+	{
+		if(z==0)
+		{
+			min[i]=v;
+			max[i]=v;
+			mean[i]=v;
+			m2[i]=0;
+			return;
+		}
+
+		if(v<min[i])
+		{
+			min[i]=v;
+		}
+		if(v>max[i])
+		{
+			max[i]=v;
+		}
+
+		double delta = v-mean[i];
+		mean[i]+=delta*inv_n;
+		m2[i]+=delta*(v-mean[i]);
+	}
+
+	/**
+	 * @return Stack width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Stack height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return Number of slices
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return Pixels evaluated
+	 */
+	public PixelSpans getSpans()
+	{
+		return spans;
+	}
+
+	/**
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Minimum of the z-profile
+	 */
+	public double getMin(int x, int y)
+	{
+		return min[y*width+x];
+	}
+
+	/**
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Maximum of the z-profile
+	 */
+	public double getMax(int x, int y)
+	{
+		return max[y*width+x];
+	}
+
+	/**
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Mean of the z-profile
+	 */
+	public double getMean(int x, int y)
+	{
+		return mean[y*width+x];
+	}
+
+	/**
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Variance of the z-profile (of the values, divided by the number of values)
+	 */
+	public double getVariance(int x, int y)
+	{
+		return depth>0 ? m2[y*width+x]/depth : 0;
+	}
+
+	/**
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Standard deviation of the z-profile
+	 */
+	public double getStandardDeviation(int x, int y)
+	{
+		return Math.sqrt(getVariance(x, y));
+	}
+
+	/**
+	 * Signal-to-noise ratio of a pixel: how many standard deviations the maximum is above the mean
+	 * @param x x-position
+	 * @param y y-position
+	 * @return (max-mean)/sd, 0 for a constant profile
+	 */
+	public double getSNR(int x, int y)
+	{
+		double sd = getStandardDeviation(x, y);
+
+		if(sd<=0)
+		{
+			return 0;
+		}
+		return (getMax(x, y)-getMean(x, y))/sd;
+	}
+
+	/**
+	 * Signal-to-noise map, see getSNR
+	 * @return The map, NaN at the pixels not evaluated
+	 */
+	public FloatProcessor getSNRImage()
+	{
+		float[] snr = new float[width*height];
+
+		if(!spans.isComplete())
+		{
+			Arrays.fill(snr, Float.NaN);
+		}
+
+		for(int y=0; y<height; y++)
+		{
+			for(int s=spans.getFirstSpan(y); s<spans.getFirstSpan(y+1); s++)
+			{
+				for(int x=spans.getStart(s); x<spans.getEnd(s); x++)
+				{
+					snr[y*width+x]=(float)getSNR(x, y);
+				}
+			}
+		}
+
+		return new FloatProcessor(width, height, snr, null);
+	}
+
+	/**
+	 * Lowest possible threshold of a pixel, the threshold being the quantile 1-peak_fraction of its z-profile
+	 * (see FindPeaksTools.findPeaksInProfile). The quantile is not below the minimum; over the whole z-profile,
+	 * by Cantelli's inequality, it is neither below mean-sd*sqrt(peak_fraction/(1-peak_fraction)). With a running
+	 * threshold, only the minimum applies
+	 * @param x x-position
+	 * @param y y-position
+	 * @param peak_fraction Expected fraction of values above the threshold, 0&lt;peak_fraction&lt;1
+	 * @param running_threshold Is the threshold calculated over a running window?
+	 * @return Lower bound of the threshold
+	 */
+	public double getThresholdBound(int x, int y, double peak_fraction, boolean running_threshold)
+	{
+		double bound = getMin(x, y);
+
+		if(!running_threshold)
+		{
+			double sd = getStandardDeviation(x, y);
+			bound = Math.max(bound, getMean(x, y)-sd*Math.sqrt(peak_fraction/(1-peak_fraction)));
+		}
+
+		// Margin for the rounding of the running sums
+		return bound-1e-9*(Math.abs(getMean(x, y))+getStandardDeviation(x, y)+1);
+	}
+
+	/**
+	 * Can a value of the z-profile of a pixel be minH above its threshold?
+	 * @param x x-position
+	 * @param y y-position
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minH Minimal height of the peaks above threshold
+	 * @param running_threshold Is the threshold calculated over a running window?
+	 * @return false if the pixel cannot have peaks passing the height filter
+	 */
+	public boolean isActive(int x, int y, double peak_fraction, double minH, boolean running_threshold)
+	{
+		// Outside these bounds, the threshold is at the end of the range of values or beyond
+		if(peak_fraction<=0 || peak_fraction>=1)
+		{
+			return true;
+		}
+
+		return getMax(x, y)-getThresholdBound(x, y, peak_fraction, running_threshold)>=minH;
+	}
+
+	/**
+	 * The evaluated pixels that can have peaks passing the height filter (see isActive)
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minH Minimal height of the peaks above threshold
+	 * @param running_threshold Is the threshold calculated over a running window?
+	 * @return The active pixels
+	 */
+	public PixelSpans findActiveSpans(double peak_fraction, double minH, boolean running_threshold)
+	{
+		PixelSpans.Builder builder = new PixelSpans.Builder(width, height);
+
+		for(int y=0; y<height; y++)
+		{
+			for(int s=spans.getFirstSpan(y); s<spans.getFirstSpan(y+1); s++)
+			{
+				int start = -1;
+
+				for(int x=spans.getStart(s); x<spans.getEnd(s); x++)
+				{
+					boolean active = isActive(x, y, peak_fraction, minH, running_threshold);
+
+					if(active && start<0)
+					{
+						start=x;
+					} else if(!active && start>=0)
+					{
+						builder.addSpan(y, start, x);
+						start=-1;
+					}
+				}
+
+				if(start>=0)
+				{
+					builder.addSpan(y, start, spans.getEnd(s));
+				}
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Record the pixels analyzed after screening, for the later steps (LocalFrequency, LocalPhase)
+	 * @param active_spans The pixels analyzed, null if all the evaluated pixels were analyzed
+	 */
+	public void setActiveSpans(PixelSpans active_spans)
+	{
+		this.active_spans=active_spans;
+	}
+
+	/**
+	 * @return The pixels analyzed after screening, null if not screened
+	 */
+	public PixelSpans getActiveSpans()
+	{
+		return active_spans;
+	}
+
+	/**
+	 * Restrict pixels to evaluate in a peak image to the pixels actually analyzed by the peak detection, when it
+	 * skipped the inactive pixels; the skipped pixels have no peaks
+	 * @param imp The peak image, typically produced by FindPeaks
+	 * @param spans The pixels to evaluate, null for all the pixels
+	 * @return The pixels to evaluate that have been analyzed, or spans unchanged if no pixels were skipped
+	 */
+	public static PixelSpans restrictToAnalyzed(ImagePlus imp, PixelSpans spans)
+	{
+		ActivityIndex index = get(imp);
+
+		if(index==null || index.getActiveSpans()==null)
+		{
+			return spans;
+		}
+
+		if(spans==null)
+		{
+			return index.getActiveSpans();
+		}
+
+		return spans.intersect(index.getActiveSpans());
+	}
+
+	/**
+	 * Attach the index to an image, typically the peak image, so that it can be recovered with get(ImagePlus)
+	 * @param imp The image
+	 */
+	public void attachTo(ImagePlus imp)
+	{
+		imp.setProperty(PROPERTY_KEY, this);
+	}
+
+	/**
+	 * Get the index attached to an image, if it matches the image dimensions
+	 * @param imp The image, typically a peak image produced by FindPeaks
+	 * @return The index, null if none
+	 */
+	public static ActivityIndex get(ImagePlus imp)
+	{
+		Object property = imp.getProperty(PROPERTY_KEY);
+
+		if(property instanceof ActivityIndex)
+		{
+			ActivityIndex index = (ActivityIndex)property;
+
+			if(index.getWidth()==imp.getWidth() && index.getHeight()==imp.getHeight())
+			{
+				return index;
+			}
+		}
+
+		return null;
+	}
+
+}
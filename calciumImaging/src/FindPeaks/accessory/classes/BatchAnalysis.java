@@ -0,0 +1,786 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+import tbgitoo.tools.MappedStack;
+import tbgitoo.tools.ParallelTools;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * Peaks, local frequency and local phase (as the single pass plugin PeaksFrequencyPhase) for all the
+ * TIFF stacks of a directory, without dialogs or image windows, so that it also runs on a server
+ * without display (java -Djava.awt.headless=true).
+ *
+ * The options are read from a parameter file (java.util.Properties format, see the PARAMETER_ constants),
+ * with the same defaults as the plugins. The files are distributed over a fixed number of workers, each
+ * analyzing one file at a time, so that at most that many stacks are in memory at once. Each worker
+ * keeps its threads and their buffers for the peak detection from one file to the next.
+ *
+ * For each stack name.tif, the output directory receives name_frequency.tif (beats per minute),
+ * name_phase.tif (degrees), optionally name_peaks.csv (x, y, frame of every peak, 0-based) and name_snr.tif
+ * (signal-to-noise map, see ActivityIndex), and unless disabled
+ * name_report.json with the timing of the stages, the throughput and, with a single worker, the memory use 
+ * (see PeakDetectionStatistics).
+ * batch_summary.csv lists all the files with their status, batch_timing.csv their timing.
+ *
+ * Command line:
+ * java -Djava.awt.headless=true -cp ij.jar:calciumImaging_.jar FindPeaks.accessory.classes.BatchAnalysis
+ * parameters.properties input_directory output_directory
+ * @author thomasbraschler
+ *
+ */
+public class BatchAnalysis {
+
+	/** Expected fraction of time activated, as in FindPeaks (default 0.5) */
+	public static final String PARAMETER_PEAK_FRACTION="peak_fraction";
+	/** Window for the threshold in frames, 0 for the whole recording, as in FindPeaks (default 0) */
+	public static final String PARAMETER_THRESHOLD_WINDOW="thresholdWindow";
+	/** Minimal distance between peaks in frames, as in FindPeaks (default 20) */
+	public static final String PARAMETER_MIN_D="minD";
+	/** Filtering for width and height, true or false, as in FindPeaks (default true) */
+	public static final String PARAMETER_DO_FILTERING="doFiltering";
+	/** Minimal width of the peaks in frames, as in FindPeaks (default 1) */
+	public static final String PARAMETER_MIN_W="minW";
+	/** Maximal width of the peaks in frames, as in FindPeaks (default 100) */
+	public static final String PARAMETER_MAX_W="maxW";
+	/** Minimal height above threshold, as in FindPeaks (default 5.5) */
+	public static final String PARAMETER_MIN_H="minH";
+	/** Frame rate in frames per second, as in LocalFrequency (default 24) */
+	public static final String PARAMETER_FRAME_RATE="frame_rate";
+	/** x-position of the reference pixel for the phase, as in LocalPhase (default: image center) */
+	public static final String PARAMETER_REFERENCE_X="reference_x";
+	/** y-position of the reference pixel for the phase, as in LocalPhase (default: image center) */
+	public static final String PARAMETER_REFERENCE_Y="reference_y";
+	/** Mask image file, positive values mean analyze, used for all the stacks (default: none) */
+	public static final String PARAMETER_MASK="mask";
+	/** Number of files analyzed at the same time (default 1) */
+	public static final String PARAMETER_WORKERS="workers";
+	/** Total number of threads, shared by the workers; 0 for all the processors (default 0) */
+	public static final String PARAMETER_THREADS="n_threads";
+	/** Write the peaks of each stack to a CSV file, true or false (default false) */
+	public static final String PARAMETER_SAVE_PEAKS="save_peaks";
+	/** Map uncompressed TIFF stacks into memory rather than loading them (see MappedStack), true or false (default false) */
+	public static final String PARAMETER_MEMORY_MAPPED="memory_mapped";
+	/** Time the stages of each analysis and write name_report.json and batch_timing.csv, true or false (default true) */
+	public static final String PARAMETER_REPORT_TIMING="report_timing";
+	/** Skip the pixels too inactive for a peak of height minH (see ActivityIndex), true or false (default false) */
+	public static final String PARAMETER_SKIP_INACTIVE="skip_inactive";
+	/** Write the signal-to-noise map of each stack (see ActivityIndex), true or false (default false) */
+	public static final String PARAMETER_SAVE_SNR="save_snr";
+
+	/** Name of the summary file written to the output directory */
+	public static final String SUMMARY_FILE="batch_summary.csv";
+
+	/** Name of the timing table (see PeakDetectionStatistics) written to the output directory */
+	public static final String TIMING_FILE="batch_timing.csv";
+
+	/** Expected fraction of values above the threshold */
+	protected double peak_fraction=0.5;
+	/** Window for a running threshold in frames, 0 for a single threshold */
+	protected int threshold_window=0;
+	/** Minimal distance between peaks */
+	protected double minD=20;
+	/** Filtering for width and height? */
+	protected boolean doFiltering=true;
+	/** Minimal width (if filtering) */
+	protected double minW=1;
+	/** Maximal width (if filtering) */
+	protected double maxW=100;
+	/** Minimal height above threshold (if filtering) */
+	protected double minH=5.5;
+	/** Frame rate of the recordings, in frames per second */
+	protected double frame_rate=24;
+	/** Reference pixel, negative for the image center */
+	protected int reference_x=-1;
+	protected int reference_y=-1;
+	/** Mask image for all the stacks, null to analyze all the pixels */
+	protected ImagePlus mask=null;
+	/** Number of files analyzed at the same time */
+	protected int n_workers=1;
+	/** Total number of threads, 0 for all the processors */
+	protected int n_threads=0;
+	/** Write the peaks to CSV files? */
+	protected boolean save_peaks=false;
+	/** Map the stacks rather than loading them? */
+	protected boolean memory_mapped=false;
+	/** Time the stages of each analysis? */
+	protected boolean report_timing=true;
+	/** Skip the inactive pixels? */
+	protected boolean skip_inactive=false;
+	/** Write the signal-to-noise maps? */
+	protected boolean save_snr=false;
+
+	/**
+	 * Outcome of the analysis of one file
+	 */
+	public static class Result
+	{
+		/** The stack analyzed */
+		public final File file;
+		/** true if the frequency and phase images were written */
+		public boolean success=false;
+		/** Error message or remark, empty if none */
+		public String message="";
+		/** Number of peaks found in all the pixels */
+		public int n_peaks=0;
+		/** Number of peaks of the reference pixel */
+		public int n_reference_peaks=0;
+		/** Analysis time including reading and writing, in milliseconds */
+		public double milliseconds=0;
+		/** Timing of the stages, null if not timed or if the analysis failed */
+		public PeakDetectionStatistics statistics=null;
+
+		public Result(File file)
+		{
+			this.file=file;
+		}
+	}
+
+	/**
+	 * Batch analysis with the default options of the plugins
+	 */
+	public BatchAnalysis()
+	{
+	}
+
+	/**
+	 * Batch analysis with the options of a parameter file; missing entries keep the default values
+	 * @param parameters The options, with the keys of the PARAMETER_ constants
+	 * @throws IOException If the mask image cannot be read
+	 */
+	public BatchAnalysis(Properties parameters) throws IOException
+	{
+		peak_fraction=getDouble(parameters, PARAMETER_PEAK_FRACTION, peak_fraction);
+		threshold_window=(int)getDouble(parameters, PARAMETER_THRESHOLD_WINDOW, threshold_window);
+		minD=getDouble(parameters, PARAMETER_MIN_D, minD);
+		doFiltering=getBoolean(parameters, PARAMETER_DO_FILTERING, doFiltering);
+		minW=getDouble(parameters, PARAMETER_MIN_W, minW);
+		maxW=getDouble(parameters, PARAMETER_MAX_W, maxW);
+		minH=getDouble(parameters, PARAMETER_MIN_H, minH);
+		frame_rate=getDouble(parameters, PARAMETER_FRAME_RATE, frame_rate);
+		reference_x=(int)getDouble(parameters, PARAMETER_REFERENCE_X, reference_x);
+		reference_y=(int)getDouble(parameters, PARAMETER_REFERENCE_Y, reference_y);
+		n_workers=Math.max((int)getDouble(parameters, PARAMETER_WORKERS, n_workers), 1);
+		n_threads=Math.max((int)getDouble(parameters, PARAMETER_THREADS, n_threads), 0);
+		save_peaks=getBoolean(parameters, PARAMETER_SAVE_PEAKS, save_peaks);
+		memory_mapped=getBoolean(parameters, PARAMETER_MEMORY_MAPPED, memory_mapped);
+		report_timing=getBoolean(parameters, PARAMETER_REPORT_TIMING, report_timing);
+		skip_inactive=getBoolean(parameters, PARAMETER_SKIP_INACTIVE, skip_inactive);
+		save_snr=getBoolean(parameters, PARAMETER_SAVE_SNR, save_snr);
+
+		String mask_file = parameters.getProperty(PARAMETER_MASK);
+
+		if(mask_file!=null && mask_file.trim().length()>0)
+		{
+			mask = IJ.openImage(mask_file.trim());
+
+			if(mask==null)
+			{
+				throw new IOException("Cannot read the mask image "+mask_file);
+			}
+		}
+	}
+
+	/**
+	 * Read the options from a parameter file
+	 * @param parameter_file File in java.util.Properties format
+	 * @return The batch analysis with these options
+	 * @throws IOException If the file (or the mask image) cannot be read
+	 */
+	public static BatchAnalysis fromFile(File parameter_file) throws IOException
+	{
+		Properties parameters = new Properties();
+
+		InputStream in = new FileInputStream(parameter_file);
+		try
+		{
+			parameters.load(in);
+		} finally
+		{
+			in.close();
+		}
+
+		return new BatchAnalysis(parameters);
+	}
+
+	/**
+	 * Numeric option
+	 * @param parameters The options
+	 * @param key Name of the option
+	 * @param default_value Value if the option is not given
+	 * @return The value of the option
+	 */
+	protected static double getDouble(Properties parameters, String key, double default_value)
+	{
+		String value = parameters.getProperty(key);
+
+		if(value==null || value.trim().length()==0)
+		{
+			return default_value;
+		}
+
+		try
+		{
+			return Double.parseDouble(value.trim());
+		} catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid number for "+key+": "+value);
+		}
+	}
+
+	/**
+	 * Boolean option
+	 * @param parameters The options
+	 * @param key Name of the option
+	 * @param default_value Value if the option is not given
+	 * @return The value of the option
+	 */
+	protected static boolean getBoolean(Properties parameters, String key, boolean default_value)
+	{
+		String value = parameters.getProperty(key);
+
+		if(value==null || value.trim().length()==0)
+		{
+			return default_value;
+		}
+
+		return Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * @param n_workers Number of files analyzed at the same time, at least 1
+	 */
+	public void setNumberOfWorkers(int n_workers)
+	{
+		this.n_workers=Math.max(n_workers, 1);
+	}
+
+	/**
+	 * @param n_threads Total number of threads shared by the workers, 0 for all the processors
+	 */
+	public void setNumberOfThreads(int n_threads)
+	{
+		this.n_threads=Math.max(n_threads, 0);
+	}
+
+	/**
+	 * The TIFF stacks of a directory
+	 * @param directory The directory
+	 * @return The .tif and .tiff files, sorted by name
+	 */
+	public static File[] getTiffFiles(File directory)
+	{
+		File[] files = directory.listFiles();
+
+		if(files==null)
+		{
+			return new File[0];
+		}
+
+		List<File> tiff_files = new ArrayList<File>();
+
+		for(File file : files)
+		{
+			String name = file.getName().toLowerCase(Locale.ROOT);
+
+			if(file.isFile() && (name.endsWith(".tif") || name.endsWith(".tiff")))
+			{
+				tiff_files.add(file);
+			}
+		}
+
+		File[] result = tiff_files.toArray(new File[tiff_files.size()]);
+		Arrays.sort(result);
+
+		return result;
+	}
+
+	/**
+	 * Analyze all the TIFF stacks of a directory and write the results and the summary to the output directory
+	 * @param input_directory Directory with the stacks
+	 * @param output_directory Directory for the results, created if needed
+	 * @return The outcome for each file, in the order of getTiffFiles
+	 * @throws IOException If the output directory or the summary cannot be written
+	 */
+	public List<Result> run(File input_directory, File output_directory) throws IOException
+	{
+		if(!output_directory.isDirectory() && !output_directory.mkdirs())
+		{
+			throw new IOException("Cannot create the output directory "+output_directory);
+		}
+
+		List<Result> results = run(getTiffFiles(input_directory), output_directory);
+
+		writeSummary(results, new File(output_directory, SUMMARY_FILE));
+
+		if(report_timing)
+		{
+			getTimingTable(results).saveAs(new File(output_directory, TIMING_FILE).getPath());
+		}
+
+		return results;
+	}
+
+	/**
+	 * Analyze stacks with a fixed number of workers. Each worker analyzes one file at a time with
+	 * its share of the threads. These threads, a pool per worker, and their buffers for the peak detection
+	 * are kept from one file to the next
+	 * @param files The stacks to be analyzed
+	 * @param output_directory Directory for the results
+	 * @return The outcome for each file, in the order of files
+	 */
+	public List<Result> run(File[] files, final File output_directory)
+	{
+		int n_total_threads = ParallelTools.getNumberOfThreads(n_threads);
+
+		final int workers = Math.max(Math.min(n_workers, files.length), 1);
+
+		// The threads are shared between the files analyzed at the same time
+		final int threads_per_file = Math.max(n_total_threads/workers, 1);
+
+		// The peak heap use is global to the JVM, so it cannot be attributed to a file analyzed in parallel with others
+		final boolean measure_heap = workers==1;
+
+		// Buffers for the peak detection of each worker, kept from one file to the next
+		final ThreadLocal<PeakDetectionWorkspace> workspaces = StackPeakDetector.createWorkspaces(0);
+
+		// Threads for the analysis of a file, one pool per worker (none if a single thread per file, which
+		// then runs in the worker itself), kept from one file to the next together with their buffers; only
+		// threads idle for a while are retired by their pool, and lose their buffers
+		final List<ForkJoinPool> file_pools = new ArrayList<ForkJoinPool>();
+		final ThreadLocal<ForkJoinPool> worker_pool = new ThreadLocal<ForkJoinPool>() {
+			protected ForkJoinPool initialValue() {
+				if(threads_per_file==1)
+				{
+					return null;
+				}
+				ForkJoinPool file_pool = new ForkJoinPool(threads_per_file);
+				synchronized(file_pools)
+				{
+					file_pools.add(file_pool);
+				}
+				return file_pool;
+			}
+		};
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+		try
+		{
+			for(final File file : files)
+			{
+				futures.add(pool.submit(new Callable<Result>() {
+					public Result call() {
+						return analyze(file, output_directory, threads_per_file, worker_pool.get(), workspaces,
+								measure_heap);
+					}
+				}));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+
+			for(int ind=0; ind<files.length; ind++)
+			{
+				try
+				{
+					results.add(futures.get(ind).get());
+				} catch(ExecutionException e)
+				{
+					Result result = new Result(files[ind]);
+					result.message = String.valueOf(e.getCause());
+					results.add(result);
+				} catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					Result result = new Result(files[ind]);
+					result.message = "interrupted";
+					results.add(result);
+				}
+			}
+
+			return results;
+		} finally
+		{
+			pool.shutdownNow();
+
+			synchronized(file_pools)
+			{
+				for(ForkJoinPool file_pool : file_pools)
+				{
+					file_pool.shutdown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Analyze one stack and write its results. Errors are reported in the result rather than thrown,
+	 * so that the other files of the batch are still analyzed
+	 * @param file The stack
+	 * @param output_directory Directory for the results
+	 * @param threads Number of threads for this stack
+	 * @param workspaces Per-thread buffers for the peak detection
+	 * @return The outcome
+	 */
+	public Result analyze(File file, File output_directory, int threads, ThreadLocal<PeakDetectionWorkspace> workspaces)
+	{
+		return analyze(file, output_directory, threads, null, workspaces, true);
+	}
+
+	/**
+	 * Analyze one stack and write its results. Errors are reported in the result rather than thrown,
+	 * so that the other files of the batch are still analyzed
+	 * @param file The stack
+	 * @param output_directory Directory for the results
+	 * @param threads Number of threads for this stack
+	 * @param file_pool Threads for this stack, kept by the caller for further stacks; null for a new pool of
+	 * the given number of threads
+	 * @param workspaces Per-thread buffers for the peak detection
+	 * @param measure_heap Report the peak heap use; only meaningful when no other file is analyzed at the same time
+	 * (see PeakDetectionStatistics.start(boolean))
+	 * @return The outcome
+	 */
+	public Result analyze(File file, File output_directory, int threads, ForkJoinPool file_pool,
+			ThreadLocal<PeakDetectionWorkspace> workspaces, boolean measure_heap)
+	{
+		Result result = new Result(file);
+
+		long start = System.nanoTime();
+
+		// Reading the stack counts as extraction of the z-profiles, writing the results as output
+		PeakDetectionStatistics statistics = report_timing ? new PeakDetectionStatistics() : null;
+
+		if(statistics!=null)
+		{
+			statistics.start(measure_heap);
+		}
+
+		try
+		{
+			ImagePlus imp;
+
+			if(memory_mapped)
+			{
+				imp = new ImagePlus(file.getName(), MappedStack.openTiff(file));
+			} else
+			{
+				imp = IJ.openImage(file.getPath());
+			}
+
+			if(imp==null)
+			{
+				result.message = "cannot read the file";
+				return result;
+			}
+
+			int bit_depth = imp.getBitDepth();
+
+			if(bit_depth!=8 && bit_depth!=16 && bit_depth!=32)
+			{
+				result.message = "not a greyscale stack";
+				return result;
+			}
+
+			StackPeakDetector detector = new StackPeakDetector(imp.getStack(), peak_fraction, minD, doFiltering,
+					minW, maxW, minH);
+			detector.setThresholdWindow(threshold_window);
+			detector.setWorkspaces(workspaces);
+			detector.setPool(file_pool);
+			detector.setStatistics(statistics);
+			detector.setSkipInactive(skip_inactive);
+
+			if(statistics!=null)
+			{
+				statistics.addTime(PeakDetectionStatistics.STAGE_PROFILE, start);
+			}
+
+			PeakFrequencyPhaseAnalysis analysis = new PeakFrequencyPhaseAnalysis(detector, frame_rate);
+
+			if(mask!=null)
+			{
+				analysis.setSpans(PixelSpans.fromMask(mask, imp.getWidth(), imp.getHeight()));
+			}
+
+			int ref_x = reference_x>=0 ? Math.min(reference_x, imp.getWidth()-1) : (int)Math.round((double)imp.getWidth()/2.0);
+			int ref_y = reference_y>=0 ? Math.min(reference_y, imp.getHeight()-1) : (int)Math.round((double)imp.getHeight()/2.0);
+
+			result.n_reference_peaks = analysis.setReference(ref_x, ref_y).length;
+
+			analysis.run(threads, false);
+
+			result.n_peaks = analysis.getPeakTable().getNumberOfPeaks();
+
+			String name = getBaseName(file);
+
+			long output_start = System.nanoTime();
+
+			if(!save(analysis.getFrequencyImage(), new File(output_directory, name+"_frequency.tif")))
+			{
+				result.message = "cannot write the frequency image";
+				return result;
+			}
+
+			if(!save(analysis.getPhaseImage(), new File(output_directory, name+"_phase.tif")))
+			{
+				result.message = "cannot write the phase image";
+				return result;
+			}
+
+			if(save_peaks)
+			{
+				writePeaks(analysis.getPeakTable(), new File(output_directory, name+"_peaks.csv"));
+			}
+
+			if(save_snr)
+			{
+				ActivityIndex index = detector.getActivityIndex();
+
+				if(index==null)
+				{
+					index = ActivityIndex.compute(imp.getStack(), detector.getSpans(), threads);
+				}
+
+				if(!save(index.getSNRImage(), new File(output_directory, name+"_snr.tif")))
+				{
+					result.message = "cannot write the signal-to-noise map";
+					return result;
+				}
+			}
+
+			if(statistics!=null)
+			{
+				statistics.addTime(PeakDetectionStatistics.STAGE_OUTPUT, output_start);
+				statistics.stop();
+				statistics.writeJSON(new File(output_directory, name+"_report.json"), file.getName());
+				result.statistics = statistics;
+			}
+
+			result.success = true;
+
+			// As in LocalPhase, at least 2 peaks are needed at the reference pixel for a phase
+			if(result.n_reference_peaks<2)
+			{
+				result.message = "fewer than 2 peaks at the reference pixel, phase undefined";
+			}
+		} catch(Exception e)
+		{
+			result.message = String.valueOf(e);
+		} catch(OutOfMemoryError e)
+		{
+			result.message = "out of memory";
+		} finally
+		{
+			result.milliseconds = (System.nanoTime()-start)/1e6;
+		}
+
+		return result;
+	}
+
+	/**
+	 * File name without the extension
+	 * @param file The file
+	 * @return The name up to the last dot
+	 */
+	protected static String getBaseName(File file)
+	{
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+
+		if(dot>0)
+		{
+			return name.substring(0, dot);
+		}
+		return name;
+	}
+
+	/**
+	 * Write an image as TIFF, without display
+	 * @param ip The image
+	 * @param file The output file
+	 * @return true on success
+	 */
+	protected static boolean save(FloatProcessor ip, File file)
+	{
+		return new FileSaver(new ImagePlus(getBaseName(file), ip)).saveAsTiff(file.getPath());
+	}
+
+	/**
+	 * Write the peaks of all the pixels as CSV, one line per peak (x, y and frame, 0-based)
+	 * @param table The peaks
+	 * @param file The output file
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void writePeaks(PeakEventTable table, File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+
+		try
+		{
+			out.println("x,y,frame");
+
+			int width = table.getWidth();
+			int[] offsets = table.getOffsets();
+			int[] frames = table.getFrames();
+
+			for(int i=0; i<width*table.getHeight(); i++)
+			{
+				for(int k=offsets[i]; k<offsets[i+1]; k++)
+				{
+					out.println((i%width)+","+(i/width)+","+frames[k]);
+				}
+			}
+
+			if(out.checkError())
+			{
+				throw new IOException("Cannot write "+file);
+			}
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the outcome of all the files as CSV
+	 * @param results The outcome of each file
+	 * @param file The output file
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void writeSummary(List<Result> results, File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+
+		try
+		{
+			out.println("file,success,peaks,reference_peaks,milliseconds,message");
+
+			for(Result result : results)
+			{
+				out.println(quote(result.file.getName())+","+result.success+","+result.n_peaks+","
+						+result.n_reference_peaks+","+String.format(Locale.ROOT, "%.1f", result.milliseconds)+","
+						+quote(result.message));
+			}
+
+			if(out.checkError())
+			{
+				throw new IOException("Cannot write "+file);
+			}
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Timing of all the files analyzed successfully, one row per file (see PeakDetectionStatistics.addTo)
+	 * @param results The outcome of each file
+	 * @return The table
+	 */
+	public static ResultsTable getTimingTable(List<Result> results)
+	{
+		ResultsTable rt = new ResultsTable();
+
+		for(Result result : results)
+		{
+			if(result.statistics!=null)
+			{
+				result.statistics.addTo(rt, result.file.getName());
+			}
+		}
+
+		return rt;
+	}
+
+	/**
+	 * Quote a CSV field
+	 * @param value The field
+	 * @return The field in double quotes, with inner quotes doubled
+	 */
+	protected static String quote(String value)
+	{
+		return "\""+value.replace("\"", "\"\"")+"\"";
+	}
+
+	/**
+	 * Command line entry point: BatchAnalysis parameters.properties input_directory output_directory
+	 * @param args Parameter file, input directory and output directory
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length!=3)
+		{
+			System.err.println("Usage: java -Djava.awt.headless=true -cp ij.jar:calciumImaging_.jar "
+					+ BatchAnalysis.class.getName()+" parameters.properties input_directory output_directory");
+			System.exit(2);
+		}
+
+		try
+		{
+			BatchAnalysis batch = fromFile(new File(args[0]));
+
+			List<Result> results = batch.run(new File(args[1]), new File(args[2]));
+
+			int n_failed = 0;
+
+			for(Result result : results)
+			{
+				System.out.println(result.file.getName()+": "+(result.success ? "done" : "failed")
+						+(result.message.length()>0 ? " ("+result.message+")" : "")
+						+String.format(Locale.ROOT, ", %.0f ms", result.milliseconds));
+
+				if(!result.success)
+				{
+					n_failed++;
+				}
+			}
+
+			System.out.println(results.size()+" files, "+n_failed+" failed");
+
+			System.exit(n_failed==0 ? 0 : 1);
+		} catch(IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+
+}
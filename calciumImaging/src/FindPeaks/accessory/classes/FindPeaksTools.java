@@ -47,10 +47,13 @@
 
 package FindPeaks.accessory.classes;
 
-import java.util.Vector;
+import java.util.Arrays;
 
 import tbgitoo.tools.ArraySortTools;
 import tbgitoo.tools.FitParabola;
+import tbgitoo.tools.ParabolaFitter;
+import tbgitoo.tools.SlidingHistogram;
+import tbgitoo.tools.StatisticsTools;
 import tbgitoo.tools.VectorTools;
 
 
@@ -78,24 +81,367 @@ public class FindPeaksTools {
 	 * @param minW Minimal width (if filtering)
 	 * @param maxW Maximal width (if filtering)
 	 * @param minH Minimal height (above threshold for fitted parabola, effective only when filtering)
-	 * @return Ordered array of indices of the peaks
+	 * @return Array of indices of the peaks, in increasing order
 	 */
 	public static int[] findPeaks(double[] vals, double threshold, double minD, boolean doFiltering, 
 			double minW, double maxW, double minH)
 	{
 
-		int[] idx= identifyPeaksAtMinimalDistance(
-				vals, threshold,  minD);
-		
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(vals.length);
+
+		int n_peaks = findPeaks(vals, vals.length, threshold, minD, doFiltering, minW, maxW, minH, ws);
+
+		// The workspace holds the peaks in the order of their visit
+		int[] idx = copyPeaks(ws, n_peaks);
+
+		Arrays.sort(idx);
+
+		return idx;
+
+
+
+	}
+
+	/** 
+	 * Identify peaks in an array of double values, without memory allocation. Same as 
+	 * findPeaks(double[], double, double, boolean, double, double, double), but working on the first n
+	 * values of vals only and using the buffers of a workspace
+	 * @param vals Array of values in which we search for peaks
+	 * @param n Number of values in vals to consider
+	 * @param threshold Threshold above which the values need to lie to be considered peak candidates
+	 * @param minD Minimal distance between peaks (unit spacing between individual values is assumed) 
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height (above threshold for fitted parabola, effective only when filtering)
+	 * @param ws Workspace with capacity at least n; receives the peak positions (see PeakDetectionWorkspace.getPeaks),
+	 * in the order of their visit by suppressNonMaxima, i.e. by decreasing value, not by position
+	 * @return Number of peaks found
+	 */
+	public static int findPeaks(double[] vals, int n, double threshold, double minD, boolean doFiltering, 
+			double minW, double maxW, double minH, PeakDetectionWorkspace ws)
+	{
+		return findPeaks(vals, null, n, threshold, minD, doFiltering, minW, maxW, minH, ws);
+	}
+
+	/** 
+	 * Identify peaks in an array of double values, without memory allocation, as 
+	 * findPeaks(double[], int, double, double, boolean, double, double, double, PeakDetectionWorkspace), but with
+	 * integer keys in the same order as the values, for the ordering of the peak candidates by counting sort 
+	 * (see identifyPeaksAtMinimalDistance(double[], int[], int, int, double, double, PeakDetectionWorkspace))
+	 * @param vals Array of values in which we search for peaks
+	 * @param keys Integer keys, keys[i]&gt;keys[j] if and only if vals[i]&gt;vals[j]; typically the integer pixel values 
+	 * when vals are these values minus a constant threshold. Null to order the candidates by their values
+	 * @param n Number of values in vals to consider
+	 * @param threshold Threshold above which the values need to lie to be considered peak candidates
+	 * @param minD Minimal distance between peaks (unit spacing between individual values is assumed) 
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height (above threshold for fitted parabola, effective only when filtering)
+	 * @param ws Workspace with capacity at least n; receives the peak positions (see PeakDetectionWorkspace.getPeaks),
+	 * in the order of their visit by suppressNonMaxima, i.e. by decreasing value, not by position
+	 * @return Number of peaks found
+	 */
+	public static int findPeaks(double[] vals, int[] keys, int n, double threshold, double minD, boolean doFiltering, 
+			double minW, double maxW, double minH, PeakDetectionWorkspace ws)
+	{
+
+		int n_peaks = identifyPeaksAtMinimalDistance(vals, keys, 0, n, threshold, minD, ws);
+
+		ws.endStage(PeakDetectionStatistics.STAGE_CANDIDATES);
+
+		PeakDetectionStatistics.Counters counters = ws.counters;
+
+		if(counters!=null)
+		{
+			counters.candidates+=ws.n_candidates;
+		}
+
 		if(doFiltering)
 		{
-			idx=filterPeaks(idx, vals, minD, minW, maxW, minH,0);
+			if(counters!=null)
+			{
+				counters.fits+=n_peaks;
+			}
+
+			// Filtering only removes peaks, so it can be done in place
+			n_peaks = filterPeaks(ws.peaks, n_peaks, vals, n, minD, minW, maxW, minH, 0, ws.params, ws.peaks, ws.fitter);
+
+			ws.endStage(PeakDetectionStatistics.STAGE_FILTER);
 		}
 
-		return idx;
+		if(counters!=null)
+		{
+			counters.peaks+=n_peaks;
+		}
+
+		ws.n_peaks=n_peaks;
+
+		return n_peaks;
+
+	}
+
+	/**
+	 * Complete peak detection in an integer z-profile, as done for each pixel by the FindPeaks plugin: 
+	 * the threshold is set at the quantile 1-peak_fraction of the values in the profile, and peaks
+	 * are searched above this threshold. Works without memory allocation.
+	 * @param ws Workspace, with the first n elements of getSection() holding the profile (8-bit values). 
+	 * Receives the peak positions
+	 * @param n Length of the profile
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 * @return Number of peaks found
+	 */
+	public static int findPeaksInProfile(PeakDetectionWorkspace ws, int n, double peak_fraction, 
+			double minD, boolean doFiltering, double minW, double maxW, double minH)
+	{
+		int[] section = ws.section;
+		double[] values = ws.values;
+
+		StatisticsTools.getHistogram(section, n, 0, PeakDetectionWorkspace.N_LEVELS, ws.counts, ws.histogram);
+
+		double threshold = StatisticsTools.getQuantile(ws.histogram, 0, PeakDetectionWorkspace.N_LEVELS, 
+				1-peak_fraction, ws.cumsum);
+
+		// Values relative to the threshold, looked up by grey level rather than converted and 
+		// subtracted frame by frame
+		double[] level_values = ws.level_values;
+
+		for(int level=0; level<PeakDetectionWorkspace.N_LEVELS; level++)
+		{
+			level_values[level]=((double)level)-threshold;
+		}
+
+		VectorTools.lookup(section, n, level_values, values);
+
+		ws.endStage(PeakDetectionStatistics.STAGE_THRESHOLD);
+
+		// The pixel values have the order of the values relative to the threshold, and allow
+		// ordering the candidates by counting sort
+		return findPeaks(values, section, n, 0, minD, doFiltering, minW, maxW, minH, ws);
+	}
+
+	/**
+	 * Complete peak detection in a 16-bit z-profile, as findPeaksInProfile. With 65536 grey levels, a full histogram
+	 * would be much longer than a typical z-profile, so the histogram is restricted to the range of values in the 
+	 * profile, or the threshold is obtained by selection for profiles with a very large range 
+	 * (StatisticsTools.getQuantileOfIntegers, same definition of the quantile). Works without memory allocation.
+	 * @param ws Workspace, with the first n elements of getSection() holding the profile (16-bit values).
+	 * Receives the peak positions
+	 * @param n Length of the profile
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 * @return Number of peaks found
+	 */
+	public static int findPeaksInShortProfile(PeakDetectionWorkspace ws, int n, double peak_fraction,
+			double minD, boolean doFiltering, double minW, double maxW, double minH)
+	{
+		int[] section = ws.section;
+		double[] values = ws.values;
+
+		// The candidate buffer is not in use yet, so it serves as work array for the selection
+		double threshold = StatisticsTools.getQuantileOfIntegers(section, n, 1-peak_fraction, 65536,
+				ws.counts, ws.histogram, ws.cumsum, ws.candidates);
+
+		VectorTools.subtract(section, n, threshold, values);
+
+		ws.endStage(PeakDetectionStatistics.STAGE_THRESHOLD);
+
+		// The pixel values have the order of the values relative to the threshold, and allow
+		// ordering the candidates by counting sort
+		return findPeaks(values, section, n, 0, minD, doFiltering, minW, maxW, minH, ws);
+	}
+
+	/**
+	 * Complete peak detection in a 32-bit (floating point) z-profile, as findPeaksInProfile. The threshold is
+	 * obtained by selection (StatisticsTools.getQuantileOfValues), since there are no grey levels to build
+	 * a histogram on. Works without memory allocation.
+	 * @param ws Workspace, with the first n elements of getValues() holding the profile. The values are
+	 * replaced by their difference to the threshold. Receives the peak positions
+	 * @param n Length of the profile
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 * @return Number of peaks found
+	 */
+	public static int findPeaksInFloatProfile(PeakDetectionWorkspace ws, int n, double peak_fraction,
+			double minD, boolean doFiltering, double minW, double maxW, double minH)
+	{
+		double[] values = ws.values;
+
+		// The candidate value buffer is not in use yet, so it serves as work array for the selection
+		double threshold = StatisticsTools.getQuantileOfValues(values, n, 1-peak_fraction, ws.candidate_values);
+
+		VectorTools.subtract(values, n, threshold);
+
+		ws.endStage(PeakDetectionStatistics.STAGE_THRESHOLD);
+
+		return findPeaks(values, n, 0, minD, doFiltering, minW, maxW, minH, ws);
+	}
+
+	/**
+	 * Complete peak detection in an integer z-profile (8-bit or 16-bit values), as findPeaksInProfile, but with a
+	 * running threshold: for each frame, the threshold is the quantile 1-peak_fraction of the values in a window
+	 * of frames centered on it, rather than of the whole profile. This follows slow changes of the baseline, such
+	 * as photobleaching, which otherwise make late peaks fall below the threshold or early noise rise above it.
+	 * The histogram is built over the range of values in the profile and updated incrementally as the window moves
+	 * (see subtractRollingThreshold). Works without memory allocation.
+	 * @param ws Workspace, with the first n elements of getSection() holding the profile. Receives the peak positions
+	 * @param n Length of the profile
+	 * @param peak_fraction Expected fraction of values above the threshold, in each window
+	 * @param window Length of the window, in frames (at least 1). Near the ends of the profile, the window is truncated 
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 * @return Number of peaks found
+	 */
+	public static int findPeaksInProfileRollingThreshold(PeakDetectionWorkspace ws, int n, double peak_fraction,
+			int window, double minD, boolean doFiltering, double minW, double maxW, double minH)
+	{
+		int[] section = ws.section;
+		double[] values = ws.values;
+
+		// The candidate buffer is not in use yet, it holds the histogram bin of each frame
+		int[] bins = ws.candidates;
+
+		int min = VectorTools.min(section, 0, n);
+		int max = VectorTools.max(section, 0, n);
+
+		for(int ind=0; ind<n; ind++)
+		{
+			values[ind]=section[ind];
+			bins[ind]=section[ind]-min;
+		}
+
+		subtractRollingThreshold(values, bins, n, min, 1, max-min+1, 1-peak_fraction, window, ws.sliding_histogram);
+
+		ws.endStage(PeakDetectionStatistics.STAGE_THRESHOLD);
+
+		return findPeaks(values, n, 0, minD, doFiltering, minW, maxW, minH, ws);
+	}
 
+	/**
+	 * Complete peak detection in a 32-bit (floating point) z-profile with a running threshold, as 
+	 * findPeaksInProfileRollingThreshold. Without grey levels, the histogram has PeakDetectionWorkspace.N_LEVELS
+	 * bins of equal width between the minimum and the maximum of the profile. Works without memory allocation.
+	 * @param ws Workspace, with the first n elements of getValues() holding the profile. The values are
+	 * replaced by their difference to the threshold. Receives the peak positions
+	 * @param n Length of the profile
+	 * @param peak_fraction Expected fraction of values above the threshold, in each window
+	 * @param window Length of the window, in frames (at least 1). Near the ends of the profile, the window is truncated 
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 * @return Number of peaks found
+	 */
+	public static int findPeaksInFloatProfileRollingThreshold(PeakDetectionWorkspace ws, int n, double peak_fraction,
+			int window, double minD, boolean doFiltering, double minW, double maxW, double minH)
+	{
+		double[] values = ws.values;
+
+		// The candidate buffer is not in use yet, it holds the histogram bin of each frame
+		int[] bins = ws.candidates;
+
+		double min = VectorTools.min(values, 0, n);
+		double max = VectorTools.max(values, 0, n);
+
+		int n_bins = PeakDetectionWorkspace.N_LEVELS;
+		double bin_width = max>min ? (max-min)/n_bins : 1;
+
+		for(int ind=0; ind<n; ind++)
+		{
+			// The maximum belongs to the last bin
+			bins[ind]=Math.min((int)((values[ind]-min)/bin_width), n_bins-1);
+		}
+
+		subtractRollingThreshold(values, bins, n, min, bin_width, n_bins, 1-peak_fraction, window, ws.sliding_histogram);
+
+		ws.endStage(PeakDetectionStatistics.STAGE_THRESHOLD);
+
+		return findPeaks(values, n, 0, minD, doFiltering, minW, maxW, minH, ws);
+	}
+
+	/**
+	 * Subtract a running quantile from a series of values: for each position z, the quantile p of the values in the window 
+	 * z-window/2 &lt;= z' &lt; z-window/2+window (truncated to the series) is subtracted from vals[z]. The quantile is 
+	 * obtained from a histogram of the window, with the definition of StatisticsTools.getQuantile. As the window moves by
+	 * one position, one value enters and one leaves the histogram, so the cost per position does not depend on the window
+	 * length (see SlidingHistogram). 
+	 * With a window of at least twice the length of the series, every position sees the whole series and the threshold
+	 * is the quantile over the whole series.
+	 * @param vals Values, replaced by their difference to the running quantile
+	 * @param bins Histogram bin of each value, 0&lt;=bins[z]&lt;n_bins; bin b covers 
+	 * lower+b*bin_width &lt;= x &lt; lower+(b+1)*bin_width
+	 * @param n Number of values
+	 * @param lower Lower end of the first bin
+	 * @param bin_width Width of the bins
+	 * @param n_bins Number of bins
+	 * @param p Cumulative probability associated with the quantile
+	 * @param window Length of the window (at least 1)
+	 * @param hist Histogram for the window, reset here
+	 */
+	public static void subtractRollingThreshold(double[] vals, int[] bins, int n, double lower, double bin_width, 
+			int n_bins, double p, int window, SlidingHistogram hist)
+	{
+		hist.reset(n_bins);
+
+		int half = window/2;
 
+		// First position not yet in the window
+		int next = 0;
+
+		for(int z=0; z<n; z++)
+		{
+			// Values entering the window on the right
+			int end = Math.min(n, z-half+window);
+			while(next<end)
+			{
+				hist.add(bins[next]);
+				next++;
+			}
+
+			// Value leaving the window on the left
+			if(z-half-1>=0)
+			{
+				hist.remove(bins[z-half-1]);
+			}
 
+			vals[z]=vals[z]-(lower+hist.getQuantile(p)*bin_width);
+		}
+	}
+
+	/**
+	 * Copy the peaks found in a workspace to a new array
+	 * @param ws Workspace holding the peak positions
+	 * @param n_peaks Number of peaks
+	 * @return Array of length n_peaks with the peak positions
+	 */
+	public static int[] copyPeaks(PeakDetectionWorkspace ws, int n_peaks)
+	{
+		int[] idx=new int[n_peaks];
+
+		for(int ind=0; ind<n_peaks; ind++)
+		{
+			idx[ind]=ws.peaks[ind];
+		}
+
+		return idx;
 	}
 
 
@@ -116,123 +462,227 @@ public class FindPeaksTools {
 	public static int[] identifyPeaksAtMinimalDistance(double[] vals, double threshold, double minD)
 	{
 
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(vals.length);
+
+		int n_peaks = identifyPeaksAtMinimalDistance(vals, vals.length, threshold, minD, ws);
+
+		return copyPeaks(ws, n_peaks);
+
+	}
+
+	/** 
+	 * Primary peak identification as in identifyPeaksAtMinimalDistance(double[], double, double), but 
+	 * working on the first n values of vals and using the buffers of a workspace instead of allocating memory
+	 * @param vals Values of the function for which peaks should be found. Unit spacing between sequential values is assumed
+	 * @param n Number of values in vals to consider
+	 * @param threshold Threshold above which a value need to lie to be considered as a candidate for being peak
+	 * @param minD Minimal distance between neighboring peaks
+	 * @param ws Workspace with capacity at least n, receives the peak positions
+	 * @return Number of peaks found
+	 */
+
+	public static int identifyPeaksAtMinimalDistance(double[] vals, int n, double threshold, double minD, 
+			PeakDetectionWorkspace ws)
+	{
+		return identifyPeaksAtMinimalDistance(vals, 0, n, threshold, minD, ws);
+	}
+
+	/** 
+	 * Primary peak identification as in identifyPeaksAtMinimalDistance(double[], int, double, double, PeakDetectionWorkspace), 
+	 * but considering only the candidates within a range of positions 
+	 * @param vals Values of the function for which peaks should be found. Unit spacing between sequential values is assumed
+	 * @param from First position eligible as a peak candidate (included)
+	 * @param to Last position eligible as a peak candidate (excluded)
+	 * @param threshold Threshold above which a value need to lie to be considered as a candidate for being peak
+	 * @param minD Minimal distance between neighboring peaks
+	 * @param ws Workspace with capacity at least to, receives the peak positions
+	 * @return Number of peaks found
+	 */
+
+	public static int identifyPeaksAtMinimalDistance(double[] vals, int from, int to, double threshold, double minD, 
+			PeakDetectionWorkspace ws)
+	{
+		return identifyPeaksAtMinimalDistance(vals, null, from, to, threshold, minD, ws);
+	}
+
+	/** 
+	 * Primary peak identification as in identifyPeaksAtMinimalDistance(double[], int, int, double, double, PeakDetectionWorkspace),
+	 * with optional integer keys for the ordering of the candidates. The candidates are visited from the highest
+	 * to the lowest value, and among equal values from the first to the last position (as the stable descending 
+	 * sort in Octave). With keys, the order is obtained by counting or radix sort of the keys, otherwise by
+	 * a comparison sort of the values (ArraySortTools.sortIndexes); the order, and so the peaks, are the same
+	 * @param vals Values of the function for which peaks should be found. Unit spacing between sequential values is assumed
+	 * @param keys Integer keys, keys[i]&gt;keys[j] if and only if vals[i]&gt;vals[j], or null
+	 * @param from First position eligible as a peak candidate (included)
+	 * @param to Last position eligible as a peak candidate (excluded)
+	 * @param threshold Threshold above which a value need to lie to be considered as a candidate for being peak
+	 * @param minD Minimal distance between neighboring peaks
+	 * @param ws Workspace with capacity at least to, receives the peak positions
+	 * @return Number of peaks found
+	 */
+
+	public static int identifyPeaksAtMinimalDistance(double[] vals, int[] keys, int from, int to, double threshold, 
+			double minD, PeakDetectionWorkspace ws)
+	{
+
 		// Only values exceeding the threshold are peak canditates
-		int[] idx = VectorTools.getIndexesOfValuesExceedingThreshold(vals,threshold);
+		int[] idx = ws.candidates;
 
+		int n_candidates = VectorTools.getIndexesOfValuesExceedingThreshold(vals, from, to, threshold, idx);
 
+		ws.n_candidates=n_candidates;
 
-		// Along the idx values, get the remaining associated values in the vals array
-		double[] remaining_vals = new double[idx.length];
 
-		for(int ind=0; ind<remaining_vals.length; ind++)
+		int[] order = ws.order;
+		int[] idx_s=ws.sorted_candidates;
+
+		if(keys!=null)
 		{
-			remaining_vals[ind]=vals[idx[ind]];
-		}
+			// Along the idx values, get the associated keys
+			int[] remaining_keys = ws.candidate_keys;
 
-		
+			for(int ind=0; ind<n_candidates; ind++)
+			{
+				remaining_keys[ind]=keys[idx[ind]];
+			}
 
-		// This is the order that we have in the remaining values, sorted increasingly
+			// Order of the candidates, by decreasing value. The sorted candidate buffer is 
+			// not in use yet and serves as work array
+			ArraySortTools.sortIndexes(remaining_keys, n_candidates, true, order, idx_s, ws.sort_counts);
+		} else
+		{
+			// Along the idx values, get the remaining associated values in the vals array
+			double[] remaining_vals = ws.candidate_values;
 
-		int[] order = ArraySortTools.getIndexesOfSortedArray(remaining_vals);
-		
-		
-		
+			for(int ind=0; ind<n_candidates; ind++)
+			{
+				remaining_vals[ind]=vals[idx[ind]];
+			}
 
-		// We need to apply this order, but in reverse, to the idx values
+			// Order of the candidates, by decreasing value
+			ArraySortTools.getIndexesOfReverseSortedArray(remaining_vals, n_candidates, order);
+		}
+
+		// We need to apply this order to the idx values
 		// After this, we should have an array of indices, the first element
 		// pointing to the highest value, then the second to second-highest value, and so
 		// forth
-		int[] idx_s=new int[idx.length];
-
-		for(int ind=0; ind<idx.length; ind++)
+		for(int ind=0; ind<n_candidates; ind++)
 		{
-			idx_s[ind]=idx[order[idx.length-1-ind]];
+			idx_s[ind]=idx[order[ind]];
 		}
 		
 
-		// The nodes2visit hold the indexes to the elements in idx_s we still need to look at
-		Vector<Integer> node2visit = new Vector <Integer>(idx_s.length);
-		// The visited variable holds the indexes of the elements in idx_s which we already considered
-		Vector<Integer> visited = new Vector <Integer>(idx_s.length);
+		// Visit the candidates from the highest to the lowest value. Each candidate that has not been
+		// suppressed yet is a peak, and suppresses all the candidates closer than minD to it
+		// So we get all the indexes of the values that are larger than the threshold, in decreasing order
+		// with sequential removal of all the neighbors too close to the peaks as identified by the maxima
+		int n_peaks = suppressNonMaxima(idx_s, n_candidates, minD, ws.state, ws.peaks);
+
+		ws.n_peaks=n_peaks;
+
+		return n_peaks;
+
+
+	}
+	
+	/** State of a position in the suppression bitmap: not a peak candidate */
+	protected static final byte NO_CANDIDATE=0;
+
+	/** State of a position in the suppression bitmap: candidate not yet visited nor suppressed */
+	protected static final byte OPEN_CANDIDATE=1;
 
-		// Remaining idx elements which are standalone peaks
-		Vector<Integer> idx_pruned = new Vector <Integer>(idx_s.length);
+	/** State of a position in the suppression bitmap: candidate visited, or position suppressed by a peak */
+	protected static final byte RESOLVED=2;
 
-		// Initialize: all nodes are still to visit, and all corresponding indexes in idx_s are still in
-		for(int ind=0; ind<idx_s.length; ind++)
+	/**
+	 * Greedy suppression of peak candidates closer than minD to a better candidate. The candidates
+	 * are visited in the order given; a candidate that has not been suppressed at the time of its visit is a
+	 * peak and suppresses all the positions closer than minD to it. This gives the same peaks as the
+	 * node visiting scheme of the Octave findPeaks function, but a bitmap over the positions replaces the 
+	 * searches through the lists of visited nodes, such that the cost is linear in the number of candidates
+	 * (the peaks are at least minD apart and so suppress at most 2*minD positions each, in total of the 
+	 * order of the length of the data). Once all the candidates are resolved, the remaining ones are
+	 * not visited anymore, which bounds the work for noisy data with many candidates.
+	 * @param idx_s Candidate positions, in the order of decreasing priority
+	 * @param n_candidates Number of candidates in idx_s to consider
+	 * @param minD Minimal distance between neighboring peaks
+	 * @param state Work array, with at least one element per position (i.e. the length of the data). 
+	 * Overwritten
+	 * @param kept Output array, receives the positions of the peaks in the order of their visit
+	 * @return Number of peaks written to kept
+	 */
+	public static int suppressNonMaxima(int[] idx_s, int n_candidates, double minD, byte[] state, int[] kept)
+	{
+		if(n_candidates==0)
 		{
-			node2visit.add(ind);
-			idx_pruned.add(idx_s[ind]);
+			return 0;
 		}
 
-		// While we still have nodes to visit left
-		while (node2visit.size()>0)
+		// Integer distances d suppressed by a peak, |d|<minD
+		int reach = (int)Math.ceil(minD)-1;
+
+		if(reach<0)
 		{
-			// Set the current node as the node with the highest value that is still avaible
-			int current_node = node2visit.get(0);
-			// This node is now visited, remove from candidates and add to visited array
-			node2visit.remove(0);
-			visited.add(current_node);
+			reach=0;
+		}
+
+		// Mark the candidates, and also get the span of the candidate positions, 
+		// positions outside the span need not be suppressed
+		int min_pos=idx_s[0];
+		int max_pos=idx_s[0];
 
-			// Get the new neighbors of this node. These are the points that were not
-			// yet visited and that are closer than minD to the current node
+		for(int ind=0; ind<n_candidates; ind++)
+		{
+			state[idx_s[ind]]=OPEN_CANDIDATE;
+			min_pos=Math.min(min_pos, idx_s[ind]);
+			max_pos=Math.max(max_pos, idx_s[ind]);
+		}
 
-			Vector<Integer> neighs = new Vector <Integer>(idx_s.length);
+		int n_resolved=0;
+		int n_kept=0;
 
-			for(int ind=0; ind<idx_s.length; ind++)
-			{
-				// We are looking at some other node that is close
-				if(ind != current_node && Math.abs(idx_s[ind]-idx_s[current_node])<minD)
-				{
+		for(int ind=0; ind<n_candidates && n_resolved<n_candidates; ind++)
+		{
+			int pos = idx_s[ind];
 
-					if(!VectorTools.findInVector(ind, visited)) // Not visited yet, add to the neighbors
-					{
-						neighs.add(ind);
-					}
-				}
-			}
-			// We got the neighbors, and there are indeed some neighbors
-			if(neighs.size()>0)
+			// Suppressed by a better peak already
+			if(state[pos]!=OPEN_CANDIDATE)
 			{
-				Vector<Integer> idx_neighs=new Vector<Integer>(neighs.size());
+				continue;
+			}
+
+			// This is a peak, suppress its neighbors
+			kept[n_kept]=pos;
+			n_kept++;
+
+			int lower = Math.max(pos-reach, min_pos);
+			int upper = Math.min(pos+reach, max_pos);
 
-				for(int ind=0; ind<neighs.size(); ind++)
+			for(int p=lower; p<=upper; p++)
+			{
+				if(state[p]==OPEN_CANDIDATE)
 				{
-					// listing the neighbors
-					idx_neighs.add(idx_s[neighs.get(ind)]);
-					// all those neighbors should be counted as visited in the next round
-					visited.add(neighs.get(ind).intValue());
+					n_resolved++;
 				}
-
-				// Remove the neighbors from the available candidates
-				idx_pruned=VectorTools.setDiff(idx_pruned,idx_neighs);
-				// Make sure no more visited nodes figure in the array with the nodes to visit
-				node2visit=VectorTools.setDiff(node2visit, visited);
+				state[p]=RESOLVED;
 			}
 
-
 		}
 
-
-
-		// So now we have all the indexes of the values that are larger than the threshold, in decreasing order
-		// with sequential removal of all the neighbors too close to the peaks as identified by the maxima
-		
-		// Format for return
-		idx=new int[idx_pruned.size()];
-
-		for(int ind=0; ind<idx_pruned.size(); ind++)
+		// Only the candidate positions are reset, not the whole work array: the next use marks its own
+		// candidates before reading them, and only counts positions still OPEN_CANDIDATE as newly resolved,
+		// so a stale OPEN_CANDIDATE (possible only at the candidates of this call, when the loop above ends
+		// early) must not remain, while the RESOLVED marks left around the peaks are harmless. This keeps 
+		// the cost proportional to the number of candidates rather than to the length of the data
+		for(int ind=0; ind<n_candidates; ind++)
 		{
-			idx[ind]=idx_pruned.get(ind);
+			state[idx_s[ind]]=NO_CANDIDATE;
 		}
 
-
-		// And return
-		return idx;
-
-
+		return n_kept;
 	}
-	
+
 	/**
 	 * This is the second part of the Java implementation of the Octave findPeaks function
 	 * (see https://searchcode.com/codesearch/view/64213481/)
@@ -257,58 +707,139 @@ public class FindPeaksTools {
 			double minW, double maxW, double minH, double fitMin)
 	{
 
-		// Remaining idx elements which are standalone peaks
-		// To start with, identical to idx but Vector class so we can modify it
-		Vector<Integer> idx_pruned = new Vector <Integer>(idx.length);
+		int [] new_idx = new int[idx.length];
+
+		int n_kept = filterPeaks(idx, idx.length, vals, vals.length, minD, minW, maxW, minH, fitMin,
+				new double[3], new_idx);
 
+		// Format for return 
+		int [] ret = new int[n_kept];
 
-		for(int ind=0; ind<idx.length; ind++)
+		for(int ind=0; ind<n_kept; ind++)
 		{
+			ret[ind]=new_idx[ind];
+		}
+
+		// Return
+		return ret;
+
+	}
+
+	/**
+	 * Filtering of the peak candidates as in filterPeaks(int[], double[], double, double, double, double, double),
+	 * without memory allocation. The parabolas are fitted directly on the values in vals, without copying
+	 * the local environment of each peak
+     * @param idx the pre-filtered peak candidates,typicaly obtained from the method identifyPeaksAtMinimalDistance
+     * @param n_idx Number of peak candidates in idx
+	 * @param vals Underlying values (complete dataset)
+	 * @param n_vals Number of values in vals to consider
+	 * @param minD distance required between the peaks (minD)
+	 * @param minW Minimal fitting width
+	 * @param maxW Maximal fitting width
+	 * @param minH Minimal fitting height
+	 * @param fitMin Minimal environment around peak for parabola fitting
+	 * @param pp Work array of length 3 for the parabola coefficients
+	 * @param new_idx Output array, receives the peaks passing the quality criteria. May be idx itself
+	 * @return Number of peaks written to new_idx
+	 */
+
+	public static int filterPeaks(int[] idx, int n_idx, double[] vals, int n_vals, double minD, 
+			double minW, double maxW, double minH, double fitMin, double[] pp, int[] new_idx)
+	{
+		return filterPeaks(idx, n_idx, vals, n_vals, minD, minW, maxW, minH, fitMin, pp, new_idx, null);
+	}
+
+	/**
+	 * Filtering of the peak candidates as in filterPeaks(int[], int, double[], int, double, double, double, double, double,
+	 * double[], int[]), with the parabolas fitted by a ParabolaFitter: the fitter needs a single pass over vals
+	 * to build its prefix sums, and then fits each window in constant time, rather than several passes over
+	 * each window. The results are the same up to rounding errors
+     * @param idx the pre-filtered peak candidates,typicaly obtained from the method identifyPeaksAtMinimalDistance
+     * @param n_idx Number of peak candidates in idx
+	 * @param vals Underlying values (complete dataset)
+	 * @param n_vals Number of values in vals to consider
+	 * @param minD distance required between the peaks (minD)
+	 * @param minW Minimal fitting width
+	 * @param maxW Maximal fitting width
+	 * @param minH Minimal fitting height
+	 * @param fitMin Minimal environment around peak for parabola fitting
+	 * @param pp Work array of length 3 for the parabola coefficients
+	 * @param new_idx Output array, receives the peaks passing the quality criteria. May be idx itself
+	 * @param fitter Fitter for the parabolas, null to fit each parabola directly
+	 * @return Number of peaks written to new_idx
+	 */
+
+	public static int filterPeaks(int[] idx, int n_idx, double[] vals, int n_vals, double minD, 
+			double minW, double maxW, double minH, double fitMin, double[] pp, int[] new_idx, ParabolaFitter fitter)
+	{
+		// The fitting windows are at most minD+1 long; longer windows would be fitted directly
+		// by the fitter anyway
+		if(fitter!=null && n_idx>0 && minD+1<=ParabolaFitter.BLOCK)
+		{
+			fitter.setValues(vals, n_vals);
+		} else
+		{
+			fitter=null;
+		}
+
+		// Number of peaks kept so far. Since this is never more than the number of candidates looked at,
+		// new_idx can be the same array as idx
+		int n_kept = 0;
+
+
+		for(int ind=0; ind<n_idx; ind++)
+		{
+			int peak = idx[ind];
+
 			// get the local data around the peak. Check whether peak candidate is a local maximum
 			// The lower bound should not be below the putative peak position - minD/2
 			// and the upper bound not higher than the putative peak position + minD/2
 			// in addition, lower and upper bounds must cover actual array elements in vals
-			int lower_bound = (int)Math.max(Math.floor(-minD/2+idx[ind]), 0);
-			int upper_bound = (int)Math.min(Math.ceil(minD/2+idx[ind]), vals.length-1);
+			int lower_bound = (int)Math.max(Math.floor(-minD/2+peak), 0);
+			int upper_bound = (int)Math.min(Math.ceil(minD/2+peak), n_vals-1);
 
 
 			// Approach the lower bound more if permitted by fitMin
-			while(lower_bound < idx[ind]-1 && vals[lower_bound]<fitMin)
+			while(lower_bound < peak-1 && vals[lower_bound]<fitMin)
 			{
 				lower_bound++;
 			}
 			// Approach the upper bound more if permitted by fitMin
-			while(upper_bound > idx[ind]+1 && vals[upper_bound]<fitMin)
+			while(upper_bound > peak+1 && vals[upper_bound]<fitMin)
 			{
 				upper_bound--;
 			}
 
-			// Isolate the locally relevant values
-			double[] localVals = new double[upper_bound-lower_bound+1];
+			// The locally relevant values are vals[lower_bound] to vals[upper_bound]
+			int n_local = upper_bound-lower_bound+1;
 
 
 
 			boolean isMaximum=true;
 			// For parabola fitting, check whether the original peak candidate is also a local
 			// maximum or whether in the environment, there are some higher values
-			for(int local_ind=0; local_ind<localVals.length; local_ind++)
+			for(int local_ind=0; local_ind<n_local; local_ind++)
 			{
-				localVals[local_ind]=vals[lower_bound+local_ind];
-				if(localVals[local_ind]>vals[idx[ind]])
+				if(vals[lower_bound+local_ind]>vals[peak])
 				{
 					isMaximum=false;
 				}
 			}
 
 
-			// Parabola coefficients (3 values), for fitting a parabola
-			double [] pp; 
+			// Parabola coefficients (3 values), for fitting a parabola, are in pp
 			double xm; // local X-value at maximum
 			double H; // height of peak
 			// The current point is not the maximum, so use polynomial fitting
 			if(!isMaximum)
 			{
-				pp=FitParabola.fitParabola(localVals);
+				if(fitter!=null)
+				{
+					fitter.fitParabola(lower_bound, n_local, pp);
+				} else
+				{
+					FitParabola.fitParabola(vals, lower_bound, n_local, pp);
+				}
 				xm=-pp[1]/2/pp[2]; // The maximum of a parabola has zero derivative
 				// so d/dx pp[2]*x^2+pp[1]*x+pp[0]=0 => 2*pp[2]*x+pp[1]=0
 				H=pp[0]+pp[1]*xm+pp[2]*xm*xm; // apex height
@@ -317,8 +848,14 @@ public class FindPeaksTools {
 			} else // Use fixed extremum fittin instead, with the maximum supposed at the actual position
 				
 			{
-				xm=idx[ind]-lower_bound;
-				pp=FitParabola.fitParabolaFixedExtremum(localVals, (int)Math.round(xm));
+				xm=peak-lower_bound;
+				if(fitter!=null)
+				{
+					fitter.fitParabolaFixedExtremum(lower_bound, n_local, (int)Math.round(xm), true, pp);
+				} else
+				{
+					FitParabola.fitParabolaFixedExtremum(vals, lower_bound, n_local, (int)Math.round(xm), true, pp);
+				}
 				H=pp[0]+pp[1]*xm+pp[2]*xm*xm;
 
 			}
@@ -366,7 +903,7 @@ public class FindPeaksTools {
 			if(keep)
 			{
 				// The actual maximum should not be further than minD/2 from the fitted one (if different)
-				if(Math.abs(idx[ind]-xm-lower_bound)>minD/2)
+				if(Math.abs(peak-xm-lower_bound)>minD/2)
 				{
 					keep=false;
 				}
@@ -378,7 +915,8 @@ public class FindPeaksTools {
 			// All tests passed so add to list to keep
 			if(keep)
 			{
-				idx_pruned.add(idx[ind]);
+				new_idx[n_kept]=peak;
+				n_kept++;
 			}
 
 
@@ -387,16 +925,7 @@ public class FindPeaksTools {
 
 		}
 
-		// Format for return 
-		int [] new_idx = new int[idx_pruned.size()];
-
-		for(int ind=0; ind<idx_pruned.size(); ind++)
-		{
-			new_idx[ind]=idx_pruned.get(ind).intValue();
-		}
-
-		// Return
-		return new_idx;
+		return n_kept;
 
 	}
 	
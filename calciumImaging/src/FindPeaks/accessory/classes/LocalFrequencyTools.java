@@ -0,0 +1,108 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.Arrays;
+
+import ij.process.FloatProcessor;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * Generic (static) methods supporting the LocalFrequency plugin: local beating frequency
+ * from the number of peaks in the z-profiles
+ * @author thomasbraschler
+ *
+ */
+public class LocalFrequencyTools {
+
+	/**
+	 * Local frequency for all the pixels, from the number of peaks in each z-profile
+	 * @param table The peaks of each pixel
+	 * @param frame_rate Frame rate of the recording, in frames per second
+	 * @return New image with the local frequency in beats per minute
+	 */
+	public static FloatProcessor getFrequencyImage(PeakEventTable table, double frame_rate)
+	{
+		FloatProcessor flp = new FloatProcessor(table.getWidth(), table.getHeight());
+
+		float[] pixels = (float[])flp.getPixels();
+
+		int[] offsets = table.getOffsets();
+
+		for(int i=0; i<pixels.length; i++)
+		{
+			pixels[i]=(float)getFrequency(offsets[i+1]-offsets[i], table.getDepth(), frame_rate);
+		}
+
+		return flp;
+	}
+
+	/**
+	 * Local frequency for some pixels only, typically those of a mask or a selection
+	 * @param table The peaks of each pixel
+	 * @param frame_rate Frame rate of the recording, in frames per second
+	 * @param spans The pixels to be evaluated, null for all the pixels
+	 * @return New image with the local frequency in beats per minute, NaN for the pixels not evaluated
+	 */
+	public static FloatProcessor getFrequencyImage(PeakEventTable table, double frame_rate, PixelSpans spans)
+	{
+		if(spans==null || spans.isComplete())
+		{
+			return getFrequencyImage(table, frame_rate);
+		}
+
+		int width = table.getWidth();
+
+		FloatProcessor flp = new FloatProcessor(width, table.getHeight());
+
+		float[] pixels = (float[])flp.getPixels();
+
+		Arrays.fill(pixels, Float.NaN);
+
+		int[] offsets = table.getOffsets();
+
+		for(int y=0; y<table.getHeight(); y++)
+		{
+			for(int s=spans.getFirstSpan(y); s<spans.getFirstSpan(y+1); s++)
+			{
+				for(int i=y*width+spans.getStart(s); i<y*width+spans.getEnd(s); i++)
+				{
+					pixels[i]=(float)getFrequency(offsets[i+1]-offsets[i], table.getDepth(), frame_rate);
+				}
+			}
+		}
+
+		return flp;
+	}
+
+	/**
+	 * Local frequency from the number of peaks in a z-profile
+	 * @param n_peaks Number of peaks in the z-profile
+	 * @param n_frames Length of the z-profile (number of frames)
+	 * @param frame_rate Frame rate of the recording, in frames per second
+	 * @return Frequency in beats per minute
+	 */
+	public static double getFrequency(int n_peaks, int n_frames, double frame_rate)
+	{
+		// Beat rate from the relative proportion of active frames, 
+		// and the known framerate
+		// Finally, convert to beats per minute
+		return ((double)n_peaks)/((double)n_frames)*frame_rate*60.0;
+	}
+
+}
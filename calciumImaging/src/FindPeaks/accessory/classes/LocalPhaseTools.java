@@ -358,6 +358,182 @@ public class LocalPhaseTools {
 
 
 
+	}
+
+	// Same as getCorrelationInformation(idx, idx_ref), for the peaks frames[from] to frames[to-1],
+	// typically the peaks of one pixel in the frames of a PeakEventTable, without copying them.
+	// The result is written to info (scratch buffer of length at least 3, typically one per thread),
+	// so that nothing is allocated per pixel
+
+	public static void getCorrelationInformation(int [] frames, int from, int to, int [] idx_ref, double [] info)
+	{
+		double n=0;
+
+		double cos_phase=0;
+
+		double sin_phase=0;
+
+		for(int ind=from; ind<to; ind++)
+		{
+			int nearest = getNearestElement(idx_ref, frames[ind]);
+			int period = getPeriod(idx_ref, frames[ind]);
+
+			double phase = 2.0*Math.PI*((double)(nearest-frames[ind]))/((double) period);
+
+			cos_phase+=Math.cos(phase);
+
+			sin_phase+=Math.sin(phase);
+
+			n=n+1;
+		}
+
+		info[0]=cos_phase;
+		info[1]=sin_phase;
+		info[2]=n;
+	}
+
+	// Same as getCorrelationInformation(frames, from, to, idx_ref, info), for a sorted reference idx_ref:
+	// the peaks and the reference peaks are walked together, so that the nearest reference peak
+	// and the period are found in O(n+m) for n peaks and m reference peaks, instead of several scans of
+	// the reference for each peak. The nearest element and the period follow the rules of getNearestElement
+	// and getPeriod (ties to the lower reference peak, period at the ends of the reference taken from the closest
+	// interval), so that the result is identical.
+	// The peaks are normally sorted as well; if a peak is before the previous one, the walk through the
+	// reference starts again from its beginning, which is still correct but slower
+
+	public static void getCorrelationInformationSorted(int [] frames, int from, int to, int [] idx_ref, double [] info)
+	{
+		double n=0;
+
+		double cos_phase=0;
+
+		double sin_phase=0;
+
+		int m = idx_ref.length;
+
+		// Index of the first reference peak at or after the current peak
+		int j=0;
+
+		int previous=Integer.MIN_VALUE;
+
+		for(int ind=from; ind<to; ind++)
+		{
+			int el = frames[ind];
+
+			if(el<previous)
+			{
+				j=0;
+			}
+			previous=el;
+
+			while(j<m && idx_ref[j]<el)
+			{
+				j++;
+			}
+
+			int nearest = getNearestElementSorted(idx_ref, j, el);
+			int period = getPeriodSorted(idx_ref, j);
+
+			double phase = 2.0*Math.PI*((double)(nearest-el))/((double) period);
+
+			cos_phase+=Math.cos(phase);
+
+			sin_phase+=Math.sin(phase);
+
+			n=n+1;
+		}
+
+		info[0]=cos_phase;
+		info[1]=sin_phase;
+		info[2]=n;
+	}
+
+	// Same as getNearestElement(idx_ref, el), for a sorted reference idx_ref of which idx_ref[j] is the first
+	// element at or above el (j=idx_ref.length if none): the lower element in case of a tie, -1 for an empty reference
+
+	public static int getNearestElementSorted(int [] idx_ref, int j, int el)
+	{
+		int m = idx_ref.length;
+
+		if(m==0)
+		{
+			return -1;
+		}
+
+		if(j==m || (j>0 && el-idx_ref[j-1]<=idx_ref[j]-el))
+		{
+			return idx_ref[j-1];
+		}
+
+		return idx_ref[j];
+	}
+
+	// Same as getPeriod(idx_ref, el), for a sorted reference idx_ref of which idx_ref[j] is the first
+	// element at or above el (j=idx_ref.length if none)
+
+	public static int getPeriodSorted(int [] idx_ref, int j)
+	{
+		int m = idx_ref.length;
+
+		// if we have zero or 1 point only, we can't get any period
+		if(m<=1)
+		{
+			return 0;
+		}
+
+		if(j>0 && j<m)
+		{
+			return idx_ref[j]-idx_ref[j-1];
+		}
+
+		if(j==m)
+		{
+			// Above the reference peaks: interval between the last one and the one strictly below it
+			int k=m-1;
+			while(k>=0 && idx_ref[k]==idx_ref[m-1])
+			{
+				k--;
+			}
+			return idx_ref[m-1]-(k>=0 ? idx_ref[k] : -1);
+		}
+
+		// Below the reference peaks: interval between the first one and the one strictly above it
+		int k=0;
+		while(k<m && idx_ref[k]==idx_ref[0])
+		{
+			k++;
+		}
+		return (k<m ? idx_ref[k] : -1)-idx_ref[0];
+	}
+
+	// Same as getPhase(idx, idx_ref), for the peaks frames[from] to frames[to-1] and a sorted reference
+	// idx_ref (see getCorrelationInformationSorted), using info as scratch buffer
+
+	public static double getPhase(int [] frames, int from, int to, int [] idx_ref, double [] info)
+	{
+		getCorrelationInformationSorted(frames, from, to, idx_ref, info);
+
+		return getPhase(info);
+	}
+
+	// Same as getPhase(idx, idx_ref), for sorted peaks idx and a sorted reference idx_ref,
+	// in O(n+m) (see getCorrelationInformationSorted)
+
+	public static double getPhaseSorted(int [] idx, int [] idx_ref)
+	{
+		return getPhase(idx, 0, idx.length, idx_ref, new double[3]);
+	}
+
+	// Same as getCorrelationStrength(idx, idx_ref), for sorted peaks idx and a sorted reference idx_ref,
+	// in O(n+m) (see getCorrelationInformationSorted)
+
+	public static double getCorrelationStrengthSorted(int [] idx, int [] idx_ref)
+	{
+		double [] info = new double[3];
+
+		getCorrelationInformationSorted(idx, 0, idx.length, idx_ref, info);
+
+		return getCorrelationStrength(info);
 	}
 
 	public static double getCorrelationStrength(int [] idx, int [] idx_ref )
@@ -400,6 +576,52 @@ public class LocalPhaseTools {
 
 	}
 
+	// Phase from the result of getCorrelationInformation (in-phase component, out-of-phase component, number
+	// of peaks), as getPhase: NaN without peaks
+
+	public static double getPhase(double [] info)
+	{
+		return Math.atan2(info[1]/info[2], info[0]/info[2]);
+	}
+
+	// Correlation strength from the result of getCorrelationInformation, as getCorrelationStrength: length of the
+	// mean phase vector, 1 for peaks all at the same phase relative to the reference, 0 without peaks
+
+	public static double getCorrelationStrength(double [] info)
+	{
+		double n=info[2];
+
+		if(n==0)
+		{
+			return 0;
+		}
+
+		return Math.sqrt(info[0]*info[0]+info[1]*info[1])/n;
+	}
+
+	/**
+	 * Check whether a position is to be evaluated according to a mask
+	 * @param theMask Mask image, positive values mean evaluate. Provide null to evaluate everywhere
+	 * @param x The x-position
+	 * @param y The y-position
+	 * @return true if there is no mask or if x,y is within the mask and positive, false otherwise
+	 */
+	public static boolean isInMask(ImagePlus theMask, int x, int y)
+	{
+		if(theMask != null)
+		{
+			if(x>=theMask.getWidth() || y>=theMask.getHeight())
+			{
+				return false;
+			}
+			if(theMask.getImageStack().getProcessor(1).getPixelValue(x, y)<=0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
 	// Compiles the indices to elements that have positive values
 
 	public static int[] indices_to_positive_elements(int [] theSection)
@@ -462,7 +684,33 @@ public class LocalPhaseTools {
 		}
 		return sum_T/n;
 	}
-	
+
+	// Mean and variance of the intervals between the peaks frames[from] to frames[to-1], already in increasing
+	// order (as in a PeakEventTable), so that nothing needs to be sorted or copied. The mean is the same as
+	// getMeanPeriod; stats receives the mean interval and the variance of the intervals, both 0 with fewer
+	// than 2 peaks. The variance is accumulated with Welford's update, in a single walk over the peaks
+
+	public static void getPeriodStatistics(int [] frames, int from, int to, double [] stats)
+	{
+		double n=0;
+		double mean_T=0;
+		double m2=0;
+
+		for(int ind=from+1; ind<to; ind++)
+		{
+			double T = frames[ind]-frames[ind-1];
+
+			n=n+1;
+
+			double delta = T-mean_T;
+			mean_T = mean_T + delta/n;
+			m2 = m2 + delta*(T-mean_T);
+		}
+
+		stats[0]=mean_T;
+		stats[1]=(n>0) ? m2/n : 0;
+	}
+
 	
 
 
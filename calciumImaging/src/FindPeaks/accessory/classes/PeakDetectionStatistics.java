@@ -0,0 +1,453 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.measure.ResultsTable;
+
+/**
+ * Timing and throughput of a peak detection run, by stage: extraction of the z-profiles, threshold,
+ * peak candidates (search, ordering and minimal distance, see FindPeaksTools.identifyPeaksAtMinimalDistance),
+ * filtering (parabola fits, see FindPeaksTools.filterPeaks), frequency and phase, and output.
+ *
+ * Each thread counts in its own Counters (getCounters), attached to its PeakDetectionWorkspace, so that there is
+ * no synchronization per pixel; the counters of all the threads are summed when the run is reported. The stage
+ * times are therefore thread times, summed over the threads, while the elapsed time is wall clock time.
+ * Timing costs a few System.nanoTime() calls per pixel, small compared to the analysis of a z-profile, so
+ * that it can be left on.
+ *
+ * The report is available as a row of a ResultsTable (addTo) and as JSON (toJSON, writeJSON). The plugins write
+ * the JSON report next to the file of the analyzed image (getReportFile); the images they produce keep the location
+ * of that file (setReportLocation), so that the analyses of the peak images are reported next to it as well.
+ * @author thomasbraschler
+ *
+ */
+public class PeakDetectionStatistics {
+
+	/** Stage: reading the z-profiles from the stack (or from its transposed copy) */
+	public static final int STAGE_PROFILE=0;
+	/** Stage: threshold of the z-profiles (quantile or running quantile), and values relative to it */
+	public static final int STAGE_THRESHOLD=1;
+	/** Stage: peak candidates above the threshold, their ordering, and the minimal distance between peaks */
+	public static final int STAGE_CANDIDATES=2;
+	/** Stage: filtering of the peaks for width and height, with the parabola fits */
+	public static final int STAGE_FILTER=3;
+	/** Stage: local frequency and phase */
+	public static final int STAGE_FREQUENCY_PHASE=4;
+	/** Stage: collecting the peaks and producing the output images or files */
+	public static final int STAGE_OUTPUT=5;
+
+	/** Number of stages */
+	public static final int N_STAGES=6;
+
+	/** Names of the stages, for the reports */
+	public static final String[] STAGE_NAMES={"profile", "threshold", "candidates", "filter", "frequency_phase", "output"};
+
+	/** Key of the image property holding the location of the reports (see setReportLocation) */
+	public static final String REPORT_LOCATION_KEY="FindPeaks.PeakDetectionStatistics.location";
+
+	/**
+	 * Counts of one thread. Only the owning thread writes to them
+	 */
+	public static class Counters
+	{
+		/** Time spent in each stage, in nanoseconds */
+		public final long[] nanos=new long[N_STAGES];
+
+		/** Number of z-profiles analyzed */
+		public long pixels;
+
+		/** Number of peak candidates (values above the threshold) */
+		public long candidates;
+
+		/** Number of peaks going through the filtering (local maximum check or parabola fit) */
+		public long fits;
+
+		/** Number of peaks found */
+		public long peaks;
+	}
+
+	/** Counters of all the threads that took part in the run */
+	protected final List<Counters> all_counters=new ArrayList<Counters>();
+
+	/** Counters of each thread, registered in all_counters when first used */
+	protected final ThreadLocal<Counters> counters=new ThreadLocal<Counters>() {
+		@Override
+		protected Counters initialValue() {
+			Counters c = new Counters();
+			synchronized(all_counters)
+			{
+				all_counters.add(c);
+			}
+			return c;
+		}
+	};
+
+	/** Start and end of the run, System.nanoTime() */
+	protected long start_time;
+	protected long end_time;
+
+	/** Largest heap use during the run, in bytes; -1 if not measured */
+	protected long peak_heap=-1;
+
+	/** Measure the peak heap use (see start(boolean)) */
+	protected boolean measure_heap=true;
+
+	/**
+	 * @return The counters of the calling thread
+	 */
+	public Counters getCounters()
+	{
+		return counters.get();
+	}
+
+	/**
+	 * Start the run: the wall clock, and the peak heap use is reset
+	 */
+	public void start()
+	{
+		start(true);
+	}
+
+	/**
+	 * Start the run: the wall clock, and if requested the peak heap use is reset. The peak heap use is 
+	 * counted by the JVM for all that runs in it, and resetting it affects all the runs measuring it at the same
+	 * time; so runs in parallel with others (as the files of a batch with several workers) should not measure it
+	 * @param measure_heap Measure the peak heap use, reported as -1 otherwise
+	 */
+	public void start(boolean measure_heap)
+	{
+		this.measure_heap=measure_heap;
+
+		peak_heap=-1;
+
+		if(measure_heap)
+		{
+			for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			{
+				if(pool.getType()==MemoryType.HEAP && pool.isValid())
+				{
+					pool.resetPeakUsage();
+				}
+			}
+		}
+
+		start_time=System.nanoTime();
+		end_time=start_time;
+	}
+
+	/**
+	 * End of the run: stop the wall clock and read the peak heap use. The peak use of the JVM heap is the sum
+	 * of the peaks of its memory pools, which are not necessarily simultaneous, and covers everything running in
+	 * the JVM at the same time
+	 */
+	public void stop()
+	{
+		end_time=System.nanoTime();
+
+		if(!measure_heap)
+		{
+			return;
+		}
+
+		long heap = 0;
+
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType()==MemoryType.HEAP && pool.isValid() && pool.getPeakUsage()!=null)
+			{
+				heap+=pool.getPeakUsage().getUsed();
+			}
+		}
+
+		peak_heap=Math.max(heap, Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory());
+	}
+
+	/**
+	 * Add time to a stage, for the calling thread; for the stages timed outside the per-pixel analysis
+	 * @param stage The stage, one of the STAGE_ constants
+	 * @param start Start of the stage, System.nanoTime()
+	 * @return End of the stage, System.nanoTime()
+	 */
+	public long addTime(int stage, long start)
+	{
+		long now = System.nanoTime();
+		getCounters().nanos[stage]+=now-start;
+		return now;
+	}
+
+	/**
+	 * @return Number of threads that took part in the run
+	 */
+	public int getNumberOfThreads()
+	{
+		synchronized(all_counters)
+		{
+			int n = 0;
+			for(Counters c : all_counters)
+			{
+				if(c.pixels>0)
+				{
+					n++;
+				}
+			}
+			return Math.max(n, 1);
+		}
+	}
+
+	/**
+	 * @return Sum of the counters of all the threads
+	 */
+	public Counters getTotal()
+	{
+		Counters total = new Counters();
+
+		synchronized(all_counters)
+		{
+			for(Counters c : all_counters)
+			{
+				for(int stage=0; stage<N_STAGES; stage++)
+				{
+					total.nanos[stage]+=c.nanos[stage];
+				}
+				total.pixels+=c.pixels;
+				total.candidates+=c.candidates;
+				total.fits+=c.fits;
+				total.peaks+=c.peaks;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return Wall clock time between start and stop, in seconds
+	 */
+	public double getElapsedSeconds()
+	{
+		return (end_time-start_time)*1e-9;
+	}
+
+	/**
+	 * @return Largest heap use during the run, in bytes (available after stop); -1 if not measured
+	 */
+	public long getPeakHeap()
+	{
+		return peak_heap;
+	}
+
+	/**
+	 * Ratio, 0 if the denominator is 0
+	 */
+	protected static double ratio(double a, double b)
+	{
+		return b>0 ? a/b : 0;
+	}
+
+	/**
+	 * Add the report as a row of a results table: elapsed time, threads, pixels, throughput, candidates per pixel,
+	 * fits per second (of filtering thread time), peaks, peak heap and the thread time of each stage
+	 * @param rt The table
+	 * @param label Label of the row, typically the name of the stack
+	 */
+	public void addTo(ResultsTable rt, String label)
+	{
+		Counters total = getTotal();
+		double elapsed = getElapsedSeconds();
+
+		rt.incrementCounter();
+		rt.addLabel(label);
+		rt.addValue("Elapsed (s)", elapsed);
+		rt.addValue("Threads", getNumberOfThreads());
+		rt.addValue("Pixels", total.pixels);
+		rt.addValue("Pixels/s", ratio(total.pixels, elapsed));
+		rt.addValue("Candidates/pixel", ratio(total.candidates, total.pixels));
+		rt.addValue("Fits/s", ratio(total.fits, total.nanos[STAGE_FILTER]*1e-9));
+		rt.addValue("Peaks", total.peaks);
+		rt.addValue("Peak heap (MB)", peak_heap>=0 ? peak_heap/1048576.0 : Double.NaN);
+
+		for(int stage=0; stage<N_STAGES; stage++)
+		{
+			rt.addValue(STAGE_NAMES[stage]+" (s)", total.nanos[stage]*1e-9);
+		}
+	}
+
+	/**
+	 * The report, as a JSON object
+	 * @param label Name of the run, typically the name of the stack
+	 * @return The JSON text
+	 */
+	public String toJSON(String label)
+	{
+		Counters total = getTotal();
+		double elapsed = getElapsedSeconds();
+
+		StringBuilder json = new StringBuilder();
+
+		json.append("{\n");
+		json.append("  \"label\": \"").append(escapeJSON(label)).append("\",\n");
+		json.append(String.format(Locale.US, "  \"elapsed_seconds\": %.6f,\n", elapsed));
+		json.append("  \"threads\": ").append(getNumberOfThreads()).append(",\n");
+		json.append("  \"pixels\": ").append(total.pixels).append(",\n");
+		json.append(String.format(Locale.US, "  \"pixels_per_second\": %.1f,\n", ratio(total.pixels, elapsed)));
+		json.append("  \"candidates\": ").append(total.candidates).append(",\n");
+		json.append(String.format(Locale.US, "  \"candidates_per_pixel\": %.4f,\n", ratio(total.candidates, total.pixels)));
+		json.append("  \"fits\": ").append(total.fits).append(",\n");
+		json.append(String.format(Locale.US, "  \"fits_per_second\": %.1f,\n",
+				ratio(total.fits, total.nanos[STAGE_FILTER]*1e-9)));
+		json.append("  \"peaks\": ").append(total.peaks).append(",\n");
+		json.append("  \"peak_heap_bytes\": ").append(peak_heap>=0 ? String.valueOf(peak_heap) : "null").append(",\n");
+		json.append("  \"stage_seconds\": {");
+
+		for(int stage=0; stage<N_STAGES; stage++)
+		{
+			json.append(stage==0 ? "\n" : ",\n");
+			json.append(String.format(Locale.US, "    \"%s\": %.6f", STAGE_NAMES[stage], total.nanos[stage]*1e-9));
+		}
+
+		json.append("\n  }\n}\n");
+
+		return json.toString();
+	}
+
+	/**
+	 * Escape a string for a JSON string literal: backslash, quote, and the control characters
+	 * @param text The string
+	 * @return The escaped string, without the enclosing quotes
+	 */
+	protected static String escapeJSON(String text)
+	{
+		StringBuilder escaped = new StringBuilder(text.length());
+
+		for(int ind=0; ind<text.length(); ind++)
+		{
+			char c = text.charAt(ind);
+
+			switch(c)
+			{
+			case '\\': escaped.append("\\\\"); break;
+			case '"': escaped.append("\\\""); break;
+			case '\n': escaped.append("\\n"); break;
+			case '\r': escaped.append("\\r"); break;
+			case '\t': escaped.append("\\t"); break;
+			case '\b': escaped.append("\\b"); break;
+			case '\f': escaped.append("\\f"); break;
+			default:
+				if(c<0x20)
+				{
+					escaped.append(String.format("\\u%04x", (int)c));
+				} else
+				{
+					escaped.append(c);
+				}
+			}
+		}
+
+		return escaped.toString();
+	}
+
+	/**
+	 * Write the JSON report to a file
+	 * @param file The file
+	 * @param label Name of the run, typically the name of the stack
+	 * @throws IOException If the file cannot be written
+	 */
+	public void writeJSON(File file, String label) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(file, "UTF-8");
+
+		try
+		{
+			writer.print(toJSON(label));
+		} finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Location of the reports of the analyses of an image: the one set with setReportLocation, or else the file the
+	 * image was opened from
+	 * @param imp The image
+	 * @return The directory and the name without extension of the reports, or null if the image has no file location
+	 */
+	public static File getReportLocation(ImagePlus imp)
+	{
+		Object location = imp.getProperty(REPORT_LOCATION_KEY);
+
+		if(location instanceof File)
+		{
+			return (File)location;
+		}
+
+		FileInfo fi = imp.getOriginalFileInfo();
+
+		if(fi==null || fi.directory==null || fi.directory.length()==0 || fi.fileName==null || fi.fileName.length()==0)
+		{
+			return null;
+		}
+
+		String name = fi.fileName;
+		int dot = name.lastIndexOf('.');
+
+		return new File(fi.directory, dot>0 ? name.substring(0, dot) : name);
+	}
+
+	/**
+	 * Set the location of the reports of the analyses of an image, typically to that of the image it was computed from
+	 * @param imp The image
+	 * @param location The directory and the name without extension of the reports; null for none
+	 */
+	public static void setReportLocation(ImagePlus imp, File location)
+	{
+		if(location!=null)
+		{
+			imp.setProperty(REPORT_LOCATION_KEY, location);
+		}
+	}
+
+	/**
+	 * The file of the JSON report of an analysis: name_analysis_report.json, next to the file of the image
+	 * @param imp The image analyzed
+	 * @param analysis Name of the analysis, typically the plugin
+	 * @return The file, or null if the image has no file location
+	 */
+	public static File getReportFile(ImagePlus imp, String analysis)
+	{
+		File location = getReportLocation(imp);
+
+		if(location==null)
+		{
+			return null;
+		}
+
+		return new File(location.getParentFile(), location.getName()+"_"+analysis+"_report.json");
+	}
+
+}
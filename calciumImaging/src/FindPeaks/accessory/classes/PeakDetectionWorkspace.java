@@ -0,0 +1,244 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import tbgitoo.tools.ParabolaFitter;
+import tbgitoo.tools.SlidingHistogram;
+
+/**
+ * Preallocated buffers for the peak detection in a z-profile. Peak detection is repeated for every pixel
+ * of a stack, so the arrays needed by the threshold calculation, the primary peak search and the
+ * filtering are allocated once here, with the length of the z-profiles, and reused from pixel to pixel.
+ * A workspace is not thread-safe, each thread needs its own.
+ * @author thomasbraschler
+ *
+ */
+public class PeakDetectionWorkspace {
+
+	/** Number of histogram bins, for 8-bit greyscale values */
+	public static final int N_LEVELS=256;
+
+	/** Maximal length of the z-profiles that can be treated with this workspace */
+	protected int capacity;
+
+	/** Integer pixel values of the z-profile */
+	protected int[] section;
+
+	/** Pixel values of the z-profile, as double, and relative to the threshold */
+	protected double[] values;
+
+	/** Absolute histogram of the z-profile. At least N_LEVELS bins, and as many as the capacity, 
+	 * for the histograms over the range of values of 16-bit profiles */
+	protected long[] counts;
+
+	/** Relative histogram of the z-profile */
+	protected double[] histogram;
+
+	/** Cumulative relative histogram, for quantile calculation */
+	protected double[] cumsum;
+
+	/** Value relative to the threshold of each grey level, for 8-bit profiles */
+	protected double[] level_values=new double[N_LEVELS];
+
+	/** Histogram of a window moving along the z-profile, for running thresholds */
+	protected SlidingHistogram sliding_histogram;
+
+	/** Positions of the peak candidates */
+	protected int[] candidates;
+
+	/** Values at the positions of the peak candidates */
+	protected double[] candidate_values;
+
+	/** Integer keys of the peak candidates (pixel values), for ordering them by counting sort */
+	protected int[] candidate_keys;
+
+	/** Bucket counts of the counting sort of the candidates */
+	protected int[] sort_counts=new int[N_LEVELS];
+
+	/** Ordering indexes of the peak candidates */
+	protected int[] order;
+
+	/** Positions of the peak candidates, in order of visit */
+	protected int[] sorted_candidates;
+
+	/** Suppression state, for each position of the z-profile */
+	protected byte[] state;
+
+	/** Positions of the peaks found */
+	protected int[] peaks;
+
+	/** Number of valid elements in peaks */
+	protected int n_peaks;
+
+	/** Parabola fits around the peak candidates */
+	protected ParabolaFitter fitter;
+
+	/** Coefficients of the last parabola fitted */
+	protected double[] params=new double[3];
+
+	/** Number of peak candidates in the last primary peak search */
+	protected int n_candidates;
+
+	/** Counters for the timing of the stages, null when not timed (see PeakDetectionStatistics) */
+	protected PeakDetectionStatistics.Counters counters;
+
+	/** End of the last stage timed, System.nanoTime() */
+	protected long timestamp;
+
+	/**
+	 * Allocate the buffers for z-profiles of a given length
+	 * @param capacity Length of the z-profiles to be treated (typically the stack size)
+	 */
+	public PeakDetectionWorkspace(int capacity)
+	{
+		allocate(capacity);
+	}
+
+	/**
+	 * Make sure that z-profiles of a given length can be treated. Reallocates the buffers only if
+	 * they are too short
+	 * @param capacity Length of the z-profiles to be treated
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if(capacity>this.capacity)
+		{
+			allocate(capacity);
+		}
+	}
+
+	/**
+	 * (Re)allocate the buffers depending on the length of the z-profiles
+	 * @param capacity Length of the z-profiles to be treated
+	 */
+	protected void allocate(int capacity)
+	{
+		this.capacity=capacity;
+		section=new int[capacity];
+		values=new double[capacity];
+		candidates=new int[capacity];
+		candidate_values=new double[capacity];
+		candidate_keys=new int[capacity];
+		order=new int[capacity];
+		sorted_candidates=new int[capacity];
+		state=new byte[capacity];
+		peaks=new int[capacity];
+		n_peaks=0;
+
+		int n_bins=Math.max(N_LEVELS, capacity);
+		counts=new long[n_bins];
+		histogram=new double[n_bins];
+		cumsum=new double[n_bins+1];
+
+		fitter=new ParabolaFitter(capacity);
+
+		// Grows with the range of values when needed (16-bit profiles)
+		sliding_histogram=new SlidingHistogram(N_LEVELS);
+	}
+
+	/**
+	 * @return Maximal length of the z-profiles that can be treated
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Buffer for the integer pixel values of the z-profile to be analyzed; fill this before calling
+	 * FindPeaksTools.findPeaksInProfile or FindPeaksTools.findPeaksInShortProfile
+	 * @return The buffer, of length getCapacity()
+	 */
+	public int[] getSection()
+	{
+		return section;
+	}
+
+	/**
+	 * Buffer for the double values of the z-profile to be analyzed; fill this before calling
+	 * FindPeaksTools.findPeaksInFloatProfile
+	 * @return The buffer, of length getCapacity()
+	 */
+	public double[] getValues()
+	{
+		return values;
+	}
+
+	/**
+	 * Positions of the peaks found in the last detection; only the first getNumberOfPeaks() are valid.
+	 * The detection leaves them in the order of their visit (by decreasing value), not sorted by position;
+	 * they can be sorted in place (as PeakEventTable.Builder.setPeaks does)
+	 * @return The peak positions
+	 */
+	public int[] getPeaks()
+	{
+		return peaks;
+	}
+
+	/**
+	 * @return Number of peaks found in the last detection
+	 */
+	public int getNumberOfPeaks()
+	{
+		return n_peaks;
+	}
+
+	/**
+	 * Count the work done with this workspace, and time its stages. The workspace is used by a single thread,
+	 * so should be the counters
+	 * @param counters Counters of the thread using the workspace (PeakDetectionStatistics.getCounters), null for no timing
+	 */
+	public void setCounters(PeakDetectionStatistics.Counters counters)
+	{
+		this.counters=counters;
+	}
+
+	/**
+	 * @return Counters of the work done with this workspace, null if not timed
+	 */
+	public PeakDetectionStatistics.Counters getCounters()
+	{
+		return counters;
+	}
+
+	/**
+	 * Start timing the stages of a z-profile (if counting)
+	 */
+	public final void startTiming()
+	{
+		if(counters!=null)
+		{
+			timestamp=System.nanoTime();
+		}
+	}
+
+	/**
+	 * End of a stage (if counting): the time since the end of the previous stage is added to it
+	 * @param stage The stage, one of the PeakDetectionStatistics.STAGE_ constants
+	 */
+	public final void endStage(int stage)
+	{
+		if(counters!=null)
+		{
+			long now = System.nanoTime();
+			counters.nanos[stage]+=now-timestamp;
+			timestamp=now;
+		}
+	}
+
+}
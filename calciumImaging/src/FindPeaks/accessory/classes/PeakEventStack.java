@@ -0,0 +1,109 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.Arrays;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Read-only view of a PeakEventTable as an 8-bit stack, with 255 at the peaks and 0 elsewhere.
+ * Slices are generated on demand when displayed or read, so that the full peak image never needs
+ * to be held in memory
+ * @author thomasbraschler
+ *
+ */
+public class PeakEventStack extends VirtualStack {
+
+	/** The peaks to be shown */
+	protected final PeakEventTable table;
+
+	/**
+	 * Create the view
+	 * @param table The peaks to be shown
+	 */
+	public PeakEventStack(PeakEventTable table)
+	{
+		super(table.getWidth(), table.getHeight(), null, null);
+		this.table=table;
+	}
+
+	/**
+	 * @return The peaks shown in this stack
+	 */
+	public PeakEventTable getTable()
+	{
+		return table;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return table.getDepth();
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return 8;
+	}
+
+	@Override
+	public String getSliceLabel(int n)
+	{
+		return null;
+	}
+
+	@Override
+	public Object getPixels(int n)
+	{
+		return getProcessor(n).getPixels();
+	}
+
+	/**
+	 * Generate a slice: for each pixel, look up whether slice n is among its peaks
+	 * @param n Slice number, 1-based
+	 * @return New 8-bit processor with the peaks of slice n
+	 */
+	@Override
+	public ImageProcessor getProcessor(int n)
+	{
+		int width = table.getWidth();
+		int n_pixels = width*table.getHeight();
+		int z = n-1;
+
+		int[] offsets = table.getOffsets();
+		int[] frames = table.getFrames();
+
+		ByteProcessor bp = new ByteProcessor(width, table.getHeight());
+		byte[] pixels = (byte[])bp.getPixels();
+
+		for(int i=0; i<n_pixels; i++)
+		{
+			if(offsets[i+1]>offsets[i] && Arrays.binarySearch(frames, offsets[i], offsets[i+1], z)>=0)
+			{
+				pixels[i]=(byte)255;
+			}
+		}
+
+		return bp;
+	}
+
+}
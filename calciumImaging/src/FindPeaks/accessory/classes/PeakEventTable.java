@@ -0,0 +1,638 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageListener;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+/**
+ * Sparse representation of a temporal peak image: for each xy position, the sorted z-positions (frames) of the
+ * peaks in the z-profile. Peaks are rare (a few percent of the voxels at most), so rather than a full stack
+ * with 255 at the peaks and 0 elsewhere, the peaks are stored in compressed sparse row (CSR) format:
+ * the frames of all the pixels are concatenated into a single array, pixel by pixel (index y*width+x), and
+ * offsets[i] to offsets[i+1] delimit the frames of pixel i. This takes 4 bytes per peak and 4 bytes per pixel,
+ * and the peaks of a pixel can be read without scanning its z-profile.
+ *
+ * FindPeaks shows its output image through a PeakEventStack on the table (see get), so that LocalPhase and
+ * LocalFrequency can use the table directly; for other peak images, including the full peak stack, the table is built from the non-zero pixels,
+ * and kept with the image (property INDEX_PROPERTY_KEY) until its pixels change or it is closed.
+ * @author thomasbraschler
+ *
+ */
+public class PeakEventTable {
+
+	/** Key of the ImagePlus property holding the table */
+	public static final String PROPERTY_KEY="FindPeaks.PeakEventTable";
+
+	/** Key of the ImagePlus property holding the table built from the non-zero pixels of a peak image (see get) */
+	public static final String INDEX_PROPERTY_KEY="FindPeaks.PeakEventTable.index";
+
+	/** Removes the tables built from the pixels of the images edited or closed; registered on first use */
+	protected static ImageListener index_invalidation=null;
+
+	/** Width of the peak image */
+	protected final int width;
+
+	/** Height of the peak image */
+	protected final int height;
+
+	/** Number of slices of the peak image */
+	protected final int depth;
+
+	/** Start of the frames of each pixel in frames, with a final element holding the total number of peaks */
+	protected final int[] offsets;
+
+	/** Peak positions (0-based z) of all the pixels, sorted within each pixel */
+	protected final int[] frames;
+
+	/**
+	 * Create a table from its CSR arrays, which are used directly (not copied)
+	 * @param width Width of the peak image
+	 * @param height Height of the peak image
+	 * @param depth Number of slices of the peak image
+	 * @param offsets Start of the peaks of each pixel (index y*width+x) in frames, length width*height+1
+	 * @param frames Peak positions, sorted within each pixel
+	 */
+	public PeakEventTable(int width, int height, int depth, int[] offsets, int[] frames)
+	{
+		this.width=width;
+		this.height=height;
+		this.depth=depth;
+		this.offsets=offsets;
+		this.frames=frames;
+	}
+
+	/**
+	 * @return Width of the peak image
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Height of the peak image
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return Number of slices of the peak image
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Direct access to the offsets, for fast iteration. The array must not be modified
+	 * @return Start of the peaks of each pixel (index y*width+x) in getFrames(), length width*height+1
+	 */
+	public int[] getOffsets()
+	{
+		return offsets;
+	}
+
+	/**
+	 * Direct access to the peak positions, for fast iteration. The array must not be modified
+	 * @return Peak positions of all the pixels, see getOffsets()
+	 */
+	public int[] getFrames()
+	{
+		return frames;
+	}
+
+	/**
+	 * @return Total number of peaks, in all the pixels
+	 */
+	public int getNumberOfPeaks()
+	{
+		return offsets[width*height];
+	}
+
+	/**
+	 * Number of peaks in the z-profile at x,y
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Number of peaks
+	 */
+	public int getNumberOfPeaks(int x, int y)
+	{
+		int i = y*width+x;
+		return offsets[i+1]-offsets[i];
+	}
+
+	/**
+	 * Peaks in the z-profile at x,y, in the format of LocalPhase.non_zero_indices
+	 * @param x x-position
+	 * @param y y-position
+	 * @return New array with the sorted z-positions (0-based) of the peaks
+	 */
+	public int[] getPeaks(int x, int y)
+	{
+		int i = y*width+x;
+		return Arrays.copyOfRange(frames, offsets[i], offsets[i+1]);
+	}
+
+	/**
+	 * Is there a peak at x,y,z?
+	 * @param x x-position
+	 * @param y y-position
+	 * @param z z-position, 0-based
+	 * @return true if there is a peak at this position, false otherwise
+	 */
+	public boolean isPeak(int x, int y, int z)
+	{
+		int i = y*width+x;
+		return Arrays.binarySearch(frames, offsets[i], offsets[i+1], z)>=0;
+	}
+
+	/**
+	 * Build the full peak image, with 255 at the peaks and 0 elsewhere
+	 * @return New 8-bit stack of dimensions width x height x depth
+	 */
+	public ImageStack toByteStack()
+	{
+		ImageStack theStack = new ImageStack(width, height, depth);
+
+		byte[][] pixels = new byte[depth][];
+
+		for(int z=0; z<depth; z++)
+		{
+			ByteProcessor bp = new ByteProcessor(width, height);
+			theStack.setProcessor(bp, z+1);
+			pixels[z]=(byte[])bp.getPixels();
+		}
+
+		for(int i=0; i<width*height; i++)
+		{
+			for(int ind=offsets[i]; ind<offsets[i+1]; ind++)
+			{
+				pixels[frames[ind]][i]=(byte)255;
+			}
+		}
+
+		return theStack;
+	}
+
+	/**
+	 * Attach the table to an image, so that it can be recovered with get(ImagePlus). The table is only used
+	 * while the image shows it through a PeakEventStack, which cannot be edited; the peaks of any other stack
+	 * are read from its pixels
+	 * @param imp The peak image corresponding to this table, shown as new PeakEventStack(table)
+	 */
+	public void attachTo(ImagePlus imp)
+	{
+		imp.setProperty(PROPERTY_KEY, this);
+	}
+
+	/**
+	 * Get the peak table of a peak image: the table shown by the image if its stack is a PeakEventStack,
+	 * otherwise a table built from the non-zero pixels of the stack (see fromStack). For displayed images, the
+	 * table built is kept with the image, so that repeated analyses (for instance LocalPhase with different
+	 * reference pixels) do not read the stack again; it is discarded when the image is closed, or when an update
+	 * (ImageListener.imageUpdated) finds that its pixels have changed (see StackIndex.isCurrent)
+	 * @param imp Peak image, as produced by FindPeaks
+	 * @return The peak table
+	 */
+	public static PeakEventTable get(ImagePlus imp)
+	{
+		ImageStack stack = imp.getStack();
+
+		// The slices of a PeakEventStack are generated from its table, so the table is always up to date;
+		// an attached table no longer shown by the image (for instance after replacing the stack) is ignored
+		if(stack instanceof PeakEventStack)
+		{
+			return ((PeakEventStack)stack).getTable();
+		}
+
+		// Images without window are not notified of their updates, so their table cannot be kept
+		if(imp.getWindow()==null)
+		{
+			return fromStack(stack);
+		}
+
+		Object index = imp.getProperty(INDEX_PROPERTY_KEY);
+
+		if(index instanceof StackIndex && ((StackIndex)index).isCurrent(imp))
+		{
+			return ((StackIndex)index).table;
+		}
+
+		int[] hashes = new int[stack.getSize()];
+
+		PeakEventTable table = fromStack(stack, hashes);
+
+		registerIndexInvalidation();
+
+		imp.setProperty(INDEX_PROPERTY_KEY, new StackIndex(stack, table, hashes));
+
+		return table;
+	}
+
+	/**
+	 * Table built from the pixels of a stack, kept as a property of the image (see get)
+	 */
+	protected static class StackIndex
+	{
+		/** The stack read */
+		protected final ImageStack stack;
+
+		/** Its peaks */
+		protected final PeakEventTable table;
+
+		/** Pixel arrays of the slices read, null for a virtual stack */
+		protected final Object[] slices;
+
+		/** Hash of the pixels of each slice read (see getHash) */
+		protected final int[] hashes;
+
+		protected StackIndex(ImageStack stack, PeakEventTable table, int[] hashes)
+		{
+			this.stack=stack;
+			this.table=table;
+			this.hashes=hashes;
+
+			if(stack.isVirtual())
+			{
+				slices=null;
+			} else
+			{
+				slices=new Object[stack.getSize()];
+
+				for(int z=0; z<slices.length; z++)
+				{
+					slices[z]=stack.getPixels(z+1);
+				}
+			}
+		}
+
+		/**
+		 * Are the pixels of an image still those the table was built from? ImageJ reports an update whenever the image
+		 * is drawn (changes of the selection, of the title, of the slice shown), so the test must be much cheaper than
+		 * reading the stack. Edits replace the stack or some of its pixel arrays, or change the pixels of the slice
+		 * shown in place; the stack and the array references are compared, and the slice shown is hashed
+		 * @param imp The image the table was built for
+		 * @return true if the table can still be used
+		 */
+		protected boolean isCurrent(ImagePlus imp)
+		{
+			if(imp.getStack()!=stack || stack.getSize()!=table.getDepth())
+			{
+				return false;
+			}
+
+			if(slices!=null)
+			{
+				for(int z=0; z<slices.length; z++)
+				{
+					if(stack.getPixels(z+1)!=slices[z])
+					{
+						return false;
+					}
+				}
+			}
+
+			// The processor holds the pixels shown, which for a virtual stack are a copy of the slice read
+			int slice = imp.getCurrentSlice();
+
+			return slice>=1 && slice<=hashes.length && getHash(imp.getProcessor().getPixels())==hashes[slice-1];
+		}
+	}
+
+	/**
+	 * Hash of the pixels of a slice
+	 * @param pixels Pixel array of an 8-bit, 16-bit or 32-bit greyscale slice
+	 * @return Hash code of the array content, 0 for other pixel types
+	 */
+	protected static int getHash(Object pixels)
+	{
+		if(pixels instanceof byte[])
+		{
+			return Arrays.hashCode((byte[])pixels);
+		}
+		if(pixels instanceof short[])
+		{
+			return Arrays.hashCode((short[])pixels);
+		}
+		if(pixels instanceof float[])
+		{
+			return Arrays.hashCode((float[])pixels);
+		}
+		return 0;
+	}
+
+	/**
+	 * Register the listener discarding the tables built from the pixels of images when their pixels change or
+	 * they are closed
+	 */
+	protected static synchronized void registerIndexInvalidation()
+	{
+		if(index_invalidation!=null)
+		{
+			return;
+		}
+
+		index_invalidation = new ImageListener() {
+
+			public void imageOpened(ImagePlus imp) {
+			}
+
+			public void imageClosed(ImagePlus imp) {
+				discardIndex(imp);
+			}
+
+			public void imageUpdated(ImagePlus imp) {
+				Object index = imp.getProperty(INDEX_PROPERTY_KEY);
+
+				if(index instanceof StackIndex && !((StackIndex)index).isCurrent(imp))
+				{
+					discardIndex(imp);
+				}
+			}
+		};
+
+		ImagePlus.addImageListener(index_invalidation);
+	}
+
+	/**
+	 * Discard the table built from the pixels of an image, if any
+	 * @param imp The image
+	 */
+	public static void discardIndex(ImagePlus imp)
+	{
+		if(imp.getProperty(INDEX_PROPERTY_KEY)!=null)
+		{
+			imp.setProperty(INDEX_PROPERTY_KEY, null);
+		}
+	}
+
+	/**
+	 * Build the peak table of a peak image: peaks are the non-zero pixels. The stack is read once, slice by slice
+	 * @param stack Peak image, 8-bit, 16-bit or 32-bit greyscale
+	 * @return The peak table
+	 */
+	public static PeakEventTable fromStack(ImageStack stack)
+	{
+		return fromStack(stack, null);
+	}
+
+	/**
+	 * Build the peak table of a peak image, as fromStack(ImageStack), and hash the slices read (see getHash)
+	 * @param stack Peak image, 8-bit, 16-bit or 32-bit greyscale
+	 * @param hashes Receives the hash of each slice, null for none
+	 * @return The peak table
+	 */
+	protected static PeakEventTable fromStack(ImageStack stack, int[] hashes)
+	{
+		int n_pixels = stack.getWidth()*stack.getHeight();
+
+		Builder builder = new Builder(stack.getWidth(), stack.getHeight(), stack.getSize());
+
+		for(int z=0; z<stack.getSize(); z++)
+		{
+			Object pixels = stack.getPixels(z+1);
+
+			if(hashes!=null)
+			{
+				hashes[z]=getHash(pixels);
+			}
+
+			if(pixels instanceof byte[])
+			{
+				byte[] p = (byte[])pixels;
+				for(int i=0; i<n_pixels; i++)
+				{
+					if(p[i]!=0) { builder.addPeak(i, z); }
+				}
+			} else if(pixels instanceof short[])
+			{
+				short[] p = (short[])pixels;
+				for(int i=0; i<n_pixels; i++)
+				{
+					if(p[i]!=0) { builder.addPeak(i, z); }
+				}
+			} else if(pixels instanceof float[])
+			{
+				float[] p = (float[])pixels;
+				for(int i=0; i<n_pixels; i++)
+				{
+					if(p[i]>0) { builder.addPeak(i, z); }
+				}
+			} else
+			{
+				throw new IllegalArgumentException("PeakEventTable requires an 8-bit, 16-bit or 32-bit greyscale stack");
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Collects the peaks pixel by pixel, and packs them into a PeakEventTable at the end.
+	 * The peaks are appended, as received, to a buffer of the calling thread, together with their pixel index; 
+	 * build counts the peaks of each pixel and scatters the buffers into the CSR arrays, so that nothing is 
+	 * allocated per pixel. Each pixel receives its peaks either in a single call of setPeaks, or through addPeak, 
+	 * from a single thread and in increasing order. setPeaks can be called concurrently from several threads, 
+	 * provided that they treat distinct pixels
+	 */
+	public static class Builder
+	{
+		protected final int width;
+		protected final int height;
+		protected final int depth;
+
+		/** Number of peaks of each pixel */
+		protected final int[] counts;
+
+		/** Buffer of each thread */
+		protected final ThreadLocal<PeakBuffer> buffers;
+
+		/** Buffers of all the threads, for build */
+		protected final List<PeakBuffer> all_buffers = new ArrayList<PeakBuffer>();
+
+		/**
+		 * Start an empty table
+		 * @param width Width of the peak image
+		 * @param height Height of the peak image
+		 * @param depth Number of slices of the peak image
+		 */
+		public Builder(int width, int height, int depth)
+		{
+			this.width=width;
+			this.height=height;
+			this.depth=depth;
+			counts=new int[width*height];
+
+			buffers = new ThreadLocal<PeakBuffer>() {
+				protected PeakBuffer initialValue() {
+					PeakBuffer buffer = new PeakBuffer();
+					synchronized(all_buffers)
+					{
+						all_buffers.add(buffer);
+					}
+					return buffer;
+				}
+			};
+		}
+
+		/**
+		 * Set the peaks of a pixel, once per pixel
+		 * @param x x-position
+		 * @param y y-position
+		 * @param idx Peak positions (0-based z), in any order; the first n elements are sorted in place, 
+		 * so that the caller can use them in order afterwards
+		 * @param n Number of valid elements in idx
+		 */
+		public void setPeaks(int x, int y, int[] idx, int n)
+		{
+			int i = y*width+x;
+
+			Arrays.sort(idx, 0, n);
+
+			buffers.get().add(i, idx, n);
+
+			counts[i]=n;
+		}
+
+		/**
+		 * Add a single peak to a pixel; the peaks of a pixel are added in increasing order
+		 * @param x x-position
+		 * @param y y-position
+		 * @param z Peak position (0-based)
+		 */
+		public void addPeak(int x, int y, int z)
+		{
+			addPeak(y*width+x, z);
+		}
+
+		/**
+		 * Add a single peak to a pixel; the peaks of a pixel are added in increasing order
+		 * @param i Pixel index, y*width+x
+		 * @param z Peak position (0-based)
+		 */
+		protected void addPeak(int i, int z)
+		{
+			buffers.get().add(i, z);
+
+			counts[i]++;
+		}
+
+		/**
+		 * Pack the peaks into a table: the offsets from the counts, then the peaks of each buffer
+		 * at the position of their pixel
+		 * @return The table, with the peaks of each pixel sorted
+		 */
+		public PeakEventTable build()
+		{
+			int n_pixels = width*height;
+
+			int[] offsets = new int[n_pixels+1];
+
+			for(int i=0; i<n_pixels; i++)
+			{
+				offsets[i+1]=offsets[i]+counts[i];
+			}
+
+			int[] frames = new int[offsets[n_pixels]];
+
+			// Next free position of each pixel; the peaks of a pixel are in a single buffer, in order
+			int[] positions = Arrays.copyOf(offsets, n_pixels);
+
+			for(PeakBuffer buffer : all_buffers)
+			{
+				for(int ind=0; ind<buffer.n; ind++)
+				{
+					int i = buffer.pixels[ind];
+					frames[positions[i]]=buffer.frames[ind];
+					positions[i]++;
+				}
+			}
+
+			return new PeakEventTable(width, height, depth, offsets, frames);
+		}
+
+	}
+
+	/**
+	 * Peaks received by a Builder from one thread, with their pixel index, in the order received
+	 */
+	protected static class PeakBuffer
+	{
+		/** Pixel index y*width+x of each peak */
+		protected int[] pixels = new int[1024];
+
+		/** Position of each peak */
+		protected int[] frames = new int[1024];
+
+		/** Number of peaks */
+		protected int n = 0;
+
+		/**
+		 * Append the peaks of a pixel
+		 * @param i Pixel index
+		 * @param idx Peak positions
+		 * @param n_idx Number of valid elements in idx
+		 */
+		protected void add(int i, int[] idx, int n_idx)
+		{
+			ensureCapacity(n+n_idx);
+
+			Arrays.fill(pixels, n, n+n_idx, i);
+			System.arraycopy(idx, 0, frames, n, n_idx);
+			n+=n_idx;
+		}
+
+		/**
+		 * Append a single peak
+		 * @param i Pixel index
+		 * @param z Peak position
+		 */
+		protected void add(int i, int z)
+		{
+			ensureCapacity(n+1);
+
+			pixels[n]=i;
+			frames[n]=z;
+			n++;
+		}
+
+		/**
+		 * Grow the arrays, by doubling, to hold at least capacity peaks
+		 * @param capacity Required capacity
+		 */
+		protected void ensureCapacity(int capacity)
+		{
+			if(capacity>pixels.length)
+			{
+				int length = Math.max(capacity, 2*pixels.length);
+				pixels = Arrays.copyOf(pixels, length);
+				frames = Arrays.copyOf(frames, length);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,337 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.Arrays;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import tbgitoo.tools.ParallelTools;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * Peaks, local frequency and local phase in a single pass over the pixels of an intensity stack.
+ * This gives the same results as running FindPeaks, then LocalFrequency and LocalPhase on its output,
+ * but each z-profile is read and analyzed only once, and no intermediate peak stack is needed:
+ * the peaks of the reference pixel are found first, so that each pixel can then be completed
+ * (peaks, frequency and phase) as soon as its own peaks are known.
+ * The analysis can be restricted to a mask or selection (setSpans); only the pixels inside are then read
+ * and analyzed, the others have no peaks, and NaN frequency and phase.
+ * @author thomasbraschler
+ *
+ */
+public class PeakFrequencyPhaseAnalysis {
+
+	/** Peak detection in the intensity stack */
+	protected final StackPeakDetector detector;
+
+	/** Frame rate of the recording, in frames per second */
+	protected final double frame_rate;
+
+	/** Peaks of the reference pixel, sorted */
+	protected int[] idx_ref;
+
+	/** Peaks of the reference pixel, compiled for the phase evaluation */
+	protected ReferencePhaseTable reference;
+
+	/** Peaks of all the pixels */
+	protected PeakEventTable table;
+
+	/** Local frequency, in beats per minute */
+	protected FloatProcessor frequency;
+
+	/** Local phase, in degrees */
+	protected FloatProcessor phase;
+
+	/**
+	 * Set up the analysis
+	 * @param detector Peak detection in the intensity stack, with the FindPeaks options
+	 * @param frame_rate Frame rate of the recording, in frames per second
+	 */
+	public PeakFrequencyPhaseAnalysis(StackPeakDetector detector, double frame_rate)
+	{
+		this.detector=detector;
+		this.frame_rate=frame_rate;
+	}
+
+	/**
+	 * Limit the evaluation to a mask, as in LocalPhase
+	 * @param mask Mask image, positive values mean evaluate. Provide null to evaluate everywhere
+	 */
+	public void setMask(ImagePlus mask)
+	{
+		if(mask==null)
+		{
+			setSpans(null);
+		} else
+		{
+			setSpans(PixelSpans.fromMask(mask, detector.getStack().getWidth(), detector.getStack().getHeight()));
+		}
+	}
+
+	/**
+	 * Limit the evaluation to some pixels, typically those of a mask or a selection. The reference pixel
+	 * can be outside
+	 * @param spans The pixels to be evaluated, null for all the pixels
+	 */
+	public void setSpans(PixelSpans spans)
+	{
+		detector.setSpans(spans);
+	}
+
+	/**
+	 * Find the peaks of the reference pixel
+	 * @param ref_x X-coordinate of the reference pixel
+	 * @param ref_y Y-coordinate of the reference pixel
+	 * @return Sorted positions of the peaks of the reference pixel
+	 */
+	public int[] findReferencePeaks(int ref_x, int ref_y)
+	{
+		PeakDetectionWorkspace ws = detector.prepareWorkspace(detector.getWorkspaces().get());
+
+		int n_peaks = detector.findPeaks(ref_x, ref_y, ws);
+
+		int[] idx = FindPeaksTools.copyPeaks(ws, n_peaks);
+		Arrays.sort(idx);
+
+		return idx;
+	}
+
+	/**
+	 * Set the reference pixel for the phase, and find its peaks
+	 * @param ref_x X-coordinate of the reference pixel
+	 * @param ref_y Y-coordinate of the reference pixel
+	 * @return Sorted positions of the peaks of the reference pixel; at least 2 are needed for a phase
+	 */
+	public int[] setReference(int ref_x, int ref_y)
+	{
+		idx_ref = findReferencePeaks(ref_x, ref_y);
+
+		reference = new ReferencePhaseTable(idx_ref, detector.getDepth());
+
+		return idx_ref;
+	}
+
+	/**
+	 * Run the analysis: peaks of the reference pixel first, then peaks, frequency and phase of all the pixels
+	 * @param ref_x X-coordinate of the reference pixel
+	 * @param ref_y Y-coordinate of the reference pixel
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public void run(int ref_x, int ref_y, int n_threads, boolean showProgress)
+	{
+		setReference(ref_x, ref_y);
+
+		run(n_threads, showProgress);
+	}
+
+	/**
+	 * Run the analysis for the reference pixel set before (setReference): peaks, frequency and phase of all the pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public void run(int n_threads, boolean showProgress)
+	{
+		if(idx_ref==null)
+		{
+			throw new IllegalStateException("The reference pixel needs to be set before running the analysis");
+		}
+
+		detector.cacheProfiles();
+
+		final int width = detector.getStack().getWidth();
+		final int height = detector.getStack().getHeight();
+		final int depth = detector.getDepth();
+
+		frequency = new FloatProcessor(width, height);
+		phase = new FloatProcessor(width, height);
+
+		final float[] frequency_pixels = (float[])frequency.getPixels();
+		final float[] phase_pixels = (float[])phase.getPixels();
+
+		PixelSpans spans = detector.getSpans();
+
+		// Pixels outside the mask are not evaluated
+		if(!spans.isComplete())
+		{
+			Arrays.fill(frequency_pixels, Float.NaN);
+			Arrays.fill(phase_pixels, Float.NaN);
+		}
+
+		if(detector.isStreaming())
+		{
+			// Virtual 8-bit stacks are read slice by slice, so the peaks of all the pixels come
+			// at the end only
+			table = detector.findPeaks(n_threads, showProgress);
+
+			PeakDetectionStatistics statistics = detector.getStatistics();
+			long start = System.nanoTime();
+
+			int[] offsets = table.getOffsets();
+			int[] frames = table.getFrames();
+			double[] info = new double[3];
+
+			for(int y=0; y<height; y++)
+			{
+				for(int s=spans.getFirstSpan(y); s<spans.getFirstSpan(y+1); s++)
+				{
+					for(int x=spans.getStart(s); x<spans.getEnd(s); x++)
+					{
+						int i = y*width+x;
+						frequency_pixels[i]=(float)getFrequency(offsets[i+1]-offsets[i], depth);
+						phase_pixels[i]=(float)getPhase(frames, offsets[i], offsets[i+1], info);
+					}
+				}
+			}
+
+			if(statistics!=null)
+			{
+				statistics.addTime(PeakDetectionStatistics.STAGE_FREQUENCY_PHASE, start);
+			}
+
+			return;
+		}
+
+		final PeakEventTable.Builder builder = new PeakEventTable.Builder(width, height, depth);
+
+		PixelSpans analyzed_spans = detector.getAnalyzedSpans(n_threads);
+
+		// Pixels skipped as inactive have no peaks
+		if(detector.getActivityIndex()!=null)
+		{
+			float no_frequency = (float)getFrequency(0, depth);
+			float no_phase = (float)getPhase(new int[0], 0, 0, new double[3]);
+
+			for(int y=0; y<height; y++)
+			{
+				for(int s=spans.getFirstSpan(y); s<spans.getFirstSpan(y+1); s++)
+				{
+					Arrays.fill(frequency_pixels, y*width+spans.getStart(s), y*width+spans.getEnd(s), no_frequency);
+					Arrays.fill(phase_pixels, y*width+spans.getStart(s), y*width+spans.getEnd(s), no_phase);
+				}
+			}
+		}
+
+		// One set of buffers for the peak detection per thread, reused for all the pixels
+		final ThreadLocal<PeakDetectionWorkspace> workspaces = detector.getWorkspaces();
+
+		detector.processSpans(analyzed_spans, n_threads, new ParallelTools.SpanProcessor() {
+
+			public void processSpan(int y, int x_start, int x_end) {
+
+				PeakDetectionWorkspace ws = detector.prepareWorkspace(workspaces.get());
+
+				double[] info = new double[3];
+
+				for(int x=x_start; x<x_end; x++)
+				{
+					int n_peaks = detector.findPeaks(x, y, ws);
+
+					// Sorts the peaks of the workspace in place, as needed for the phase evaluation
+					builder.setPeaks(x, y, ws.getPeaks(), n_peaks);
+					ws.endStage(PeakDetectionStatistics.STAGE_OUTPUT);
+
+					frequency_pixels[y*width+x]=(float)getFrequency(n_peaks, depth);
+					phase_pixels[y*width+x]=(float)getPhase(ws.getPeaks(), 0, n_peaks, info);
+					ws.endStage(PeakDetectionStatistics.STAGE_FREQUENCY_PHASE);
+				}
+
+				if(ws.getCounters()!=null)
+				{
+					ws.getCounters().pixels+=x_end-x_start;
+				}
+
+			}
+		}, showProgress);
+
+		long start = System.nanoTime();
+
+		table = builder.build();
+
+		if(detector.getStatistics()!=null)
+		{
+			detector.getStatistics().addTime(PeakDetectionStatistics.STAGE_OUTPUT, start);
+		}
+	}
+
+	/**
+	 * Local frequency, as LocalFrequency
+	 * @param n_peaks Number of peaks in the z-profile
+	 * @param depth Length of the z-profile
+	 * @return Frequency in beats per minute
+	 */
+	protected double getFrequency(int n_peaks, int depth)
+	{
+		return LocalFrequencyTools.getFrequency(n_peaks, depth, frame_rate);
+	}
+
+	/**
+	 * Local phase relative to the reference pixel, as LocalPhase
+	 * @param frames Peak positions, the peaks of the pixel being frames[from] to frames[to-1]
+	 * @param from First peak of the pixel (included)
+	 * @param to Last peak of the pixel (excluded)
+	 * @param info Scratch buffer of length at least 3
+	 * @return Phase in degrees
+	 */
+	protected double getPhase(int[] frames, int from, int to, double[] info)
+	{
+		return reference.getPhase(frames, from, to, info)/Math.PI*180.0;
+	}
+
+	/**
+	 * @return The peak detection, for instance to set its workspaces or statistics
+	 */
+	public StackPeakDetector getDetector()
+	{
+		return detector;
+	}
+
+	/**
+	 * @return Sorted peak positions of the reference pixel (available after run)
+	 */
+	public int[] getReferencePeaks()
+	{
+		return idx_ref;
+	}
+
+	/**
+	 * @return Peaks of all the pixels (available after run)
+	 */
+	public PeakEventTable getPeakTable()
+	{
+		return table;
+	}
+
+	/**
+	 * @return Local frequency in beats per minute, as LocalFrequency (available after run)
+	 */
+	public FloatProcessor getFrequencyImage()
+	{
+		return frequency;
+	}
+
+	/**
+	 * @return Local phase in degrees, as LocalPhase (available after run)
+	 */
+	public FloatProcessor getPhaseImage()
+	{
+		return phase;
+	}
+
+}
@@ -0,0 +1,184 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+/**
+ * The peaks of a reference pixel, compiled into a table over the frames for the phase evaluation
+ * (see LocalPhaseTools.getCorrelationInformation): for each frame z, the offset to the nearest reference peak,
+ * the local period of the reference, and the cosine and sine of the resulting phase 2*pi*offset/period.
+ *
+ * All the pixels are compared to the same reference, so the table is built once, in a single walk over the
+ * frames and the reference peaks. The phase of a pixel is then a sum of table entries over its peaks, without
+ * searching the reference and without trigonometric functions. The entries are calculated with the same
+ * expressions as LocalPhaseTools.getCorrelationInformation, so that the phases are identical.
+ * @author thomasbraschler
+ *
+ */
+public class ReferencePhaseTable {
+
+	/** Sorted peaks of the reference */
+	protected final int[] idx_ref;
+
+	/** Number of frames covered by the table */
+	protected final int depth;
+
+	/** For each frame, nearest reference peak minus the frame */
+	protected final int[] offsets;
+
+	/** For each frame, local period of the reference */
+	protected final int[] periods;
+
+	/** For each frame, cosine of the phase relative to the reference */
+	protected final double[] cos;
+
+	/** For each frame, sine of the phase relative to the reference */
+	protected final double[] sin;
+
+	/**
+	 * Compile the reference peaks
+	 * @param idx_ref Peaks of the reference, in increasing order
+	 * @param depth Number of frames (length of the z-profiles); peaks outside 0..depth-1 are evaluated without table
+	 */
+	public ReferencePhaseTable(int[] idx_ref, int depth)
+	{
+		this.idx_ref=idx_ref;
+		this.depth=depth;
+
+		offsets = new int[depth];
+		periods = new int[depth];
+		cos = new double[depth];
+		sin = new double[depth];
+
+		int m = idx_ref.length;
+
+		// Index of the first reference peak at or after the frame
+		int j=0;
+
+		for(int z=0; z<depth; z++)
+		{
+			while(j<m && idx_ref[j]<z)
+			{
+				j++;
+			}
+
+			int nearest = LocalPhaseTools.getNearestElementSorted(idx_ref, j, z);
+			int period = LocalPhaseTools.getPeriodSorted(idx_ref, j);
+
+			double phase = 2.0*Math.PI*((double)(nearest-z))/((double) period);
+
+			offsets[z]=nearest-z;
+			periods[z]=period;
+			cos[z]=Math.cos(phase);
+			sin[z]=Math.sin(phase);
+		}
+	}
+
+	/**
+	 * @return Sorted peaks of the reference
+	 */
+	public int[] getReferencePeaks()
+	{
+		return idx_ref;
+	}
+
+	/**
+	 * @return Number of frames covered by the table
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @param z Frame, 0&lt;=z&lt;getDepth()
+	 * @return Nearest reference peak minus the frame
+	 */
+	public int getOffset(int z)
+	{
+		return offsets[z];
+	}
+
+	/**
+	 * @param z Frame, 0&lt;=z&lt;getDepth()
+	 * @return Local period of the reference at the frame
+	 */
+	public int getPeriod(int z)
+	{
+		return periods[z];
+	}
+
+	/**
+	 * In-phase and out-of-phase components of some peaks relative to the reference, as
+	 * LocalPhaseTools.getCorrelationInformation, for the peaks frames[from] to frames[to-1]
+	 * @param frames Peak positions, typically the frames of a PeakEventTable
+	 * @param from First peak (included)
+	 * @param to Last peak (excluded)
+	 * @param info Receives the in-phase component, the out-of-phase component and the number of peaks
+	 */
+	public void getCorrelationInformation(int[] frames, int from, int to, double[] info)
+	{
+		double n=0;
+
+		double cos_phase=0;
+
+		double sin_phase=0;
+
+		for(int ind=from; ind<to; ind++)
+		{
+			int z = frames[ind];
+
+			if(z>=0 && z<depth)
+			{
+				cos_phase+=cos[z];
+				sin_phase+=sin[z];
+			} else
+			{
+				// Outside the table, as LocalPhaseTools.getCorrelationInformation
+				int nearest = LocalPhaseTools.getNearestElement(idx_ref, z);
+				int period = LocalPhaseTools.getPeriod(idx_ref, z);
+
+				double phase = 2.0*Math.PI*((double)(nearest-z))/((double) period);
+
+				cos_phase+=Math.cos(phase);
+				sin_phase+=Math.sin(phase);
+			}
+
+			n=n+1;
+		}
+
+		info[0]=cos_phase;
+		info[1]=sin_phase;
+		info[2]=n;
+	}
+
+	/**
+	 * Phase of some peaks relative to the reference, as LocalPhaseTools.getPhase
+	 * @param frames Peak positions, typically the frames of a PeakEventTable
+	 * @param from First peak (included)
+	 * @param to Last peak (excluded)
+	 * @param info Scratch buffer of length at least 3
+	 * @return Phase in radians, NaN without peaks
+	 */
+	public double getPhase(int[] frames, int from, int to, double[] info)
+	{
+		getCorrelationInformation(frames, from, to, info);
+
+		return LocalPhaseTools.getPhase(info);
+	}
+
+}
@@ -0,0 +1,300 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * Automatic choice of the reference pixel for the phase evaluation (see LocalPhase), from the peak table of
+ * the image.
+ *
+ * A good reference beats often and regularly, and the other pixels follow it. The selection works in two steps:
+ * <ol>
+ * <li>Every pixel with at least 3 peaks is scored in a single walk over the peak table, by the regularity of
+ * its intervals, 1/(1+cv^2), cv being the coefficient of variation of the intervals (see
+ * LocalPhaseTools.getPeriodStatistics), times the reliability of this estimate, 1-1/sqrt(n-1) for n peaks.
+ * The reliability grows with the number of peaks but levels off, so that frequent irregular peaks (noise)
+ * do not outweigh regular beats. The best candidates are kept.</li>
+ * <li>For each candidate, the coverage is the mean correlation strength of a sample of pixels, spread evenly
+ * over the evaluated pixels, relative to the candidate (see LocalPhaseTools.getCorrelationStrength): the 
+ * larger the part of the image whose peaks fall at a fixed phase of the candidate, the higher the coverage.</li>
+ * </ol>
+ * The reference is the candidate with the highest score times coverage. The first step costs one
+ * addition per peak; the second a table over the frames (see ReferencePhaseTable) and the peaks of the sample
+ * per candidate, so that the selection takes a fraction of the phase map itself, whatever the image size.
+ * The sample is taken at a fixed stride, so that the selection is reproducible.
+ * @author thomasbraschler
+ *
+ */
+public class ReferenceSelection {
+
+	/** Default number of candidates compared by coverage */
+	public static final int DEFAULT_CANDIDATES=32;
+
+	/** Default number of sampled pixels for the coverage */
+	public static final int DEFAULT_SAMPLES=2000;
+
+	/** Peaks of the image */
+	protected final PeakEventTable table;
+
+	/** Pixels evaluated, both as candidates and for the coverage */
+	protected final PixelSpans spans;
+
+	/** x-coordinate of the selected reference, -1 if none */
+	protected int reference_x=-1;
+
+	/** y-coordinate of the selected reference, -1 if none */
+	protected int reference_y=-1;
+
+	/** Number of peaks of the selected reference */
+	protected int peaks=0;
+
+	/** Regularity of the intervals of the selected reference, 1/(1+cv^2) */
+	protected double regularity=0;
+
+	/** Coverage of the selected reference, mean correlation strength of the sample */
+	protected double coverage=0;
+
+	/**
+	 * Selection of a reference among some pixels, to be done by select
+	 * @param table Peaks of the image
+	 * @param spans The pixels to consider, null for all the pixels
+	 */
+	public ReferenceSelection(PeakEventTable table, PixelSpans spans)
+	{
+		this.table=table;
+
+		if(spans==null)
+		{
+			spans = PixelSpans.all(table.getWidth(), table.getHeight());
+		}
+
+		this.spans=spans;
+	}
+
+	/**
+	 * Select the reference with the default numbers of candidates and samples
+	 * @return true if a reference was found, false if no pixel has at least 3 peaks
+	 */
+	public boolean select()
+	{
+		return select(DEFAULT_CANDIDATES, DEFAULT_SAMPLES);
+	}
+
+	/**
+	 * Select the reference
+	 * @param n_candidates Number of candidates, the best by regularity and number of peaks, compared by coverage
+	 * @param n_samples Number of pixels sampled for the coverage (all the pixels with peaks if fewer)
+	 * @return true if a reference was found, false if no pixel has at least 3 peaks
+	 */
+	public boolean select(int n_candidates, int n_samples)
+	{
+		int width = table.getWidth();
+		int[] offsets = table.getOffsets();
+		int[] frames = table.getFrames();
+
+		// Best candidates by prior score, in decreasing order
+		int[] candidates = new int[Math.max(n_candidates, 1)];
+		double[] candidate_scores = new double[candidates.length];
+		double[] candidate_regularity = new double[candidates.length];
+
+		int n_found = 0;
+
+		// Pixels with at least 2 peaks, for the coverage
+		int n_with_peaks = 0;
+
+		double[] stats = new double[2];
+
+		for(int s=0; s<spans.getNumberOfSpans(); s++)
+		{
+			int row = spans.getRow(s)*width;
+
+			for(int x=spans.getStart(s); x<spans.getEnd(s); x++)
+			{
+				int i = row+x;
+				int from = offsets[i];
+				int to = offsets[i+1];
+
+				if(to-from>=2)
+				{
+					n_with_peaks++;
+				}
+
+				if(to-from<3)
+				{
+					continue;
+				}
+
+				LocalPhaseTools.getPeriodStatistics(frames, from, to, stats);
+
+				double cv2 = stats[1]/(stats[0]*stats[0]);
+				double pixel_regularity = 1.0/(1.0+cv2);
+				double score = (1.0-1.0/Math.sqrt(to-from-1))*pixel_regularity;
+
+				if(n_found==candidates.length && score<=candidate_scores[n_found-1])
+				{
+					continue;
+				}
+
+				// Insert into the sorted candidates, the last one dropping out when full
+				int pos = (n_found<candidates.length) ? n_found++ : n_found-1;
+
+				while(pos>0 && candidate_scores[pos-1]<score)
+				{
+					candidates[pos]=candidates[pos-1];
+					candidate_scores[pos]=candidate_scores[pos-1];
+					candidate_regularity[pos]=candidate_regularity[pos-1];
+					pos--;
+				}
+
+				candidates[pos]=i;
+				candidate_scores[pos]=score;
+				candidate_regularity[pos]=pixel_regularity;
+			}
+		}
+
+		if(n_found==0)
+		{
+			return false;
+		}
+
+		int[] sample = getSample(n_with_peaks, n_samples);
+
+		double[] info = new double[3];
+
+		double best_score = -1;
+
+		for(int c=0; c<n_found; c++)
+		{
+			int i = candidates[c];
+
+			int[] idx_ref = table.getPeaks(i%width, i/width);
+
+			ReferencePhaseTable reference = new ReferencePhaseTable(idx_ref, table.getDepth());
+
+			double strength = 0;
+
+			for(int k=0; k<sample.length; k++)
+			{
+				reference.getCorrelationInformation(frames, offsets[sample[k]], offsets[sample[k]+1], info);
+
+				strength += LocalPhaseTools.getCorrelationStrength(info);
+			}
+
+			double candidate_coverage = (sample.length>0) ? strength/sample.length : 0;
+			double score = candidate_scores[c]*candidate_coverage;
+
+			if(score>best_score)
+			{
+				best_score=score;
+				reference_x=i%width;
+				reference_y=i/width;
+				peaks=idx_ref.length;
+				regularity=candidate_regularity[c];
+				coverage=candidate_coverage;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Pixels with at least 2 peaks, taken at a fixed stride over the evaluated pixels
+	 * @param n_with_peaks Number of evaluated pixels with at least 2 peaks
+	 * @param n_samples Desired number of samples
+	 * @return Pixel indexes y*width+x, at most n_samples
+	 */
+	protected int[] getSample(int n_with_peaks, int n_samples)
+	{
+		int width = table.getWidth();
+		int[] offsets = table.getOffsets();
+
+		int n = Math.min(n_with_peaks, Math.max(n_samples, 1));
+		int[] sample = new int[n];
+
+		// Take pixel number floor(k*n_with_peaks/n), counting the pixels with at least 2 peaks
+		long k = 0;
+		long count = 0;
+
+		for(int s=0; s<spans.getNumberOfSpans() && k<n; s++)
+		{
+			int row = spans.getRow(s)*width;
+
+			for(int x=spans.getStart(s); x<spans.getEnd(s) && k<n; x++)
+			{
+				int i = row+x;
+
+				if(offsets[i+1]-offsets[i]<2)
+				{
+					continue;
+				}
+
+				if(count==k*n_with_peaks/n)
+				{
+					sample[(int)k]=i;
+					k++;
+				}
+
+				count++;
+			}
+		}
+
+		return sample;
+	}
+
+	/**
+	 * @return x-coordinate of the selected reference, -1 if none
+	 */
+	public int getReferenceX()
+	{
+		return reference_x;
+	}
+
+	/**
+	 * @return y-coordinate of the selected reference, -1 if none
+	 */
+	public int getReferenceY()
+	{
+		return reference_y;
+	}
+
+	/**
+	 * @return Number of peaks of the selected reference
+	 */
+	public int getNumberOfPeaks()
+	{
+		return peaks;
+	}
+
+	/**
+	 * @return Regularity of the intervals of the selected reference, 1/(1+cv^2), 1 for strictly periodic peaks
+	 */
+	public double getRegularity()
+	{
+		return regularity;
+	}
+
+	/**
+	 * @return Coverage of the selected reference, between 0 and 1
+	 */
+	public double getCoverage()
+	{
+		return coverage;
+	}
+
+}
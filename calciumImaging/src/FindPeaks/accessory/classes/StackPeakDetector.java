@@ -0,0 +1,647 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.concurrent.ForkJoinPool;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import tbgitoo.tools.ParallelTools;
+import tbgitoo.tools.MappedStack;
+import tbgitoo.tools.PixelSpans;
+import tbgitoo.tools.ZProfileCache;
+
+/**
+ * Peak detection in the z-profiles of a stack, with the options of the FindPeaks plugin.
+ * Reads the z-profiles from a transposed copy of the stack if available (see cacheProfiles),
+ * otherwise directly from the stack, and chooses the threshold calculation according to the pixel type.
+ * Virtual stacks are not copied as a whole: 8-bit stacks are read slice by slice (StreamingPeakFinder), the others
+ * are transposed band of rows by band of rows, each band being discarded once its pixels are analyzed (see processSpans).
+ * The detection can be restricted to the active pixels of a mask or selection (see setSpans).
+ * @author thomasbraschler
+ *
+ */
+public class StackPeakDetector {
+
+	/** Stack to be analyzed */
+	protected final ImageStack stack;
+
+	/** Transposed copy of the stack, null if the profiles are read from the stack */
+	protected ZProfileCache profiles;
+
+	/** Expected fraction of values above the threshold */
+	protected double peak_fraction;
+	/** Minimal distance between peaks */
+	protected double minD;
+	/** Filtering for width and height? */
+	protected boolean doFiltering;
+	/** Minimal width (if filtering) */
+	protected double minW;
+	/** Maximal width (if filtering) */
+	protected double maxW;
+	/** Minimal height above threshold (if filtering) */
+	protected double minH;
+	/** Length of the window for a running threshold, in frames; 0 for a single threshold over the whole z-profile */
+	protected int threshold_window=0;
+
+	/** Pixels to be analyzed, null for all the pixels */
+	protected PixelSpans spans;
+
+	/** Buffers for the peak detection, one per thread; null to allocate new ones at each run */
+	protected ThreadLocal<PeakDetectionWorkspace> workspaces;
+
+	/** Threads for the per-pixel work, kept from one run to the next; null for a new pool at each run */
+	protected ForkJoinPool pool;
+
+	/** Timing of the stages and counts, null for no timing */
+	protected PeakDetectionStatistics statistics;
+
+	/** Skip the pixels whose range of values is too small for a peak of height minH (see ActivityIndex) */
+	protected boolean skip_inactive=false;
+
+	/** Minimum, maximum, mean and variance of the z-profiles, computed when skipping inactive pixels */
+	protected ActivityIndex activity_index;
+
+	/** Memory for the transposed band of rows of a virtual stack, in bytes */
+	protected long band_memory=Runtime.getRuntime().maxMemory()/4;
+
+	/**
+	 * Set up the detector, with the parameters of FindPeaksTools.findPeaksInProfile
+	 * @param stack Stack to be analyzed, 8-bit, 16-bit or 32-bit greyscale
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 */
+	public StackPeakDetector(ImageStack stack, double peak_fraction, double minD, boolean doFiltering,
+			double minW, double maxW, double minH)
+	{
+		this.stack=stack;
+		this.peak_fraction=peak_fraction;
+		this.minD=minD;
+		this.doFiltering=doFiltering;
+		this.minW=minW;
+		this.maxW=maxW;
+		this.minH=minH;
+	}
+
+	/**
+	 * Transpose the stack, so that the z-profiles can be read as contiguous arrays. Worthwhile when many
+	 * profiles are analyzed. Virtual stacks are kept on disk, so they are not copied to memory; memory-mapped
+	 * stacks (MappedStack) give access to the z-profiles directly in the mapping, without copy.
+	 * With the analysis restricted to some pixels (setSpans), only these are transposed; the z-profiles of the
+	 * other pixels (such as a reference pixel outside the mask) are then read from the stack
+	 */
+	public void cacheProfiles()
+	{
+		long start = System.nanoTime();
+
+		if(profiles==null && stack instanceof MappedStack)
+		{
+			profiles=((MappedStack)stack).getProfiles();
+		} else if(profiles==null && !stack.isVirtual())
+		{
+			profiles=ZProfileCache.create(stack, (spans==null || spans.isComplete()) ? null : spans);
+		}
+
+		// The transposition counts as reading of the profiles
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_PROFILE, start);
+		}
+	}
+
+	/**
+	 * Use an existing transposed copy of the stack
+	 * @param profiles Transposed copy of the stack, or null to read the profiles from the stack
+	 */
+	public void setProfiles(ZProfileCache profiles)
+	{
+		this.profiles=profiles;
+	}
+
+	/**
+	 * @return Transposed copy of the stack, null if the profiles are read from the stack
+	 */
+	public ZProfileCache getProfiles()
+	{
+		return profiles;
+	}
+
+	/**
+	 * Use a running threshold, following slow changes of the baseline (see 
+	 * FindPeaksTools.findPeaksInProfileRollingThreshold), instead of a single threshold per z-profile
+	 * @param threshold_window Length of the window in frames, 0 for a single threshold over the whole z-profile
+	 */
+	public void setThresholdWindow(int threshold_window)
+	{
+		this.threshold_window=Math.max(threshold_window, 0);
+	}
+
+	/**
+	 * @return Length of the window for the running threshold in frames, 0 for a single threshold over the whole z-profile
+	 */
+	public int getThresholdWindow()
+	{
+		return threshold_window;
+	}
+
+	/**
+	 * Restrict the peak detection to some pixels, typically those of a mask or a selection. The other pixels
+	 * have no peaks
+	 * @param spans The pixels to be analyzed, null for all the pixels
+	 */
+	public void setSpans(PixelSpans spans)
+	{
+		this.spans=spans;
+	}
+
+	/**
+	 * @return The pixels analyzed, all the pixels of the stack if not restricted by setSpans
+	 */
+	public PixelSpans getSpans()
+	{
+		if(spans==null)
+		{
+			return PixelSpans.all(stack.getWidth(), stack.getHeight());
+		}
+		return spans;
+	}
+
+	/**
+	 * Skip the pixels that cannot have peaks passing the height filter, based on their activity index
+	 * (see ActivityIndex). Only applies with filtering and 0&lt;peak_fraction&lt;1. The skipped pixels have no peaks
+	 * @param skip_inactive Should the inactive pixels be skipped?
+	 */
+	public void setSkipInactive(boolean skip_inactive)
+	{
+		this.skip_inactive=skip_inactive;
+	}
+
+	/**
+	 * @return Are the inactive pixels skipped?
+	 */
+	public boolean isSkipInactive()
+	{
+		return skip_inactive;
+	}
+
+	/**
+	 * @return Does skipping the inactive pixels apply with the parameters of the detector?
+	 */
+	protected boolean isScreening()
+	{
+		return skip_inactive && doFiltering && peak_fraction>0 && peak_fraction<1;
+	}
+
+	/**
+	 * @return The activity index of the analyzed pixels, null if not computed (see getAnalyzedSpans)
+	 */
+	public ActivityIndex getActivityIndex()
+	{
+		return activity_index;
+	}
+
+	/**
+	 * The pixels actually analyzed: the active pixels (see setSpans), without the inactive ones when
+	 * skipping them (see setSkipInactive). The activity index is computed on the first call, in a single
+	 * sweep over the slices, and counts as reading of the profiles
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @return The pixels analyzed
+	 */
+	public PixelSpans getAnalyzedSpans(int n_threads)
+	{
+		if(!isScreening())
+		{
+			return getSpans();
+		}
+
+		if(activity_index==null)
+		{
+			long start = System.nanoTime();
+
+			activity_index = ActivityIndex.compute(stack, getSpans(), n_threads);
+			activity_index.setActiveSpans(activity_index.findActiveSpans(peak_fraction, minH, threshold_window>0));
+
+			if(statistics!=null)
+			{
+				statistics.addTime(PeakDetectionStatistics.STAGE_PROFILE, start);
+			}
+		}
+
+		return activity_index.getActiveSpans();
+	}
+
+	/**
+	 * Per-thread buffers for the peak detection, to be shared between detectors
+	 * @param capacity Initial capacity of the workspaces (typically the stack size); they grow when needed
+	 * @return New per-thread workspaces
+	 */
+	public static ThreadLocal<PeakDetectionWorkspace> createWorkspaces(final int capacity)
+	{
+		return new ThreadLocal<PeakDetectionWorkspace>() {
+			protected PeakDetectionWorkspace initialValue() {
+				return new PeakDetectionWorkspace(capacity);
+			}
+		};
+	}
+
+	/**
+	 * Use existing per-thread buffers, typically to reuse them over the stacks of a batch rather than
+	 * allocating new ones for each stack. They are only reused by threads that live longer than a run:
+	 * the calling thread when running with a single thread, or the threads of a pool set with setPool
+	 * @param workspaces Per-thread workspaces (see createWorkspaces), null to allocate new ones at each run
+	 */
+	public void setWorkspaces(ThreadLocal<PeakDetectionWorkspace> workspaces)
+	{
+		this.workspaces=workspaces;
+	}
+
+	/**
+	 * Use an existing pool of threads for the per-pixel work instead of a new one at each run. Together with 
+	 * setWorkspaces, the buffers of the pool threads then serve all the stacks analyzed with this pool. The
+	 * pool is not shut down by the detector
+	 * @param pool The pool, null to create a pool for each run with the requested number of threads
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool=pool;
+	}
+
+	/**
+	 * Set the memory for the transposed band of rows of a virtual stack (see processSpans). Each band needs a
+	 * reading of the whole stack, so the larger the bands, the fewer the readings
+	 * @param band_memory Memory in bytes; a band has at least one row
+	 */
+	public void setBandMemory(long band_memory)
+	{
+		this.band_memory=band_memory;
+	}
+
+	/**
+	 * Are the z-profiles of the stack transposed band by band for the per-pixel work? This is the case for
+	 * virtual stacks without transposed copy, apart from memory-mapped stacks, which give access to their
+	 * z-profiles directly
+	 * @return true if the stack is read band by band
+	 */
+	public boolean isBanded()
+	{
+		return profiles==null && stack.isVirtual() && !(stack instanceof MappedStack);
+	}
+
+	/**
+	 * Distribute per-pixel work for this stack: on the pool set with setPool if any, otherwise on n_threads
+	 * threads. The work stays in the calling thread if the stack cannot be read concurrently (see getNumberOfThreads).
+	 * Virtual stacks (see isBanded) would otherwise be read voxel by voxel, decoding each slice for every pixel: their
+	 * pixels are treated by bands of consecutive rows instead, for each of which the slices are read once into a 
+	 * transposed copy of the band, that the work then reads concurrently. The bands are as large as band_memory permits
+	 * @param spans The pixels
+	 * @param n_threads Number of threads if no pool is set (0 for all available processors)
+	 * @param processor The work to be done on each span
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public void processSpans(PixelSpans spans, int n_threads, ParallelTools.SpanProcessor processor, boolean showProgress)
+	{
+		if(isBanded())
+		{
+			int height = stack.getHeight();
+			long profile_bytes = ((long)getDepth())*(stack.getBitDepth()/8);
+
+			int y_start = 0;
+
+			while(y_start<height)
+			{
+				// Rows as long as the band fits into band_memory, at least one
+				long n_pixels = 0;
+				int y_end = y_start;
+
+				do
+				{
+					n_pixels += spans.getPixelOffset(spans.getFirstSpan(y_end+1))-spans.getPixelOffset(spans.getFirstSpan(y_end));
+					y_end++;
+				} while(y_end<height && (n_pixels+spans.getPixelOffset(spans.getFirstSpan(y_end+1))
+						-spans.getPixelOffset(spans.getFirstSpan(y_end)))*profile_bytes<=band_memory);
+
+				if(n_pixels>0)
+				{
+					PixelSpans band = spans.getRows(y_start, y_end);
+
+					long start = System.nanoTime();
+
+					profiles = ZProfileCache.create(stack, band);
+
+					if(statistics!=null)
+					{
+						statistics.addTime(PeakDetectionStatistics.STAGE_PROFILE, start);
+					}
+
+					try
+					{
+						processSpans(band, n_threads, processor, showProgress);
+					} finally
+					{
+						profiles = null;
+					}
+				}
+
+				y_start = y_end;
+			}
+
+			return;
+		}
+
+		int n = getNumberOfThreads(n_threads);
+
+		if(pool!=null && n!=1)
+		{
+			ParallelTools.processSpans(spans, pool, processor, showProgress);
+		} else
+		{
+			ParallelTools.processSpans(spans, n, processor, showProgress);
+		}
+	}
+
+	/**
+	 * Time the stages of the detection and count the pixels, candidates and peaks
+	 * @param statistics Receives the counts of all the threads, null for no timing
+	 */
+	public void setStatistics(PeakDetectionStatistics statistics)
+	{
+		this.statistics=statistics;
+	}
+
+	/**
+	 * @return Timing and counts of the detection, null if not timed
+	 */
+	public PeakDetectionStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * Prepare the workspace of the calling thread for a run: capacity for the z-profiles of the stack, and
+	 * counting into the statistics of this detector (or no counting), since workspaces may be shared
+	 * @param ws The workspace
+	 * @return ws
+	 */
+	public PeakDetectionWorkspace prepareWorkspace(PeakDetectionWorkspace ws)
+	{
+		ws.ensureCapacity(getDepth());
+		ws.setCounters(statistics==null ? null : statistics.getCounters());
+		return ws;
+	}
+
+	/**
+	 * Per-thread buffers for a run
+	 * @return The workspaces set with setWorkspaces, or else new ones
+	 */
+	public ThreadLocal<PeakDetectionWorkspace> getWorkspaces()
+	{
+		if(workspaces==null)
+		{
+			return createWorkspaces(getDepth());
+		}
+		return workspaces;
+	}
+
+	/**
+	 * Virtual 8-bit stacks are read slice by slice (StreamingPeakFinder) rather than by z-profile, as 
+	 * long as the threshold is calculated over the whole z-profile. Memory-mapped stacks (MappedStack) are read
+	 * by z-profile, directly from the mapping
+	 * @return true if the peaks are found slice by slice
+	 */
+	public boolean isStreaming()
+	{
+		return stack.isVirtual() && !(stack instanceof MappedStack) && stack.getBitDepth()==8 && threshold_window==0;
+	}
+
+	/**
+	 * @return The stack analyzed
+	 */
+	public ImageStack getStack()
+	{
+		return stack;
+	}
+
+	/**
+	 * @return Number of slices, and so length of the z-profiles
+	 */
+	public int getDepth()
+	{
+		return stack.getSize();
+	}
+
+	/**
+	 * @return Minimal distance between peaks
+	 */
+	public double getMinD()
+	{
+		return minD;
+	}
+
+	/**
+	 * Finds the peaks in the z-profile at a given xy position, using the buffers of a workspace
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param ws Workspace with capacity at least the stack size, receives the peak positions
+	 * (pixel units, 0-based, not necessarily in order) in the z-profile
+	 * @return Number of peaks found
+	 */
+	public int findPeaks(int x, int y, PeakDetectionWorkspace ws)
+	{
+		int depth = getDepth();
+
+		ws.startTiming();
+
+		// The threshold calculation depends on the pixel type
+		switch(stack.getBitDepth())
+		{
+		case 16:
+			getProfile(x, y, ws.getSection());
+			ws.endStage(PeakDetectionStatistics.STAGE_PROFILE);
+
+			if(threshold_window>0)
+			{
+				return FindPeaksTools.findPeaksInProfileRollingThreshold(ws, depth, peak_fraction, threshold_window,
+						minD, doFiltering, minW, maxW, minH);
+			}
+
+			return FindPeaksTools.findPeaksInShortProfile(ws, depth, peak_fraction,
+					minD, doFiltering, minW, maxW, minH);
+		case 32:
+			getProfile(x, y, ws.getValues());
+			ws.endStage(PeakDetectionStatistics.STAGE_PROFILE);
+
+			if(threshold_window>0)
+			{
+				return FindPeaksTools.findPeaksInFloatProfileRollingThreshold(ws, depth, peak_fraction, threshold_window,
+						minD, doFiltering, minW, maxW, minH);
+			}
+
+			return FindPeaksTools.findPeaksInFloatProfile(ws, depth, peak_fraction,
+					minD, doFiltering, minW, maxW, minH);
+		default:
+			getProfile(x, y, ws.getSection());
+			ws.endStage(PeakDetectionStatistics.STAGE_PROFILE);
+
+			if(threshold_window>0)
+			{
+				return FindPeaksTools.findPeaksInProfileRollingThreshold(ws, depth, peak_fraction, threshold_window,
+						minD, doFiltering, minW, maxW, minH);
+			}
+
+			return FindPeaksTools.findPeaksInProfile(ws, depth, peak_fraction,
+					minD, doFiltering, minW, maxW, minH);
+		}
+	}
+
+	/**
+	 * Finds the peaks in all the z-profiles of the stack.
+	 * The active pixels (see setSpans) are processed span by span, distributed over n_threads threads.
+	 * Virtual 8-bit stacks are read slice by slice instead (see StreamingPeakFinder), unless a running 
+	 * threshold is used; other virtual stacks are transposed band by band (see processSpans).
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 * @return Sparse table of the peak positions in each z-profile
+	 */
+	public PeakEventTable findPeaks(int n_threads, boolean showProgress)
+	{
+		final int depth = getDepth();
+
+		final PixelSpans analyzed_spans = getAnalyzedSpans(n_threads);
+
+		// Peaks are collected pixel by pixel; the spans treat distinct pixels
+		final PeakEventTable.Builder builder = new PeakEventTable.Builder(stack.getWidth(),
+				stack.getHeight(), depth);
+
+		// Virtual stacks read their slices from disk on demand, so read them
+		// sequentially instead of by z-profile (8-bit only and with a threshold over
+		// the whole z-profile, other virtual stacks are read by z-profile)
+		if(isStreaming())
+		{
+			StreamingPeakFinder finder = new StreamingPeakFinder(peak_fraction, minD, doFiltering,
+					minW, maxW, minH);
+			finder.setShowProgress(showProgress);
+			finder.setSpans(analyzed_spans);
+			finder.setStatistics(statistics);
+			finder.findPeaks(stack, new StreamingPeakFinder.PeakListener() {
+				public void peakFound(int x, int y, int z) {
+					builder.addPeak(x, y, z);
+				}
+			});
+		} else
+		{
+			// One set of buffers for the peak detection per thread, reused for all the pixels
+			final ThreadLocal<PeakDetectionWorkspace> workspaces = getWorkspaces();
+
+			processSpans(analyzed_spans, n_threads, new ParallelTools.SpanProcessor() {
+
+				public void processSpan(int y, int x_start, int x_end) {
+
+					PeakDetectionWorkspace ws = prepareWorkspace(workspaces.get());
+
+					for(int x=x_start; x<x_end; x++)
+					{
+						int n_peaks = findPeaks(x,y,ws);
+						builder.setPeaks(x, y, ws.getPeaks(), n_peaks);
+						ws.endStage(PeakDetectionStatistics.STAGE_OUTPUT);
+					}
+
+					if(ws.getCounters()!=null)
+					{
+						ws.getCounters().pixels+=x_end-x_start;
+					}
+
+				}
+			}, showProgress);
+		}
+
+		long start = System.nanoTime();
+
+		PeakEventTable table = builder.build();
+
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_OUTPUT, start);
+		}
+
+		return table;
+	}
+
+	/**
+	 * Number of threads for reading z-profiles concurrently
+	 * @param n_threads Requested number of threads (0 for all available processors)
+	 * @return n_threads, or 1 if the profiles are read from a virtual stack, which decodes slices on access
+	 * and is not safe for concurrent reading
+	 */
+	public int getNumberOfThreads(int n_threads)
+	{
+		if(profiles==null && stack.isVirtual())
+		{
+			return 1;
+		}
+		return n_threads;
+	}
+
+	/**
+	 * Get the pixel values along the z-profile at x,y, as integers
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param vals Array of length at least the stack size, receives the pixel values along the z-profile
+	 */
+	public void getProfile(int x, int y, int[] vals)
+	{
+		if(profiles!=null && profiles.contains(x, y))
+		{
+			profiles.getProfile(x, y, vals);
+			return;
+		}
+
+		for(int z=1; z<=stack.getSize(); z++)
+		{
+			ImageProcessor p=stack.getProcessor(z);
+
+			vals[z-1]=(int)p.getPixelValue(x, y);
+		}
+	}
+
+	/**
+	 * Get the pixel values along the z-profile at x,y, keeping the fractional part of 32-bit values
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param vals Array of length at least the stack size, receives the pixel values along the z-profile
+	 */
+	public void getProfile(int x, int y, double[] vals)
+	{
+		if(profiles!=null && profiles.contains(x, y))
+		{
+			profiles.getProfile(x, y, vals);
+			return;
+		}
+
+		for(int z=1; z<=stack.getSize(); z++)
+		{
+			ImageProcessor p=stack.getProcessor(z);
+
+			vals[z-1]=p.getPixelValue(x, y);
+		}
+	}
+
+}
@@ -0,0 +1,584 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package FindPeaks.accessory.classes;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImageStack;
+import tbgitoo.tools.ParabolaFitter;
+import tbgitoo.tools.PixelSpans;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * Peak detection for all the pixels of an 8-bit stack, reading the slices sequentially rather than
+ * z-profile by z-profile. This is intended for virtual stacks, where reading a z-profile means reading
+ * and decoding every slice from disk.
+ *
+ * The stack is read twice, slice by slice: a first pass accumulates the histogram of each pixel to
+ * get the per-pixel threshold (quantile 1-peak_fraction, as in FindPeaksTools.findPeaksInProfile).
+ * The second pass follows, for each pixel, the clusters of peak candidates (values above the threshold).
+ * Candidates further apart than minD do not interact in the primary peak search, so a cluster is
+ * complete as soon as no new candidate has appeared for minD slices. The complete clusters are analyzed
+ * at the end of each block of the parabola fits (ParabolaFitter.BLOCK slices), with the values of a bounded
+ * ring buffer of recent slices: the segment analyzed is made of whole blocks, so that the fits give the same
+ * results, to the last bit, as on the whole z-profile. The memory needed is therefore independent of the number
+ * of slices. When the detection is restricted to some pixels (setSpans), the histograms and clusters are kept
+ * for these pixels only.
+ *
+ * The peaks found are identical to FindPeaksTools.findPeaksInProfile. Clusters longer than max_cluster_length
+ * (typically pixels that are above threshold most of the time) do not fit into the ring: their values are
+ * copied to a buffer of their own pixel, which grows until the cluster is complete. Only these pixels need
+ * memory in proportion to the length of their clusters.
+ * @author thomasbraschler
+ *
+ */
+public class StreamingPeakFinder {
+
+	/** Default maximal length of a cluster of peak candidates, in slices */
+	public static final int DEFAULT_MAX_CLUSTER_LENGTH=256;
+
+	/**
+	 * Receives the peaks as they are found
+	 */
+	public interface PeakListener
+	{
+		/**
+		 * Called once for every peak found
+		 * @param x x-position of the pixel
+		 * @param y y-position of the pixel
+		 * @param z Position of the peak in the z-profile (0-based)
+		 */
+		public void peakFound(int x, int y, int z);
+	}
+
+	/** Expected fraction of values above the threshold */
+	protected double peak_fraction;
+	/** Minimal distance between peaks */
+	protected double minD;
+	/** Filtering for width and height? */
+	protected boolean doFiltering;
+	/** Minimal width (if filtering) */
+	protected double minW;
+	/** Maximal width (if filtering) */
+	protected double maxW;
+	/** Minimal height above threshold (if filtering) */
+	protected double minH;
+	/** Maximal length of a cluster of candidates held in the ring buffer, longer clusters are buffered per pixel */
+	protected int max_cluster_length=DEFAULT_MAX_CLUSTER_LENGTH;
+
+	/** Pixels to be analyzed, null for all the pixels */
+	protected PixelSpans spans;
+
+	/** Show progress in the ImageJ progress bar */
+	protected boolean showProgress=false;
+
+	/** Timing of the passes and counts, null for no timing */
+	protected PeakDetectionStatistics statistics;
+
+	/**
+	 * Set up the peak finder, with the parameters of FindPeaksTools.findPeaksInProfile
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Should we do filtering for width and height or just accept the peaks found in the primary search?
+	 * @param minW Minimal width (if filtering)
+	 * @param maxW Maximal width (if filtering)
+	 * @param minH Minimal height above threshold (if filtering)
+	 */
+	public StreamingPeakFinder(double peak_fraction, double minD, boolean doFiltering,
+			double minW, double maxW, double minH)
+	{
+		this.peak_fraction=peak_fraction;
+		this.minD=minD;
+		this.doFiltering=doFiltering;
+		this.minW=minW;
+		this.maxW=maxW;
+		this.minH=minH;
+	}
+
+	/**
+	 * Set the maximal length of a cluster of peak candidates held in the ring buffer. The number of slices
+	 * kept in memory grows with this length; the values of longer clusters are buffered for their pixel only
+	 * @param max_cluster_length Maximal cluster length, in slices
+	 */
+	public void setMaxClusterLength(int max_cluster_length)
+	{
+		this.max_cluster_length=Math.max(1, max_cluster_length);
+	}
+
+	/**
+	 * Restrict the peak detection to some pixels, typically those of a mask or a selection
+	 * @param spans The pixels to be analyzed, null for all the pixels
+	 */
+	public void setSpans(PixelSpans spans)
+	{
+		this.spans=spans;
+	}
+
+	/**
+	 * The pixels analyzed
+	 * @param stack The stack to be analyzed
+	 * @return The spans set with setSpans, or all the pixels of the stack
+	 */
+	protected PixelSpans getSpans(ImageStack stack)
+	{
+		if(spans==null)
+		{
+			return PixelSpans.all(stack.getWidth(), stack.getHeight());
+		}
+		return spans;
+	}
+
+	/**
+	 * Time the two passes and count the pixels, candidates and peaks. The reading of the slices is part of the
+	 * passes, so that the threshold stage includes the first reading of the stack and the candidates stage the second
+	 * @param statistics Receives the counts, null for no timing
+	 */
+	public void setStatistics(PeakDetectionStatistics statistics)
+	{
+		this.statistics=statistics;
+	}
+
+	/**
+	 * @param showProgress Show progress in the ImageJ progress bar?
+	 */
+	public void setShowProgress(boolean showProgress)
+	{
+		this.showProgress=showProgress;
+	}
+
+	/**
+	 * Find the peaks in all the z-profiles of a stack
+	 * @param stack 8-bit stack to be analyzed, typically a virtual stack
+	 * @param listener Receives the peaks as they are found
+	 */
+	public void findPeaks(ImageStack stack, PeakListener listener)
+	{
+		long start = System.nanoTime();
+
+		double[] thresholds = getThresholds(stack);
+
+		if(statistics!=null)
+		{
+			// The reading of the slices is counted with the pass it serves
+			start = statistics.addTime(PeakDetectionStatistics.STAGE_THRESHOLD, start);
+		}
+
+		streamPeaks(stack, thresholds, listener);
+
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_CANDIDATES, start);
+			statistics.getCounters().pixels+=getSpans(stack).getNumberOfPixels();
+		}
+	}
+
+	/**
+	 * First pass: per-pixel thresholds, from the histogram of each z-profile. The stack is read
+	 * once, slice by slice
+	 * @param stack 8-bit stack to be analyzed
+	 * @return Threshold for each pixel, indexed y*width+x (0 for the pixels not analyzed)
+	 */
+	public double[] getThresholds(ImageStack stack)
+	{
+		int width=stack.getWidth();
+		int height=stack.getHeight();
+		int depth=stack.getSize();
+		int n_levels=PeakDetectionWorkspace.N_LEVELS;
+
+		PixelSpans active=getSpans(stack);
+
+		// Absolute histograms of the active pixels, row by row. Counts fit into 16 bits unless the stack is very long
+		char[][] counts_short = null;
+		int[][] counts_long = null;
+
+		if(depth<=Character.MAX_VALUE)
+		{
+			counts_short = new char[height][];
+		} else
+		{
+			counts_long = new int[height][];
+		}
+
+		for(int y=0; y<height; y++)
+		{
+			int n_active = active.getPixelOffset(active.getFirstSpan(y+1))-active.getPixelOffset(active.getFirstSpan(y));
+
+			if(counts_short!=null)
+			{
+				counts_short[y] = new char[n_active*n_levels];
+			} else
+			{
+				counts_long[y] = new int[n_active*n_levels];
+			}
+		}
+
+		for(int z=0; z<depth; z++)
+		{
+			byte[] pixels = (byte[])stack.getPixels(z+1);
+
+			for(int y=0; y<height; y++)
+			{
+				int offset = y*width;
+
+				// Position of the histogram of the pixel within the row
+				int h = 0;
+
+				for(int span=active.getFirstSpan(y); span<active.getFirstSpan(y+1); span++)
+				{
+					int x_end = active.getEnd(span);
+
+					if(counts_short!=null)
+					{
+						char[] row = counts_short[y];
+						for(int x=active.getStart(span); x<x_end; x++)
+						{
+							row[h+(pixels[offset+x]&0xff)]++;
+							h+=n_levels;
+						}
+					} else
+					{
+						int[] row = counts_long[y];
+						for(int x=active.getStart(span); x<x_end; x++)
+						{
+							row[h+(pixels[offset+x]&0xff)]++;
+							h+=n_levels;
+						}
+					}
+				}
+			}
+
+			if(showProgress)
+			{
+				IJ.showProgress(0.5*((double)z)/((double)depth));
+			}
+		}
+
+		double[] thresholds = new double[width*height];
+
+		long[] counts = new long[n_levels];
+		double[] hist = new double[n_levels];
+		double[] cumsum = new double[n_levels+1];
+
+		for(int y=0; y<height; y++)
+		{
+			int h = 0;
+
+			for(int span=active.getFirstSpan(y); span<active.getFirstSpan(y+1); span++)
+			{
+				for(int x=active.getStart(span); x<active.getEnd(span); x++)
+				{
+					for(int level=0; level<n_levels; level++)
+					{
+						if(counts_short!=null)
+						{
+							counts[level]=counts_short[y][h+level];
+						} else
+						{
+							counts[level]=counts_long[y][h+level];
+						}
+					}
+
+					h+=n_levels;
+
+					StatisticsTools.normalizeHistogram(counts, hist);
+
+					thresholds[y*width+x]=StatisticsTools.getQuantile(hist, 1-peak_fraction, cumsum);
+				}
+			}
+		}
+
+		return thresholds;
+	}
+
+	/**
+	 * Second pass: follow the clusters of peak candidates slice by slice and report the peaks once
+	 * the clusters are complete
+	 * @param stack 8-bit stack to be analyzed
+	 * @param thresholds Threshold for each pixel, indexed y*width+x
+	 * @param listener Receives the peaks as they are found
+	 */
+	public void streamPeaks(ImageStack stack, double[] thresholds, PeakListener listener)
+	{
+		int width=stack.getWidth();
+		int[] active=getSpans(stack).getPixelIndexes();
+		int n_pixels=active.length;
+		int depth=stack.getSize();
+		int block=ParabolaFitter.BLOCK;
+
+		// Environment of the peaks used by filterPeaks, on either side
+		int half_window = (int)Math.ceil(minD/2);
+		if(half_window<0)
+		{
+			half_window=0;
+		}
+
+		// Number of candidate-free slices after which a cluster is complete: at least minD so
+		// that no later candidate can interact with it, and more than half_window so that the
+		// values needed for filtering are all available
+		int gap = Math.max((int)Math.ceil(minD), half_window+1);
+
+		// Ring buffer of the recent slices, long enough for a cluster of max_cluster_length slices, its
+		// environment, and the rest of the blocks of the parabola fits around them
+		int ring_size = max_cluster_length+gap+half_window+2*block;
+		byte[][] ring = new byte[ring_size][];
+
+		// Per active pixel state (-1 when not applicable): first candidate not analyzed yet, last candidate,
+		// last candidate of the complete clusters waiting for the end of the block, and first candidate of
+		// the cluster still open
+		int[] first = new int[n_pixels];
+		int[] last = new int[n_pixels];
+		int[] closed_last = new int[n_pixels];
+		int[] open_start = new int[n_pixels];
+
+		Arrays.fill(first, -1);
+		Arrays.fill(last, -1);
+		Arrays.fill(closed_last, -1);
+		Arrays.fill(open_start, -1);
+
+		// Values of the pixels with a cluster too long for the ring, from the start of the block of
+		// its environment (null for the pixels whose clusters are in the ring)
+		byte[][] history = new byte[n_pixels][];
+		int[] history_start = new int[n_pixels];
+
+		double[] segment = new double[ring_size];
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(ring_size);
+
+		if(statistics!=null)
+		{
+			ws.setCounters(statistics.getCounters());
+		}
+
+		for(int z=0; z<depth; z++)
+		{
+			byte[] pixels = (byte[])stack.getPixels(z+1);
+			ring[z%ring_size]=pixels;
+
+			for(int a=0; a<n_pixels; a++)
+			{
+				int i = active[a];
+
+				if(open_start[a]>=0)
+				{
+					if(z-last[a]>=gap)
+					{
+						// No later candidate can interact with the open cluster anymore
+						closed_last[a]=last[a];
+						open_start[a]=-1;
+					} else if(history[a]==null && z-open_start[a]>=max_cluster_length)
+					{
+						// Overlong cluster, the ring will not hold it much longer: continue with the
+						// values of this pixel only
+						int from = getBlockStart(first[a]-half_window);
+						byte[] values = new byte[2*(z-from+1)];
+
+						for(int slice=from; slice<z; slice++)
+						{
+							values[slice-from]=ring[slice%ring_size][i];
+						}
+
+						history[a]=values;
+						history_start[a]=from;
+					}
+				}
+
+				if(history[a]!=null)
+				{
+					int pos = z-history_start[a];
+
+					if(pos>=history[a].length)
+					{
+						history[a]=Arrays.copyOf(history[a], 2*history[a].length);
+					}
+					history[a][pos]=pixels[i];
+				}
+
+				if(((double)(pixels[i]&0xff))-thresholds[i]>=0)
+				{
+					if(first[a]<0)
+					{
+						first[a]=z;
+					}
+					if(open_start[a]<0)
+					{
+						open_start[a]=z;
+					}
+					last[a]=z;
+				}
+			}
+
+			// At the end of a block, analyze the complete clusters. Their segments are made of whole blocks,
+			// so that the parabola fits see the same blocks as for the whole z-profile
+			if(z%block==block-1 && z<depth-1)
+			{
+				for(int a=0; a<n_pixels; a++)
+				{
+					if(closed_last[a]<0)
+					{
+						continue;
+					}
+
+					int i = active[a];
+
+					segment = analyzeCluster(i, width, first[a], closed_last[a], getBlockStart(first[a]-half_window), z,
+							thresholds[i], ring, history[a], history_start[a], segment, ws, listener);
+
+					closed_last[a]=-1;
+
+					if(open_start[a]>=0)
+					{
+						first[a]=open_start[a];
+
+						if(history[a]!=null)
+						{
+							// Keep only the values of the open cluster
+							int from = getBlockStart(first[a]-half_window);
+							history[a]=Arrays.copyOfRange(history[a], from-history_start[a], history[a].length);
+							history_start[a]=from;
+						}
+					} else
+					{
+						first[a]=-1;
+						last[a]=-1;
+						history[a]=null;
+					}
+				}
+			}
+
+			if(showProgress)
+			{
+				IJ.showProgress(0.5+0.5*((double)z)/((double)depth));
+			}
+		}
+
+		// End of the stack, analyze the clusters still waiting
+		for(int a=0; a<n_pixels; a++)
+		{
+			if(first[a]>=0)
+			{
+				int i = active[a];
+
+				segment = analyzeCluster(i, width, first[a], last[a], getBlockStart(first[a]-half_window), depth-1,
+						thresholds[i], ring, history[a], history_start[a], segment, ws, listener);
+			}
+		}
+
+		if(showProgress)
+		{
+			IJ.showProgress(1.0);
+		}
+	}
+
+	/**
+	 * Start of the block of the parabola fits (ParabolaFitter.BLOCK) containing a slice
+	 * @param z Slice index (0-based), negative values count as 0
+	 * @return First slice of the block
+	 */
+	protected static int getBlockStart(int z)
+	{
+		return Math.max(z, 0)/ParabolaFitter.BLOCK*ParabolaFitter.BLOCK;
+	}
+
+	/**
+	 * Peak search in complete clusters of candidates of a pixel. The candidates from start to last are
+	 * eligible as peaks; they must not interact with candidates outside this range
+	 * @param i Pixel index, y*width+x
+	 * @param width Stack width
+	 * @param start First candidate (slice index, 0-based)
+	 * @param last Last candidate
+	 * @param from First slice of the segment analyzed, at the start of a block
+	 * @param to Last slice of the segment analyzed, at the end of a block or of the stack, and at least last+half_window
+	 * @param threshold Threshold of the pixel
+	 * @param ring Ring buffer of recent slices
+	 * @param history Values of the pixel from slice history_start on, or null to read the values from the ring
+	 * @param history_start Slice of the first value in history
+	 * @param segment Work array for the values of the segment
+	 * @param ws Workspace for the peak search, enlarged if needed
+	 * @param listener Receives the peaks found
+	 * @return The work array, reallocated if it was too short
+	 */
+	protected double[] analyzeCluster(int i, int width, int start, int last, int from, int to, double threshold,
+			byte[][] ring, byte[] history, int history_start, double[] segment,
+			PeakDetectionWorkspace ws, PeakListener listener)
+	{
+		int n = to-from+1;
+
+		if(n>segment.length)
+		{
+			segment = new double[2*n];
+			ws.ensureCapacity(segment.length);
+		}
+
+		if(history!=null)
+		{
+			for(int ind=0; ind<n; ind++)
+			{
+				segment[ind]=((double)(history[from-history_start+ind]&0xff))-threshold;
+			}
+		} else
+		{
+			int ring_size = ring.length;
+
+			for(int ind=0; ind<n; ind++)
+			{
+				segment[ind]=((double)(ring[(from+ind)%ring_size][i]&0xff))-threshold;
+			}
+		}
+
+		// Only the candidates of these clusters are eligible, the rest of the segment is for filtering only
+		int n_peaks = FindPeaksTools.identifyPeaksAtMinimalDistance(segment, start-from,
+				last-from+1, 0, minD, ws);
+
+		PeakDetectionStatistics.Counters counters = ws.counters;
+
+		if(counters!=null)
+		{
+			counters.candidates+=ws.n_candidates;
+		}
+
+		if(doFiltering)
+		{
+			if(counters!=null)
+			{
+				counters.fits+=n_peaks;
+			}
+
+			n_peaks = FindPeaksTools.filterPeaks(ws.peaks, n_peaks, segment, n, minD, minW, maxW, minH, 0,
+					ws.params, ws.peaks, ws.fitter);
+		}
+
+		if(counters!=null)
+		{
+			counters.peaks+=n_peaks;
+		}
+
+		int x = i%width;
+		int y = i/width;
+
+		// The peaks come in the order of their visit; the listener receives the peaks of a pixel in increasing order
+		Arrays.sort(ws.peaks, 0, n_peaks);
+
+		for(int ind=0; ind<n_peaks; ind++)
+		{
+			listener.peakFound(x, y, ws.peaks[ind]+from);
+		}
+
+		return segment;
+	}
+
+}
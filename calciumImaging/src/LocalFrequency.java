@@ -17,15 +17,19 @@
 
 import java.awt.AWTEvent;
 
+import FindPeaks.accessory.classes.LocalFrequencyTools;
+import FindPeaks.accessory.classes.PeakDetectionStatistics;
+import FindPeaks.accessory.classes.PeakEventTable;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
-import ij.plugin.ZProjector;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import tbgitoo.tools.ImageTools;
+import tbgitoo.tools.PixelSpans;
 
 public class LocalFrequency implements PlugInFilter,DialogListener  {
 	
@@ -45,8 +49,17 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 	
 	public static double frame_rate=24;
 
+	/** Should we evaluate only the pixels that are positive in a mask (or inside the selection)? */
+	public static boolean do_masking=false;
+
+	/** The title of the mask used in the last run (to remember the user choice) */
+	public static String lastMaskTitle=null;
+
+	/** Mask image, positive values mean evaluate; null to use the selection of the image */
+	public ImagePlus mask=null;
+
 	/**
-	 * Read the video frame rate from user input
+	 * Read the video frame rate and masking preferences from user input
 	 */
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
 		// Intermediate variable to accept numbers before filtering
@@ -70,6 +83,14 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 		
 		frame_rate=n;
 		
+		do_masking=gd.getNextBoolean();
+		
+		// null for the selection of the analyzed image
+		mask=ImageTools.getMaskChoice(gd.getNextChoiceIndex());
+		
+		lastMaskTitle=(mask==null) ? ImageTools.SELECTION_CHOICE : mask.getTitle();
+
+		FindPeaks.report_timing=gd.getNextBoolean();
 
 		// Get the first number from the dialog
 		
@@ -90,17 +111,20 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 		// Store an internal reference to the assigned image
 		this.imp = imp;
 
-		// For now, restricted to 8bit greyscale images
-		return DOES_8G+NO_CHANGES;
+		// 8-bit, 16-bit and 32-bit greyscale images
+		return DOES_8G+DOES_16+DOES_32+NO_CHANGES;
 	}
 	
 	
 	/** 
 	 *  For this class, displays the dialog to get the frame rate.
-	 *  Then pefroms stack projection with division by 255 to get the number of beats, 
-	 *  which is then extrapolated to beats per minute.
+	 *  Then counts the peaks in each z-profile (from the peak table attached by FindPeaks, or else from 
+	 *  the non-zero pixels) to get the number of beats, which is then extrapolated to beats per minute.
+	 *  Unlike the peak detection, this needs no z-profiles: the non-zero pixels are collected in a single pass
+	 *  over the slices (PeakEventTable.fromStack), so there is no transposed copy of the stack (ZProfileCache).
 	 *  Output: Creates a plain image with the xy dimensions of the stack, showing the 
 	 *  local beating calcium wave frequency (32 bit)
+	 *  The run is timed as the peak detection is (see FindPeaks.reportStatistics): reading the peaks, frequency, output.
 	 */
 	
 	public void run(ImageProcessor theIp) {
@@ -134,35 +158,45 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 
 		
 		
-		ZProjector zp = new ZProjector();
-		
-		zp.setImage(imp);
-		zp.setMethod(ZProjector.SUM_METHOD);
-		zp.setStartSlice(1);
-		zp.setStopSlice(imp.getStackSize());
-		zp.doProjection();
-		
-		ImagePlus output = zp.getProjection();
-		
-		FloatProcessor flp = (FloatProcessor) output.getProcessor();
+		PeakDetectionStatistics statistics = FindPeaks.getStatistics(imp);
+
+		if(statistics!=null)
+		{
+			statistics.start();
+		}
+
+		long start = System.nanoTime();
+
+		// The peaks of each pixel, as attached by FindPeaks, or from the non-zero pixels of the stack
+		PeakEventTable table = PeakEventTable.get(imp);
+
+		// With masking, only the pixels inside the mask (or selection) are evaluated, the others are NaN
+		PixelSpans spans = do_masking ? PixelSpans.fromMaskOrSelection(imp, mask) : null;
+
+		if(statistics!=null)
+		{
+			start = statistics.addTime(PeakDetectionStatistics.STAGE_PROFILE, start);
+		}
+
+		FloatProcessor flp = LocalFrequencyTools.getFrequencyImage(table, frame_rate, spans);
+
+		if(statistics!=null)
+		{
+			start = statistics.addTime(PeakDetectionStatistics.STAGE_FREQUENCY_PHASE, start);
+		}
+
+		ImagePlus output = new ImagePlus("", flp);
+
 		// We need the maximum frequency for setting a reasonable display range
 		double maxFrequency=0;
-		
-		for(int x=0; x<flp.getWidth(); x++)
+
+		float[] frequencies = (float[])flp.getPixels();
+
+		for(int ind=0; ind<frequencies.length; ind++)
 		{
-			for(int y=0; y<flp.getHeight(); y++)
+			if(frequencies[ind] > maxFrequency)
 			{
-				// We suppose here that the peak image was a 255 vs. 0 image, so that the sum is 255*n
-				// Then, calculate beat rate from the relative proportion of active pixels, 
-				// and the known framerate
-				// Finally, convert to beats per minute
-				double newVal = (double)flp.getPixelValue(x, y)/((double)imp.getStackSize())*frame_rate/255.0*60.0;
-				
-				flp.putPixelValue(x, y, newVal);
-				if(newVal > maxFrequency)
-				{
-					maxFrequency=newVal;
-				}
+				maxFrequency=frequencies[ind];
 			}
 		}
 		
@@ -172,8 +206,15 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 		output.setDisplayRange(0, maxFrequency);
 		
 		output.show();
-		
-		
+
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_OUTPUT, start);
+			statistics.getCounters().pixels+=(spans==null) ? (long)imp.getWidth()*imp.getHeight() : spans.getNumberOfPixels();
+			statistics.getCounters().peaks+=table.getNumberOfPeaks();
+			statistics.stop();
+			FindPeaks.reportStatistics(statistics, imp, "LocalFrequency");
+		}
 		
 
 
@@ -182,7 +223,7 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 
 
 	/** 
-	 *  Displays the dialog with the input field for the frame rate
+	 *  Displays the dialog with the input field for the frame rate, and masking options
 	 *  @return true upon success, false otherwise (including user cancel)
 	 */
 	
@@ -201,6 +242,13 @@ public class LocalFrequency implements PlugInFilter,DialogListener  {
 
 		gd.addNumericField("Framerate [per second]", frame_rate, 1);
 
+		gd.addCheckbox("Use mask (>0 means evaluate)", do_masking);
+
+		// The selection of the analyzed image, or any open image
+		gd.addChoice("Mask", ImageTools.getMaskChoices(), lastMaskTitle);
+
+		gd.addCheckbox("Timing report (time per stage, throughput, memory)", FindPeaks.report_timing);
+
 		
 		
 
@@ -17,20 +17,32 @@
 
 import java.awt.AWTEvent;
 import java.awt.Button;
+import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.awt.TextField;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import FindPeaks.accessory.classes.ActivityIndex;
 import FindPeaks.accessory.classes.LocalPhaseTools;
+import FindPeaks.accessory.classes.PeakDetectionStatistics;
+import FindPeaks.accessory.classes.PeakEventTable;
+import FindPeaks.accessory.classes.ReferencePhaseTable;
+import FindPeaks.accessory.classes.ReferenceSelection;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.WindowManager;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import tbgitoo.tools.ImageTools;
+import tbgitoo.tools.ParallelTools;
+import tbgitoo.tools.PixelSpans;
 
 /** 
  * ImageJ plugin to calculate the local phase from a temporal peak image 
@@ -38,7 +50,7 @@ import ij.process.ImageProcessor;
 public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 
 	/** 
-	 * Mask for enhancing calculation speed or defining region of interest	
+	 * Mask for enhancing calculation speed or defining region of interest; null to use the selection of the image
 	 */
 	public ImagePlus mask=null;
 	
@@ -48,7 +60,7 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	public static String lastMaskTitle=null;
 	
 	/**
-	 * Should we use a mask to speed up calculation by analyzing only the non-zero points in the mask?
+	 * Should we use a mask (or the selection) to speed up calculation by analyzing only the non-zero points in the mask?
 	 */
 	protected static boolean do_masking=false;
 	
@@ -85,6 +97,42 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	 * y-coordinate of the reference section
 	 */
 	public static int reference_y=0;
+
+	/**
+	 * Choose the reference section automatically (see ReferenceSelection), instead of reference_x, reference_y, 
+	 * which are then set to the chosen position
+	 */
+	public static boolean auto_reference=false;
+
+	/**
+	 * Use the points of the selection as reference sections, with one phase map each, instead of reference_x, reference_y
+	 */
+	public static boolean multiple_references=false;
+
+	/**
+	 * Add the correlation strength relative to the reference and the number of peaks to the output, as further slices
+	 */
+	public static boolean correlation_outputs=false;
+
+	/**
+	 * Show the phase map while the options are changed in the dialog
+	 */
+	protected boolean preview=false;
+
+	/**
+	 * Window of the preview, null if not shown
+	 */
+	protected ImagePlus preview_image=null;
+
+	/**
+	 * Thread calculating the previews, null when none is running
+	 */
+	protected Thread preview_thread=null;
+
+	/**
+	 * A preview was requested since the current one was started
+	 */
+	protected boolean preview_requested=false;
 	
 	/**
 	 * Read the position (xy) of the reference section and masking preferences from 
@@ -137,14 +185,37 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 			y=imp.getHeight()-1;
 		}
 		reference_y=y;
+
+		auto_reference=gd.getNextBoolean();
+
+		multiple_references=gd.getNextBoolean();
 		
+		correlation_outputs=gd.getNextBoolean();
+
 		do_masking=gd.getNextBoolean();
 		
 		int mask_ind = gd.getNextChoiceIndex();
 		
-		mask=WindowManager.getImage(WindowManager.getIDList()[mask_ind]);
+		// null for the selection of the analyzed image
+		mask=ImageTools.getMaskChoice(mask_ind);
 		
-		lastMaskTitle=mask.getTitle();
+		lastMaskTitle=(mask==null) ? ImageTools.SELECTION_CHOICE : mask.getTitle();
+
+		preview=gd.getNextBoolean();
+
+		FindPeaks.report_timing=gd.getNextBoolean();
+
+		// Only when the user changes the dialog, not when it is filled by a macro
+		if(e!=null)
+		{
+			if(preview)
+			{
+				requestPreview();
+			} else
+			{
+				closePreview();
+			}
+		}
 
 		return true;
 
@@ -171,14 +242,16 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 		
 		
 
-		// For now, restricted to 8bit greyscale images
-		return DOES_8G+NO_CHANGES;
+		// 8-bit, 16-bit and 32-bit greyscale images, peaks are the non-zero pixels
+		return DOES_8G+DOES_16+DOES_32+NO_CHANGES;
 	}
 
 	/**
 	 * Run the plugin: Start the dialog and recover user preferences; 
 	 * Check whether the reference section contains at least two peaks (identifie by non-zero values)
 	 * Calculate and show the phase image
+	 * The run is timed as the peak detection is (see FindPeaks.reportStatistics): reading the peaks, reference
+	 * selection and phase, output.
 	 */
 	public void run(ImageProcessor theIp) {
 		// TODO Auto-generated method stub
@@ -194,32 +267,75 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 
 
 		// Show the dialog for choosing the options
-		if(!doDialog())
+		boolean ok = doDialog();
+
+		// The result is calculated again, in a new window
+		preview=false;
+		waitForPreview();
+		closePreview();
+
+		if(!ok)
 		{
 			return;
 		}
 
-		if(!checkSection(reference_x, reference_y))
+		PeakDetectionStatistics statistics = FindPeaks.getStatistics(imp);
+
+		if(statistics!=null)
+		{
+			statistics.start();
+		}
+
+		long start = System.nanoTime();
+
+		// The peaks of each pixel, as attached by FindPeaks, or from the non-zero pixels of the stack
+		PeakEventTable table = PeakEventTable.get(imp);
+
+		if(statistics!=null)
+		{
+			start = statistics.addTime(PeakDetectionStatistics.STAGE_PROFILE, start);
+		}
+
+		int[][] references = getReferences();
+
+		if(references==null)
 		{
-			IJ.error("At reference point, at least 2 peaks need to be detected\n "
-					+ "throughout the measurement time" );
 			return;
 		}
-		
-		
-		
 
+		for(int k=0; k<references[0].length; k++)
+		{
+			if(!checkSection(references[0][k], references[1][k]))
+			{
+				IJ.error("At reference point"+(references[0].length>1 ? " "+references[0][k]+","+references[1][k] : "")
+						+", at least 2 peaks need to be detected\n "
+						+ "throughout the measurement time" );
+				return;
+			}
+		}
 
-		
-		ImageStack theStack = null;
-		
-		if(do_masking)
+		// The mask image, or the selection of the analyzed image, compiled into the pixels to evaluate
+		PixelSpans spans = do_masking ? PixelSpans.fromMaskOrSelection(imp, mask) : null;
+
+		// The reference message is shown once the calculation is done, so that the timing leaves out the user
+		ImageStack theStack = computePhaseImage(imp, references[0], references[1], spans, FindPeaks.n_threads, 
+				correlation_outputs, true);
+
+		// Cancelled with the escape key
+		if(theStack==null)
 		{
-			
-			theStack = getPhaseImage(imp, reference_x, reference_y, mask,true);
-		} else
+			return;
+		}
+
+		if(statistics!=null)
 		{
-			theStack = getPhaseImage(imp, reference_x, reference_y, true);
+			start = statistics.addTime(PeakDetectionStatistics.STAGE_FREQUENCY_PHASE, start);
+		}
+
+		// Keep track of the automatically chosen reference
+		if(auto_reference && !multiple_references && theStack.getSliceLabel(1)==null)
+		{
+			theStack.setSliceLabel("Reference "+reference_x+","+reference_y, 1);
 		}
 		
 		
@@ -227,12 +343,20 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 		ImagePlus output=new ImagePlus("Result Local Phase");
 		
 		output.setStack("Result local Phase - "+imp.getTitle(),theStack);
-		
-		
+
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_OUTPUT, start);
+			statistics.getCounters().pixels+=(spans==null) ? (long)imp.getWidth()*imp.getHeight() : spans.getNumberOfPixels();
+			statistics.getCounters().peaks+=table.getNumberOfPeaks();
+			statistics.stop();
+			FindPeaks.reportStatistics(statistics, imp, "LocalPhase");
+		}
+
+		IJ.showMessage(getReferenceMessage(table, references[0], references[1]));
 		
 		output.show();
 		
-		
 		//IJ.showMessage("Phase angle="+(getPhaseAtxy( x, y, idx_ref)/Math.PI*180.0));
 
 
@@ -264,7 +388,7 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	
 	public static ImageStack getPhaseImage(ImagePlus inputImage, int ref_x, int ref_y, boolean showOutput)
 	{
-		return getPhaseImage(inputImage, ref_x, ref_y, null, showOutput);
+		return getPhaseImage(inputImage, ref_x, ref_y, (PixelSpans)null, showOutput);
 		
 	}
 	
@@ -278,13 +402,14 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	
 	public static ImageStack getPhaseImage(ImagePlus inputImage, int ref_x, int ref_y)
 	{
-		return getPhaseImage(inputImage, ref_x, ref_y, null, false);
+		return getPhaseImage(inputImage, ref_x, ref_y, (PixelSpans)null, false);
 		
 	}
 	
 	/** Calculate phase image
 	 * 
 	 * @param inputImage The image indicating peak locations (pixel value larger than 0) in the z-profiles. 
+	 * If the image carries the peak table of FindPeaks, the peaks are taken directly from the table
 	 * @param ref_x X-coordinate of the reference section
 	 * @param ref_y Y-coordinate of the reference section
 	 * @param theMask Mask image to limit analysis, provide null to not use this option
@@ -295,48 +420,358 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	public static ImageStack getPhaseImage(ImagePlus inputImage, int ref_x, 
 			int ref_y, ImagePlus theMask, boolean showOutput)
 	{
-		// Get the non-zero indices at the reference section
-		int [] idx_ref = non_zero_indices(inputImage, ref_x, ref_y);
+		// The mask is compiled once into the spans of pixels to evaluate, rather than checked pixel by pixel
+		PixelSpans spans = null;
 
+		if(theMask!=null)
+		{
+			spans = PixelSpans.fromMask(theMask, inputImage.getWidth(), inputImage.getHeight());
+		}
+
+		return getPhaseImage(inputImage, ref_x, ref_y, spans, showOutput);
+	}
+	
+	/** Calculate phase image, for some pixels only
+	 * 
+	 * @param inputImage The image indicating peak locations (pixel value larger than 0) in the z-profiles. 
+	 * If the image carries the peak table of FindPeaks, the peaks are taken directly from the table
+	 * @param ref_x X-coordinate of the reference section
+	 * @param ref_y Y-coordinate of the reference section
+	 * @param spans The pixels to evaluate, typically from a mask or a selection; provide null to evaluate all the pixels
+	 * @param showOutput Be verbose about output (ImageJ message boxes)
+	 * @return New ImageStack, with a single slice, shows the local phase (or NaN if none could be evaluated,
+	 * or the pixel is not evaluated)
+	 */
+	
+	public static ImageStack getPhaseImage(ImagePlus inputImage, int ref_x, 
+			int ref_y, PixelSpans spans, boolean showOutput)
+	{
+		return getPhaseImage(inputImage, ref_x, ref_y, spans, FindPeaks.n_threads, showOutput);
+	}
+	
+	/** Calculate phase image, for some pixels only, in parallel.
+	 * The pixels are processed span by span, distributed over n_threads threads; each span reads the peaks
+	 * directly from the peak table and writes the phases directly to the output pixels, so that nothing is
+	 * allocated per pixel. The reference peaks are compiled once into a table over the frames
+	 * (see ReferencePhaseTable), so that the phase of a pixel is a sum of table entries over its peaks.
+	 * The phase of each pixel is the same as with getPhaseAtxy, and does not depend on the number of threads.
+	 * 
+	 * @param inputImage The image indicating peak locations (pixel value larger than 0) in the z-profiles. 
+	 * If the image carries the peak table of FindPeaks, the peaks are taken directly from the table
+	 * @param ref_x X-coordinate of the reference section
+	 * @param ref_y Y-coordinate of the reference section
+	 * @param spans The pixels to evaluate, typically from a mask or a selection; provide null to evaluate all the pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param showOutput Be verbose about output (ImageJ message boxes and progress bar); the calculation 
+	 * can then be cancelled with the escape key
+	 * @return New ImageStack, with a single slice, shows the local phase (or NaN if none could be evaluated,
+	 * or the pixel is not evaluated); null if cancelled
+	 */
+	
+	public static ImageStack getPhaseImage(ImagePlus inputImage, int ref_x, 
+			int ref_y, PixelSpans spans, int n_threads, boolean showOutput)
+	{
+		return getPhaseImage(inputImage, new int[]{ref_x}, new int[]{ref_y}, spans, n_threads, showOutput);
+	}
+	
+	/** Calculate the phase images relative to several reference sections in a single pass, for some pixels only,
+	 * in parallel. As getPhaseImage with a single reference, but the peaks of each pixel are read once and
+	 * correlated with all the references in the same loop, so that each additional reference only costs the
+	 * correlation, not another pass over the peaks.
+	 * 
+	 * @param inputImage The image indicating peak locations (pixel value larger than 0) in the z-profiles. 
+	 * If the image carries the peak table of FindPeaks, the peaks are taken directly from the table
+	 * @param ref_x X-coordinates of the reference sections
+	 * @param ref_y Y-coordinates of the reference sections
+	 * @param spans The pixels to evaluate, typically from a mask or a selection; provide null to evaluate all the pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param showOutput Be verbose about output (ImageJ message boxes and progress bar); the calculation 
+	 * can then be cancelled with the escape key
+	 * @return New ImageStack, with one slice per reference (labeled with its position if more than one), 
+	 * shows the local phase (or NaN if none could be evaluated, or the pixel is not evaluated); null if cancelled
+	 */
+	
+	public static ImageStack getPhaseImage(ImagePlus inputImage, int[] ref_x, 
+			int[] ref_y, PixelSpans spans, int n_threads, boolean showOutput)
+	{
+		return getPhaseImage(inputImage, ref_x, ref_y, spans, n_threads, false, showOutput);
+	}
+	
+	/** Calculate the phase images relative to several reference sections in a single pass, optionally with the
+	 * correlation strength relative to each reference and the number of peaks of each pixel. These come from the
+	 * same correlation as the phase (see LocalPhaseTools.getCorrelationInformation), so that they cost almost 
+	 * nothing extra. The correlation strength is the length of the mean phase vector: 1 when all the peaks of the
+	 * pixel are at the same phase relative to the reference, close to 0 for peaks unrelated to the reference.
+	 * 
+	 * @param inputImage The image indicating peak locations (pixel value larger than 0) in the z-profiles. 
+	 * If the image carries the peak table of FindPeaks, the peaks are taken directly from the table
+	 * @param ref_x X-coordinates of the reference sections
+	 * @param ref_y Y-coordinates of the reference sections
+	 * @param spans The pixels to evaluate, typically from a mask or a selection; provide null to evaluate all the pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param correlation_outputs Add the correlation strength and peak count slices
+	 * @param showOutput Be verbose about output (ImageJ message boxes and progress bar); the calculation 
+	 * can then be cancelled with the escape key
+	 * @return New ImageStack: the phase relative to each reference, then with correlation_outputs the correlation
+	 * strength relative to each reference, and the number of peaks (all NaN at the pixels not evaluated, 
+	 * phases also NaN if they could not be evaluated; at the pixels skipped as inactive by FindPeaks, the phases
+	 * are NaN and the correlation strengths and numbers of peaks 0); null if cancelled
+	 */
+	
+	public static ImageStack getPhaseImage(ImagePlus inputImage, int[] ref_x, 
+			int[] ref_y, PixelSpans spans, int n_threads, final boolean correlation_outputs, final boolean showOutput)
+	{
 		if(showOutput)
 		{
-			IJ.showMessage("Reference section : "+idx_ref.length+" peaks detected");
+			IJ.showMessage(getReferenceMessage(PeakEventTable.get(inputImage), ref_x, ref_y));
+		}
+
+		return computePhaseImage(inputImage, ref_x, ref_y, spans, n_threads, correlation_outputs, showOutput);
+	}
+
+	/**
+	 * The number of peaks at each reference section, as shown before the calculation of the phase
+	 * @param table The peaks of the image
+	 * @param ref_x X-coordinates of the reference sections
+	 * @param ref_y Y-coordinates of the reference sections
+	 * @return The message
+	 */
+	protected static String getReferenceMessage(PeakEventTable table, int[] ref_x, int[] ref_y)
+	{
+		String message = "";
+
+		for(int k=0; k<ref_x.length; k++)
+		{
+			int n_peaks = table.getNumberOfPeaks(ref_x[k], ref_y[k]);
+
+			message += (ref_x.length==1) ? "Reference section : "+n_peaks+" peaks detected" :
+				"Reference section "+ref_x[k]+","+ref_y[k]+" : "+n_peaks+" peaks detected\n";
+		}
+
+		return message;
+	}
+
+	/**
+	 * Calculate the phase images relative to several reference sections, as getPhaseImage does, without 
+	 * the message boxes
+	 * @param inputImage The image indicating peak locations, or carrying the peak table of FindPeaks
+	 * @param ref_x X-coordinates of the reference sections
+	 * @param ref_y Y-coordinates of the reference sections
+	 * @param spans The pixels to evaluate; null to evaluate all the pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param correlation_outputs Add the correlation strength and peak count slices
+	 * @param showProgress Show the progress bar; the calculation can then be cancelled with the escape key
+	 * @return New ImageStack, as getPhaseImage; null if cancelled
+	 */
+	protected static ImageStack computePhaseImage(ImagePlus inputImage, int[] ref_x, 
+			int[] ref_y, PixelSpans spans, int n_threads, final boolean correlation_outputs, final boolean showProgress)
+	{
+		// The peaks of each pixel, as attached by FindPeaks, or from the non-zero pixels of the stack
+		PeakEventTable table = PeakEventTable.get(inputImage);
+
+		final int n_references = ref_x.length;
+
+		// The peaks of each reference compiled once into a table over the frames
+		final ReferencePhaseTable[] references = new ReferencePhaseTable[n_references];
+
+		for(int k=0; k<n_references; k++)
+		{
+			// Get the non-zero indices at the reference section
+			references[k] = new ReferencePhaseTable(table.getPeaks(ref_x[k], ref_y[k]), table.getDepth());
 		}
-		// Intialize the output stack, single slice
+
+		// Intialize the output stack, one phase slice per reference, then the correlation strength 
+		// slices and the peak count slice if needed
+		final int n_slices = correlation_outputs ? 2*n_references+1 : n_references;
+
 		ImageStack theStack = new ImageStack(inputImage.getWidth(), 
-				inputImage.getHeight(), 1);
-		// Processor to put the values
-		FloatProcessor fp=new FloatProcessor(theStack.getWidth(), 
-				theStack.getHeight());
-		// Assign the processor to the one slice in the output stack
-		theStack.setProcessor(fp, 1);
+				inputImage.getHeight(), n_slices);
 
-		
-		// Run through all the pixels
-		for(int x=0; x<inputImage.getWidth(); x++)
+		final float[][] pixels = new float[n_slices][];
+
+		for(int k=0; k<n_slices; k++)
+		{
+			// Processor to put the values
+			FloatProcessor fp=new FloatProcessor(theStack.getWidth(), 
+					theStack.getHeight());
+			// Assign the processor to its slice in the output stack
+			theStack.setProcessor(fp, k+1);
+
+			pixels[k] = (float[])fp.getPixels();
+		}
+
+		for(int k=0; k<n_references; k++)
 		{
-			for(int y=0; y<inputImage.getHeight(); y++)
+			String position = (n_references>1) ? " "+ref_x[k]+","+ref_y[k] : "";
+
+			if(n_references>1 && !correlation_outputs)
 			{
-					// Calculate and put the local phase value
-					fp.putPixelValue(x, y, doEvaluationAtxy(inputImage, x, y, idx_ref, theMask));
-					
-					
-					
-				
+				theStack.setSliceLabel("Reference"+position, k+1);
 			}
-			// This can take a while, so show the progress bar
-			if(showOutput)
+
+			if(correlation_outputs)
 			{
-			IJ.showProgress(((double) x)/((double) inputImage.getWidth()));
+				theStack.setSliceLabel("Phase"+position, k+1);
+				theStack.setSliceLabel("Correlation strength"+position, n_references+k+1);
 			}
 		}
+
+		if(correlation_outputs)
+		{
+			theStack.setSliceLabel("Peaks", n_slices);
+		}
+
+		if(spans==null)
+		{
+			spans = PixelSpans.all(inputImage.getWidth(), inputImage.getHeight());
+		}
+
+		// The pixels not evaluated are NaN
+		if(!spans.isComplete())
+		{
+			for(int k=0; k<n_slices; k++)
+			{
+				Arrays.fill(pixels[k], Float.NaN);
+			}
+		}
+
+		// Pixels skipped as inactive by FindPeaks have no peaks, and so no phase (NaN), but a correlation 
+		// strength and a number of peaks of 0, which can be summed or thresholded
+		PixelSpans analyzed_spans = ActivityIndex.restrictToAnalyzed(inputImage, spans);
+
+		if(analyzed_spans!=spans)
+		{
+			fillSpans(pixels, 0, n_references, spans, Float.NaN);
+
+			if(correlation_outputs)
+			{
+				fillSpans(pixels, n_references, n_slices, spans, 0f);
+			}
+
+			spans = analyzed_spans;
+		}
+
+		// The peaks of all the pixels, pixel i having frames[offsets[i]] to frames[offsets[i+1]-1]
+		final int[] offsets = table.getOffsets();
+		final int[] frames = table.getFrames();
+		final int width = inputImage.getWidth();
+
+		// Set when the user presses escape; the spans not yet started are then skipped
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+		// Run through the pixels to evaluate, span by span. This can take a while, so show the progress bar
+		ParallelTools.processSpans(spans, n_threads, new ParallelTools.SpanProcessor() {
+
+			public void processSpan(int y, int x_start, int x_end) {
+
+				if(cancelled.get() || (showProgress && IJ.escapePressed()))
+				{
+					cancelled.set(true);
+					return;
+				}
+
+				// Scratch buffer for the correlation, reused for all the pixels of the span
+				double[] info = new double[3];
+
+				for(int i=y*width+x_start; i<y*width+x_end; i++)
+				{
+					// The peaks of the pixel, read once for all the references
+					int from = offsets[i];
+					int to = offsets[i+1];
+
+					for(int k=0; k<n_references; k++)
+					{
+						references[k].getCorrelationInformation(frames, from, to, info);
+
+						// Calculate and put the local phase value
+						pixels[k][i]=(float)(LocalPhaseTools.getPhase(info)/Math.PI*180.0);
+
+						if(correlation_outputs)
+						{
+							pixels[n_references+k][i]=(float)LocalPhaseTools.getCorrelationStrength(info);
+						}
+					}
+
+					if(correlation_outputs)
+					{
+						pixels[n_slices-1][i]=to-from;
+					}
+				}
+			}
+		}, showProgress);
+
+		if(cancelled.get())
+		{
+			IJ.resetEscape();
+			IJ.showStatus("Local phase cancelled");
+			return null;
+		}
 		
-		
-		// Return the single-slice stack containing the phase image
+		// Return the stack containing the phase images
 		return theStack;
 		
 	}
+
+	/**
+	 * Reference sections from a selection: the points of a point selection, otherwise the center of the selection
+	 * @param roi The selection
+	 * @param width Image width, the points outside the image are left out
+	 * @param height Image height
+	 * @return The x-coordinates (first row) and y-coordinates (second row) of the references
+	 */
+	public static int[][] getReferencePoints(Roi roi, int width, int height)
+	{
+		Polygon points;
+
+		if(roi.getType()==Roi.POINT)
+		{
+			points = roi.getPolygon();
+		} else
+		{
+			Rectangle bounds = roi.getBounds();
+			points = new Polygon();
+			points.addPoint(bounds.x+bounds.width/2, bounds.y+bounds.height/2);
+		}
+
+		int n = 0;
+		int[][] references = new int[2][points.npoints];
+
+		for(int k=0; k<points.npoints; k++)
+		{
+			if(points.xpoints[k]>=0 && points.xpoints[k]<width && points.ypoints[k]>=0 && points.ypoints[k]<height)
+			{
+				references[0][n]=points.xpoints[k];
+				references[1][n]=points.ypoints[k];
+				n++;
+			}
+		}
+
+		return new int[][]{Arrays.copyOf(references[0], n), Arrays.copyOf(references[1], n)};
+	}
 	
+	/**
+	 * Set some slices of an output stack to a value, at the pixels of some spans
+	 * @param pixels Pixel arrays of the slices
+	 * @param from First slice to set (0-based, included)
+	 * @param to Last slice to set (excluded)
+	 * @param spans The pixels to set
+	 * @param value The value
+	 */
+	protected static void fillSpans(float[][] pixels, int from, int to, PixelSpans spans, float value)
+	{
+		int width = spans.getWidth();
+
+		for(int s=0; s<spans.getNumberOfSpans(); s++)
+		{
+			int row = spans.getRow(s)*width;
+
+			for(int k=from; k<to; k++)
+			{
+				Arrays.fill(pixels[k], row+spans.getStart(s), row+spans.getEnd(s), value);
+			}
+		}
+	}
+
 	/**
 	 * Calculate the phase at a fixed xy position by comparing the local z-profile to the reference z-profile
 	 * @param inputImage The temporal peak image to be analyzed (the z-profile will be taken from this)
@@ -351,16 +786,9 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	{
 		// If we fall outside the mask or if the pixel value at xy in the mask is zero, do not do
 		// any analysis but return NaN
-		if(theMask != null)
+		if(!isInMask(theMask, x, y))
 		{
-			if(x>=theMask.getWidth() || y>=theMask.getHeight())
-			{
-				return Double.NaN;
-			}
-			if(theMask.getImageStack().getProcessor(1).getPixelValue(x, y)<=0)
-			{
-				return Double.NaN;
-			}
+			return Double.NaN;
 		}
 		
 		// Otherwise, or if no mask is provided, calculate the local phase, convert to degreees, and return
@@ -370,6 +798,39 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 		
 	}
 	
+	/**
+	 * Calculate the phase at a fixed xy position by comparing the local z-profile to the reference z-profile
+	 * Version reading the peaks from a peak table instead of the z-profile of the temporal peak image
+	 * @param table Peaks of the temporal peak image to be analyzed
+	 * @param x The x value where the phase should be determined
+	 * @param y The y value where the phase should be determined
+	 * @param idx_ref The indices (z-positions) where the peaks are in the reference section, in increasing order
+	 * @param theMask Mask to only evaluate pixels positive in the mask (provide null if not needed)
+	 * @return Local phase, in degrees.
+	 */
+	public static double doEvaluationAtxy(PeakEventTable table, int x, int y, 
+			int[] idx_ref, ImagePlus theMask)
+	{
+		if(!isInMask(theMask, x, y))
+		{
+			return Double.NaN;
+		}
+		
+		return LocalPhaseTools.getPhaseSorted(table.getPeaks(x,y),idx_ref)/Math.PI*180.0;
+	}
+	
+	/**
+	 * Check whether a position is to be evaluated according to a mask
+	 * @param theMask Mask image, positive values mean evaluate. Provide null to evaluate everywhere
+	 * @param x The x-position
+	 * @param y The y-position
+	 * @return true if there is no mask or if x,y is within the mask and positive, false otherwise
+	 */
+	public static boolean isInMask(ImagePlus theMask, int x, int y)
+	{
+		return LocalPhaseTools.isInMask(theMask, x, y);
+	}
+	
 	/**
 	 * Calculate the phase at a fixed xy position by comparing the local z-profile to the reference z-profile
 	 * @param inputImage The temporal peak image to be analyzed (the z-profile will be taken from this)
@@ -413,12 +874,12 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	 * @param theImage Stack with temporal peak identification
 	 * @param x x-position
 	 * @param y y-position
-	 * @param idx_ref Location of the peaks in the reference section
+	 * @param idx_ref Location of the peaks in the reference section, in increasing order
 	 * @return Phase, in radians
 	 */
 	public static double getPhaseAtxy(ImagePlus theImage, int x, int y, int[] idx_ref)
 	{
-		return LocalPhaseTools.getPhase(non_zero_indices(theImage,x,y),idx_ref);
+		return LocalPhaseTools.getPhaseSorted(non_zero_indices(theImage,x,y),idx_ref);
 		
 		
 	}
@@ -426,12 +887,12 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	 * Non-static version, using image assigned to the plugin
 	 * @param x x-position
 	 * @param y y-position
-	 * @param idx_ref Location of the peaks in the reference section
+	 * @param idx_ref Location of the peaks in the reference section, in increasing order
 	 * @return Phase, in radians
 	 */
 	public double getPhaseAtxy(int x, int y, int[] idx_ref)
 	{
-		return LocalPhaseTools.getPhase(non_zero_indices(x,y),idx_ref);
+		return LocalPhaseTools.getPhaseSorted(non_zero_indices(x,y),idx_ref);
 		
 		
 	}
@@ -478,8 +939,8 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 	 */
 	public boolean checkSection(int x, int y)
 	{
-		int [] theSection = getStackSection( x,  y);
-		int n_found = LocalPhaseTools.n_positive_elements(theSection);
+		// The peaks are counted in the peak table, rather than in the z-profile
+		int n_found = PeakEventTable.get(imp).getNumberOfPeaks(x, y);
 		if(n_found >= 2)
 		{
 			return true;
@@ -560,14 +1021,28 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 		bt.addActionListener(this);
 		
 		gd.add(bt);
+
+		// The reference pixel is scored from the peak table of the image, before the phase map is calculated
+		gd.addCheckbox("Automatic reference pixel (regular peaks, followed by most pixels)", auto_reference);
+
+		gd.addCheckbox("References from the points of the selection (one phase map each)", multiple_references);
+
+		gd.addCheckbox("Correlation strength and number of peaks (additional slices)", correlation_outputs);
 		
 		gd.addCheckbox("Use mask (>0 means evaluate)", do_masking);
 		
-		String[] window_titles=WindowManager.getImageTitles();
+		// The selection of the analyzed image, or any open image
+		String[] window_titles=ImageTools.getMaskChoices();
 		
 		
 		
 		gd.addChoice("Mask", window_titles, lastMaskTitle);
+
+		// The peaks of the image are indexed once (see PeakEventTable.get), so that the preview only redoes
+		// the correlation with the reference
+		gd.addCheckbox("Preview phase map", preview);
+
+		gd.addCheckbox("Timing report (time per stage, throughput, memory)", FindPeaks.report_timing);
 		
 		
 		
@@ -614,9 +1089,239 @@ public class LocalPhase implements PlugInFilter,DialogListener, ActionListener {
 		reference_y = (int)Math.round((double)imp.getHeight()/2.0);
 		
 		update_text_fields_reference_x_y();
+
+		if(preview)
+		{
+			requestPreview();
+		}
 		
 	}
 
+	/**
+	 * Request a preview with the current options. The previews are calculated in a thread of their own, so that
+	 * the dialog stays responsive; requests arriving during a calculation (typing a coordinate, dragging through
+	 * the options) are coalesced into a single new preview, with the options at the time it starts
+	 */
+	protected synchronized void requestPreview()
+	{
+		preview_requested=true;
+
+		if(preview_thread==null)
+		{
+			preview_thread = new Thread(new Runnable() {
+				public void run() {
+					runPreviews();
+				}
+			}, "Local phase preview");
+
+			preview_thread.start();
+		}
+	}
+
+	/**
+	 * Calculate previews as long as they are requested, in the preview thread
+	 */
+	protected void runPreviews()
+	{
+		while(true)
+		{
+			synchronized(this)
+			{
+				if(!preview_requested || !preview)
+				{
+					preview_requested=false;
+					preview_thread=null;
+					return;
+				}
+				preview_requested=false;
+			}
+
+			updatePreview();
+		}
+	}
+
+	/**
+	 * Wait for the preview being calculated, if any, to be done
+	 */
+	protected void waitForPreview()
+	{
+		Thread thread;
+
+		synchronized(this)
+		{
+			thread=preview_thread;
+		}
+
+		if(thread!=null)
+		{
+			try
+			{
+				thread.join();
+			} catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Calculate the phase map with the current reference pixel and masking options, and show it in the
+	 * preview window. The peaks are taken from the peak table of the image, built only once (see PeakEventTable.get)
+	 */
+	protected void updatePreview()
+	{
+		long start = System.nanoTime();
+
+		int[][] references = getReferencePointsOrPosition();
+
+		if(references[0].length==0)
+		{
+			IJ.showStatus(multiple_references ? "Local phase preview: no reference point in the selection" :
+					"Local phase preview: no pixel with 3 peaks for the automatic reference");
+			return;
+		}
+
+		PixelSpans spans = (do_masking && !(multiple_references && mask==null)) ? 
+				PixelSpans.fromMaskOrSelection(imp, mask) : null;
+
+		ImageStack theStack = getPhaseImage(imp, references[0], references[1], spans, FindPeaks.n_threads, 
+				correlation_outputs, false);
+
+		showPreview(theStack);
+
+		if(checkSection(references[0][0], references[1][0]))
+		{
+			IJ.showStatus("Local phase preview: "+IJ.d2s((System.nanoTime()-start)*1e-6, 0)+" ms"
+					+((auto_reference && !multiple_references) ? ", reference "+reference_x+","+reference_y : ""));
+		} else
+		{
+			IJ.showStatus("Local phase preview: fewer than 2 peaks at the reference pixel");
+		}
+	}
+
+	/**
+	 * The reference sections: the points of the selection with multiple_references, otherwise reference_x, reference_y,
+	 * chosen first with auto_reference
+	 * @return The x-coordinates (first row) and y-coordinates (second row) of the references, possibly none
+	 */
+	protected int[][] getReferencePointsOrPosition()
+	{
+		if(multiple_references)
+		{
+			Roi roi = imp.getRoi();
+
+			return (roi==null) ? new int[2][0] : getReferencePoints(roi, imp.getWidth(), imp.getHeight());
+		}
+
+		if(auto_reference && !selectReference())
+		{
+			return new int[2][0];
+		}
+
+		return new int[][]{{reference_x}, {reference_y}};
+	}
+
+	/**
+	 * Choose the reference section among the evaluated pixels (see ReferenceSelection), and set reference_x, 
+	 * reference_y and the dialog fields to it
+	 * @return true if a reference was found, false if no evaluated pixel has at least 3 peaks
+	 */
+	protected boolean selectReference()
+	{
+		PixelSpans spans = do_masking ? PixelSpans.fromMaskOrSelection(imp, mask) : null;
+
+		// Pixels skipped as inactive by FindPeaks have no peaks
+		spans = ActivityIndex.restrictToAnalyzed(imp, spans);
+
+		ReferenceSelection selection = new ReferenceSelection(PeakEventTable.get(imp), spans);
+
+		if(!selection.select())
+		{
+			return false;
+		}
+
+		boolean changed = reference_x!=selection.getReferenceX() || reference_y!=selection.getReferenceY();
+
+		reference_x=selection.getReferenceX();
+		reference_y=selection.getReferenceY();
+
+		// The dialog is still open during the preview; the fields are only set when changed, as setting
+		// them triggers another preview
+		if(changed && gd!=null && gd.isVisible())
+		{
+			update_text_fields_reference_x_y();
+		}
+
+		IJ.showStatus("Local phase: reference "+reference_x+","+reference_y+" ("+selection.getNumberOfPeaks()
+				+" peaks, regularity "+IJ.d2s(selection.getRegularity(), 2)
+				+", coverage "+IJ.d2s(selection.getCoverage(), 2)+")");
+
+		return true;
+	}
+
+	/**
+	 * The reference sections for the run, with error messages if they cannot be used
+	 * @return The x-coordinates (first row) and y-coordinates (second row) of the references, null on error
+	 */
+	protected int[][] getReferences()
+	{
+		int[][] references = getReferencePointsOrPosition();
+
+		if(references[0].length==0)
+		{
+			IJ.error("Local Phase", multiple_references ? 
+					"Multiple references need a point selection (multi-point tool) on the image" :
+					"No evaluated pixel has the 3 peaks needed for the automatic reference");
+			return null;
+		}
+
+		// The selection holds the references, so it cannot be the mask as well
+		if(multiple_references && do_masking && mask==null)
+		{
+			IJ.error("Local Phase", "With references from the selection, choose a mask image for masking");
+			return null;
+		}
+
+		return references;
+	}
+
+	/**
+	 * Show a phase map in the preview window, unless the preview has been switched off during its calculation
+	 * @param theStack The phase map
+	 */
+	protected synchronized void showPreview(ImageStack theStack)
+	{
+		if(!preview)
+		{
+			return;
+		}
+
+		if(preview_image==null || preview_image.getWindow()==null)
+		{
+			preview_image = new ImagePlus("Local phase preview - "+imp.getTitle(), theStack);
+			preview_image.setDisplayRange(-180, 180);
+			preview_image.show();
+		} else
+		{
+			preview_image.setStack(theStack);
+			preview_image.setDisplayRange(-180, 180);
+			preview_image.updateAndDraw();
+		}
+	}
+
+	/**
+	 * Close the preview window, if shown
+	 */
+	protected synchronized void closePreview()
+	{
+		if(preview_image!=null)
+		{
+			preview_image.changes=false;
+			preview_image.close();
+			preview_image=null;
+		}
+	}
+
 
 
 
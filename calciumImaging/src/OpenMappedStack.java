@@ -0,0 +1,148 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.io.File;
+import java.io.IOException;
+
+import FindPeaks.accessory.classes.PeakDetectionStatistics;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import tbgitoo.tools.MappedStack;
+
+/**
+ * ImageJ plugin to open an uncompressed TIFF (or BigTIFF) stack, or a raw stack, as a memory-mapped stack
+ * (see MappedStack). The file is not loaded into memory, so that recordings larger than the available memory,
+ * and larger than 2 GB, can be analyzed. FindPeaks and PeaksFrequencyPhase read the z-profiles directly from the
+ * mapping (MappedStack.getProfiles); LocalFrequency and LocalPhase, which need the peaks rather than the intensities,
+ * read the slices of a peak stack one by one instead (PeakEventTable.fromStack).
+ * Files whose name does not end in .tif or .tiff are opened as raw data, with the layout given in a dialog
+ * @author thomasbraschler
+ *
+ */
+public class OpenMappedStack implements PlugIn {
+
+	/** Raw data: width, in pixels */
+	public static int width=512;
+
+	/** Raw data: height, in pixels */
+	public static int height=512;
+
+	/** Raw data: bit depth (8, 16 or 32 for floating point) */
+	public static int bit_depth=16;
+
+	/** Raw data: offset to the first image, in bytes */
+	public static long offset=0;
+
+	/** Raw data: gap between the images, in bytes */
+	public static long gap=0;
+
+	/** Raw data: number of images, 0 for as many as the file holds */
+	public static int n_images=0;
+
+	/** Raw data: Intel byte order */
+	public static boolean little_endian=true;
+
+	@Override
+	public void run(String arg) {
+
+		OpenDialog od = new OpenDialog("Open memory-mapped stack", arg);
+
+		if(od.getFileName()==null)
+		{
+			return;
+		}
+
+		File file = new File(od.getDirectory(), od.getFileName());
+		String name = file.getName().toLowerCase();
+
+		MappedStack stack;
+
+		try
+		{
+			if(name.endsWith(".tif") || name.endsWith(".tiff") || name.endsWith(".btf") || name.endsWith(".tf8"))
+			{
+				stack = MappedStack.openTiff(file);
+			} else
+			{
+				if(!showRawDialog())
+				{
+					return;
+				}
+				stack = MappedStack.openRaw(file, width, height, bit_depth, offset, gap, little_endian, n_images);
+			}
+		} catch(IOException e)
+		{
+			IJ.error("Open memory-mapped stack", e.getMessage());
+			return;
+		}
+
+		ImagePlus imp = new ImagePlus(file.getName(), stack);
+
+		// The mapped stack has no FileInfo; the reports of its analyses are written next to the file
+		int dot = file.getName().lastIndexOf('.');
+		PeakDetectionStatistics.setReportLocation(imp, 
+				new File(file.getParentFile(), dot>0 ? file.getName().substring(0, dot) : file.getName()));
+
+		imp.show();
+	}
+
+	/**
+	 * Dialog for the layout of raw data
+	 * @return false if cancelled
+	 */
+	protected boolean showRawDialog()
+	{
+		GenericDialog gd = new GenericDialog("Raw stack layout");
+
+		gd.addNumericField("Width (pixels)", width, 0);
+		gd.addNumericField("Height (pixels)", height, 0);
+		gd.addChoice("Type", new String[]{"8-bit", "16-bit unsigned", "32-bit real"},
+				bit_depth==8 ? "8-bit" : (bit_depth==16 ? "16-bit unsigned" : "32-bit real"));
+		gd.addNumericField("Offset to first image (bytes)", offset, 0);
+		gd.addNumericField("Gap between images (bytes)", gap, 0);
+		gd.addNumericField("Number of images (0 for all)", n_images, 0);
+		gd.addCheckbox("Little-endian byte order", little_endian);
+
+		gd.showDialog();
+
+		if(gd.wasCanceled())
+		{
+			return false;
+		}
+
+		width = (int)gd.getNextNumber();
+		height = (int)gd.getNextNumber();
+		int type = gd.getNextChoiceIndex();
+		bit_depth = type==0 ? 8 : (type==1 ? 16 : 32);
+		offset = (long)gd.getNextNumber();
+		gap = (long)gd.getNextNumber();
+		n_images = (int)gd.getNextNumber();
+		little_endian = gd.getNextBoolean();
+
+		if(width<1 || height<1 || offset<0 || gap<0)
+		{
+			IJ.error("Raw stack layout", "Invalid layout");
+			return false;
+		}
+
+		return true;
+	}
+
+}
@@ -0,0 +1,313 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.awt.AWTEvent;
+
+import FindPeaks.accessory.classes.PeakDetectionStatistics;
+import FindPeaks.accessory.classes.PeakEventStack;
+import FindPeaks.accessory.classes.PeakFrequencyPhaseAnalysis;
+import FindPeaks.accessory.classes.StackPeakDetector;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.DialogListener;
+import ij.gui.GenericDialog;
+import ij.plugin.filter.PlugInFilter;
+import ij.process.ImageProcessor;
+import tbgitoo.tools.ImageTools;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * ImageJ plugin combining FindPeaks, LocalFrequency and LocalPhase: from the intensity stack, finds the temporal
+ * peaks and calculates the local frequency and phase in a single pass over the pixels, without intermediate
+ * peak stack (see PeakFrequencyPhaseAnalysis).
+ * The options are shared with the individual plugins (peak detection options of FindPeaks, frame rate of
+ * LocalFrequency and reference pixel of LocalPhase; masking options of FindPeaks)
+ * @author thomasbraschler
+ *
+ */
+public class PeaksFrequencyPhase implements PlugInFilter,DialogListener {
+
+	/** Holds a reference to the primary ImagePlus object associated with this plugin */
+	protected ImagePlus imp;
+
+	/** image processor at the time of starting the analysis */
+	protected ImageProcessor ip;
+
+	/** Show the peaks found (as a virtual stack) in addition to frequency and phase */
+	public static boolean showPeaks=false;
+
+	/** Mask image, positive values mean analyze; null to use the selection of the image */
+	public ImagePlus mask=null;
+
+	/**
+	 * Read the peak detection options, the frame rate, the reference pixel, the output and timing options
+	 * from the dialog
+	 */
+	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+
+		// Intermediate variable to accept numbers before filtering
+		double n;
+
+		// Expected fraction of time activated, between 0 and 1
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.peak_fraction=Math.min(Math.max(n, 0), 1);
+
+		// Window for the threshold, 0 meaning the whole recording
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.thresholdWindow=Math.max((int)Math.round(n), 0);
+
+		// Minimal distance between peaks, at least 2
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.minD=Math.max(n, 2);
+
+		FindPeaks.doFiltering = gd.getNextBoolean();
+
+		// Minimal width, at least 1
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.minW=Math.max(n, 1);
+
+		// Maximal width, at least the minimal width
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.maxW=Math.max(n, FindPeaks.minW);
+
+		// Minimal height, not negative
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.minH=Math.max(n, 0);
+
+		// Skipping of the inactive pixels, shared with FindPeaks
+		FindPeaks.skip_inactive = gd.getNextBoolean();
+
+		// Frame rate, not negative
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		LocalFrequency.frame_rate=Math.max(n, 0);
+
+		// Reference pixel, must be within the image
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		LocalPhase.reference_x=Math.min(Math.max((int)Math.round(n), 0), imp.getWidth()-1);
+
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		LocalPhase.reference_y=Math.min(Math.max((int)Math.round(n), 0), imp.getHeight()-1);
+
+		// Number of threads, 0 meaning all processors
+		n = gd.getNextNumber();
+		if (gd.invalidNumber())
+			return false;
+		FindPeaks.n_threads=Math.max((int)Math.round(n), 0);
+
+		showPeaks = gd.getNextBoolean();
+
+		// Masking options, shared with FindPeaks
+		FindPeaks.do_masking = gd.getNextBoolean();
+
+		mask = ImageTools.getMaskChoice(gd.getNextChoiceIndex());
+
+		FindPeaks.lastMaskTitle = (mask==null) ? ImageTools.SELECTION_CHOICE : mask.getTitle();
+
+		// Timing option, shared with FindPeaks
+		FindPeaks.report_timing = gd.getNextBoolean();
+
+		return true;
+	}
+
+	/**
+	 * Indicate that we need greyscale images and also
+	 * that the original image is not changed (new output images are generated instead)
+	 * If run for the first time, set reference pixel to center of image
+	 */
+	public int setup(String arg, ImagePlus imp) {
+
+		if(LocalPhase.first)
+		{
+			LocalPhase.reference_x = (int)Math.round((double)imp.getWidth()/2.0);
+			LocalPhase.reference_y = (int)Math.round((double)imp.getHeight()/2.0);
+			LocalPhase.first=false;
+		}
+
+		// Store an internal reference to the assigned image
+		this.imp = imp;
+
+		// 8-bit, 16-bit and 32-bit greyscale images
+		return DOES_8G+DOES_16+DOES_32+NO_CHANGES;
+	}
+
+	/**
+	 * Displays the dialog, then finds the peaks of the reference pixel, and then the peaks, frequency
+	 * and phase of all the pixels.
+	 * Output: frequency image (beats per minute), phase image (degrees) and optionally the peaks.
+	 * With masking, only the pixels inside the mask (or selection) are analyzed, the others are NaN
+	 */
+	public void run(ImageProcessor theIp) {
+
+		// store the ImageProcessor internally
+		ip = theIp;
+
+		IJ.register(this.getClass());
+
+		// Show the dialog for choosing the options
+		if(!doDialog())
+		{
+			return;
+		}
+
+		PeakFrequencyPhaseAnalysis analysis = getAnalysis(imp);
+
+		PeakDetectionStatistics statistics = FindPeaks.getStatistics(imp);
+
+		if(statistics!=null)
+		{
+			statistics.start();
+			analysis.getDetector().setStatistics(statistics);
+		}
+
+		// The mask image, or the selection of the analyzed image, compiled into the pixels to analyze
+		if(FindPeaks.do_masking)
+		{
+			analysis.setSpans(PixelSpans.fromMaskOrSelection(imp, mask));
+		}
+
+		int[] idx_ref = analysis.setReference(LocalPhase.reference_x, LocalPhase.reference_y);
+
+		if(idx_ref.length<2)
+		{
+			IJ.error("At reference point, at least 2 peaks need to be detected\n "
+					+ "throughout the measurement time" );
+			return;
+		}
+
+		analysis.run(FindPeaks.n_threads, true);
+
+		long start = System.nanoTime();
+
+		if(showPeaks)
+		{
+			ImagePlus peaks = new ImagePlus();
+			peaks.setStack("Result findpeaks - "+imp.getTitle(), new PeakEventStack(analysis.getPeakTable()));
+			PeakDetectionStatistics.setReportLocation(peaks, PeakDetectionStatistics.getReportLocation(imp));
+			analysis.getPeakTable().attachTo(peaks);
+			if(analysis.getDetector().getActivityIndex()!=null)
+			{
+				analysis.getDetector().getActivityIndex().attachTo(peaks);
+			}
+			peaks.show();
+		}
+
+		ImagePlus frequency = new ImagePlus("Frequency mean - "+imp.getTitle(), analysis.getFrequencyImage());
+		frequency.resetDisplayRange();
+		frequency.setDisplayRange(0, frequency.getDisplayRangeMax());
+		frequency.show();
+
+		ImagePlus phase = new ImagePlus("Result local Phase - "+imp.getTitle(), analysis.getPhaseImage());
+		phase.show();
+
+		if(statistics!=null)
+		{
+			statistics.addTime(PeakDetectionStatistics.STAGE_OUTPUT, start);
+			statistics.stop();
+			FindPeaks.reportStatistics(statistics, imp, "PeaksFrequencyPhase");
+		}
+
+	}
+
+	/**
+	 * Set up the combined analysis of an intensity stack with the current options
+	 * @param theImage The intensity stack
+	 * @return The analysis, ready to run
+	 */
+	public static PeakFrequencyPhaseAnalysis getAnalysis(ImagePlus theImage)
+	{
+		StackPeakDetector detector = new StackPeakDetector(theImage.getStack(), FindPeaks.peak_fraction,
+				FindPeaks.minD, FindPeaks.doFiltering, FindPeaks.minW, FindPeaks.maxW, FindPeaks.minH);
+		detector.setThresholdWindow(FindPeaks.thresholdWindow);
+		detector.setSkipInactive(FindPeaks.skip_inactive);
+
+		return new PeakFrequencyPhaseAnalysis(detector, LocalFrequency.frame_rate);
+	}
+
+	/**
+	 *  Displays the dialog with the options of the three analysis steps
+	 *  @return true upon success, false otherwise (including user cancel)
+	 */
+	public boolean doDialog()
+	{
+
+		// Open a dialog to get the use variables
+		// As a particular feature of ImageJ, does not open in macro mode but
+		// is substituted with macro parameter values instead
+		GenericDialog gd = new GenericDialog("Peaks, frequency and phase (PeaksFrequencyPhase)");
+
+		gd.addNumericField("Target fraction of time activated", FindPeaks.peak_fraction, 2);
+
+		gd.addNumericField("Window for threshold in frames (0 for whole recording)", FindPeaks.thresholdWindow, 0);
+
+		gd.addNumericField("Minimal distance between peaks in pixels (z-direction)", FindPeaks.minD, 1);
+
+		gd.addCheckbox("Do Filtering with options below", FindPeaks.doFiltering);
+
+		gd.addNumericField("Minimal width of peak in pixels (z-direction)", FindPeaks.minW, 1);
+
+		gd.addNumericField("Maximum width of peak in pixels (z-direction)", FindPeaks.maxW, 1);
+
+		gd.addNumericField("Minimum peak intensity above background", FindPeaks.minH, 1);
+
+		gd.addCheckbox("Skip inactive pixels (range of values below minimum peak intensity)", FindPeaks.skip_inactive);
+
+		gd.addNumericField("Framerate [per second]", LocalFrequency.frame_rate, 1);
+
+		gd.addNumericField("Reference pixel position x", LocalPhase.reference_x, 0);
+
+		gd.addNumericField("Reference pixel position y", LocalPhase.reference_y, 0);
+
+		gd.addNumericField("Threads (0 for all processors)", FindPeaks.n_threads, 0);
+
+		gd.addCheckbox("Show peaks", showPeaks);
+
+		gd.addCheckbox("Use mask (>0 means evaluate)", FindPeaks.do_masking);
+
+		// The selection of the analyzed image, or any open image
+		gd.addChoice("Mask", ImageTools.getMaskChoices(), FindPeaks.lastMaskTitle);
+
+		gd.addCheckbox("Timing report (time per stage, throughput, memory)", FindPeaks.report_timing);
+
+		// We need to follow the dialog to update the class variables
+		gd.addDialogListener(this);
+
+		gd.showDialog();                    // input by the user (or macro) happens here
+
+		// Do not proceed when the use pushes cancel
+		return (!gd.wasCanceled());
+
+	}
+
+}
@@ -36,11 +36,12 @@ import java.util.Comparator;
 /** 
  * Modified comparator for Index array: 
  * compares the underlying values (i.e. arr[ind] rather than the integer values
- * We need this in the class FindPeaksTools to find the indexes of the largest values
+ * This was used in the class FindPeaksTools to find the indexes of the largest values
  * @author thomasbraschler
- *
+ * @deprecated Boxes every value and index; use the primitive index sorts of ArraySortTools
+ * (sortIndexes, getIndexesOfSortedArray) instead
  */
-
+@Deprecated
 public class ArrayIndexComparator implements Comparator<Integer>
 {
 	/**
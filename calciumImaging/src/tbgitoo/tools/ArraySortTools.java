@@ -32,36 +32,525 @@
 package tbgitoo.tools;
 
 public class ArraySortTools {
+
+	/** Below this number of elements, the index sorts use insertion sort */
+	protected static final int INSERTION_SORT_THRESHOLD=32;
+
+	/** Number of buckets per pass of the radix sort (8-bit digits) */
+	public static final int RADIX=256;
 	
 	/**
-	 *  This function returns indexes such that they point to increasing elements
-	 *  This function is based on the stackoverflow question 
+	 *  This function returns indexes such that they point to increasing elements. 
+	 *  The original version of this function was based on the stackoverflow question 
 	 *  https://stackoverflow.com/questions/4859261/get-the-indices-of-an-array-after-sorting
-	 *  see license section at the beginning of the file
-	 * @param vals Values for which the ordering indices should be obtained
-	 * @return array of indices pointing to progressively increasing array elements
+	 *  (see license section at the beginning of the file); it now uses the primitive index sort
+	 *  sortIndexes(double[], int, boolean, int[]) rather than boxing the values and indexes
+	 * @param vals Values for which the ordering indices should be obtained. Must not contain NaN
+	 * @return array of indices pointing to progressively increasing array elements; equal elements 
+	 * keep their original order
 	 */
 	public static int[] getIndexesOfSortedArray(double[] vals)
 	{
-		
-		
-		
-		ArrayIndexComparator comparator = new ArrayIndexComparator(vals);
-		Integer[] indexes = comparator.createIndexArray();
-		
-			
-				
-		
-		int[] return_val = new int[indexes.length];
-		for(int ind=0; ind<return_val.length; ind++)
-		{
-			return_val[ind]=indexes[ind];
-		}
-		
-		
+		int[] return_val = new int[vals.length];
+
+		getIndexesOfSortedArray(vals, vals.length, return_val);
 
 		return return_val;
 
 	}
 
+	/**
+	 *  Ordering indexes, as returned by getIndexesOfSortedArray(double[]), written to a provided
+	 *  array instead of a new one
+	 * @param vals Values for which the ordering indices should be obtained. Must not contain NaN
+	 * @param n Number of values in vals to consider
+	 * @param order Output array, receives the n ordering indexes
+	 */
+	public static void getIndexesOfSortedArray(double[] vals, int n, int[] order)
+	{
+		sortIndexes(vals, n, false, order);
+	}
+
+	/**
+	 * Indexes of the values in decreasing order, as getIndexesOfSortedArray(double[], int, int[]) but from the
+	 * largest to the smallest value. Equal values keep their original order (this is not the reverse of the
+	 * increasing order, where the last of equal values would come first)
+	 * @param vals Values for which the ordering indices should be obtained. Must not contain NaN
+	 * @param n Number of values in vals to consider
+	 * @param order Output array, receives the n ordering indexes
+	 */
+	public static void getIndexesOfReverseSortedArray(double[] vals, int n, int[] order)
+	{
+		sortIndexes(vals, n, true, order);
+	}
+
+	/**
+	 * Stable index sort of double values: order receives the indexes 0 to n-1 such that vals[order[0]], 
+	 * vals[order[1]], ... are sorted, equal values keeping the order of their indexes. The values are not moved.
+	 * This is a dual-pivot quicksort on the indexes, comparing the values first and the indexes for equal values; 
+	 * since no two (value, index) pairs are equal, the unstable quicksort gives the stable order. 
+	 * No memory is allocated.
+	 * @param vals Values to be sorted. Must not contain NaN
+	 * @param n Number of values in vals to consider
+	 * @param descending Sort from the largest to the smallest value?
+	 * @param order Output array, at least n elements, receives the ordering indexes
+	 */
+	public static void sortIndexes(double[] vals, int n, boolean descending, int[] order)
+	{
+		for(int ind=0; ind<n; ind++)
+		{
+			order[ind]=ind;
+		}
+
+		sortIndexes(vals, order, 0, n-1, descending);
+	}
+
+	/**
+	 * Stable index sort of float values, see sortIndexes(double[], int, boolean, int[])
+	 * @param vals Values to be sorted. Must not contain NaN
+	 * @param n Number of values in vals to consider
+	 * @param descending Sort from the largest to the smallest value?
+	 * @param order Output array, at least n elements, receives the ordering indexes
+	 */
+	public static void sortIndexes(float[] vals, int n, boolean descending, int[] order)
+	{
+		for(int ind=0; ind<n; ind++)
+		{
+			order[ind]=ind;
+		}
+
+		sortIndexes(vals, order, 0, n-1, descending);
+	}
+
+	/**
+	 * Stable index sort of integer values, see sortIndexes(double[], int, boolean, int[]). Integer values allow
+	 * sorting without comparisons: if the range of the values fits into the counts array, a single counting sort 
+	 * pass is done (8-bit values with counts of RADIX elements, 16-bit values with counts of 65536 elements);
+	 * otherwise, a least significant digit radix sort with 8-bit digits, 
+	 * i.e. two passes for 16-bit values. Each pass is stable, so equal values keep the order of their indexes.
+	 * The time is proportional to n plus the number of buckets, and no memory is allocated.
+	 * @param vals Values to be sorted
+	 * @param n Number of values in vals to consider
+	 * @param descending Sort from the largest to the smallest value?
+	 * @param order Output array, at least n elements, receives the ordering indexes
+	 * @param work Work array, at least n elements
+	 * @param counts Work array for the bucket counts, at least RADIX elements
+	 */
+	public static void sortIndexes(int[] vals, int n, boolean descending, int[] order, int[] work, int[] counts)
+	{
+		if(n==0)
+		{
+			return;
+		}
+
+		int min = vals[0];
+		int max = vals[0];
+
+		for(int ind=1; ind<n; ind++)
+		{
+			min=Math.min(min, vals[ind]);
+			max=Math.max(max, vals[ind]);
+		}
+
+		// The values are sorted by their offset to the minimum, which is below 2^32 as unsigned integer
+		int range = max-min;
+
+		if(range>=0 && range<counts.length)
+		{
+			countingSortPass(vals, n, min, 0, -1, range+1, descending, null, order, counts);
+			return;
+		}
+
+		// Number of 8-bit digits of the largest offset
+		int n_passes = 1;
+		while(n_passes<4 && (range>>>(8*n_passes))!=0)
+		{
+			n_passes++;
+		}
+
+		// Alternate between the two arrays such that the last pass writes into order
+		int[] src = null;
+		int[] dst = (n_passes%2==1) ? order : work;
+
+		for(int pass=0; pass<n_passes; pass++)
+		{
+			countingSortPass(vals, n, min, 8*pass, RADIX-1, RADIX, descending, src, dst, counts);
+			src=dst;
+			dst=(dst==order) ? work : order;
+		}
+	}
+
+	/**
+	 * One stable counting sort pass on the indexes, by the digit ((vals[i]-min)&gt;&gt;&gt;shift)&amp;mask
+	 * @param vals Values to be sorted
+	 * @param n Number of values
+	 * @param min Minimum of the values
+	 * @param shift Right shift of the offsets to the minimum, to get the digit of this pass
+	 * @param mask Bit mask of the digit, -1 to keep the whole shifted offset
+	 * @param n_buckets Number of buckets, larger than all the digits
+	 * @param descending Buckets from the largest to the smallest digit?
+	 * @param src Indexes in the order of the previous pass, or null for the first pass (indexes in their natural order)
+	 * @param dst Output array, receives the indexes in the order of this pass
+	 * @param counts Work array for the bucket counts, at least n_buckets elements
+	 */
+	protected static void countingSortPass(int[] vals, int n, int min, int shift, int mask, int n_buckets,
+			boolean descending, int[] src, int[] dst, int[] counts)
+	{
+		for(int b=0; b<n_buckets; b++)
+		{
+			counts[b]=0;
+		}
+
+		for(int ind=0; ind<n; ind++)
+		{
+			int i = (src==null) ? ind : src[ind];
+			counts[((vals[i]-min)>>>shift)&mask]++;
+		}
+
+		// Start position of each bucket
+		int pos = 0;
+		for(int b=0; b<n_buckets; b++)
+		{
+			int bucket = descending ? n_buckets-1-b : b;
+			int c = counts[bucket];
+			counts[bucket]=pos;
+			pos+=c;
+		}
+
+		for(int ind=0; ind<n; ind++)
+		{
+			int i = (src==null) ? ind : src[ind];
+			int bucket = ((vals[i]-min)>>>shift)&mask;
+			dst[counts[bucket]]=i;
+			counts[bucket]++;
+		}
+	}
+
+	/**
+	 * Does the value at index i come before the value at index j in the sort? Equal values are ordered by index
+	 */
+	protected static boolean precedes(double[] vals, int i, int j, boolean descending)
+	{
+		double vi = vals[i];
+		double vj = vals[j];
+
+		if(vi==vj)
+		{
+			return i<j;
+		}
+
+		return descending ? vi>vj : vi<vj;
+	}
+
+	/**
+	 * Does the value at index i come before the value at index j in the sort? Equal values are ordered by index
+	 */
+	protected static boolean precedes(float[] vals, int i, int j, boolean descending)
+	{
+		float vi = vals[i];
+		float vj = vals[j];
+
+		if(vi==vj)
+		{
+			return i<j;
+		}
+
+		return descending ? vi>vj : vi<vj;
+	}
+
+	/**
+	 * Dual-pivot quicksort of the indexes order[left] to order[right] (both included) by their values.
+	 * The range is divided into the indexes before the first pivot, between the pivots and after the second pivot;
+	 * the pivots are taken at one and two thirds of the range, which avoids the quadratic case for already 
+	 * sorted values
+	 * @param vals Values to be sorted
+	 * @param order Indexes to be sorted
+	 * @param left First position in order (included)
+	 * @param right Last position in order (included)
+	 * @param descending Sort from the largest to the smallest value?
+	 */
+	protected static void sortIndexes(double[] vals, int[] order, int left, int right, boolean descending)
+	{
+		while(right-left>=INSERTION_SORT_THRESHOLD)
+		{
+			int third = (right-left)/3;
+			swap(order, left, left+third);
+			swap(order, right, right-third);
+
+			if(precedes(vals, order[right], order[left], descending))
+			{
+				swap(order, left, right);
+			}
+
+			int p = order[left];
+			int q = order[right];
+
+			// order[left+1 .. lt-1] before p, order[gt+1 .. right-1] after q, order[k .. gt] not yet visited
+			int lt = left+1;
+			int gt = right-1;
+
+			for(int k=lt; k<=gt; k++)
+			{
+				int e = order[k];
+
+				if(precedes(vals, e, p, descending))
+				{
+					order[k]=order[lt];
+					order[lt]=e;
+					lt++;
+				} else if(precedes(vals, q, e, descending))
+				{
+					while(k<gt && precedes(vals, q, order[gt], descending))
+					{
+						gt--;
+					}
+					order[k]=order[gt];
+					order[gt]=e;
+					gt--;
+
+					e=order[k];
+					if(precedes(vals, e, p, descending))
+					{
+						order[k]=order[lt];
+						order[lt]=e;
+						lt++;
+					}
+				}
+			}
+
+			// Pivots to their final positions
+			lt--;
+			gt++;
+			order[left]=order[lt];
+			order[lt]=p;
+			order[right]=order[gt];
+			order[gt]=q;
+
+			sortIndexes(vals, order, left, lt-1, descending);
+			sortIndexes(vals, order, gt+1, right, descending);
+
+			// Continue with the middle part
+			left=lt+1;
+			right=gt-1;
+		}
+
+		for(int i=left+1; i<=right; i++)
+		{
+			int e = order[i];
+			int j = i-1;
+
+			while(j>=left && precedes(vals, e, order[j], descending))
+			{
+				order[j+1]=order[j];
+				j--;
+			}
+			order[j+1]=e;
+		}
+	}
+
+	/**
+	 * Dual-pivot quicksort of indexes by float values, see sortIndexes(double[], int[], int, int, boolean)
+	 */
+	protected static void sortIndexes(float[] vals, int[] order, int left, int right, boolean descending)
+	{
+		while(right-left>=INSERTION_SORT_THRESHOLD)
+		{
+			int third = (right-left)/3;
+			swap(order, left, left+third);
+			swap(order, right, right-third);
+
+			if(precedes(vals, order[right], order[left], descending))
+			{
+				swap(order, left, right);
+			}
+
+			int p = order[left];
+			int q = order[right];
+
+			int lt = left+1;
+			int gt = right-1;
+
+			for(int k=lt; k<=gt; k++)
+			{
+				int e = order[k];
+
+				if(precedes(vals, e, p, descending))
+				{
+					order[k]=order[lt];
+					order[lt]=e;
+					lt++;
+				} else if(precedes(vals, q, e, descending))
+				{
+					while(k<gt && precedes(vals, q, order[gt], descending))
+					{
+						gt--;
+					}
+					order[k]=order[gt];
+					order[gt]=e;
+					gt--;
+
+					e=order[k];
+					if(precedes(vals, e, p, descending))
+					{
+						order[k]=order[lt];
+						order[lt]=e;
+						lt++;
+					}
+				}
+			}
+
+			lt--;
+			gt++;
+			order[left]=order[lt];
+			order[lt]=p;
+			order[right]=order[gt];
+			order[gt]=q;
+
+			sortIndexes(vals, order, left, lt-1, descending);
+			sortIndexes(vals, order, gt+1, right, descending);
+
+			left=lt+1;
+			right=gt-1;
+		}
+
+		for(int i=left+1; i<=right; i++)
+		{
+			int e = order[i];
+			int j = i-1;
+
+			while(j>=left && precedes(vals, e, order[j], descending))
+			{
+				order[j+1]=order[j];
+				j--;
+			}
+			order[j+1]=e;
+		}
+	}
+
+	/**
+	 * Selection of the k-th smallest element (0-based) among a[from] to a[to-1], by iterative
+	 * partitioning (quickselect with median-of-three pivot). The elements in the range are reordered
+	 * such that a[k] holds the k-th smallest element, with no larger element before and no smaller element after it
+	 * @param a Array of values, partially reordered by this function
+	 * @param from First index of the range (included)
+	 * @param to Last index of the range (excluded)
+	 * @param k Index of the desired element, from&lt;=k&lt;to
+	 * @return The k-th smallest value
+	 */
+	public static int select(int[] a, int from, int to, int k)
+	{
+		int left = from;
+		int right = to-1;
+
+		while(right>left)
+		{
+			int middle = (left+right)>>>1;
+
+			// Median of three as pivot, placed in a[middle]
+			if(a[middle]<a[left]) { swap(a, middle, left); }
+			if(a[right]<a[left]) { swap(a, right, left); }
+			if(a[right]<a[middle]) { swap(a, right, middle); }
+
+			int pivot = a[middle];
+
+			int i = left;
+			int j = right;
+
+			while(i<=j)
+			{
+				while(a[i]<pivot) { i++; }
+				while(a[j]>pivot) { j--; }
+				if(i<=j)
+				{
+					swap(a, i, j);
+					i++;
+					j--;
+				}
+			}
+
+			// Continue in the part containing k
+			if(k<=j)
+			{
+				right=j;
+			} else if(k>=i)
+			{
+				left=i;
+			} else
+			{
+				return a[k];
+			}
+		}
+
+		return a[k];
+	}
+
+	/**
+	 * Selection of the k-th smallest element (0-based) among a[from] to a[to-1], see select(int[], int, int, int)
+	 * @param a Array of values, partially reordered by this function. Must not contain NaN
+	 * @param from First index of the range (included)
+	 * @param to Last index of the range (excluded)
+	 * @param k Index of the desired element, from&lt;=k&lt;to
+	 * @return The k-th smallest value
+	 */
+	public static double select(double[] a, int from, int to, int k)
+	{
+		int left = from;
+		int right = to-1;
+
+		while(right>left)
+		{
+			int middle = (left+right)>>>1;
+
+			if(a[middle]<a[left]) { swap(a, middle, left); }
+			if(a[right]<a[left]) { swap(a, right, left); }
+			if(a[right]<a[middle]) { swap(a, right, middle); }
+
+			double pivot = a[middle];
+
+			int i = left;
+			int j = right;
+
+			while(i<=j)
+			{
+				while(a[i]<pivot) { i++; }
+				while(a[j]>pivot) { j--; }
+				if(i<=j)
+				{
+					swap(a, i, j);
+					i++;
+					j--;
+				}
+			}
+
+			if(k<=j)
+			{
+				right=j;
+			} else if(k>=i)
+			{
+				left=i;
+			} else
+			{
+				return a[k];
+			}
+		}
+
+		return a[k];
+	}
+
+	/** Exchange two elements of an array */
+	protected static void swap(int[] a, int i, int j)
+	{
+		int tmp=a[i];
+		a[i]=a[j];
+		a[j]=tmp;
+	}
+
+	/** Exchange two elements of an array */
+	protected static void swap(double[] a, int i, int j)
+	{
+		double tmp=a[i];
+		a[i]=a[j];
+		a[j]=tmp;
+	}
+
 }
@@ -47,27 +47,46 @@ public class FitParabola {
 	{
 		// The constants a,b,c for cx^2 + bx + a
 		double [] params = new double[3];
+
+		fitParabola(vals, 0, vals.length, params);
+
+		return params;
+	}
+
+	/**
+	 * Fits a parabola (a + bx + cx^2) to a series of values (vals[offset] to vals[offset+length-1]), 
+	 * without memory allocation. The values are regularly spaced, and the x coordinate is assumed to be
+	 * 0,1,2,3... starting at vals[offset]. The regressors are evaluated on the fly rather than stored, with the
+	 * same arithmetic as in fitParabola(double[]), so the results are identical
+	 * @param vals Array containing the values defining the parabola to be fitted
+	 * @param offset Index of the first value to be used (x=0)
+	 * @param length Number of values to be used
+	 * @param params Output array of three values, receives the coefficients a, b, c for the parabolic fit. Order (offset, linear, squared)
+	 */
+
+	public static void fitParabola(double [] vals, int offset, int length, double [] params)
+	{
 		// No values provided, return a=b=c=0
-		if(vals.length==0)
+		if(length==0)
 		{
 			// no values provided, return all coefficients 0
 			params[0]=0; // a as offset
 			params[1]=0; // b in of x terms
 			params[2]=0; // c in front of x^2 terms
-			return params;
+			return;
 		}
 		// only 1 value provided, store this in constant
 		// also, negative value in the quadratic term to make peak at x=0
-		if(vals.length==1)
+		if(length==1)
 		{
 
-			params[0]=vals[0]; // a as offset, this is the actual value
+			params[0]=vals[offset]; // a as offset, this is the actual value
 			params[1]=0; // b: no linear contribution
 			params[2]=-1; // c negative to have a maximum, about 1 unit wide
-			return params;
+			return;
 		}
 		// two values provided, place apex of parabola on the second element (index 1)
-		if(vals.length==2)
+		if(length==2)
 		{
 			// Now we have:
 			// v=cx^2 + bx + a = val[x], for x=0 and x=1
@@ -88,11 +107,11 @@ public class FitParabola {
 			// dv/dx(1)=2*(v0-v1)+2*v1-2*v0=0
 
 			// Transcripte to the params (params[0]=a, params[1]=b, params[2]=c)
-			params[0]=vals[0];
-			params[1]=2*vals[1]-2*vals[0];
-			params[2]=vals[0]-vals[1];
+			params[0]=vals[offset];
+			params[1]=2*vals[offset+1]-2*vals[offset];
+			params[2]=vals[offset]-vals[offset+1];
 			// return the fitted coefficients
-			return params;
+			return;
 		}
 
 		// General case, we have at least three values
@@ -104,76 +123,79 @@ public class FitParabola {
 		// from a, b and c we will then calculate the usual coefficients for the fit parabola such that:
 		// y = p0 + p1*x + p2*x^2
 		// and return (p0,p1,p2) as the output of the function
+		// The regressors are not stored but evaluated element by element where needed, with the same
+		// arithmetic as if they were stored
 
 
 		// To start with, we need the mean x value. We assume regular x-spacing of the values 
 		// vals provided to this function, and so this is:
-		double xbar=((double)vals.length-1)/2.0; // Average x value for the regularly spaced 
+		double xbar=((double)length-1)/2.0; // Average x value for the regularly spaced 
 		// x values
 
 		// Define the regressor for the linear contribution: x-xbar
-		double x_regression[] = new double[vals.length]; 
-
-		for(int ind=0; ind<x_regression.length; ind++)
-		{
-			x_regression[ind]=(double)ind-xbar; // This is the linear regressor, x-mean(x) for regularly 
-			// spaced x values 
-		}
-
+		// This is the linear regressor, x-mean(x) for regularly spaced x values 
 
 		// Normalize to length 1
-		double n_x_regression = VectorTools.vector_norm(x_regression);
-		for(int ind=0; ind<x_regression.length; ind++)
+		double sum_x2=0;
+		for(int ind=0; ind<length; ind++)
 		{
-			x_regression[ind]=x_regression[ind]/n_x_regression;
+			double x_regression=(double)ind-xbar;
+			sum_x2=sum_x2+x_regression*x_regression;
 		}
+		double n_x_regression = Math.sqrt(sum_x2);
 
 		// Linear regression formula
-		double b=VectorTools.scalar_product(vals,x_regression)/n_x_regression;
+		double sum_b=0;
+		for(int ind=0; ind<length; ind++)
+		{
+			double x_regression=((double)ind-xbar)/n_x_regression;
+			sum_b=sum_b+vals[offset+ind]*x_regression;
+		}
+		double b=sum_b/n_x_regression;
 
 		// Same approach with the squared term, for obtaining the coefficient c
 		// First, define the regressor ((x-xbar)^2 - mean((x-xbar)^2)
 
-		double x2_regression[] = new double[vals.length]; // Initialize
-
 		// Center on the xbar value such as to have the square regressor orthogonal to the linear regressor
-		// meaning 0 scalar product between the two regressors
-		for(int ind=0; ind<x_regression.length; ind++)
+		// meaning 0 scalar product between the two regressors; this is (x-xbar)^2
+		double sum_sq=0;
+		for(int ind=0; ind<length; ind++)
 		{
-			x2_regression[ind]=((double)ind-xbar)*((double)ind-xbar); // This is (x-xbar)^2
+			double x2_regression=((double)ind-xbar)*((double)ind-xbar);
+			sum_sq=sum_sq+x2_regression;
 		}
 
 		// Subtract the average value to get the final regressor ((x-xbar)^2 - mean((x-xbar)^2)
 		// This is again to have the square regressor orthogonal to the linear regression
-		double x2_regression_mean = VectorTools.mean(x2_regression);
-		for(int ind=0; ind<x_regression.length; ind++)
-		{
-			x2_regression[ind]=x2_regression[ind]-x2_regression_mean;
-		}
+		double x2_regression_mean = sum_sq/(double)length;
 
 		// Normalize to length 1
-		double n_x2_regression = VectorTools.vector_norm(x2_regression);
-		for(int ind=0; ind<x_regression.length; ind++)
+		double sum_x4=0;
+		for(int ind=0; ind<length; ind++)
 		{
-			x2_regression[ind]=x2_regression[ind]/n_x2_regression;
+			double x2_regression=((double)ind-xbar)*((double)ind-xbar)-x2_regression_mean;
+			sum_x4=sum_x4+x2_regression*x2_regression;
 		}
+		double n_x2_regression = Math.sqrt(sum_x4);
 
-
-
-
-		double c=VectorTools.scalar_product(vals,x2_regression)/n_x2_regression;
+		double sum_c=0;
+		for(int ind=0; ind<length; ind++)
+		{
+			double x2_regression=(((double)ind-xbar)*((double)ind-xbar)-x2_regression_mean)/n_x2_regression;
+			sum_c=sum_c+vals[offset+ind]*x2_regression;
+		}
+		double c=sum_c/n_x2_regression;
 
 
 		// Since we have b and c now, we can calculate the offset from the mean values
 
-		double [] vals_reduced = new double[vals.length];
-
-		for(int ind=0; ind<vals.length; ind++)
+		double sum_a=0;
+		for(int ind=0; ind<length; ind++)
 		{
-			vals_reduced[ind] = vals[ind]-b*((double)ind-xbar)-c*((double)ind-xbar)*((double)ind-xbar);
+			sum_a=sum_a+(vals[offset+ind]-b*((double)ind-xbar)-c*((double)ind-xbar)*((double)ind-xbar));
 		}
 
-		double a = VectorTools.mean(vals_reduced); // Since the linear and square regressor both 
+		double a = sum_a/(double)length; // Since the linear and square regressor both 
 		// have an arithmetic mean of zero, the offset is directly from the mean of the values to be fitted
 
 
@@ -194,10 +216,6 @@ public class FitParabola {
 		// p2 = c
 		params[2]=c;
 
-
-		// Return the coefficients
-		return params;
-
 	}
 
 	/**
@@ -225,6 +243,32 @@ public class FitParabola {
 	 */
 
 	public static double[] fitParabolaFixedExtremum(double [] vals, int xm, boolean force_xm_in_array_domain)
+	{
+		// Initialize the coefficient vector p0,p1,p2. This will hold the coefficients for the 
+		// best fit y = p0 + p1*x + p2*x^2
+		
+		double [] params = new double[3];
+
+		fitParabolaFixedExtremum(vals, 0, vals.length, xm, force_xm_in_array_domain, params);
+
+		// return the coefficients
+		return params;
+	}
+
+	/**
+	 * Fits a parabola (a + bx + cx^2) to a series of values (vals[offset] to vals[offset+length-1]), 
+	 * but under the restriction that the appex has to occur at the x=xm, without memory allocation.
+	 * The x coordinate is 0,1,2,3... starting at vals[offset]
+	 * @param vals Array containing the values defining the parabola to be fitted
+	 * @param offset Index of the first value to be used (x=0)
+	 * @param length Number of values to be used
+	 * @param xm Force location of the apex of the parabola.
+	 * @param force_xm_in_array_domain Force xm to be in the interval 0 .. length-1 ? 
+	 * @param params Output array of three values, receives the coefficients a, b, c for the parabolic fit. Order (offset, linear, squared)
+	 */
+
+	public static void fitParabolaFixedExtremum(double [] vals, int offset, int length, int xm, 
+			boolean force_xm_in_array_domain, double [] params)
 	{
 		if(force_xm_in_array_domain)
 		{
@@ -233,43 +277,38 @@ public class FitParabola {
 				xm=0;
 			}
 
-			if(xm>=vals.length)
+			if(xm>=length)
 			{
-				xm=vals.length-1;
+				xm=length-1;
 			}
 		}
 		
-		// Initialize the coefficient vector p0,p1,p2. This will hold the coefficients for the 
-		// best fit y = p0 + p1*x + p2*x^2
-		
-		double [] params = new double[3];
-		
 		// No values provided, return a=b=c=0
-		if(vals.length==0)
+		if(length==0)
 		{
 			params[0]=0;
 			params[1]=0;
 			params[2]=0;
-			return params;
+			return;
 		}
 		// only 1 value provided, store this in constant. Also, make quadratic term negative to 
 		// have peak at x=0
-		if(vals.length==1)
+		if(length==1)
 		{
-			params[0]=vals[0];
+			params[0]=vals[offset];
 			params[1]=0;
 			params[2]=-1;
-			return params;
+			return;
 		}
 		// two values provided, xm can be either on the first (xm=0) or second element (xm=1)
-		if(vals.length==2)
+		if(length==2)
 		{
 			// The apex is the first element, step is 1
 			if(xm==0)
 			{
-				params[0]=vals[0];
+				params[0]=vals[offset];
 				params[1]=0; // p1=0 guarantees apex at origin x=0
-				params[2]=vals[1]-vals[0]; // to match the second value, x^2=1^2=1 here. 
+				params[2]=vals[offset+1]-vals[offset]; // to match the second value, x^2=1^2=1 here. 
 			} else // the desired apex is on the second element
 			{
 				// Again, no fitting needed, but arithmetic considerations only
@@ -279,32 +318,20 @@ public class FitParabola {
 				// y=v1 + x^2*(v0-v1) -2*x*(v0-v1) + (v0-v1)
 				// y=v0 -2*x(v0-v1)+x^2(v0-v1)
 
-				params[0]=vals[0];
-				params[1]=2*(vals[1]-vals[0]);
-				params[2]=-vals[1]-vals[0];
+				params[0]=vals[offset];
+				params[1]=2*(vals[offset+1]-vals[offset]);
+				params[2]=-vals[offset+1]-vals[offset];
 			}
 
 
-			return params;
+			return;
 		}
 
 		// General case, we have at least three values
 
 		// For simplification, express x relative to xm and y relative to the value at xm
-		double H     = vals[xm];
-
-
-		double [] x_rel = new double[vals.length];
-		double []relative_height = new double[vals.length];
-
-		for(int x_ind=0; x_ind<vals.length; x_ind++)
-		{
-			x_rel[x_ind]=(double)x_ind-xm;
-			relative_height[x_ind]=vals[x_ind]-H;
-
-		}
-
-
+		// (x_rel=x-xm and relative_height=vals[x]-H, evaluated element by element below)
+		double H     = vals[offset+xm];
 
 		// Here the idea is basically to find the best coefficients (in the least squares sense) such that
 		// relative_height =  x_rel*b + x_rel^2*c
@@ -347,16 +374,27 @@ public class FitParabola {
 		// A-b*B-c*C =>
 		// b=(c*C-A)/B
 
-		// Since we now have the formula, Java implementation:
-		double [] x_rel2 = VectorTools.element_wise_multiplication(x_rel,x_rel);
-		double [] x_rel3 = VectorTools.element_wise_multiplication(x_rel2,x_rel);
-		double [] x_rel4 = VectorTools.element_wise_multiplication(x_rel3,x_rel);
+		// Since we now have the formula, Java implementation, with the sums accumulated element by element:
+		double A = 0;
+		double B = 0;
+		double C = 0;
+		double D = 0;
+		double E = 0;
 
-		double A = VectorTools.scalar_product(relative_height,x_rel);
-		double B = VectorTools.sum(x_rel2);
-		double C = VectorTools.sum(x_rel3);
-		double D = VectorTools.scalar_product(relative_height,x_rel2);
-		double E = VectorTools.sum(x_rel4);
+		for(int x_ind=0; x_ind<length; x_ind++)
+		{
+			double x_rel=(double)x_ind-xm;
+			double relative_height=vals[offset+x_ind]-H;
+			double x_rel2=x_rel*x_rel;
+			double x_rel3=x_rel2*x_rel;
+			double x_rel4=x_rel3*x_rel;
+
+			A=A+relative_height*x_rel;
+			B=B+x_rel2;
+			C=C+x_rel3;
+			D=D+relative_height*x_rel2;
+			E=E+x_rel4;
+		}
 
 		double c=(D*B-A*C)/(E*B-C*C);
 		double b=(A-c*C)/B;
@@ -373,12 +411,6 @@ public class FitParabola {
 		params[1]=b-2*c*xm;
 		params[2]=c;
 
-		// return the coefficients
-		return params;
-
-
-
-
 	}
 
 }
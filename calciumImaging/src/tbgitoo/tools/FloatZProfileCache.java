@@ -0,0 +1,135 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import ij.ImageStack;
+
+/**
+ * Transposed copy of a 32-bit stack, see ZProfileCache. rows[y][getOffset(x,y)+z] holds the value of 
+ * the pixel x,y in slice z+1
+ * @author thomasbraschler
+ *
+ */
+public class FloatZProfileCache extends ZProfileCache {
+
+	/** Transposed pixel values, rows[y][getOffset(x,y)+z] */
+	protected final float[][] rows;
+
+	/**
+	 * Build the transposed copy from a 32-bit stack. Each slice of the stack is read exactly once
+	 * @param stack The stack to be transposed, must be 32-bit
+	 */
+	public FloatZProfileCache(ImageStack stack)
+	{
+		this(stack, null);
+	}
+
+	/**
+	 * Build the transposed copy of some pixels of a 32-bit stack. Each slice of the stack is read exactly once
+	 * @param stack The stack to be transposed, must be 32-bit
+	 * @param spans The pixels to be transposed, null for all the pixels
+	 */
+	public FloatZProfileCache(ImageStack stack, PixelSpans spans)
+	{
+		super(stack, spans);
+
+		if(stack.getBitDepth()!=32)
+		{
+			throw new IllegalArgumentException("FloatZProfileCache requires a 32-bit stack");
+		}
+
+		rows=new float[height][];
+
+		for(int y=0; y<height; y++)
+		{
+			rows[y]=new float[getRowLength(y)*depth];
+		}
+
+		PixelSpans transposed = getSpans();
+
+		float[][] slices = new float[FRAME_BLOCK][];
+
+		for(int z_start=0; z_start<depth; z_start+=FRAME_BLOCK)
+		{
+			int n_block = Math.min(FRAME_BLOCK, depth-z_start);
+
+			for(int b=0; b<n_block; b++)
+			{
+				slices[b]=(float[])stack.getPixels(z_start+b+1);
+			}
+
+			for(int y=0; y<height; y++)
+			{
+				float[] row = rows[y];
+				int slice_offset = y*width;
+				int profile_offset = z_start;
+
+				for(int s=transposed.getFirstSpan(y); s<transposed.getFirstSpan(y+1); s++)
+				{
+					for(int x=transposed.getStart(s); x<transposed.getEnd(s); x++)
+					{
+						for(int b=0; b<n_block; b++)
+						{
+							row[profile_offset+b]=slices[b][slice_offset+x];
+						}
+						profile_offset+=depth;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return 32;
+	}
+
+	/**
+	 * Direct access to the transposed data of a row; the z-profile of pixel x starts at getOffset(x, y).
+	 * The array must not be modified
+	 * @param y The y-position of the row
+	 * @return Array holding the consecutive z-profiles of all the pixels in the row
+	 */
+	public float[] getRow(int y)
+	{
+		return rows[y];
+	}
+
+	@Override
+	public void getProfile(int x, int y, int[] vals)
+	{
+		float[] row = rows[y];
+		int offset = getOffset(x, y);
+		for(int z=0; z<depth; z++)
+		{
+			vals[z]=(int)row[offset+z];
+		}
+	}
+
+	@Override
+	public void getProfile(int x, int y, double[] vals)
+	{
+		float[] row = rows[y];
+		int offset = getOffset(x, y);
+		for(int z=0; z<depth; z++)
+		{
+			vals[z]=row[offset+z];
+		}
+	}
+
+}
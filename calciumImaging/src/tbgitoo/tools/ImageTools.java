@@ -16,7 +16,9 @@
 
 package tbgitoo.tools;
 
+import ij.ImagePlus;
 import ij.ImageStack;
+import ij.WindowManager;
 import ij.process.ByteProcessor;
 
 
@@ -28,6 +30,11 @@ import ij.process.ByteProcessor;
  */
 public class ImageTools {
 	
+		/**
+		 * Entry of the mask choices standing for the selection of the analyzed image rather than a mask image
+		 */
+		public static final String SELECTION_CHOICE="<selection>";
+	
 		/**
 		 * Get a new stack, byte format, of the same dimensions as given stack
 		 * Typically useful for creating mask or greyscale images for the output of some operation
@@ -53,4 +60,37 @@ public class ImageTools {
 
 		}
 
+		/**
+		 * Choices for a mask in a plugin dialog: the selection of the analyzed image, followed by the titles of 
+		 * all the open images
+		 * @return SELECTION_CHOICE and the image titles, in the order of WindowManager.getIDList()
+		 */
+		public static String[] getMaskChoices()
+		{
+			String[] titles = WindowManager.getImageTitles();
+
+			String[] choices = new String[titles.length+1];
+
+			choices[0]=SELECTION_CHOICE;
+
+			System.arraycopy(titles, 0, choices, 1, titles.length);
+
+			return choices;
+		}
+
+		/**
+		 * The mask image chosen in a plugin dialog, with the choices of getMaskChoices
+		 * @param choice_index Index of the choice
+		 * @return The mask image, or null if the selection of the analyzed image was chosen
+		 */
+		public static ImagePlus getMaskChoice(int choice_index)
+		{
+			if(choice_index<=0)
+			{
+				return null;
+			}
+
+			return WindowManager.getImage(WindowManager.getIDList()[choice_index-1]);
+		}
+
 }
@@ -0,0 +1,301 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapping of a file of any size, with reads at absolute 64-bit positions.
+ * A single MappedByteBuffer is limited to 2 GB, so the file is mapped in chunks of CHUNK_SIZE bytes
+ * (smaller chunks can be requested, to test the reads across chunks on small files).
+ * Each chunk extends OVERLAP bytes into the next one, so that any value of up to 8 bytes is within
+ * a single chunk, whatever its alignment.
+ * The pages are only read from disk when accessed, and are kept by the operating system rather than
+ * in the Java heap. The reads do not change the state of the buffers, so that several threads can
+ * read concurrently.
+ * The mapping is released when the object is garbage collected (Java 8 has no explicit unmapping).
+ * @author thomasbraschler
+ *
+ */
+public class MappedFile {
+
+	/** log2 of the chunk size */
+	public static final int CHUNK_BITS=30;
+
+	/** Size of the chunks, 1 GB */
+	public static final long CHUNK_SIZE=1L<<CHUNK_BITS;
+
+	/** Bytes mapped beyond the end of each chunk */
+	public static final int OVERLAP=8;
+
+	/** log2 of the chunk size of this mapping */
+	protected final int chunk_bits;
+
+	/** Size of the chunks of this mapping, in bytes */
+	protected final long chunk_size;
+
+	/** The chunks, chunk k starting at k*chunk_size */
+	protected final MappedByteBuffer[] chunks;
+
+	/** File length, in bytes */
+	protected final long length;
+
+	/** Byte order of the multi-byte values */
+	protected ByteOrder order=ByteOrder.BIG_ENDIAN;
+
+	/**
+	 * Map a file, read-only
+	 * @param file The file
+	 * @throws IOException If the file cannot be opened or mapped
+	 */
+	public MappedFile(File file) throws IOException
+	{
+		this(file, CHUNK_BITS);
+	}
+
+	/**
+	 * Map a file, read-only, in chunks of a given size
+	 * @param file The file
+	 * @param chunk_bits log2 of the chunk size, from 3 (8 bytes, the largest value read) to CHUNK_BITS
+	 * @throws IOException If the file cannot be opened or mapped
+	 */
+	public MappedFile(File file, int chunk_bits) throws IOException
+	{
+		if(chunk_bits<3 || chunk_bits>CHUNK_BITS)
+		{
+			throw new IllegalArgumentException("The chunk size needs to be between 8 bytes and "+CHUNK_SIZE+" bytes");
+		}
+
+		this.chunk_bits=chunk_bits;
+		this.chunk_size=1L<<chunk_bits;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+
+			length = channel.size();
+
+			int n_chunks = (int)((length+chunk_size-1)>>>chunk_bits);
+
+			chunks = new MappedByteBuffer[n_chunks];
+
+			for(int k=0; k<n_chunks; k++)
+			{
+				long start = ((long)k)<<chunk_bits;
+				chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunk_size+OVERLAP, length-start));
+			}
+		} finally
+		{
+			// The mapping stays valid after closing the file
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return File length, in bytes
+	 */
+	public long length()
+	{
+		return length;
+	}
+
+	/**
+	 * Set the byte order of the multi-byte values; to be done before reading
+	 * @param order The byte order, for instance ByteOrder.LITTLE_ENDIAN for Intel byte order
+	 */
+	public void setOrder(ByteOrder order)
+	{
+		this.order=order;
+
+		for(MappedByteBuffer chunk : chunks)
+		{
+			chunk.order(order);
+		}
+	}
+
+	/**
+	 * @return Size of the chunks, in bytes
+	 */
+	public long getChunkSize()
+	{
+		return chunk_size;
+	}
+
+	/**
+	 * @return Byte order of the multi-byte values
+	 */
+	public ByteOrder getOrder()
+	{
+		return order;
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return Chunk containing the position
+	 */
+	protected final MappedByteBuffer getChunk(long position)
+	{
+		return chunks[(int)(position>>>chunk_bits)];
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return Position within its chunk
+	 */
+	protected final int getIndex(long position)
+	{
+		return (int)(position&(chunk_size-1));
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return The byte at the position
+	 */
+	public final byte getByte(long position)
+	{
+		return getChunk(position).get(getIndex(position));
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return The 16-bit value at the position
+	 */
+	public final short getShort(long position)
+	{
+		return getChunk(position).getShort(getIndex(position));
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return The 32-bit integer at the position
+	 */
+	public final int getInt(long position)
+	{
+		return getChunk(position).getInt(getIndex(position));
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return The 64-bit integer at the position
+	 */
+	public final long getLong(long position)
+	{
+		return getChunk(position).getLong(getIndex(position));
+	}
+
+	/**
+	 * @param position Position in the file
+	 * @return The 32-bit floating point value at the position
+	 */
+	public final float getFloat(long position)
+	{
+		return getChunk(position).getFloat(getIndex(position));
+	}
+
+	/**
+	 * View of a chunk from a position, with its own position and the byte order of the file,
+	 * so that bulk reads do not interfere between threads
+	 * @param position Position in the file
+	 * @return The view, positioned at the position
+	 */
+	protected ByteBuffer getView(long position)
+	{
+		ByteBuffer view = getChunk(position).duplicate();
+		view.order(order);
+		view.position(getIndex(position));
+		return view;
+	}
+
+	/**
+	 * Number of consecutive values that can be read from the chunk of a position
+	 * @param position Position of the first value
+	 * @param remaining Number of values still to be read
+	 * @param size Size of the values, in bytes
+	 * @return Number of values starting within the chunk, at most remaining
+	 */
+	protected int getCount(long position, int remaining, int size)
+	{
+		long in_chunk = chunk_size-getIndex(position);
+		return (int)Math.min(remaining, (in_chunk+size-1)/size);
+	}
+
+	/**
+	 * Copy consecutive bytes
+	 * @param position Position of the first byte
+	 * @param dst Receives the bytes
+	 * @param offset First index in dst
+	 * @param n Number of bytes
+	 */
+	public void get(long position, byte[] dst, int offset, int n)
+	{
+		while(n>0)
+		{
+			int count = getCount(position, n, 1);
+			getView(position).get(dst, offset, count);
+			position+=count;
+			offset+=count;
+			n-=count;
+		}
+	}
+
+	/**
+	 * Copy consecutive 16-bit values
+	 * @param position Position of the first value
+	 * @param dst Receives the values
+	 * @param offset First index in dst
+	 * @param n Number of values
+	 */
+	public void get(long position, short[] dst, int offset, int n)
+	{
+		while(n>0)
+		{
+			int count = getCount(position, n, 2);
+			getView(position).asShortBuffer().get(dst, offset, count);
+			position+=2L*count;
+			offset+=count;
+			n-=count;
+		}
+	}
+
+	/**
+	 * Copy consecutive 32-bit floating point values
+	 * @param position Position of the first value
+	 * @param dst Receives the values
+	 * @param offset First index in dst
+	 * @param n Number of values
+	 */
+	public void get(long position, float[] dst, int offset, int n)
+	{
+		while(n>0)
+		{
+			int count = getCount(position, n, 4);
+			getView(position).asFloatBuffer().get(dst, offset, count);
+			position+=4L*count;
+			offset+=count;
+			n-=count;
+		}
+	}
+
+}
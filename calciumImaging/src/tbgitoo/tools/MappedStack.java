@@ -0,0 +1,852 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Stack read directly from a memory-mapped file (see MappedFile), for uncompressed TIFF, BigTIFF and raw
+ * recordings of any size. Opening only reads the file structure, and the pixels are read from the mapping
+ * when needed, without copying the recording into the Java heap.
+ * Slices are copied out of the mapping when requested as processors or pixel arrays (display and other
+ * plugins); the z-profiles can also be read without going through the slices (getProfiles), which is what the
+ * peak detection uses.
+ *
+ * Supported are greyscale images with one sample per pixel: 8-bit and 16-bit unsigned integers and
+ * 32-bit floating point, uncompressed and stored in strips. Large stacks written by ImageJ, with
+ * a single image file directory and the slices following the first one, are recognized from the
+ * ImageJ image description.
+ *
+ * The data of each slice is stored in strips of rows_per_strip rows, the offsets of all the strips are
+ * kept in strip_offsets (strips_per_slice entries per slice).
+ * @author thomasbraschler
+ *
+ */
+public class MappedStack extends VirtualStack {
+
+	/** TIFF tags used */
+	protected static final int TAG_IMAGE_WIDTH=256;
+	protected static final int TAG_IMAGE_LENGTH=257;
+	protected static final int TAG_BITS_PER_SAMPLE=258;
+	protected static final int TAG_COMPRESSION=259;
+	protected static final int TAG_IMAGE_DESCRIPTION=270;
+	protected static final int TAG_STRIP_OFFSETS=273;
+	protected static final int TAG_SAMPLES_PER_PIXEL=277;
+	protected static final int TAG_ROWS_PER_STRIP=278;
+	protected static final int TAG_STRIP_BYTE_COUNTS=279;
+	protected static final int TAG_TILE_WIDTH=322;
+	protected static final int TAG_SAMPLE_FORMAT=339;
+
+	/** The mapped file */
+	protected final MappedFile file;
+
+	/** Stack width, in pixels */
+	protected final int stack_width;
+
+	/** Stack height, in pixels */
+	protected final int stack_height;
+
+	/** Bit depth, 8, 16 or 32 (floating point) */
+	protected final int bit_depth;
+
+	/** Rows per strip */
+	protected final int rows_per_strip;
+
+	/** Strips per slice */
+	protected final int strips_per_slice;
+
+	/** Position of each strip in the file, strips_per_slice entries per slice */
+	protected final long[] strip_offsets;
+
+	/** Number of slices */
+	protected final int depth;
+
+	/** Profiles read from the mapping, created when first needed */
+	protected ZProfileCache profiles;
+
+	/**
+	 * Stack from the strips of a mapped file
+	 * @param file The mapped file, with the byte order set
+	 * @param width Width, in pixels
+	 * @param height Height, in pixels
+	 * @param bit_depth 8, 16 or 32 (floating point)
+	 * @param rows_per_strip Number of rows per strip (height for slices stored in a single block)
+	 * @param strip_offsets Positions of the strips in the file, (height+rows_per_strip-1)/rows_per_strip entries per slice
+	 */
+	public MappedStack(MappedFile file, int width, int height, int bit_depth, int rows_per_strip, long[] strip_offsets)
+	{
+		super(width, height, null, null);
+
+		if(bit_depth!=8 && bit_depth!=16 && bit_depth!=32)
+		{
+			throw new IllegalArgumentException("MappedStack requires 8-bit, 16-bit or 32-bit greyscale data");
+		}
+
+		this.file=file;
+		this.stack_width=width;
+		this.stack_height=height;
+		this.bit_depth=bit_depth;
+		this.rows_per_strip=Math.max(Math.min(rows_per_strip, height), 1);
+		this.strips_per_slice=(height+this.rows_per_strip-1)/this.rows_per_strip;
+		this.strip_offsets=strip_offsets;
+		this.depth=strip_offsets.length/strips_per_slice;
+	}
+
+	/**
+	 * Map a raw file: slices of width*height pixels, stored one after the other
+	 * @param raw_file The file
+	 * @param width Width, in pixels
+	 * @param height Height, in pixels
+	 * @param bit_depth 8, 16 or 32 (floating point)
+	 * @param offset Position of the first slice in the file, in bytes (header size)
+	 * @param gap Bytes between the end of a slice and the start of the next one
+	 * @param little_endian Intel byte order (true) or Motorola byte order (false)
+	 * @param n_slices Number of slices, 0 for as many as the file holds
+	 * @return The stack
+	 * @throws IOException If the file cannot be mapped or is too short
+	 */
+	public static MappedStack openRaw(File raw_file, int width, int height, int bit_depth, long offset, long gap,
+			boolean little_endian, int n_slices) throws IOException
+	{
+		return openRaw(raw_file, width, height, bit_depth, offset, gap, little_endian, n_slices, MappedFile.CHUNK_BITS);
+	}
+
+	/**
+	 * Map a raw file in chunks of a given size (see MappedFile(File, int)): slices of width*height pixels, 
+	 * stored one after the other
+	 * @param raw_file The file
+	 * @param width Width, in pixels
+	 * @param height Height, in pixels
+	 * @param bit_depth 8, 16 or 32 (floating point)
+	 * @param offset Position of the first slice in the file, in bytes (header size)
+	 * @param gap Bytes between the end of a slice and the start of the next one
+	 * @param little_endian Intel byte order (true) or Motorola byte order (false)
+	 * @param n_slices Number of slices, 0 for as many as the file holds
+	 * @param chunk_bits log2 of the chunk size
+	 * @return The stack
+	 * @throws IOException If the file cannot be mapped or is too short
+	 */
+	public static MappedStack openRaw(File raw_file, int width, int height, int bit_depth, long offset, long gap,
+			boolean little_endian, int n_slices, int chunk_bits) throws IOException
+	{
+		MappedFile mapped = new MappedFile(raw_file, chunk_bits);
+		mapped.setOrder(little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+		long slice_bytes = ((long)width)*height*(bit_depth/8);
+		long available = (mapped.length()-offset+gap)/(slice_bytes+gap);
+
+		if(n_slices<=0 || n_slices>available)
+		{
+			n_slices = (int)Math.min(available, Integer.MAX_VALUE);
+		}
+
+		if(n_slices<1)
+		{
+			throw new IOException("The file "+raw_file+" is too short for a single slice");
+		}
+
+		long[] offsets = new long[n_slices];
+
+		for(int z=0; z<n_slices; z++)
+		{
+			offsets[z]=offset+z*(slice_bytes+gap);
+		}
+
+		return new MappedStack(mapped, width, height, bit_depth, height, offsets);
+	}
+
+	/**
+	 * Map an uncompressed TIFF or BigTIFF file. All the images with the dimensions and type of the first one
+	 * become slices, others (such as thumbnails) are skipped
+	 * @param tiff_file The file
+	 * @return The stack
+	 * @throws IOException If the file cannot be mapped, or is not a TIFF file of the supported kind
+	 */
+	public static MappedStack openTiff(File tiff_file) throws IOException
+	{
+		return openTiff(tiff_file, MappedFile.CHUNK_BITS);
+	}
+
+	/**
+	 * Map an uncompressed TIFF or BigTIFF file in chunks of a given size (see MappedFile(File, int)), 
+	 * otherwise as openTiff(File)
+	 * @param tiff_file The file
+	 * @param chunk_bits log2 of the chunk size
+	 * @return The stack
+	 * @throws IOException If the file cannot be mapped, or is not a TIFF file of the supported kind
+	 */
+	public static MappedStack openTiff(File tiff_file, int chunk_bits) throws IOException
+	{
+		MappedFile mapped = new MappedFile(tiff_file, chunk_bits);
+
+		if(mapped.length()<16)
+		{
+			throw new IOException(tiff_file+" is not a TIFF file");
+		}
+
+		int byte_order = mapped.getShort(0);
+
+		if(byte_order==0x4949)
+		{
+			mapped.setOrder(ByteOrder.LITTLE_ENDIAN);
+		} else if(byte_order!=0x4d4d)
+		{
+			throw new IOException(tiff_file+" is not a TIFF file");
+		}
+
+		int magic = mapped.getShort(2)&0xffff;
+		boolean big = magic==43;
+
+		if(magic!=42 && !big)
+		{
+			throw new IOException(tiff_file+" is not a TIFF file");
+		}
+
+		long ifd = big ? mapped.getLong(8) : mapped.getInt(4)&0xffffffffL;
+
+		// Layout of the first image, which all slices need to share
+		int width=0;
+		int height=0;
+		int bit_depth=0;
+		int rows_per_strip=0;
+		int n_images_imagej=0;
+
+		long[] offsets = new long[16];
+		int n_offsets=0;
+		int n_slices=0;
+
+		// Limit to the number of directories that fit into the file, against loops
+		long max_ifds = mapped.length()/(big ? 20 : 14);
+
+		for(long n_ifd=0; ifd!=0 && n_ifd<max_ifds; n_ifd++)
+		{
+			if(ifd<0 || ifd>=mapped.length())
+			{
+				throw new IOException("Invalid image file directory in "+tiff_file);
+			}
+
+			TiffDirectory dir = new TiffDirectory(mapped, ifd, big);
+
+			if(dir.get(TAG_COMPRESSION, 1)!=1)
+			{
+				throw new IOException("Only uncompressed TIFF files can be mapped, "+tiff_file+" is compressed");
+			}
+			if(dir.has(TAG_TILE_WIDTH))
+			{
+				throw new IOException("Only TIFF files with strips can be mapped, "+tiff_file+" has tiles");
+			}
+			if(dir.get(TAG_SAMPLES_PER_PIXEL, 1)!=1)
+			{
+				throw new IOException("Only greyscale TIFF files can be mapped, "+tiff_file+" has several samples per pixel");
+			}
+
+			int w = (int)dir.get(TAG_IMAGE_WIDTH, 0);
+			int h = (int)dir.get(TAG_IMAGE_LENGTH, 0);
+			int bits = (int)dir.get(TAG_BITS_PER_SAMPLE, 1);
+			int format = (int)dir.get(TAG_SAMPLE_FORMAT, 1);
+
+			if((bits==8 || bits==16) && format!=1)
+			{
+				throw new IOException("Only unsigned 8-bit and 16-bit integers can be mapped");
+			}
+			if(bits==32 && format!=3)
+			{
+				throw new IOException("Only floating point 32-bit data can be mapped");
+			}
+
+			if(n_ifd==0)
+			{
+				width=w;
+				height=h;
+				bit_depth=bits;
+				rows_per_strip=(int)Math.min(dir.get(TAG_ROWS_PER_STRIP, h), h);
+
+				if(bit_depth!=8 && bit_depth!=16 && bit_depth!=32)
+				{
+					throw new IOException("Only 8-bit, 16-bit and 32-bit data can be mapped");
+				}
+
+				n_images_imagej = getImageJImages(dir.getString(TAG_IMAGE_DESCRIPTION));
+			} else if(w!=width || h!=height || bits!=bit_depth
+					|| Math.min(dir.get(TAG_ROWS_PER_STRIP, h), h)!=rows_per_strip)
+			{
+				// Other kind of image, not a slice
+				ifd = dir.getNext();
+				continue;
+			}
+
+			long[] strips = dir.getArray(TAG_STRIP_OFFSETS);
+			int strips_per_slice = (height+rows_per_strip-1)/rows_per_strip;
+
+			if(strips==null || strips.length<strips_per_slice)
+			{
+				throw new IOException("Missing strips in "+tiff_file);
+			}
+
+			if(n_offsets+strips_per_slice>offsets.length)
+			{
+				offsets = Arrays.copyOf(offsets, Math.max(2*offsets.length, n_offsets+strips_per_slice));
+			}
+
+			System.arraycopy(strips, 0, offsets, n_offsets, strips_per_slice);
+			n_offsets+=strips_per_slice;
+			n_slices++;
+
+			ifd = dir.getNext();
+		}
+
+		if(n_slices==0)
+		{
+			throw new IOException("No image in "+tiff_file);
+		}
+
+		long slice_bytes = ((long)width)*height*(bit_depth/8);
+		int strips_per_slice = (height+rows_per_strip-1)/rows_per_strip;
+
+		// Large stacks written by ImageJ have a single directory, the slices follow the first one
+		if(n_slices==1 && n_images_imagej>1 && isContiguous(offsets, 0, strips_per_slice, width, rows_per_strip, bit_depth))
+		{
+			long first = offsets[0];
+			int n = (int)Math.min(n_images_imagej, (mapped.length()-first)/slice_bytes);
+
+			long[] slice_offsets = new long[n];
+
+			for(int z=0; z<n; z++)
+			{
+				slice_offsets[z]=first+z*slice_bytes;
+			}
+
+			return new MappedStack(mapped, width, height, bit_depth, height, slice_offsets);
+		}
+
+		// Slices stored as single blocks need a single offset each
+		boolean contiguous = true;
+
+		for(int z=0; z<n_slices && contiguous; z++)
+		{
+			contiguous = isContiguous(offsets, z*strips_per_slice, strips_per_slice, width, rows_per_strip, bit_depth);
+		}
+
+		if(contiguous && strips_per_slice>1)
+		{
+			long[] slice_offsets = new long[n_slices];
+
+			for(int z=0; z<n_slices; z++)
+			{
+				slice_offsets[z]=offsets[z*strips_per_slice];
+			}
+
+			return new MappedStack(mapped, width, height, bit_depth, height, slice_offsets);
+		}
+
+		return new MappedStack(mapped, width, height, bit_depth, rows_per_strip, Arrays.copyOf(offsets, n_offsets));
+	}
+
+	/**
+	 * Do the strips of a slice follow each other without gap?
+	 * @param offsets Strip offsets
+	 * @param first Index of the first strip of the slice
+	 * @param n Number of strips of the slice
+	 * @param width Width, in pixels
+	 * @param rows_per_strip Rows per strip
+	 * @param bit_depth Bit depth
+	 * @return true if each strip starts where the previous one ends
+	 */
+	protected static boolean isContiguous(long[] offsets, int first, int n, int width, int rows_per_strip, int bit_depth)
+	{
+		long strip_bytes = ((long)width)*rows_per_strip*(bit_depth/8);
+
+		for(int s=1; s<n; s++)
+		{
+			if(offsets[first+s]!=offsets[first+s-1]+strip_bytes)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of images declared in an ImageJ image description ("images=n")
+	 * @param description The image description, may be null
+	 * @return The number of images, 0 if not an ImageJ description
+	 */
+	protected static int getImageJImages(String description)
+	{
+		if(description==null || !description.startsWith("ImageJ"))
+		{
+			return 0;
+		}
+
+		for(String line : description.split("\n"))
+		{
+			if(line.startsWith("images="))
+			{
+				try
+				{
+					return Integer.parseInt(line.substring(7).trim());
+				} catch(NumberFormatException e)
+				{
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The mapped file
+	 */
+	public MappedFile getFile()
+	{
+		return file;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return stack_width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return stack_height;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return depth;
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return bit_depth;
+	}
+
+	@Override
+	public String getSliceLabel(int n)
+	{
+		return null;
+	}
+
+	/**
+	 * Position of a pixel in the file
+	 * @param x x-position
+	 * @param y y-position
+	 * @param z Slice index, 0-based
+	 * @return Position of the pixel value, in bytes
+	 */
+	public long getPosition(int x, int y, int z)
+	{
+		int strip = y/rows_per_strip;
+		return strip_offsets[z*strips_per_slice+strip]
+				+(((long)(y-strip*rows_per_strip))*stack_width+x)*(bit_depth/8);
+	}
+
+	/**
+	 * Copy a slice out of the mapping
+	 * @param n Slice number, 1-based
+	 * @return New pixel array (byte[], short[] or float[])
+	 */
+	@Override
+	public Object getPixels(int n)
+	{
+		int z = n-1;
+		int n_pixels = stack_width*stack_height;
+
+		Object pixels;
+
+		switch(bit_depth)
+		{
+		case 8:
+			pixels = new byte[n_pixels];
+			break;
+		case 16:
+			pixels = new short[n_pixels];
+			break;
+		default:
+			pixels = new float[n_pixels];
+		}
+
+		for(int strip=0; strip<strips_per_slice; strip++)
+		{
+			int first_row = strip*rows_per_strip;
+			int n_values = Math.min(rows_per_strip, stack_height-first_row)*stack_width;
+			long position = strip_offsets[z*strips_per_slice+strip];
+			int offset = first_row*stack_width;
+
+			switch(bit_depth)
+			{
+			case 8:
+				file.get(position, (byte[])pixels, offset, n_values);
+				break;
+			case 16:
+				file.get(position, (short[])pixels, offset, n_values);
+				break;
+			default:
+				file.get(position, (float[])pixels, offset, n_values);
+			}
+		}
+
+		return pixels;
+	}
+
+	/**
+	 * Copy a slice out of the mapping
+	 * @param n Slice number, 1-based
+	 * @return New processor with the slice
+	 */
+	@Override
+	public ImageProcessor getProcessor(int n)
+	{
+		Object pixels = getPixels(n);
+
+		switch(bit_depth)
+		{
+		case 8:
+			return new ByteProcessor(stack_width, stack_height, (byte[])pixels, null);
+		case 16:
+			return new ShortProcessor(stack_width, stack_height, (short[])pixels, null);
+		default:
+			return new FloatProcessor(stack_width, stack_height, (float[])pixels, null);
+		}
+	}
+
+	/**
+	 * The z-profiles, read from the mapping rather than from a transposed copy
+	 * @return The profiles, with the interface of the transposed copies
+	 */
+	public ZProfileCache getProfiles()
+	{
+		if(profiles==null)
+		{
+			profiles=new MappedZProfiles(this);
+		}
+		return profiles;
+	}
+
+	/**
+	 * Z-profiles read from the mapping. The values of a z-profile are one slice apart in the file,
+	 * but neighbouring pixels of a row are read together, so that the pages read stay in use
+	 */
+	protected static class MappedZProfiles extends ZProfileCache
+	{
+		protected final MappedStack stack;
+
+		protected MappedZProfiles(MappedStack stack)
+		{
+			super(stack);
+			this.stack=stack;
+		}
+
+		@Override
+		public int getBitDepth()
+		{
+			return stack.bit_depth;
+		}
+
+		@Override
+		public void getProfile(int x, int y, int[] vals)
+		{
+			MappedFile file = stack.file;
+			int strip = y/stack.rows_per_strip;
+			long within = (((long)(y-strip*stack.rows_per_strip))*width+x)*(stack.bit_depth/8);
+			int index = strip;
+
+			switch(stack.bit_depth)
+			{
+			case 8:
+				for(int z=0; z<depth; z++)
+				{
+					vals[z]=file.getByte(stack.strip_offsets[index]+within)&0xff;
+					index+=stack.strips_per_slice;
+				}
+				break;
+			case 16:
+				for(int z=0; z<depth; z++)
+				{
+					vals[z]=file.getShort(stack.strip_offsets[index]+within)&0xffff;
+					index+=stack.strips_per_slice;
+				}
+				break;
+			default:
+				for(int z=0; z<depth; z++)
+				{
+					vals[z]=(int)file.getFloat(stack.strip_offsets[index]+within);
+					index+=stack.strips_per_slice;
+				}
+			}
+		}
+
+		@Override
+		public void getProfile(int x, int y, double[] vals)
+		{
+			MappedFile file = stack.file;
+			int strip = y/stack.rows_per_strip;
+			long within = (((long)(y-strip*stack.rows_per_strip))*width+x)*(stack.bit_depth/8);
+			int index = strip;
+
+			switch(stack.bit_depth)
+			{
+			case 8:
+				for(int z=0; z<depth; z++)
+				{
+					vals[z]=file.getByte(stack.strip_offsets[index]+within)&0xff;
+					index+=stack.strips_per_slice;
+				}
+				break;
+			case 16:
+				for(int z=0; z<depth; z++)
+				{
+					vals[z]=file.getShort(stack.strip_offsets[index]+within)&0xffff;
+					index+=stack.strips_per_slice;
+				}
+				break;
+			default:
+				for(int z=0; z<depth; z++)
+				{
+					vals[z]=file.getFloat(stack.strip_offsets[index]+within);
+					index+=stack.strips_per_slice;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The entries of a TIFF image file directory needed for mapping
+	 */
+	protected static class TiffDirectory
+	{
+		protected final MappedFile file;
+		protected final boolean big;
+
+		/** Tag, type, count and position of the value (or of the offset to the value) of each entry */
+		protected final int[] tags;
+		protected final int[] types;
+		protected final long[] counts;
+		protected final long[] positions;
+
+		/** Position of the next directory, 0 if none */
+		protected final long next;
+
+		/**
+		 * Read a directory
+		 * @param file The mapped file
+		 * @param position Position of the directory
+		 * @param big BigTIFF (64-bit offsets)?
+		 */
+		protected TiffDirectory(MappedFile file, long position, boolean big)
+		{
+			this.file=file;
+			this.big=big;
+
+			int n = big ? (int)file.getLong(position) : file.getShort(position)&0xffff;
+			long entry = position+(big ? 8 : 2);
+			int entry_size = big ? 20 : 12;
+
+			tags = new int[n];
+			types = new int[n];
+			counts = new long[n];
+			positions = new long[n];
+
+			for(int ind=0; ind<n; ind++)
+			{
+				tags[ind]=file.getShort(entry)&0xffff;
+				types[ind]=file.getShort(entry+2)&0xffff;
+				counts[ind]=big ? file.getLong(entry+4) : file.getInt(entry+4)&0xffffffffL;
+
+				// The value is in the entry if it fits, otherwise the entry holds its offset
+				long value_position = entry+(big ? 12 : 8);
+				long size = counts[ind]*getTypeSize(types[ind]);
+
+				if(size>(big ? 8 : 4))
+				{
+					value_position = big ? file.getLong(value_position) : file.getInt(value_position)&0xffffffffL;
+				}
+
+				positions[ind]=value_position;
+				entry+=entry_size;
+			}
+
+			next = big ? file.getLong(entry) : file.getInt(entry)&0xffffffffL;
+		}
+
+		/**
+		 * @param type TIFF field type
+		 * @return Size of a value of this type, in bytes
+		 */
+		protected static int getTypeSize(int type)
+		{
+			switch(type)
+			{
+			case 3: // SHORT
+			case 8: // SSHORT
+				return 2;
+			case 4: // LONG
+			case 9: // SLONG
+			case 11: // FLOAT
+			case 13: // IFD
+				return 4;
+			case 5: // RATIONAL
+			case 10: // SRATIONAL
+			case 12: // DOUBLE
+			case 16: // LONG8
+			case 17: // SLONG8
+			case 18: // IFD8
+				return 8;
+			default: // BYTE, ASCII, SBYTE, UNDEFINED
+				return 1;
+			}
+		}
+
+		/**
+		 * @return Position of the next directory, 0 if none
+		 */
+		protected long getNext()
+		{
+			return next;
+		}
+
+		/**
+		 * @param tag The tag
+		 * @return Index of the entry, -1 if not present
+		 */
+		protected int find(int tag)
+		{
+			for(int ind=0; ind<tags.length; ind++)
+			{
+				if(tags[ind]==tag)
+				{
+					return ind;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @param tag The tag
+		 * @return true if the entry is present
+		 */
+		protected boolean has(int tag)
+		{
+			return find(tag)>=0;
+		}
+
+		/**
+		 * Integer value of an entry at an index
+		 * @param ind Index of the entry
+		 * @param k Index of the value
+		 * @return The value
+		 */
+		protected long getValue(int ind, long k)
+		{
+			switch(types[ind])
+			{
+			case 3:
+				return file.getShort(positions[ind]+2*k)&0xffff;
+			case 4:
+			case 13:
+				return file.getInt(positions[ind]+4*k)&0xffffffffL;
+			case 16:
+			case 18:
+				return file.getLong(positions[ind]+8*k);
+			default:
+				return file.getByte(positions[ind]+k)&0xff;
+			}
+		}
+
+		/**
+		 * First integer value of an entry
+		 * @param tag The tag
+		 * @param default_value Value if the entry is not present
+		 * @return The value
+		 */
+		protected long get(int tag, long default_value)
+		{
+			int ind = find(tag);
+
+			if(ind<0 || counts[ind]<1)
+			{
+				return default_value;
+			}
+			return getValue(ind, 0);
+		}
+
+		/**
+		 * All the integer values of an entry
+		 * @param tag The tag
+		 * @return The values, null if the entry is not present
+		 */
+		protected long[] getArray(int tag)
+		{
+			int ind = find(tag);
+
+			if(ind<0)
+			{
+				return null;
+			}
+
+			long[] values = new long[(int)counts[ind]];
+
+			for(int k=0; k<values.length; k++)
+			{
+				values[k]=getValue(ind, k);
+			}
+			return values;
+		}
+
+		/**
+		 * ASCII value of an entry
+		 * @param tag The tag
+		 * @return The text, null if the entry is not present
+		 */
+		protected String getString(int tag)
+		{
+			int ind = find(tag);
+
+			if(ind<0)
+			{
+				return null;
+			}
+
+			byte[] text = new byte[(int)Math.min(counts[ind], 1<<20)];
+			file.get(positions[ind], text, 0, text.length);
+
+			int length = 0;
+			while(length<text.length && text[length]!=0)
+			{
+				length++;
+			}
+
+			return new String(text, 0, length, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+}
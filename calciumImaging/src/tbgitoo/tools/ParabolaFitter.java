@@ -0,0 +1,416 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+/**
+ * Parabola fits (as FitParabola.fitParabola and FitParabola.fitParabolaFixedExtremum) to many windows of the
+ * same series of values, typically around all the peak candidates of a z-profile.
+ * Both fits only need the moments sum(v), sum(x*v) and sum(x^2*v) of the values in the window, plus terms
+ * that depend on the window length (and apex position) only. The moments are obtained from prefix sums
+ * built once per series (setValues), and the length-dependent terms are cached, so that each fit takes
+ * a constant time instead of a time proportional to the window length.
+ * To keep the precision of a direct summation, the prefix sums restart every BLOCK values, with x counted
+ * from the start of the block and the values taken relative to the mean of the block, so that a large baseline
+ * (as in 16-bit recordings) does not swamp the moments; a window then spans at most two blocks. Windows longer
+ * than BLOCK are fitted directly with FitParabola.
+ * The results are the same as those of FitParabola up to rounding errors. Not thread-safe, each thread
+ * needs its own fitter.
+ * @author thomasbraschler
+ *
+ */
+public class ParabolaFitter {
+
+	/** Length of the blocks over which the prefix sums are accumulated, and maximal window length for the prefix sums */
+	public static final int BLOCK=128;
+
+	/** The series of values, as passed to setValues */
+	protected double[] vals;
+
+	/** Number of values in the series */
+	protected int n;
+
+	/** Prefix sums of v, x*v and x^2*v, from the start of the block of each position (x counted from the block start)
+	 * up to the position (excluded) */
+	protected double[] q0;
+	protected double[] q1;
+	protected double[] q2;
+
+	/** Sums of v, x*v and x^2*v over each complete block */
+	protected double[] t0;
+	protected double[] t1;
+	protected double[] t2;
+
+	/** Mean of the values of each block, subtracted from the values in the prefix sums of the block */
+	protected double[] block_mean;
+
+	/** Moments of the window of the last getMoments call, with x counted from the window start and the values
+	 * relative to m_ref */
+	protected double m0;
+	protected double m1;
+	protected double m2;
+
+	/** Reference subtracted from the values in the moments of the last getMoments call, the mean of the block of the
+	 * window start */
+	protected double m_ref;
+
+	/** Terms of the free fit, per window length: mean of x, sum (x-xbar)^2, mean (x-xbar)^2,
+	 * sum ((x-xbar)^2-mean (x-xbar)^2)^2. NaN if not yet calculated */
+	protected final double[] xbar = new double[BLOCK+1];
+	protected final double[] sum_x2 = new double[BLOCK+1];
+	protected final double[] x2_mean = new double[BLOCK+1];
+	protected final double[] sum_x4 = new double[BLOCK+1];
+
+	/** Terms of the fixed apex fit, per window length and apex position: sums of (x-xm), (x-xm)^2, (x-xm)^3 and
+	 * (x-xm)^4. Null if not yet calculated for a window length */
+	protected final double[][] S1 = new double[BLOCK+1][];
+	protected final double[][] B = new double[BLOCK+1][];
+	protected final double[][] C = new double[BLOCK+1][];
+	protected final double[][] E = new double[BLOCK+1][];
+
+	/**
+	 * Create a fitter
+	 * @param capacity Length of the series to be fitted
+	 */
+	public ParabolaFitter(int capacity)
+	{
+		allocate(capacity);
+
+		for(int length=0; length<=BLOCK; length++)
+		{
+			xbar[length]=Double.NaN;
+		}
+	}
+
+	/**
+	 * (Re)allocate the prefix sums
+	 * @param capacity Length of the series to be fitted
+	 */
+	protected void allocate(int capacity)
+	{
+		q0 = new double[capacity+1];
+		q1 = new double[capacity+1];
+		q2 = new double[capacity+1];
+
+		int n_blocks = capacity/BLOCK+1;
+		t0 = new double[n_blocks];
+		t1 = new double[n_blocks];
+		t2 = new double[n_blocks];
+		block_mean = new double[n_blocks];
+	}
+
+	/**
+	 * Set the series of values to be fitted, and build its prefix sums. The values must not be changed
+	 * while fitting
+	 * @param vals The values
+	 * @param n Number of values in vals to consider
+	 */
+	public void setValues(double[] vals, int n)
+	{
+		if(n+1>q0.length)
+		{
+			allocate(n);
+		}
+
+		this.vals=vals;
+		this.n=n;
+
+		for(int block=0; block*BLOCK<n; block++)
+		{
+			int end = Math.min((block+1)*BLOCK, n);
+
+			double sum=0;
+			for(int ind=block*BLOCK; ind<end; ind++)
+			{
+				sum+=vals[ind];
+			}
+
+			block_mean[block]=sum/(end-block*BLOCK);
+		}
+
+		double a0=0;
+		double a1=0;
+		double a2=0;
+
+		for(int ind=0; ind<n; ind++)
+		{
+			int x = ind%BLOCK;
+
+			// Start of a block
+			if(x==0)
+			{
+				a0=0;
+				a1=0;
+				a2=0;
+			}
+
+			q0[ind]=a0;
+			q1[ind]=a1;
+			q2[ind]=a2;
+
+			double v = vals[ind]-block_mean[ind/BLOCK];
+			a0+=v;
+			a1+=x*v;
+			a2+=x*x*v;
+
+			// End of a block
+			if(x==BLOCK-1)
+			{
+				t0[ind/BLOCK]=a0;
+				t1[ind/BLOCK]=a1;
+				t2[ind/BLOCK]=a2;
+			}
+		}
+
+		// End of the series, inside a block or at the start of a new (empty) block
+		if(n%BLOCK==0)
+		{
+			q0[n]=0;
+			q1[n]=0;
+			q2[n]=0;
+		} else
+		{
+			q0[n]=a0;
+			q1[n]=a1;
+			q2[n]=a2;
+		}
+	}
+
+	/**
+	 * Fit a parabola (a + bx + cx^2) to vals[offset] to vals[offset+length-1], with x=0 at vals[offset],
+	 * as FitParabola.fitParabola(double[], int, int, double[])
+	 * @param offset Index of the first value to be used (x=0)
+	 * @param length Number of values to be used
+	 * @param params Output array of three values, receives the coefficients a, b, c. Order (offset, linear, squared)
+	 */
+	public void fitParabola(int offset, int length, double[] params)
+	{
+		// Degenerate and long windows
+		if(length<3 || length>BLOCK)
+		{
+			FitParabola.fitParabola(vals, offset, length, params);
+			return;
+		}
+
+		if(Double.isNaN(xbar[length]))
+		{
+			cacheFreeFitTerms(length);
+		}
+
+		getMoments(offset, length);
+
+		double xb = xbar[length];
+
+		// Linear regression on x-xbar: sum v*(x-xbar)/sum (x-xbar)^2
+		double b = (m1-xb*m0)/sum_x2[length];
+
+		// Square regression on the centered (x-xbar)^2: sum v*((x-xbar)^2-mean)/sum ((x-xbar)^2-mean)^2
+		double c = (m2-2*xb*m1+xb*xb*m0-x2_mean[length]*m0)/sum_x4[length];
+
+		// Mean of the residuals; the linear regressor has zero sum
+		double a = m0/length-c*x2_mean[length];
+
+		// The moments are relative to m_ref, which only changes the constant term
+		params[0]=a-b*xb+c*xb*xb+m_ref;
+		params[1]=b-2*c*xb;
+		params[2]=c;
+	}
+
+	/**
+	 * Fit a parabola (a + bx + cx^2) with the apex at x=xm to vals[offset] to vals[offset+length-1], with x=0 at
+	 * vals[offset], as FitParabola.fitParabolaFixedExtremum(double[], int, int, int, boolean, double[])
+	 * @param offset Index of the first value to be used (x=0)
+	 * @param length Number of values to be used
+	 * @param xm Location of the apex of the parabola
+	 * @param force_xm_in_array_domain Force xm to be in the interval 0 .. length-1 ?
+	 * @param params Output array of three values, receives the coefficients a, b, c. Order (offset, linear, squared)
+	 */
+	public void fitParabolaFixedExtremum(int offset, int length, int xm, boolean force_xm_in_array_domain,
+			double[] params)
+	{
+		// Degenerate and long windows, and apex outside the window (no cached terms)
+		if(length<3 || length>BLOCK || ((xm<0 || xm>=length) && !force_xm_in_array_domain))
+		{
+			FitParabola.fitParabolaFixedExtremum(vals, offset, length, xm, force_xm_in_array_domain, params);
+			return;
+		}
+
+		xm = Math.min(Math.max(xm, 0), length-1);
+
+		if(B[length]==null)
+		{
+			cacheFixedExtremumFitTerms(length);
+		}
+
+		getMoments(offset, length);
+
+		// Apex value relative to the reference of the moments; the differences v-H do not depend on the reference
+		double H = vals[offset+xm]-m_ref;
+
+		double Bx = B[length][xm];
+		double Cx = C[length][xm];
+		double Ex = E[length][xm];
+
+		// A = sum (v-H)*(x-xm) and D = sum (v-H)*(x-xm)^2, from the moments relative to the window start
+		double A = m1-xm*m0-H*S1[length][xm];
+		double D = m2-2*xm*m1+xm*xm*m0-H*Bx;
+
+		double c=(D*Bx-A*Cx)/(Ex*Bx-Cx*Cx);
+		double b=(A-c*Cx)/Bx;
+		double a=vals[offset+xm];
+
+		params[0]=a-b*xm+c*xm*xm;
+		params[1]=b-2*c*xm;
+		params[2]=c;
+	}
+
+	/**
+	 * Moments sum(v-m_ref), sum(x*(v-m_ref)), sum(x^2*(v-m_ref)) of a window, with x=0 at the window start, into 
+	 * m0, m1, m2; m_ref is set to the mean of the block of the window start
+	 * @param offset First position of the window
+	 * @param length Length of the window, at most BLOCK
+	 */
+	protected void getMoments(int offset, int length)
+	{
+		int end = offset+length;
+		int block = offset/BLOCK;
+		int block_end = (block+1)*BLOCK;
+
+		m0=0;
+		m1=0;
+		m2=0;
+		m_ref=block_mean[block];
+
+		if(end<=block_end)
+		{
+			addBlockMoments(block, offset, end, offset);
+		} else
+		{
+			// The window extends into the next block
+			addBlockMoments(block, offset, block_end, offset);
+			addBlockMoments(block+1, block_end, end, offset);
+		}
+	}
+
+	/**
+	 * Add the moments of the positions from to to-1 within one block to m0, m1, m2, with x=0 at the window start
+	 * and the values relative to m_ref
+	 * @param block Index of the block
+	 * @param from First position (included)
+	 * @param to Last position (excluded), at most the end of the block
+	 * @param offset First position of the window
+	 */
+	protected void addBlockMoments(int block, int from, int to, int offset)
+	{
+		double p0;
+		double p1;
+		double p2;
+
+		// Sums over the positions from..to-1, with x counted from the block start
+		if(to==(block+1)*BLOCK)
+		{
+			p0 = t0[block]-q0[from];
+			p1 = t1[block]-q1[from];
+			p2 = t2[block]-q2[from];
+		} else
+		{
+			p0 = q0[to]-q0[from];
+			p1 = q1[to]-q1[from];
+			p2 = q2[to]-q2[from];
+		}
+
+		// Shift to x counted from the window start: x = x_block+s
+		double s = block*BLOCK-offset;
+
+		m0+=p0;
+		m1+=p1+s*p0;
+		m2+=p2+2*s*p1+s*s*p0;
+
+		// The prefix sums are relative to the mean of their block: add (mean-m_ref) times the sums of 1, x and x^2
+		// over the positions, x = from-offset .. to-offset-1
+		double d = block_mean[block]-m_ref;
+
+		if(d!=0)
+		{
+			double x0 = from-offset;
+			double x1 = to-offset-1;
+			double count = to-from;
+
+			m0+=d*count;
+			m1+=d*(x0+x1)*count/2;
+			m2+=d*(x1*(x1+1)*(2*x1+1)-(x0-1)*x0*(2*x0-1))/6;
+		}
+	}
+
+	/**
+	 * Calculate the terms of the free fit for a window length
+	 * @param length Window length
+	 */
+	protected void cacheFreeFitTerms(int length)
+	{
+		double xb=((double)length-1)/2.0;
+
+		double s2=0;
+		for(int ind=0; ind<length; ind++)
+		{
+			s2+=(ind-xb)*(ind-xb);
+		}
+
+		double mean = s2/length;
+
+		double s4=0;
+		for(int ind=0; ind<length; ind++)
+		{
+			double x2 = (ind-xb)*(ind-xb)-mean;
+			s4+=x2*x2;
+		}
+
+		sum_x2[length]=s2;
+		x2_mean[length]=mean;
+		sum_x4[length]=s4;
+		xbar[length]=xb;
+	}
+
+	/**
+	 * Calculate the terms of the fixed apex fit for a window length and all the apex positions in the window
+	 * @param length Window length
+	 */
+	protected void cacheFixedExtremumFitTerms(int length)
+	{
+		double[] s1 = new double[length];
+		double[] b = new double[length];
+		double[] c = new double[length];
+		double[] e = new double[length];
+
+		for(int xm=0; xm<length; xm++)
+		{
+			for(int ind=0; ind<length; ind++)
+			{
+				double x_rel = ind-xm;
+				s1[xm]+=x_rel;
+				b[xm]+=x_rel*x_rel;
+				c[xm]+=x_rel*x_rel*x_rel;
+				e[xm]+=x_rel*x_rel*x_rel*x_rel;
+			}
+		}
+
+		S1[length]=s1;
+		C[length]=c;
+		E[length]=e;
+		B[length]=b;
+	}
+
+}
@@ -0,0 +1,387 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+
+/**
+ * Utility functions for distributing per-pixel work over several processor cores.
+ * The xy plane of an image is cut into square tiles, and the tiles are processed
+ * on a work-stealing (ForkJoin) pool. Since every tile covers distinct pixels,
+ * tile processors can write their results for these pixels without any locking.
+ * When only part of the image is to be evaluated (mask or selection), the spans of active pixels
+ * (PixelSpans) are distributed instead, so that the work scales with the number of active pixels.
+ * @author thomasbraschler
+ *
+ */
+public class ParallelTools {
+
+	/**
+	 * Default edge length, in pixels, of the square tiles
+	 */
+	public static final int DEFAULT_TILE_SIZE=32;
+
+	/**
+	 * Work to be done on a rectangular tile of an image. Implementations are called concurrently
+	 * from several threads, but never twice for the same pixel
+	 */
+	public interface TileProcessor
+	{
+		/**
+		 * Process all the pixels x_start&lt;=x&lt;x_end, y_start&lt;=y&lt;y_end
+		 * @param x_start First x-position of the tile (included)
+		 * @param y_start First y-position of the tile (included)
+		 * @param x_end Last x-position of the tile (excluded)
+		 * @param y_end Last y-position of the tile (excluded)
+		 */
+		public void processTile(int x_start, int y_start, int x_end, int y_end);
+	}
+
+	/**
+	 * Work to be done on a span of active pixels of a row. Implementations are called concurrently
+	 * from several threads, but never twice for the same pixel
+	 */
+	public interface SpanProcessor
+	{
+		/**
+		 * Process all the pixels x_start&lt;=x&lt;x_end of row y
+		 * @param y y-position of the span
+		 * @param x_start First x-position of the span (included)
+		 * @param x_end Last x-position of the span (excluded)
+		 */
+		public void processSpan(int y, int x_start, int x_end);
+	}
+
+	/**
+	 * Effective number of threads to use
+	 * @param n_threads Requested number of threads, 0 or negative values mean all available processors
+	 * @return Number of threads, at least 1
+	 */
+	public static int getNumberOfThreads(int n_threads)
+	{
+		if(n_threads<=0)
+		{
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return n_threads;
+	}
+
+	/**
+	 * Process an image of the given dimensions tile by tile, with the default tile size
+	 * @param width Image width in pixels
+	 * @param height Image height in pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param processor The work to be done on each tile
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public static void processTiles(int width, int height, int n_threads,
+			TileProcessor processor, boolean showProgress)
+	{
+		processTiles(width, height, DEFAULT_TILE_SIZE, n_threads, processor, showProgress);
+	}
+
+	/**
+	 * Process an image of the given dimensions tile by tile. With a single thread, the
+	 * tiles are processed sequentially in the calling thread, otherwise a dedicated ForkJoin pool
+	 * is used and shut down again at the end. The function returns only when all the tiles are done
+	 * @param width Image width in pixels
+	 * @param height Image height in pixels
+	 * @param tile_size Edge length of the square tiles, in pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param processor The work to be done on each tile
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public static void processTiles(int width, int height, int tile_size, int n_threads,
+			TileProcessor processor, boolean showProgress)
+	{
+		int n = getNumberOfThreads(n_threads);
+
+		if(n==1)
+		{
+			processTiles(width, height, tile_size, (ForkJoinPool) null, processor, showProgress);
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(n);
+		try
+		{
+			processTiles(width, height, tile_size, pool, processor, showProgress);
+		} finally
+		{
+			pool.shutdown();
+		}
+
+	}
+
+	/**
+	 * Process an image of the given dimensions tile by tile on an existing ForkJoin pool, which is left
+	 * running at the end. Its threads, and so their thread-local buffers, can thus serve several images
+	 * in a row. The function returns only when all the tiles are done
+	 * @param width Image width in pixels
+	 * @param height Image height in pixels
+	 * @param tile_size Edge length of the square tiles, in pixels
+	 * @param pool The pool, null to process the tiles sequentially in the calling thread
+	 * @param processor The work to be done on each tile
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public static void processTiles(int width, int height, int tile_size, ForkJoinPool pool,
+			TileProcessor processor, boolean showProgress)
+	{
+		if(tile_size<1)
+		{
+			tile_size=1;
+		}
+
+		int n_tiles_x = (width+tile_size-1)/tile_size;
+		int n_tiles_y = (height+tile_size-1)/tile_size;
+
+		TileTask task = new TileTask(processor, width, height, tile_size, n_tiles_x,
+				0, n_tiles_x*n_tiles_y, new AtomicInteger(0), showProgress);
+
+		if(pool==null)
+		{
+			task.compute();
+		} else
+		{
+			pool.invoke(task);
+		}
+
+		if(showProgress)
+		{
+			IJ.showProgress(1.0);
+		}
+
+	}
+
+	/**
+	 * Process the active pixels of an image span by span. Consecutive spans are grouped into tasks of
+	 * about DEFAULT_TILE_SIZE*DEFAULT_TILE_SIZE pixels, the size of a default tile, which are distributed
+	 * as in processTiles. The function returns only when all the spans are done
+	 * @param spans The active pixels
+	 * @param n_threads Number of threads (0 for all available processors)
+	 * @param processor The work to be done on each span
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public static void processSpans(PixelSpans spans, int n_threads,
+			SpanProcessor processor, boolean showProgress)
+	{
+		int n = getNumberOfThreads(n_threads);
+
+		if(n==1)
+		{
+			processSpans(spans, (ForkJoinPool) null, processor, showProgress);
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(n);
+		try
+		{
+			processSpans(spans, pool, processor, showProgress);
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Process the active pixels of an image span by span on an existing ForkJoin pool, which is left
+	 * running at the end, as processTiles with a pool
+	 * @param spans The active pixels
+	 * @param pool The pool, null to process the spans sequentially in the calling thread
+	 * @param processor The work to be done on each span
+	 * @param showProgress Show the progress in the ImageJ progress bar
+	 */
+	public static void processSpans(PixelSpans spans, ForkJoinPool pool,
+			SpanProcessor processor, boolean showProgress)
+	{
+		SpanTask task = new SpanTask(processor, spans, DEFAULT_TILE_SIZE*DEFAULT_TILE_SIZE,
+				0, spans.getNumberOfSpans(), new AtomicInteger(0), showProgress);
+
+		if(pool==null)
+		{
+			task.compute();
+		} else
+		{
+			pool.invoke(task);
+		}
+
+		if(showProgress)
+		{
+			IJ.showProgress(1.0);
+		}
+	}
+
+	/**
+	 * Recursive splitting of a range of tiles, until a single tile remains
+	 * Tiles are numbered row by row, so that neighboring tasks work on neighboring image regions
+	 */
+	protected static class TileTask extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		protected final TileProcessor processor;
+		protected final int width;
+		protected final int height;
+		protected final int tile_size;
+		protected final int n_tiles_x;
+		/** First tile of this task (included) */
+		protected final int first_tile;
+		/** Last tile of this task (excluded) */
+		protected final int last_tile;
+		/** Shared counter of tiles done, for progress display */
+		protected final AtomicInteger n_done;
+		protected final boolean showProgress;
+
+		protected TileTask(TileProcessor processor, int width, int height, int tile_size, int n_tiles_x,
+				int first_tile, int last_tile, AtomicInteger n_done, boolean showProgress)
+		{
+			this.processor=processor;
+			this.width=width;
+			this.height=height;
+			this.tile_size=tile_size;
+			this.n_tiles_x=n_tiles_x;
+			this.first_tile=first_tile;
+			this.last_tile=last_tile;
+			this.n_done=n_done;
+			this.showProgress=showProgress;
+		}
+
+		@Override
+		protected void compute() {
+
+			if(last_tile-first_tile>1 && getPool()!=null && getPool().getParallelism()>1)
+			{
+				int middle = (first_tile+last_tile)>>>1;
+				invokeAll(new TileTask(processor, width, height, tile_size, n_tiles_x,
+						first_tile, middle, n_done, showProgress),
+						new TileTask(processor, width, height, tile_size, n_tiles_x,
+								middle, last_tile, n_done, showProgress));
+				return;
+			}
+
+			int n_tiles = n_tiles_x*((height+tile_size-1)/tile_size);
+
+			for(int tile=first_tile; tile<last_tile; tile++)
+			{
+				int x_start = (tile % n_tiles_x)*tile_size;
+				int y_start = (tile / n_tiles_x)*tile_size;
+
+				processor.processTile(x_start, y_start,
+						Math.min(x_start+tile_size, width), Math.min(y_start+tile_size, height));
+
+				int done = n_done.incrementAndGet();
+
+				if(showProgress)
+				{
+					IJ.showProgress(((double) done)/((double) n_tiles));
+				}
+			}
+
+		}
+
+	}
+
+	/**
+	 * Recursive splitting of a range of spans, until the range has at most grain pixels or
+	 * a single span remains
+	 */
+	protected static class SpanTask extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		protected final SpanProcessor processor;
+		protected final PixelSpans spans;
+		/** Number of pixels below which a range is not split further */
+		protected final int grain;
+		/** First span of this task (included) */
+		protected final int first_span;
+		/** Last span of this task (excluded) */
+		protected final int last_span;
+		/** Shared counter of pixels done, for progress display */
+		protected final AtomicInteger n_done;
+		protected final boolean showProgress;
+
+		protected SpanTask(SpanProcessor processor, PixelSpans spans, int grain,
+				int first_span, int last_span, AtomicInteger n_done, boolean showProgress)
+		{
+			this.processor=processor;
+			this.spans=spans;
+			this.grain=grain;
+			this.first_span=first_span;
+			this.last_span=last_span;
+			this.n_done=n_done;
+			this.showProgress=showProgress;
+		}
+
+		@Override
+		protected void compute() {
+
+			int n_pixels = spans.getPixelOffset(last_span)-spans.getPixelOffset(first_span);
+
+			if(last_span-first_span>1 && n_pixels>grain && getPool()!=null && getPool().getParallelism()>1)
+			{
+				int middle = (first_span+last_span)>>>1;
+				invokeAll(new SpanTask(processor, spans, grain, first_span, middle, n_done, showProgress),
+						new SpanTask(processor, spans, grain, middle, last_span, n_done, showProgress));
+				return;
+			}
+
+			if(first_span>=last_span)
+			{
+				return;
+			}
+
+			int y = spans.getRow(first_span);
+
+			// Pixels processed since the last progress update
+			int n_pending = 0;
+
+			for(int s=first_span; s<last_span; s++)
+			{
+				// Skip to the row of the span
+				while(s>=spans.getFirstSpan(y+1))
+				{
+					y++;
+				}
+
+				processor.processSpan(y, spans.getStart(s), spans.getEnd(s));
+
+				n_pending+=spans.getEnd(s)-spans.getStart(s);
+
+				if(n_pending>=grain || s==last_span-1)
+				{
+					int done = n_done.addAndGet(n_pending);
+					n_pending=0;
+
+					if(showProgress)
+					{
+						IJ.showProgress(((double) done)/((double) spans.getNumberOfPixels()));
+					}
+				}
+			}
+
+		}
+
+	}
+
+}
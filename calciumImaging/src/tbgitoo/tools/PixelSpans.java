@@ -0,0 +1,529 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import java.awt.Rectangle;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * The pixels of an image to be evaluated, as a run-length list of spans: for each row y, the intervals
+ * x_start&lt;=x&lt;x_end of consecutive active pixels. A mask image or a selection (ROI) is compiled once into
+ * this list, so that the analyses can visit the active pixels only, with a work proportional to their number
+ * rather than to the image size, instead of checking the mask at every pixel.
+ * As in PeakEventTable, the spans of all the rows are stored in compressed sparse row format: the spans of row y
+ * are those with index first_span[y] to first_span[y+1]-1.
+ * @author thomasbraschler
+ *
+ */
+public class PixelSpans {
+
+	/** Image width, in pixels */
+	protected final int width;
+
+	/** Image height, in pixels */
+	protected final int height;
+
+	/** Index of the first span of each row, height+1 elements */
+	protected final int[] first_span;
+
+	/** First pixel of each span (included) */
+	protected final int[] starts;
+
+	/** Last pixel of each span (excluded) */
+	protected final int[] ends;
+
+	/** Number of active pixels before each span, and in total (last element) */
+	protected final int[] pixel_offsets;
+
+	/**
+	 * Spans from their compressed sparse row representation
+	 * @param width Image width, in pixels
+	 * @param height Image height, in pixels
+	 * @param first_span Index of the first span of each row, height+1 elements
+	 * @param starts First pixel of each span (included); the spans of a row are ordered and do not overlap
+	 * @param ends Last pixel of each span (excluded)
+	 */
+	public PixelSpans(int width, int height, int[] first_span, int[] starts, int[] ends)
+	{
+		this.width=width;
+		this.height=height;
+		this.first_span=first_span;
+		this.starts=starts;
+		this.ends=ends;
+
+		int n_spans = first_span[height];
+		pixel_offsets = new int[n_spans+1];
+
+		for(int s=0; s<n_spans; s++)
+		{
+			pixel_offsets[s+1]=pixel_offsets[s]+ends[s]-starts[s];
+		}
+	}
+
+	/**
+	 * All the pixels of an image, one span per row
+	 * @param width Image width, in pixels
+	 * @param height Image height, in pixels
+	 * @return The spans
+	 */
+	public static PixelSpans all(int width, int height)
+	{
+		int[] first_span = new int[height+1];
+		int[] starts = new int[height];
+		int[] ends = new int[height];
+
+		for(int y=0; y<height; y++)
+		{
+			first_span[y+1]=y+1;
+			ends[y]=width;
+		}
+
+		return new PixelSpans(width, height, first_span, starts, ends);
+	}
+
+	/**
+	 * Active pixels from a mask image, as LocalPhaseTools.isInMask: the pixels with positive values in the first
+	 * slice of the mask. Pixels outside the mask image are not active
+	 * @param mask Mask image, positive values mean evaluate. Null to evaluate all the pixels
+	 * @param width Width of the image to be evaluated
+	 * @param height Height of the image to be evaluated
+	 * @return The spans
+	 */
+	public static PixelSpans fromMask(ImagePlus mask, int width, int height)
+	{
+		if(mask==null)
+		{
+			return all(width, height);
+		}
+
+		return fromProcessor(mask.getImageStack().getProcessor(1), width, height);
+	}
+
+	/**
+	 * Active pixels from a mask processor: the pixels with positive values. Pixels outside the mask are not active
+	 * @param mask Mask, positive values mean evaluate
+	 * @param width Width of the image to be evaluated
+	 * @param height Height of the image to be evaluated
+	 * @return The spans
+	 */
+	public static PixelSpans fromProcessor(ImageProcessor mask, int width, int height)
+	{
+		Builder builder = new Builder(width, height);
+
+		int mask_width = Math.min(mask.getWidth(), width);
+		int mask_height = Math.min(mask.getHeight(), height);
+
+		for(int y=0; y<mask_height; y++)
+		{
+			int start = -1;
+
+			for(int x=0; x<mask_width; x++)
+			{
+				boolean active = mask.getPixelValue(x, y)>0;
+
+				if(active && start<0)
+				{
+					start=x;
+				} else if(!active && start>=0)
+				{
+					builder.addSpan(y, start, x);
+					start=-1;
+				}
+			}
+
+			if(start>=0)
+			{
+				builder.addSpan(y, start, mask_width);
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Active pixels from a selection: the pixels inside an area selection
+	 * @param roi The selection. Null, or a selection that is not an area (line, point), to evaluate all the pixels
+	 * @param width Width of the image to be evaluated
+	 * @param height Height of the image to be evaluated
+	 * @return The spans
+	 */
+	public static PixelSpans fromRoi(Roi roi, int width, int height)
+	{
+		if(roi==null || !roi.isArea())
+		{
+			return all(width, height);
+		}
+
+		Rectangle bounds = roi.getBounds();
+
+		// Null for rectangles, otherwise non-zero inside the selection, over the bounding rectangle
+		ImageProcessor roi_mask = roi.getMask();
+
+		Builder builder = new Builder(width, height);
+
+		int x_from = Math.max(bounds.x, 0);
+		int x_to = Math.min(bounds.x+bounds.width, width);
+
+		for(int y=Math.max(bounds.y, 0); y<Math.min(bounds.y+bounds.height, height); y++)
+		{
+			if(roi_mask==null)
+			{
+				if(x_to>x_from)
+				{
+					builder.addSpan(y, x_from, x_to);
+				}
+				continue;
+			}
+
+			int start = -1;
+
+			for(int x=x_from; x<x_to; x++)
+			{
+				boolean active = roi_mask.get(x-bounds.x, y-bounds.y)!=0;
+
+				if(active && start<0)
+				{
+					start=x;
+				} else if(!active && start>=0)
+				{
+					builder.addSpan(y, start, x);
+					start=-1;
+				}
+			}
+
+			if(start>=0)
+			{
+				builder.addSpan(y, start, x_to);
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Active pixels from a mask image if given, or else from the selection of the image to be evaluated
+	 * @param imp Image to be evaluated; its area selection, if any, is used when there is no mask
+	 * @param mask Mask image, positive values mean evaluate. Null to use the selection of imp
+	 * @return The spans
+	 */
+	public static PixelSpans fromMaskOrSelection(ImagePlus imp, ImagePlus mask)
+	{
+		if(mask!=null)
+		{
+			return fromMask(mask, imp.getWidth(), imp.getHeight());
+		}
+
+		return fromRoi(imp.getRoi(), imp.getWidth(), imp.getHeight());
+	}
+
+	/**
+	 * @return Image width, in pixels
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Image height, in pixels
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return Total number of spans
+	 */
+	public int getNumberOfSpans()
+	{
+		return first_span[height];
+	}
+
+	/**
+	 * Index of the first span of a row; the spans of row y are getFirstSpan(y) to getFirstSpan(y+1)-1
+	 * @param y The row, 0&lt;=y&lt;=getHeight() (getHeight() gives the total number of spans)
+	 * @return Index of the first span of the row
+	 */
+	public int getFirstSpan(int y)
+	{
+		return first_span[y];
+	}
+
+	/**
+	 * @param s Index of the span
+	 * @return First pixel of the span (included)
+	 */
+	public int getStart(int s)
+	{
+		return starts[s];
+	}
+
+	/**
+	 * @param s Index of the span
+	 * @return Last pixel of the span (excluded)
+	 */
+	public int getEnd(int s)
+	{
+		return ends[s];
+	}
+
+	/**
+	 * Row of a span, by binary search over the rows
+	 * @param s Index of the span
+	 * @return The row y such that getFirstSpan(y)&lt;=s&lt;getFirstSpan(y+1)
+	 */
+	public int getRow(int s)
+	{
+		int low = 0;
+		int high = height-1;
+
+		while(low<high)
+		{
+			int middle = (low+high+1)>>>1;
+
+			if(first_span[middle]<=s)
+			{
+				low=middle;
+			} else
+			{
+				high=middle-1;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return Total number of active pixels
+	 */
+	public int getNumberOfPixels()
+	{
+		return pixel_offsets[getNumberOfSpans()];
+	}
+
+	/**
+	 * @param s Index of the span, 0&lt;=s&lt;=getNumberOfSpans()
+	 * @return Number of active pixels in the spans before s
+	 */
+	public int getPixelOffset(int s)
+	{
+		return pixel_offsets[s];
+	}
+
+	/**
+	 * Are all the pixels of the image active?
+	 * @return true if all the pixels are active
+	 */
+	public boolean isComplete()
+	{
+		return getNumberOfPixels()==width*height;
+	}
+
+	/**
+	 * Is a pixel active? Binary search over the spans of its row
+	 * @param x x-position
+	 * @param y y-position
+	 * @return true if the pixel is in a span
+	 */
+	public boolean contains(int x, int y)
+	{
+		if(x<0 || y<0 || x>=width || y>=height)
+		{
+			return false;
+		}
+
+		int low = first_span[y];
+		int high = first_span[y+1]-1;
+
+		while(low<=high)
+		{
+			int middle = (low+high)>>>1;
+
+			if(ends[middle]<=x)
+			{
+				low=middle+1;
+			} else if(starts[middle]>x)
+			{
+				high=middle-1;
+			} else
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Pixel indexes y*width+x of all the active pixels, row by row
+	 * @return New array of getNumberOfPixels() indexes
+	 */
+	public int[] getPixelIndexes()
+	{
+		int[] indexes = new int[getNumberOfPixels()];
+		int n = 0;
+
+		for(int y=0; y<height; y++)
+		{
+			for(int s=first_span[y]; s<first_span[y+1]; s++)
+			{
+				for(int x=starts[s]; x<ends[s]; x++)
+				{
+					indexes[n]=y*width+x;
+					n++;
+				}
+			}
+		}
+
+		return indexes;
+	}
+
+	/**
+	 * Pixels active in both sets of spans, merging the spans of each row
+	 * @param other The other spans, of the same image size
+	 * @return The common pixels
+	 */
+	public PixelSpans intersect(PixelSpans other)
+	{
+		Builder builder = new Builder(width, height);
+
+		for(int y=0; y<height; y++)
+		{
+			int s = getFirstSpan(y);
+			int t = other.getFirstSpan(y);
+
+			while(s<getFirstSpan(y+1) && t<other.getFirstSpan(y+1))
+			{
+				int start = Math.max(getStart(s), other.getStart(t));
+				int end = Math.min(getEnd(s), other.getEnd(t));
+
+				if(start<end)
+				{
+					builder.addSpan(y, start, end);
+				}
+
+				// Advance the span ending first
+				if(getEnd(s)<other.getEnd(t))
+				{
+					s++;
+				} else
+				{
+					t++;
+				}
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Active pixels of a band of rows
+	 * @param y_start First row of the band (included)
+	 * @param y_end Last row of the band (excluded)
+	 * @return The spans of the rows y_start to y_end-1, the other rows without active pixels
+	 */
+	public PixelSpans getRows(int y_start, int y_end)
+	{
+		Builder builder = new Builder(width, height);
+
+		for(int y=Math.max(y_start, 0); y<Math.min(y_end, height); y++)
+		{
+			for(int s=getFirstSpan(y); s<getFirstSpan(y+1); s++)
+			{
+				builder.addSpan(y, getStart(s), getEnd(s));
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Spans built row by row, in increasing order of y and x
+	 */
+	public static class Builder
+	{
+		protected final int width;
+		protected final int height;
+
+		protected int[] first_span;
+		protected int[] starts;
+		protected int[] ends;
+		protected int n_spans=0;
+
+		/** Row of the last span added; the rows up to it have their first span set */
+		protected int last_row=-1;
+
+		/**
+		 * Start an empty list of spans
+		 * @param width Image width, in pixels
+		 * @param height Image height, in pixels
+		 */
+		public Builder(int width, int height)
+		{
+			this.width=width;
+			this.height=height;
+			first_span = new int[height+1];
+			starts = new int[Math.max(height, 16)];
+			ends = new int[starts.length];
+		}
+
+		/**
+		 * Add a span; spans must be added in increasing order of y, and of x within a row, without overlap
+		 * @param y Row of the span
+		 * @param start First pixel (included)
+		 * @param end Last pixel (excluded)
+		 */
+		public void addSpan(int y, int start, int end)
+		{
+			while(last_row<y)
+			{
+				last_row++;
+				first_span[last_row]=n_spans;
+			}
+
+			if(n_spans==starts.length)
+			{
+				starts = java.util.Arrays.copyOf(starts, 2*n_spans);
+				ends = java.util.Arrays.copyOf(ends, 2*n_spans);
+			}
+
+			starts[n_spans]=start;
+			ends[n_spans]=end;
+			n_spans++;
+		}
+
+		/**
+		 * @return The spans added
+		 */
+		public PixelSpans build()
+		{
+			while(last_row<height)
+			{
+				last_row++;
+				first_span[last_row]=n_spans;
+			}
+
+			return new PixelSpans(width, height, first_span, java.util.Arrays.copyOf(starts, n_spans),
+					java.util.Arrays.copyOf(ends, n_spans));
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import ij.ImageStack;
+
+/**
+ * Transposed copy of a 16-bit stack, see ZProfileCache. rows[y][getOffset(x,y)+z] holds the value of 
+ * the pixel x,y in slice z+1 (unsigned 16-bit values)
+ * @author thomasbraschler
+ *
+ */
+public class ShortZProfileCache extends ZProfileCache {
+
+	/** Transposed pixel values, rows[y][getOffset(x,y)+z] */
+	protected final short[][] rows;
+
+	/**
+	 * Build the transposed copy from a 16-bit stack. Each slice of the stack is read exactly once
+	 * @param stack The stack to be transposed, must be 16-bit
+	 */
+	public ShortZProfileCache(ImageStack stack)
+	{
+		this(stack, null);
+	}
+
+	/**
+	 * Build the transposed copy of some pixels of a 16-bit stack. Each slice of the stack is read exactly once
+	 * @param stack The stack to be transposed, must be 16-bit
+	 * @param spans The pixels to be transposed, null for all the pixels
+	 */
+	public ShortZProfileCache(ImageStack stack, PixelSpans spans)
+	{
+		super(stack, spans);
+
+		if(stack.getBitDepth()!=16)
+		{
+			throw new IllegalArgumentException("ShortZProfileCache requires a 16-bit stack");
+		}
+
+		rows=new short[height][];
+
+		for(int y=0; y<height; y++)
+		{
+			rows[y]=new short[getRowLength(y)*depth];
+		}
+
+		PixelSpans transposed = getSpans();
+
+		short[][] slices = new short[FRAME_BLOCK][];
+
+		for(int z_start=0; z_start<depth; z_start+=FRAME_BLOCK)
+		{
+			int n_block = Math.min(FRAME_BLOCK, depth-z_start);
+
+			for(int b=0; b<n_block; b++)
+			{
+				slices[b]=(short[])stack.getPixels(z_start+b+1);
+			}
+
+			for(int y=0; y<height; y++)
+			{
+				short[] row = rows[y];
+				int slice_offset = y*width;
+				int profile_offset = z_start;
+
+				for(int s=transposed.getFirstSpan(y); s<transposed.getFirstSpan(y+1); s++)
+				{
+					for(int x=transposed.getStart(s); x<transposed.getEnd(s); x++)
+					{
+						for(int b=0; b<n_block; b++)
+						{
+							row[profile_offset+b]=slices[b][slice_offset+x];
+						}
+						profile_offset+=depth;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public int getBitDepth()
+	{
+		return 16;
+	}
+
+	/**
+	 * Direct access to the transposed data of a row; the z-profile of pixel x starts at getOffset(x, y); values are unsigned 16-bit.
+	 * The array must not be modified
+	 * @param y The y-position of the row
+	 * @return Array holding the consecutive z-profiles of all the pixels in the row
+	 */
+	public short[] getRow(int y)
+	{
+		return rows[y];
+	}
+
+	@Override
+	public void getProfile(int x, int y, int[] vals)
+	{
+		short[] row = rows[y];
+		int offset = getOffset(x, y);
+		for(int z=0; z<depth; z++)
+		{
+			vals[z]=row[offset+z]&0xffff;
+		}
+	}
+
+	@Override
+	public void getProfile(int x, int y, double[] vals)
+	{
+		short[] row = rows[y];
+		int offset = getOffset(x, y);
+		for(int z=0; z<depth; z++)
+		{
+			vals[z]=row[offset+z]&0xffff;
+		}
+	}
+
+}
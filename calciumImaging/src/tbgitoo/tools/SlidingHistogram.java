@@ -0,0 +1,159 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+/**
+ * Histogram of the values in a window sliding along a series, for running quantiles. Values enter and
+ * leave the window one at a time (add, remove), and the histogram is updated in constant time.
+ * The quantile is tracked by a cursor on the bin where the cumulative count reaches the desired fraction:
+ * since each update changes the cumulative counts by one, the cursor only moves over the (empty) bins
+ * between neighbouring values of the window, rather than the histogram being summed up for each quantile.
+ * The quantile has the definition of StatisticsTools.getQuantile: unit-width bins, and linear interpolation
+ * within the bin where the cumulative fraction reaches p.
+ * @author thomasbraschler
+ *
+ */
+public class SlidingHistogram {
+
+	/** Absolute counts per bin */
+	protected int[] counts;
+
+	/** Number of bins in use */
+	protected int n_bins;
+
+	/** Number of values in the histogram */
+	protected int total;
+
+	/** Bin of the last quantile */
+	protected int cursor;
+
+	/** Number of values in the bins below the cursor */
+	protected int below;
+
+	/**
+	 * Create an empty histogram
+	 * @param n_bins Number of bins
+	 */
+	public SlidingHistogram(int n_bins)
+	{
+		counts = new int[n_bins];
+		reset(n_bins);
+	}
+
+	/**
+	 * Empty the histogram, for a new series. The bins are reallocated only if there are not enough of them
+	 * @param n_bins Number of bins needed
+	 */
+	public void reset(int n_bins)
+	{
+		if(n_bins>counts.length)
+		{
+			counts = new int[n_bins];
+		} else
+		{
+			for(int ind=0; ind<n_bins; ind++)
+			{
+				counts[ind]=0;
+			}
+		}
+
+		this.n_bins=n_bins;
+		total=0;
+		cursor=0;
+		below=0;
+	}
+
+	/**
+	 * @return Number of bins in use
+	 */
+	public int getNumberOfBins()
+	{
+		return n_bins;
+	}
+
+	/**
+	 * @return Number of values in the histogram
+	 */
+	public int getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * A value enters the window
+	 * @param bin Bin of the value, 0&lt;=bin&lt;getNumberOfBins()
+	 */
+	public void add(int bin)
+	{
+		counts[bin]++;
+		total++;
+
+		if(bin<cursor)
+		{
+			below++;
+		}
+	}
+
+	/**
+	 * A value leaves the window
+	 * @param bin Bin of the value, as passed to add
+	 */
+	public void remove(int bin)
+	{
+		counts[bin]--;
+		total--;
+
+		if(bin<cursor)
+		{
+			below--;
+		}
+	}
+
+	/**
+	 * Quantile of the values in the window, in bin coordinates: bin b covers b&lt;=x&lt;b+1.
+	 * As StatisticsTools.getQuantile, the result is truncated to -1 for p&lt;=0 and getNumberOfBins() for p&gt;=1
+	 * @param p Cumulative probability associated with the quantile
+	 * @return Value of the quantile, with interpolation; NaN if the window is empty
+	 */
+	public double getQuantile(double p)
+	{
+		if(total==0) { return Double.NaN; }
+		if(p<=0) { return -1; }
+		if(p>=1) { return n_bins; }
+
+		double target = p*total;
+
+		// Move the cursor down while the bins below already hold the target count
+		while(cursor>0 && below>=target)
+		{
+			cursor--;
+			below-=counts[cursor];
+		}
+
+		// Move the cursor up until the cumulative count reaches the target in the cursor bin
+		while(cursor<n_bins-1 && below+counts[cursor]<target)
+		{
+			below+=counts[cursor];
+			cursor++;
+		}
+
+		// Interpolation within the cursor bin, which is not empty since the cumulative count
+		// increases within it
+		return cursor+(target-below)/counts[cursor];
+	}
+
+}
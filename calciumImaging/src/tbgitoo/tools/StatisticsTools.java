@@ -30,41 +30,85 @@ public class StatisticsTools {
 	 */
 	public static double [] getHistogram(int [] vals)
 	{
-
-
-		// Initialize
-		long[] hist = new long[256];
 		double[] Dhist = new double[256];
 
-		for(int ind=0; ind<hist.length; ind++)
-		{
-			hist[ind]=0;
-			Dhist[ind]=0;
-		}
+		getHistogram(vals, vals.length, new long[256], Dhist);
 
-		double total=0;
+		// return normalized histogram
+		return Dhist;
 
+	}
+
+	/** Histogram, without memory allocation
+	 * Get the relative histogram of the first n values of an array, using 0 to 255 value bins (as for greyscale image)
+	 * @param vals array of values to be counted (must be within 0 to 255)
+	 * @param n Number of values in vals to be counted
+	 * @param counts Work array of length 256, receives the absolute counts
+	 * @param Dhist Output array of length 256, receives the relative frequencies for integer values between 0 and 255 
+	 */
+	public static void getHistogram(int [] vals, int n, long [] counts, double [] Dhist)
+	{
+		getHistogram(vals, n, 0, counts.length, counts, Dhist);
+	}
 
+	/** Histogram over a range of integer values, without memory allocation
+	 * Get the relative histogram of the first n values of an array, using n_bins unit bins starting at offset. 
+	 * Since empty bins do not change the sums, the relative frequencies and the quantiles derived 
+	 * from them (getQuantile) are the same as with bins starting at 0.
+	 * @param vals array of values to be counted (must be within offset to offset+n_bins-1)
+	 * @param n Number of values in vals to be counted
+	 * @param offset Value corresponding to the first bin
+	 * @param n_bins Number of bins
+	 * @param counts Work array of length at least n_bins, receives the absolute counts
+	 * @param Dhist Output array of length at least n_bins, receives the relative frequencies 
+	 */
+	public static void getHistogram(int [] vals, int n, int offset, int n_bins, long [] counts, double [] Dhist)
+	{
 
 
-		for(int ind=0; ind<vals.length; ind++)
+		// Initialize
+		for(int ind=0; ind<n_bins; ind++)
 		{
-			hist[vals[ind]]++;
-			total++;
+			counts[ind]=0;
+		}
 
+		for(int ind=0; ind<n; ind++)
+		{
+			counts[vals[ind]-offset]++;
 		}
 
 		// Normalize
+		normalizeHistogram(counts, n_bins, Dhist);
+
+	}
+
+	/** Relative histogram from absolute counts
+	 * @param counts Absolute counts for each bin
+	 * @param Dhist Output array of the same length as counts, receives the relative frequencies  
+	 */
+	public static void normalizeHistogram(long [] counts, double [] Dhist)
+	{
+		normalizeHistogram(counts, counts.length, Dhist);
+	}
 
+	/** Relative histogram from absolute counts, for the first n_bins bins
+	 * @param counts Absolute counts for each bin
+	 * @param n_bins Number of bins
+	 * @param Dhist Output array of length at least n_bins, receives the relative frequencies  
+	 */
+	public static void normalizeHistogram(long [] counts, int n_bins, double [] Dhist)
+	{
+		double total=0;
 
-		for(int ind=0; ind<hist.length; ind++)
+		for(int ind=0; ind<n_bins; ind++)
 		{
-			Dhist[ind]=((double)hist[ind])/total;
+			total=total+counts[ind];
 		}
 
-		// return normalized histogram
-		return Dhist;
-
+		for(int ind=0; ind<n_bins; ind++)
+		{
+			Dhist[ind]=((double)counts[ind])/total;
+		}
 	}
 
 	/**
@@ -129,36 +173,60 @@ public class StatisticsTools {
 	 */
 
 	public static double getQuantile(double [] hist, double p)
+	{
+		return getQuantile(hist, p, new double[hist.length+1]);
+	}
+
+	/**
+	 * Estimate quantiles from a histogram, without memory allocation. See getQuantile(double[], double)
+	 * @param hist Histogram of occurrence of values 0&lt;=x&lt;1, then 1&lt;=x&lt;2, ... (n-1)&lt;=x&lt;n
+	 * @param p Cumulative probability associated with the quantile
+	 * @param cumsum Work array, of length at least length(hist)+1
+	 * @return Value of the quantile, with interpolation
+	 */
+
+	public static double getQuantile(double [] hist, double p, double [] cumsum)
+	{
+		return getQuantile(hist, 0, hist.length, p, cumsum);
+	}
+
+	/**
+	 * Estimate quantiles from the first n_bins bins of a histogram whose first bin is at offset, without memory allocation. 
+	 * See getQuantile(double[], double). The interpolation is done directly with the values of the bins, so that
+	 * the result is the same as with a histogram starting at 0 and empty bins below offset
+	 * @param hist Histogram of occurrence of values offset&lt;=x&lt;offset+1, ... (offset+n_bins-1)&lt;=x&lt;offset+n_bins
+	 * @param offset Value of the first bin
+	 * @param n_bins Number of bins used in hist
+	 * @param p Cumulative probability associated with the quantile
+	 * @param cumsum Work array, of length at least n_bins+1
+	 * @return Value of the quantile, with interpolation; offset-1 for p&lt;=0 and offset+n_bins for p&gt;=1
+	 */
+
+	public static double getQuantile(double [] hist, int offset, int n_bins, double p, double [] cumsum)
 	{
 
 		// Normalize (in case)
 		// Also, calculate cumulative sums, with 1 element more than
 		// the histogram to have 0 and 1 in it. So cumsum[0] is 0, cumsum[1] is h0, cumsum[2]=h0+h1
 		double total = 0;
-		double[] cumsum = new double[hist.length+1];
-		for(int ind=0; ind<hist.length; ind++)
+		for(int ind=0; ind<n_bins; ind++)
 		{
 			total=total+hist[ind];
-			cumsum[ind]=0;
 		}
 
-		double [] hist_normalized=new double [hist.length];
-
-
-
+		cumsum[0]=0;
 
-		for(int ind=0; ind<hist_normalized.length; ind++)
+		for(int ind=0; ind<n_bins; ind++)
 		{
-			hist_normalized[ind]=hist[ind]/total;
-			cumsum[ind+1]=cumsum[ind]+hist_normalized[ind];
+			cumsum[ind+1]=cumsum[ind]+hist[ind]/total;
 		}
 		// To be sure it's really exactly 1 and some close value due to
 		// rounding errors
-		cumsum[hist_normalized.length]=1;
+		cumsum[n_bins]=1;
 
 		// limiting cases and non-treatable values
-		if(p<=0) { return -1; }
-		if(p>=1) { return hist_normalized.length; }
+		if(p<=0) { return offset-1; }
+		if(p>=1) { return offset+n_bins; }
 
 		// nominal case
 
@@ -168,7 +236,7 @@ public class StatisticsTools {
 		// desired p value
 
 		int current_ind=0;
-		while(cumsum[current_ind]<p && current_ind<=hist_normalized.length)
+		while(cumsum[current_ind]<p && current_ind<=n_bins)
 		{
 
 			current_ind++;
@@ -181,10 +249,10 @@ public class StatisticsTools {
 		double p_upper = cumsum[current_ind];
 		double p_lower = cumsum[current_ind-1];
 
-		double q_upper = current_ind;
-		double q_lower = current_ind-1;
+		double q_upper = offset+current_ind;
+		double q_lower = offset+current_ind-1;
 
-		// Degenerate case where the is no entry into the hist_normalizedogram here
+		// Degenerate case where the is no entry into the histogram here
 		if(p_upper==p_lower)
 		{
 			int index_to_lower = current_ind-1;
@@ -192,7 +260,7 @@ public class StatisticsTools {
 			{
 				index_to_lower--;
 				p_lower = cumsum[index_to_lower];
-				q_lower = index_to_lower;
+				q_lower = offset+index_to_lower;
 			}
 
 		}
@@ -213,4 +281,177 @@ public class StatisticsTools {
 	}
 
 
+	/**
+	 * Quantile of integer values, with the same definition as getQuantile(getHistogram(vals), p): unit-width
+	 * bins at the integer values, and linear interpolation within the bin where the cumulative probability reaches p.
+	 * The quantile is obtained by selection of the corresponding order statistic rather than from a histogram, so that
+	 * the cost is proportional to the number of values and not to the number of grey levels (65536 for 16-bit images).
+	 * Truncated as getQuantile: -1 for p&lt;=0 and n_levels for p&gt;=1 
+	 * @param vals Integer values, from 0 to n_levels-1
+	 * @param n Number of values in vals to consider
+	 * @param p Cumulative probability associated with the quantile
+	 * @param work Work array of length at least n
+	 * @param n_levels Number of grey levels
+	 * @return Value of the quantile, with interpolation
+	 */
+	public static double getQuantileOfIntegers(int [] vals, int n, double p, int [] work, int n_levels)
+	{
+		if(p<=0 || n==0) { return -1; }
+		if(p>=1) { return n_levels; }
+
+		System.arraycopy(vals, 0, work, 0, n);
+
+		// The bin where the cumulative probability reaches p is the one of the r-th smallest value
+		int r = getOrderStatisticRank(n, p);
+
+		int v = ArraySortTools.select(work, 0, n, r-1);
+
+		// Cumulative probability at the lower and upper end of the bin
+		int n_below = 0;
+		int n_equal = 0;
+
+		for(int ind=0; ind<n; ind++)
+		{
+			if(vals[ind]<v)
+			{
+				n_below++;
+			} else if(vals[ind]==v)
+			{
+				n_equal++;
+			}
+		}
+
+		return v+(p*n-n_below)/n_equal;
+	}
+
+	/**
+	 * Quantile of integer values, as getQuantile(getHistogram(vals), p) but for any number of grey levels (typically 65536
+	 * for 16-bit images). If the values span a range that fits into the work arrays, the histogram is built over this 
+	 * range only; empty bins do not change the cumulative sums, so this gives the same result as a histogram over all the grey levels. Otherwise, the quantile
+	 * is obtained by selection (getQuantileOfIntegers(int[], int, double, int[], int)), which has the same definition
+	 * but may differ by rounding errors. Either way, the cost does not depend on the number of grey levels.
+	 * @param vals Integer values, from 0 to n_levels-1
+	 * @param n Number of values in vals to consider
+	 * @param p Cumulative probability associated with the quantile
+	 * @param n_levels Number of grey levels
+	 * @param counts Work array for the absolute histogram
+	 * @param hist Work array for the relative histogram, of the same length as counts
+	 * @param cumsum Work array for the cumulative histogram, one element longer than counts
+	 * @param work Work array for the selection, of length at least n
+	 * @return Value of the quantile, with interpolation
+	 */
+	public static double getQuantileOfIntegers(int [] vals, int n, double p, int n_levels, 
+			long [] counts, double [] hist, double [] cumsum, int [] work)
+	{
+		if(p<=0 || n==0) { return -1; }
+		if(p>=1) { return n_levels; }
+
+		int min=vals[0];
+		int max=vals[0];
+
+		for(int ind=1; ind<n; ind++)
+		{
+			if(vals[ind]<min)
+			{
+				min=vals[ind];
+			} else if(vals[ind]>max)
+			{
+				max=vals[ind];
+			}
+		}
+
+		// One empty bin above the largest value, unless this is the last grey level, so that the 
+		// cumulative sums are the same as over all grey levels
+		int n_bins = Math.min(max+2, n_levels)-min;
+
+		if(n_bins>counts.length)
+		{
+			return getQuantileOfIntegers(vals, n, p, work, n_levels);
+		}
+
+		getHistogram(vals, n, min, n_bins, counts, hist);
+
+		return getQuantile(hist, min, n_bins, p, cumsum);
+	}
+
+	/**
+	 * Quantile of real values, with the definition of getQuantileOfIntegers adapted to values without a 
+	 * natural bin width: the bin of a value extends up to the next larger value found. 
+	 * Obtained by selection, in a time proportional to the number of values. 
+	 * Returns min(vals)-1 for p&lt;=0 and max(vals)+1 for p&gt;=1 
+	 * @param vals Values, must not contain NaN
+	 * @param n Number of values in vals to consider
+	 * @param p Cumulative probability associated with the quantile
+	 * @param work Work array of length at least n
+	 * @return Value of the quantile, with interpolation
+	 */
+	public static double getQuantileOfValues(double [] vals, int n, double p, double [] work)
+	{
+		if(n==0) { return -1; }
+
+		if(p<=0 || p>=1)
+		{
+			double min=vals[0];
+			double max=vals[0];
+			for(int ind=1; ind<n; ind++)
+			{
+				min=Math.min(min, vals[ind]);
+				max=Math.max(max, vals[ind]);
+			}
+			return p<=0 ? min-1 : max+1;
+		}
+
+		System.arraycopy(vals, 0, work, 0, n);
+
+		int r = getOrderStatisticRank(n, p);
+
+		double v = ArraySortTools.select(work, 0, n, r-1);
+
+		int n_below = 0;
+		int n_equal = 0;
+		// Next larger value, the upper end of the bin
+		double next = Double.POSITIVE_INFINITY;
+
+		for(int ind=0; ind<n; ind++)
+		{
+			if(vals[ind]<v)
+			{
+				n_below++;
+			} else if(vals[ind]==v)
+			{
+				n_equal++;
+			} else if(vals[ind]<next)
+			{
+				next=vals[ind];
+			}
+		}
+
+		if(next==Double.POSITIVE_INFINITY)
+		{
+			return v;
+		}
+
+		return v+(next-v)*(p*n-n_below)/n_equal;
+	}
+
+	/**
+	 * Rank (1-based) of the smallest order statistic reaching a cumulative probability of p
+	 * @param n Number of values
+	 * @param p Cumulative probability, 0&lt;p&lt;1
+	 * @return The rank r, such that (r-1)/n &lt; p &lt;= r/n, and 1&lt;=r&lt;=n
+	 */
+	protected static int getOrderStatisticRank(int n, double p)
+	{
+		int r = (int)Math.ceil(p*n);
+		if(r<1)
+		{
+			r=1;
+		}
+		if(r>n)
+		{
+			r=n;
+		}
+		return r;
+	}
+
 }
@@ -19,6 +19,10 @@ package tbgitoo.tools;
 import java.util.Vector;
 /**
  * Some standard functions applied to vectors
+ * 
+ * The kernels applied to every frame of every z-profile (conversion and threshold subtraction, candidate
+ * extraction, sums) are written as simple counted loops without branches, which the HotSpot JIT compiler 
+ * translates into SIMD instructions (SSE, AVX) where the processor has them, and into scalar code otherwise.
  * @author thomasbraschler
  *
  */
@@ -66,12 +70,30 @@ public class VectorTools {
 		public static double scalar_product(double [] x, double [] y)
 		{
 			int l = Math.min(x.length, y.length);
-			double sum=0;
-			for(int ind=0; ind<l; ind++)
+
+			// Four independent partial sums, so that successive additions do not wait for each other. 
+			// The result can differ from the sequential sum by rounding
+			double s0=0;
+			double s1=0;
+			double s2=0;
+			double s3=0;
+
+			// Main loop over a multiple of four values, with a bound the compiler sees as fixed
+			int l4 = l&~3;
+			int ind=0;
+			for(; ind<l4; ind+=4)
 			{
-				sum=sum+x[ind]*y[ind];
+				s0+=x[ind]*y[ind];
+				s1+=x[ind+1]*y[ind+1];
+				s2+=x[ind+2]*y[ind+2];
+				s3+=x[ind+3]*y[ind+3];
 			}
-			return sum;
+			for(; ind<l; ind++)
+			{
+				s0+=x[ind]*y[ind];
+			}
+
+			return (s0+s1)+(s2+s3);
 		}
 		
 		/**
@@ -122,17 +144,169 @@ public class VectorTools {
 		
 		public static double  sum(double [] x)
 		{
-			double s = 0;
-			for(int ind=0; ind<x.length; ind++)
+			int l = x.length;
+
+			// Four independent partial sums, as in scalar_product
+			double s0=0;
+			double s1=0;
+			double s2=0;
+			double s3=0;
+
+			int l4 = l&~3;
+			int ind=0;
+			for(; ind<l4; ind+=4)
 			{
-				s = s + x[ind];
+				s0+=x[ind];
+				s1+=x[ind+1];
+				s2+=x[ind+2];
+				s3+=x[ind+3];
 			}
-			if(x.length>0)
+			for(; ind<l; ind++)
 			{
-				return (s);
+				s0+=x[ind];
 			}
-			return 0;
 
+			return (s0+s1)+(s2+s3);
+
+		}
+
+		/**
+		 * Integer values as double: dst[i]=src[i] for i&lt;n
+		 * @param src The integer values
+		 * @param n Number of values to convert
+		 * @param dst Output array, at least n elements
+		 */
+		public static void toDouble(int [] src, int n, double [] dst)
+		{
+			for(int ind=0; ind<n; ind++)
+			{
+				dst[ind]=src[ind];
+			}
+		}
+
+		/**
+		 * Subtract a constant from the first n values, in place
+		 * @param vals The values
+		 * @param n Number of values
+		 * @param c The constant
+		 */
+		public static void subtract(double [] vals, int n, double c)
+		{
+			for(int ind=0; ind<n; ind++)
+			{
+				vals[ind]-=c;
+			}
+		}
+
+		/**
+		 * Integer values relative to a constant, as double: dst[i]=src[i]-c for i&lt;n.
+		 * This is done as a conversion pass followed by a subtraction pass; the JIT compiler vectorizes
+		 * the two simple passes better than a single loop with both operations
+		 * @param src The integer values
+		 * @param n Number of values
+		 * @param c The constant
+		 * @param dst Output array, at least n elements
+		 */
+		public static void subtract(int [] src, int n, double c, double [] dst)
+		{
+			toDouble(src, n, dst);
+			subtract(dst, n, c);
+		}
+
+		/**
+		 * Table lookup: dst[i]=table[src[i]] for i&lt;n. For integer values with few levels (8-bit pixels), a 
+		 * table of the result for each level replaces the calculation for each value
+		 * @param src The integer values, all within 0 to table.length-1
+		 * @param n Number of values
+		 * @param table Result for each value
+		 * @param dst Output array, at least n elements
+		 */
+		public static void lookup(int [] src, int n, double [] table, double [] dst)
+		{
+			for(int ind=0; ind<n; ind++)
+			{
+				dst[ind]=table[src[ind]];
+			}
+		}
+		
+		/**
+		 * Minimum of the values vals[from] to vals[to-1]
+		 * @param vals The vector of values
+		 * @param from First index (included)
+		 * @param to Last index (excluded), must be larger than from
+		 * @return The smallest value in the range
+		 */
+		public static int min(int [] vals, int from, int to)
+		{
+			int m = vals[from];
+			for(int ind=from+1; ind<to; ind++)
+			{
+				if(vals[ind]<m)
+				{
+					m = vals[ind];
+				}
+			}
+			return m;
+		}
+
+		/**
+		 * Maximum of the values vals[from] to vals[to-1]
+		 * @param vals The vector of values
+		 * @param from First index (included)
+		 * @param to Last index (excluded), must be larger than from
+		 * @return The largest value in the range
+		 */
+		public static int max(int [] vals, int from, int to)
+		{
+			int m = vals[from];
+			for(int ind=from+1; ind<to; ind++)
+			{
+				if(vals[ind]>m)
+				{
+					m = vals[ind];
+				}
+			}
+			return m;
+		}
+
+		/**
+		 * Minimum of the values vals[from] to vals[to-1]
+		 * @param vals The vector of values, must not contain NaN
+		 * @param from First index (included)
+		 * @param to Last index (excluded), must be larger than from
+		 * @return The smallest value in the range
+		 */
+		public static double min(double [] vals, int from, int to)
+		{
+			double m = vals[from];
+			for(int ind=from+1; ind<to; ind++)
+			{
+				if(vals[ind]<m)
+				{
+					m = vals[ind];
+				}
+			}
+			return m;
+		}
+
+		/**
+		 * Maximum of the values vals[from] to vals[to-1]
+		 * @param vals The vector of values, must not contain NaN
+		 * @param from First index (included)
+		 * @param to Last index (excluded), must be larger than from
+		 * @return The largest value in the range
+		 */
+		public static double max(double [] vals, int from, int to)
+		{
+			double m = vals[from];
+			for(int ind=from+1; ind<to; ind++)
+			{
+				if(vals[ind]>m)
+				{
+					m = vals[ind];
+				}
+			}
+			return m;
 		}
 		
 		 /**
@@ -188,10 +362,18 @@ public class VectorTools {
 		
 		public static int[] getIndexesOfValuesExceedingThreshold(double[] vals, double threshold)
 		{
-			int[] idx = new int[vals.length];
-			int index=0;
+			// Count first, so that the result is allocated once with its final length
+			int n_idx=0;
 
 			for(int index_vals=0; index_vals<vals.length; index_vals++)
+			{
+				n_idx+= (vals[index_vals]>=threshold) ? 1 : 0;
+			}
+
+			int[] idx = new int[n_idx];
+			int index=0;
+
+			for(int index_vals=0; index<n_idx; index_vals++)
 			{
 				if(vals[index_vals]>=threshold)
 				{
@@ -200,13 +382,35 @@ public class VectorTools {
 				}
 			}
 
-			int[] idx_final = new int[index];
-			for(int newIndex=0; newIndex < index; newIndex++)
+			return idx;
+
+		}
+		
+		/**
+		 * Indexes of the values at or above the threshold, without memory allocation
+		 * @param vals Array of values
+		 * @param from First index in vals to consider (included)
+		 * @param to Last index in vals to consider (excluded)
+		 * @param threshold Minimal threshold required for elements to be eligible
+		 * @param idx Output array of at least to-from elements, receives the indexes to the elements with values 
+		 * above the threshold. The element after the last index may be overwritten
+		 * @return Number of indexes written to idx
+		 */
+		
+		
+		public static int getIndexesOfValuesExceedingThreshold(double[] vals, int from, int to, double threshold, int[] idx)
+		{
+			int index=0;
+
+			// Without branch: every index is written, but the output position only advances for the 
+			// values at or above the threshold. This avoids mispredicted branches on noisy data
+			for(int index_vals=from; index_vals<to; index_vals++)
 			{
-				idx_final[newIndex]=idx[newIndex];
+				idx[index]=index_vals;
+				index+= (vals[index_vals]>=threshold) ? 1 : 0;
 			}
 
-			return idx_final;
+			return index;
 
 		}
 
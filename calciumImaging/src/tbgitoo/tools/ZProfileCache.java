@@ -0,0 +1,271 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import ij.ImageStack;
+
+/**
+ * Transposed (pixel-major) copy of a stack, for fast access to z-profiles.
+ * In an ImageJ stack, the values of a given z-profile are spread over all the slices, so that
+ * reading a profile touches one pixel in every slice. Here, the values of each z-profile are stored
+ * contiguously instead: the stack is rearranged once, row by row, such that the value of the pixel x,y 
+ * in slice z+1 is at index x*depth+z of the array for row y.
+ * Rows are stored in separate arrays to stay below the maximal Java array size for long recordings.
+ * The copy can be restricted to some pixels (PixelSpans, such as a mask or a band of rows): each row then holds
+ * the z-profiles of its pixels in the spans only, one after the other (see getOffset(int, int)).
+ * The storage is specific to the pixel type, see ByteZProfileCache, ShortZProfileCache and FloatZProfileCache;
+ * use create(ImageStack) or create(ImageStack, PixelSpans) to get the right one.
+ * Peak images, where only the non-zero pixels matter, are read slice by slice into a PeakEventTable instead.
+ * @author thomasbraschler
+ *
+ */
+public abstract class ZProfileCache {
+
+	/**
+	 * Number of slices transposed together. Reading a block of slices at once allows
+	 * writing several consecutive values of each z-profile in a row
+	 */
+	public static final int FRAME_BLOCK=16;
+
+	/** Stack width, in pixels */
+	protected final int width;
+
+	/** Stack height, in pixels */
+	protected final int height;
+
+	/** Number of slices, and so length of the z-profiles */
+	protected final int depth;
+
+	/** Pixels transposed, null for all the pixels of the stack */
+	protected final PixelSpans spans;
+
+	/**
+	 * Set the dimensions from the stack to be transposed
+	 * @param stack The stack to be transposed
+	 */
+	protected ZProfileCache(ImageStack stack)
+	{
+		this(stack, null);
+	}
+
+	/**
+	 * Set the dimensions from the stack to be transposed, and the pixels to be transposed
+	 * @param stack The stack to be transposed
+	 * @param spans The pixels to be transposed, null for all the pixels
+	 */
+	protected ZProfileCache(ImageStack stack, PixelSpans spans)
+	{
+		width=stack.getWidth();
+		height=stack.getHeight();
+		depth=stack.getSize();
+		this.spans=(spans==null || spans.isComplete()) ? null : spans;
+	}
+
+	/**
+	 * Build the transposed copy of a stack, with the storage adapted to the pixel type. 
+	 * Each slice of the stack is read exactly once
+	 * @param stack The stack to be transposed, 8-bit, 16-bit or 32-bit greyscale
+	 * @return The transposed copy
+	 */
+	public static ZProfileCache create(ImageStack stack)
+	{
+		return create(stack, null);
+	}
+
+	/**
+	 * Build the transposed copy of some pixels of a stack, with the storage adapted to the pixel type. 
+	 * Each slice of the stack is read exactly once, and only the z-profiles of the pixels in spans are kept
+	 * @param stack The stack to be transposed, 8-bit, 16-bit or 32-bit greyscale
+	 * @param spans The pixels to be transposed, null for all the pixels
+	 * @return The transposed copy
+	 */
+	public static ZProfileCache create(ImageStack stack, PixelSpans spans)
+	{
+		switch(stack.getBitDepth())
+		{
+		case 8:
+			return new ByteZProfileCache(stack, spans);
+		case 16:
+			return new ShortZProfileCache(stack, spans);
+		case 32:
+			return new FloatZProfileCache(stack, spans);
+		default:
+			throw new IllegalArgumentException("ZProfileCache requires an 8-bit, 16-bit or 32-bit greyscale stack");
+		}
+	}
+
+	/**
+	 * Memory taken by the transposed copy of some pixels of a stack
+	 * @param stack The stack, 8-bit, 16-bit or 32-bit greyscale
+	 * @param spans The pixels, null for all the pixels
+	 * @return Size of the pixel values, in bytes
+	 */
+	public static long getSize(ImageStack stack, PixelSpans spans)
+	{
+		long n_pixels = (spans==null) ? ((long)stack.getWidth())*stack.getHeight() : spans.getNumberOfPixels();
+
+		return n_pixels*stack.getSize()*(stack.getBitDepth()/8);
+	}
+
+	/**
+	 * @return Width of the cached stack
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * @return Height of the cached stack
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return Number of slices in the cached stack, and so the length of the z-profiles
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return Bit depth of the cached stack (8, 16 or 32)
+	 */
+	public abstract int getBitDepth();
+
+	/**
+	 * @return The pixels transposed
+	 */
+	public PixelSpans getSpans()
+	{
+		if(spans==null)
+		{
+			return PixelSpans.all(width, height);
+		}
+		return spans;
+	}
+
+	/**
+	 * Is the z-profile of a pixel in the copy?
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @return true if the pixel was transposed
+	 */
+	public boolean contains(int x, int y)
+	{
+		return spans==null || spans.contains(x, y);
+	}
+
+	/**
+	 * Number of z-profiles stored in the array of a row
+	 * @param y The y-position of the row
+	 * @return Number of pixels of the row transposed
+	 */
+	protected int getRowLength(int y)
+	{
+		if(spans==null)
+		{
+			return width;
+		}
+		return spans.getPixelOffset(spans.getFirstSpan(y+1))-spans.getPixelOffset(spans.getFirstSpan(y));
+	}
+
+	/**
+	 * Start of the z-profile of pixel x in the array of a row, for a copy of all the pixels
+	 * @param x The x-position
+	 * @return Index of the first value (z=0) of the z-profile
+	 */
+	public int getOffset(int x)
+	{
+		return x*depth;
+	}
+
+	/**
+	 * Start of the z-profile of pixel x,y in the array of its row. For a copy of some pixels only, the 
+	 * span of the pixel is found by binary search over the spans of the row
+	 * @param x The x-position
+	 * @param y The y-position
+	 * @return Index of the first value (z=0) of the z-profile
+	 * @throws IllegalArgumentException if the pixel was not transposed
+	 */
+	public int getOffset(int x, int y)
+	{
+		if(spans==null)
+		{
+			return x*depth;
+		}
+
+		int first = spans.getFirstSpan(y);
+		int lower = first;
+		int upper = spans.getFirstSpan(y+1)-1;
+
+		// Last span starting at or before x
+		while(lower<=upper)
+		{
+			int mid = (lower+upper)>>>1;
+
+			if(spans.getStart(mid)<=x)
+			{
+				lower=mid+1;
+			} else
+			{
+				upper=mid-1;
+			}
+		}
+
+		if(upper<first || x>=spans.getEnd(upper))
+		{
+			throw new IllegalArgumentException("The z-profile of pixel "+x+","+y+" is not in the transposed copy");
+		}
+
+		return (spans.getPixelOffset(upper)-spans.getPixelOffset(first)+x-spans.getStart(upper))*depth;
+	}
+
+	/**
+	 * Get the z-profile at position x,y
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @return New array with the pixel values along the z-profile
+	 */
+	public int[] getProfile(int x, int y)
+	{
+		int[] vals = new int[depth];
+		getProfile(x, y, vals);
+		return vals;
+	}
+
+	/**
+	 * Copy the z-profile at position x,y into a provided array, as integer values
+	 * (truncated for 32-bit stacks, as (int)ImageProcessor.getPixelValue)
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param vals Array to fill, of length at least getDepth()
+	 */
+	public abstract void getProfile(int x, int y, int[] vals);
+
+	/**
+	 * Copy the z-profile at position x,y into a provided array, as double values
+	 * @param x x-position in pixel units, 0-based (ImageJ standard)
+	 * @param y y-position in pixel units, 0-based (ImageJ standard)
+	 * @param vals Array to fill, of length at least getDepth()
+	 */
+	public abstract void getProfile(int x, int y, double[] vals);
+
+}
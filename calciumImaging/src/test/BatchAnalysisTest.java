@@ -0,0 +1,294 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import FindPeaks.accessory.classes.BatchAnalysis;
+import FindPeaks.accessory.classes.LocalFrequencyTools;
+import FindPeaks.accessory.classes.PeakEventStack;
+import FindPeaks.accessory.classes.PeakEventTable;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * The headless batch analysis on a small directory: the files written for each stack and the summary, and
+ * results identical to those of the single-image plugins (FindPeaks, then LocalFrequency and LocalPhase on the
+ * peaks), with and without a mask, loaded and memory-mapped
+ * @author thomasbraschler
+ *
+ */
+public class BatchAnalysisTest {
+
+	/** Options of the analysis, for the batch and the plugins */
+	protected static final double PEAK_FRACTION=0.3;
+	protected static final double MIN_D=8;
+	protected static final double MIN_H=4;
+	protected static final double FRAME_RATE=10;
+	protected static final int REFERENCE_X=3;
+	protected static final int REFERENCE_Y=4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void batchMatchesPlugins() throws IOException
+	{
+		Random random = new Random(15);
+
+		File input = folder.newFolder("input");
+		File output = new File(folder.getRoot(), "output");
+
+		ImageStack[] stacks = {getStack(random, 17, 13, 200, 8), getStack(random, 11, 9, 150, 16)};
+		String[] names = {"a", "b"};
+
+		for(int k=0; k<stacks.length; k++)
+		{
+			new FileSaver(new ImagePlus(names[k], stacks[k])).saveAsTiffStack(new File(input, names[k]+".tif").getPath());
+		}
+
+		// Not a stack, reported as failed; other files are left out
+		Files.write(new File(input, "c.tif").toPath(), "not an image".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(input, "notes.txt").toPath(), "notes".getBytes(StandardCharsets.UTF_8));
+
+		Properties parameters = getParameters();
+		parameters.setProperty(BatchAnalysis.PARAMETER_WORKERS, "2");
+		parameters.setProperty(BatchAnalysis.PARAMETER_THREADS, "2");
+
+		List<BatchAnalysis.Result> results = new BatchAnalysis(parameters).run(input, output);
+
+		assertEquals(3, results.size());
+
+		for(int k=0; k<stacks.length; k++)
+		{
+			BatchAnalysis.Result result = results.get(k);
+
+			assertEquals(names[k]+".tif", result.file.getName());
+			assertTrue(result.success);
+
+			for(String suffix : new String[]{"_frequency.tif", "_phase.tif", "_peaks.csv", "_snr.tif", "_report.json"})
+			{
+				assertTrue(new File(output, names[k]+suffix).isFile());
+			}
+
+			PeakEventTable table = assertSameAsPlugins(stacks[k], null, output, names[k]);
+
+			assertEquals(table.getNumberOfPeaks(), result.n_peaks);
+			assertEquals(table.getNumberOfPeaks(REFERENCE_X, REFERENCE_Y), result.n_reference_peaks);
+		}
+
+		assertFalse(results.get(2).success);
+		assertFalse(new File(output, "c_frequency.tif").exists());
+
+		// One line per file, in the order of the names
+		List<String> summary = Files.readAllLines(new File(output, BatchAnalysis.SUMMARY_FILE).toPath(), 
+				StandardCharsets.UTF_8);
+
+		assertEquals(4, summary.size());
+		assertEquals("file,success,peaks,reference_peaks,milliseconds,message", summary.get(0));
+
+		for(int k=0; k<3; k++)
+		{
+			BatchAnalysis.Result result = results.get(k);
+
+			assertTrue(summary.get(k+1).startsWith("\""+result.file.getName()+"\","+result.success+","
+					+result.n_peaks+","+result.n_reference_peaks+","));
+		}
+
+		assertTrue(new File(output, BatchAnalysis.TIMING_FILE).isFile());
+	}
+
+	@Test
+	public void maskedMappedBatchMatchesPlugins() throws IOException
+	{
+		Random random = new Random(150);
+
+		File input = folder.newFolder("input");
+		File output = folder.newFolder("output");
+
+		ImageStack stack = getStack(random, 17, 13, 200, 16);
+		new FileSaver(new ImagePlus("a", stack)).saveAsTiffStack(new File(input, "a.tif").getPath());
+
+		// Random mask; LocalPhase needs the peaks of the reference pixel from FindPeaks, so it is inside
+		ByteProcessor mask = new ByteProcessor(17, 13);
+
+		for(int i=0; i<17*13; i++)
+		{
+			mask.set(i, random.nextInt(2)*255);
+		}
+		mask.set(REFERENCE_X, REFERENCE_Y, 255);
+
+		File mask_file = new File(folder.getRoot(), "mask.tif");
+		new FileSaver(new ImagePlus("mask", mask)).saveAsTiff(mask_file.getPath());
+
+		Properties parameters = getParameters();
+		parameters.setProperty(BatchAnalysis.PARAMETER_MASK, mask_file.getPath());
+		parameters.setProperty(BatchAnalysis.PARAMETER_MEMORY_MAPPED, "true");
+
+		List<BatchAnalysis.Result> results = new BatchAnalysis(parameters).run(input, output);
+
+		assertEquals(1, results.size());
+		assertTrue(results.get(0).success);
+
+		assertSameAsPlugins(stack, new ImagePlus("mask", mask), output, "a");
+	}
+
+	/**
+	 * Options of the batch, as those of the plugins in assertSameAsPlugins
+	 */
+	protected static Properties getParameters()
+	{
+		Properties parameters = new Properties();
+
+		parameters.setProperty(BatchAnalysis.PARAMETER_PEAK_FRACTION, String.valueOf(PEAK_FRACTION));
+		parameters.setProperty(BatchAnalysis.PARAMETER_MIN_D, String.valueOf(MIN_D));
+		parameters.setProperty(BatchAnalysis.PARAMETER_MIN_H, String.valueOf(MIN_H));
+		parameters.setProperty(BatchAnalysis.PARAMETER_FRAME_RATE, String.valueOf(FRAME_RATE));
+		parameters.setProperty(BatchAnalysis.PARAMETER_REFERENCE_X, String.valueOf(REFERENCE_X));
+		parameters.setProperty(BatchAnalysis.PARAMETER_REFERENCE_Y, String.valueOf(REFERENCE_Y));
+		parameters.setProperty(BatchAnalysis.PARAMETER_SAVE_PEAKS, "true");
+		parameters.setProperty(BatchAnalysis.PARAMETER_SAVE_SNR, "true");
+
+		return parameters;
+	}
+
+	/**
+	 * Compare the files written by the batch for a stack with the peaks of FindPeaks, the frequency of LocalFrequency
+	 * and the phase of LocalPhase
+	 * @return The peaks of FindPeaks
+	 */
+	protected static PeakEventTable assertSameAsPlugins(ImageStack stack, ImagePlus mask, File output, String name) 
+			throws IOException
+	{
+		double peak_fraction = FindPeaks.peak_fraction;
+		double minD = FindPeaks.minD;
+		double minH = FindPeaks.minH;
+
+		PeakEventTable table;
+
+		try
+		{
+			FindPeaks.peak_fraction = PEAK_FRACTION;
+			FindPeaks.minD = MIN_D;
+			FindPeaks.minH = MIN_H;
+
+			FindPeaks find_peaks = new FindPeaks();
+			find_peaks.setSpans(mask==null ? null : PixelSpans.fromMask(mask, stack.getWidth(), stack.getHeight()));
+
+			table = find_peaks.findPeaksInStack(stack, false);
+		} finally
+		{
+			FindPeaks.peak_fraction = peak_fraction;
+			FindPeaks.minD = minD;
+			FindPeaks.minH = minH;
+		}
+
+		PixelSpans spans = mask==null ? null : PixelSpans.fromMask(mask, stack.getWidth(), stack.getHeight());
+
+		// LocalFrequency and LocalPhase on the peak image of FindPeaks
+		ImagePlus peaks = new ImagePlus("peaks", new PeakEventStack(table));
+		table.attachTo(peaks);
+
+		assertSameImage(LocalFrequencyTools.getFrequencyImage(table, FRAME_RATE, spans), 
+				new File(output, name+"_frequency.tif"));
+		assertSameImage(LocalPhase.getPhaseImage(peaks, REFERENCE_X, REFERENCE_Y, spans, 2, false).getProcessor(1), 
+				new File(output, name+"_phase.tif"));
+
+		// The peaks, pixel by pixel
+		List<String> lines = new ArrayList<String>();
+		lines.add("x,y,frame");
+
+		for(int y=0; y<stack.getHeight(); y++)
+		{
+			for(int x=0; x<stack.getWidth(); x++)
+			{
+				for(int frame : table.getPeaks(x, y))
+				{
+					lines.add(x+","+y+","+frame);
+				}
+			}
+		}
+
+		assertEquals(lines, Files.readAllLines(new File(output, name+"_peaks.csv").toPath(), StandardCharsets.UTF_8));
+
+		return table;
+	}
+
+	/**
+	 * The image of a file has the same values, NaN included
+	 */
+	protected static void assertSameImage(ImageProcessor expected, File file)
+	{
+		ImageProcessor ip = IJ.openImage(file.getPath()).getProcessor();
+
+		assertEquals(expected.getWidth(), ip.getWidth());
+		assertEquals(expected.getHeight(), ip.getHeight());
+
+		for(int i=0; i<expected.getWidth()*expected.getHeight(); i++)
+		{
+			assertEquals(expected.getf(i), ip.getf(i), 0);
+		}
+	}
+
+	/**
+	 * Stack of pixels beating at a common period, with a delay growing along the diagonal, and noise
+	 */
+	protected static ImageStack getStack(Random random, int width, int height, int depth, int bit_depth)
+	{
+		ImageStack stack = ImageStack.create(width, height, depth, bit_depth);
+
+		double period = 17;
+
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				double amplitude = 20+random.nextInt(100);
+				double baseline = 10+random.nextInt(50);
+
+				for(int z=0; z<depth; z++)
+				{
+					double value = baseline+amplitude*Math.pow(Math.max(0, Math.sin(2*Math.PI*(z-0.3*(x+y))/period)), 4)
+							+random.nextGaussian()*3;
+
+					stack.getProcessor(z+1).set(x, y, (int)Math.max(0, Math.round(value)));
+				}
+			}
+		}
+
+		return stack;
+	}
+
+}
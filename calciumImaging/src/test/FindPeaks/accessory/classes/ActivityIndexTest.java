@@ -0,0 +1,276 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import tbgitoo.tools.PixelSpans;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * The activity index against direct calculations: the single-sweep (Welford) statistics against the two-pass mean 
+ * and variance, the lower bound of the threshold (minimum, and Cantelli's inequality) against the quantile 
+ * actually used as threshold, and the pixels skipped by the peak detection against the pixels with peaks
+ * @author thomasbraschler
+ *
+ */
+public class ActivityIndexTest {
+
+	/** Expected fraction of values above the threshold */
+	protected static final double PEAK_FRACTION=0.3;
+
+	/** Minimal height of the peaks above threshold */
+	protected static final double MIN_H=6;
+
+	@Test
+	public void welfordStatisticsMatchDirectCalculation()
+	{
+		Random random = new Random(18);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 13, 11, 400, bit_depth);
+
+			// Stacks in memory span by span, virtual stacks slice by slice
+			for(ImageStack source : new ImageStack[]{stack, new StackPeakDetectorTest.CountingVirtualStack(stack)})
+			{
+				ActivityIndex index = ActivityIndex.compute(source, null, 3);
+
+				for(int y=0; y<stack.getHeight(); y++)
+				{
+					for(int x=0; x<stack.getWidth(); x++)
+					{
+						double[] profile = getProfile(stack, x, y);
+
+						double min = Double.MAX_VALUE;
+						double max = -Double.MAX_VALUE;
+						double sum = 0;
+
+						for(double v : profile)
+						{
+							min = Math.min(min, v);
+							max = Math.max(max, v);
+							sum+=v;
+						}
+
+						double mean = sum/profile.length;
+						double ss = 0;
+
+						for(double v : profile)
+						{
+							ss+=(v-mean)*(v-mean);
+						}
+
+						double variance = ss/profile.length;
+
+						assertEquals(min, index.getMin(x, y), 0);
+						assertEquals(max, index.getMax(x, y), 0);
+						assertEquals(mean, index.getMean(x, y), 1e-9*(Math.abs(mean)+1));
+						assertEquals(variance, index.getVariance(x, y), 1e-9*(variance+1));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void thresholdIsNotBelowBound()
+	{
+		Random random = new Random(180);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 13, 11, 400, bit_depth);
+			ActivityIndex index = ActivityIndex.compute(stack, null, 3);
+
+			for(int y=0; y<stack.getHeight(); y++)
+			{
+				for(int x=0; x<stack.getWidth(); x++)
+				{
+					double threshold = getThreshold(getProfile(stack, x, y), bit_depth);
+
+					assertTrue(threshold>=index.getThresholdBound(x, y, PEAK_FRACTION, false));
+					assertTrue(threshold>=index.getThresholdBound(x, y, PEAK_FRACTION, true));
+
+					// A value passing the height filter means an active pixel
+					if(index.getMax(x, y)-threshold>=MIN_H)
+					{
+						assertTrue(index.isActive(x, y, PEAK_FRACTION, MIN_H, false));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void onlyPixelsBelowBoundAreSkipped()
+	{
+		Random random = new Random(1800);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 13, 11, 400, bit_depth);
+
+			for(int threshold_window : new int[]{0, 50})
+			{
+				boolean running = threshold_window>0;
+
+				PeakEventTable all = findPeaks(stack, threshold_window, false);
+
+				StackPeakDetector detector = getDetector(stack, threshold_window, true);
+				PeakEventTable skipping = detector.findPeaks(3, false);
+
+				ActivityIndex index = detector.getActivityIndex();
+				PixelSpans analyzed = detector.getAnalyzedSpans(3);
+
+				int n_skipped = 0;
+
+				for(int y=0; y<stack.getHeight(); y++)
+				{
+					for(int x=0; x<stack.getWidth(); x++)
+					{
+						boolean below = index.getMax(x, y)-index.getThresholdBound(x, y, PEAK_FRACTION, running)<MIN_H;
+
+						// Pixels below the bound are skipped, all the others analyzed
+						assertEquals(!below, analyzed.contains(x, y));
+
+						if(below)
+						{
+							n_skipped++;
+
+							// No pixel with peaks is skipped
+							assertEquals(0, all.getNumberOfPeaks(x, y));
+							assertFalse(index.isActive(x, y, PEAK_FRACTION, MIN_H, running));
+						}
+
+						assertEquals(all.getNumberOfPeaks(x, y), skipping.getNumberOfPeaks(x, y));
+					}
+				}
+
+				// The stack has quiet pixels to skip, and active ones
+				assertTrue(n_skipped>0);
+				assertTrue(n_skipped<stack.getWidth()*stack.getHeight());
+			}
+		}
+	}
+
+	/**
+	 * Peak detection with filtering, on 3 threads
+	 */
+	protected static StackPeakDetector getDetector(ImageStack stack, int threshold_window, boolean skip_inactive)
+	{
+		StackPeakDetector detector = new StackPeakDetector(stack, PEAK_FRACTION, 8, true, 1, 30, MIN_H);
+		detector.setThresholdWindow(threshold_window);
+		detector.setSkipInactive(skip_inactive);
+		detector.cacheProfiles();
+
+		return detector;
+	}
+
+	/**
+	 * Peaks of all the pixels of a stack
+	 */
+	protected static PeakEventTable findPeaks(ImageStack stack, int threshold_window, boolean skip_inactive)
+	{
+		return getDetector(stack, threshold_window, skip_inactive).findPeaks(3, false);
+	}
+
+	/**
+	 * Threshold of a z-profile over its whole length, as in FindPeaksTools.findPeaksInProfile (integer values) and
+	 * FindPeaksTools.findPeaksInFloatProfile
+	 */
+	protected static double getThreshold(double[] profile, int bit_depth)
+	{
+		int n = profile.length;
+
+		if(bit_depth==32)
+		{
+			return StatisticsTools.getQuantileOfValues(profile.clone(), n, 1-PEAK_FRACTION, new double[n]);
+		}
+
+		int[] values = new int[n];
+
+		for(int z=0; z<n; z++)
+		{
+			values[z]=(int)profile[z];
+		}
+
+		return StatisticsTools.getQuantileOfIntegers(values, n, 1-PEAK_FRACTION, new int[n], bit_depth==8 ? 256 : 65536);
+	}
+
+	/**
+	 * The z-profile of a pixel, read slice by slice
+	 */
+	protected static double[] getProfile(ImageStack stack, int x, int y)
+	{
+		double[] profile = new double[stack.getSize()];
+
+		for(int z=0; z<stack.getSize(); z++)
+		{
+			profile[z]=stack.getProcessor(z+1).getPixelValue(x, y);
+		}
+
+		return profile;
+	}
+
+	/**
+	 * Stack with active pixels (random z-profiles with peaks, see CandidateOrderTest.getProfile) and quiet pixels
+	 * (a baseline with noise of less than MIN_H), in about equal numbers
+	 */
+	protected static ImageStack getStack(Random random, int width, int height, int depth, int bit_depth)
+	{
+		ImageStack stack = ImageStack.create(width, height, depth, bit_depth);
+
+		int max_level = bit_depth==8 ? 255 : 65535;
+
+		for(int i=0; i<width*height; i++)
+		{
+			int[] profile;
+
+			if(random.nextBoolean())
+			{
+				profile = CandidateOrderTest.getProfile(random, depth, max_level);
+			} else
+			{
+				profile = new int[depth];
+
+				int baseline = random.nextInt(100);
+
+				for(int z=0; z<depth; z++)
+				{
+					profile[z] = baseline+random.nextInt(4);
+				}
+			}
+
+			for(int z=0; z<depth; z++)
+			{
+				double value = bit_depth==32 ? profile[z]+0.5*random.nextDouble() : profile[z];
+				stack.getProcessor(z+1).setf(i, (float)value);
+			}
+		}
+
+		return stack;
+	}
+
+}
@@ -0,0 +1,102 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The peak search with the candidates ordered by counting or radix sort of the integer pixel values against the
+ * search with the candidates ordered by the double index sort, on random 8-bit and 16-bit z-profiles: both visit
+ * the candidates in the same order, and find the same peaks in the same order
+ * @author thomasbraschler
+ *
+ */
+public class CandidateOrderTest {
+
+	@Test
+	public void integerKeysGiveSamePeaks()
+	{
+		Random random = new Random(9);
+
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(1);
+
+		for(int trial=0; trial<4000; trial++)
+		{
+			int n = 10+random.nextInt(1000);
+			int max_level = random.nextBoolean() ? 255 : 65535;
+
+			int[] profile = getProfile(random, n, max_level);
+
+			// Threshold between grey levels, as the quantiles of the histograms
+			double threshold = profile[random.nextInt(n)]+random.nextDouble();
+
+			double[] vals = new double[n];
+
+			for(int z=0; z<n; z++)
+			{
+				vals[z] = profile[z]-threshold;
+			}
+
+			boolean doFiltering = random.nextBoolean();
+			double minD = 1+random.nextInt(20);
+
+			ws.ensureCapacity(n);
+
+			int n_keys = FindPeaksTools.findPeaks(vals, profile, n, 0, minD, doFiltering, 1, 30, 2, ws);
+			int[] with_keys = Arrays.copyOf(ws.getPeaks(), n_keys);
+
+			int n_values = FindPeaksTools.findPeaks(vals, null, n, 0, minD, doFiltering, 1, 30, 2, ws);
+			int[] with_values = Arrays.copyOf(ws.getPeaks(), n_values);
+
+			assertArrayEquals(with_values, with_keys);
+		}
+	}
+
+	/**
+	 * Random integer z-profile with periodic peaks and noise, with plateaus where the values saturate
+	 * @param random Random number generator
+	 * @param n Length of the profile
+	 * @param max_level Largest pixel value
+	 * @return The profile
+	 */
+	protected static int[] getProfile(Random random, int n, int max_level)
+	{
+		int[] profile = new int[n];
+
+		double scale = (max_level+1)/256.0;
+		double period = 5+random.nextInt(50);
+		double amplitude = random.nextInt(300)*scale;
+		double baseline = random.nextInt(100)*scale;
+		double noise = (1+random.nextInt(10))*scale;
+
+		for(int z=0; z<n; z++)
+		{
+			double value = baseline+amplitude*Math.pow(Math.max(0, Math.sin(2*Math.PI*z/period)), 4)
+					+random.nextGaussian()*noise;
+
+			profile[z] = Math.max(0, Math.min(max_level, (int)Math.round(value)));
+		}
+
+		return profile;
+	}
+
+}
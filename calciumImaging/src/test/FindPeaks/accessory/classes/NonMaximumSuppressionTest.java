@@ -0,0 +1,218 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import tbgitoo.tools.ArraySortTools;
+import tbgitoo.tools.VectorTools;
+
+/**
+ * The bitmap suppression of FindPeaksTools.suppressNonMaxima against the node visiting scheme it replaces, with 
+ * the lists of nodes to visit, visited nodes and remaining peaks (as in the Octave findPeaks function): for the 
+ * same candidate order, the same peaks in the same order, also with a work array reused from profile to 
+ * profile and distances that are not integers. On values without ties, identifyPeaksAtMinimalDistance gives
+ * the peaks of the former implementation, which ordered the candidates by reversing the increasing order
+ * @author thomasbraschler
+ *
+ */
+public class NonMaximumSuppressionTest {
+
+	@Test
+	public void suppressionMatchesNodeVisiting()
+	{
+		Random random = new Random(3);
+
+		// Shared by all the profiles, as the workspace of a thread
+		byte[] state = new byte[300];
+		int[] kept = new int[300];
+
+		for(int trial=0; trial<1000; trial++)
+		{
+			int n = 1+random.nextInt(state.length);
+
+			// Plateaus give equal values, the order among them is then given by the sort
+			int[] profile = CandidateOrderTest.getProfile(random, n, random.nextBoolean() ? 255 : 65535);
+
+			double threshold = profile[random.nextInt(n)]+random.nextDouble()-0.5;
+
+			int[] idx = VectorTools.getIndexesOfValuesExceedingThreshold(toDouble(profile), threshold);
+
+			int[] idx_s = getDecreasingOrder(profile, idx);
+
+			double minD = random.nextBoolean() ? 1+random.nextInt(30) : random.nextDouble()*30;
+
+			int n_kept = FindPeaksTools.suppressNonMaxima(idx_s, idx_s.length, minD, state, kept);
+
+			assertArrayEquals(visitNodes(idx_s, minD), Arrays.copyOf(kept, n_kept));
+		}
+	}
+
+	@Test
+	public void distinctValuesGiveFormerPeaks()
+	{
+		Random random = new Random(4);
+
+		for(int trial=0; trial<1000; trial++)
+		{
+			int n = 1+random.nextInt(300);
+
+			double[] vals = new double[n];
+			double period = 5+random.nextDouble()*40;
+
+			for(int z=0; z<n; z++)
+			{
+				vals[z] = Math.cos(2*Math.PI*z/period)+random.nextGaussian()*random.nextDouble();
+			}
+
+			double threshold = random.nextGaussian()*0.5;
+			double minD = random.nextDouble()*2*period;
+
+			// Former candidate order: increasing order, reversed
+			int[] idx = VectorTools.getIndexesOfValuesExceedingThreshold(vals, threshold);
+
+			double[] remaining_vals = new double[idx.length];
+
+			for(int ind=0; ind<idx.length; ind++)
+			{
+				remaining_vals[ind]=vals[idx[ind]];
+			}
+
+			int[] order = ArraySortTools.getIndexesOfSortedArray(remaining_vals);
+
+			int[] idx_s = new int[idx.length];
+
+			for(int ind=0; ind<idx.length; ind++)
+			{
+				idx_s[ind]=idx[order[idx.length-1-ind]];
+			}
+
+			assertArrayEquals(visitNodes(idx_s, minD), FindPeaksTools.identifyPeaksAtMinimalDistance(vals, threshold, minD));
+		}
+	}
+
+	/**
+	 * Node visiting scheme of the Octave findPeaks function, with lists of nodes: the node to visit with the
+	 * highest priority is a peak, and its neighbors closer than minD that were not visited yet are removed from
+	 * the peaks and from the nodes to visit
+	 * @param idx_s Candidate positions, in the order of decreasing priority
+	 * @param minD Minimal distance between neighboring peaks
+	 * @return The peaks, in the order of the candidates
+	 */
+	protected static int[] visitNodes(int[] idx_s, double minD)
+	{
+		Vector<Integer> node2visit = new Vector<Integer>(idx_s.length);
+		Vector<Integer> visited = new Vector<Integer>(idx_s.length);
+		Vector<Integer> idx_pruned = new Vector<Integer>(idx_s.length);
+
+		for(int ind=0; ind<idx_s.length; ind++)
+		{
+			node2visit.add(ind);
+			idx_pruned.add(idx_s[ind]);
+		}
+
+		while(node2visit.size()>0)
+		{
+			int current_node = node2visit.get(0);
+			node2visit.remove(0);
+			visited.add(current_node);
+
+			Vector<Integer> neighs = new Vector<Integer>(idx_s.length);
+
+			for(int ind=0; ind<idx_s.length; ind++)
+			{
+				if(ind!=current_node && Math.abs(idx_s[ind]-idx_s[current_node])<minD 
+						&& !VectorTools.findInVector(ind, visited))
+				{
+					neighs.add(ind);
+				}
+			}
+
+			if(neighs.size()>0)
+			{
+				Vector<Integer> idx_neighs = new Vector<Integer>(neighs.size());
+
+				for(int ind=0; ind<neighs.size(); ind++)
+				{
+					idx_neighs.add(idx_s[neighs.get(ind)]);
+					visited.add(neighs.get(ind).intValue());
+				}
+
+				idx_pruned = VectorTools.setDiff(idx_pruned, idx_neighs);
+				node2visit = VectorTools.setDiff(node2visit, visited);
+			}
+		}
+
+		int[] idx = new int[idx_pruned.size()];
+
+		for(int ind=0; ind<idx.length; ind++)
+		{
+			idx[ind]=idx_pruned.get(ind);
+		}
+
+		return idx;
+	}
+
+	/**
+	 * Candidates by decreasing value, equal values in the order of their positions
+	 * @param profile Integer z-profile
+	 * @param idx Candidate positions, increasing
+	 * @return The candidate positions in the order of their visit
+	 */
+	protected static int[] getDecreasingOrder(int[] profile, int[] idx)
+	{
+		double[] remaining_vals = new double[idx.length];
+
+		for(int ind=0; ind<idx.length; ind++)
+		{
+			remaining_vals[ind]=profile[idx[ind]];
+		}
+
+		int[] order = new int[idx.length];
+
+		ArraySortTools.getIndexesOfReverseSortedArray(remaining_vals, idx.length, order);
+
+		int[] idx_s = new int[idx.length];
+
+		for(int ind=0; ind<idx.length; ind++)
+		{
+			idx_s[ind]=idx[order[ind]];
+		}
+
+		return idx_s;
+	}
+
+	/**
+	 * @param profile Integer values
+	 * @return The values as doubles
+	 */
+	protected static double[] toDouble(int[] profile)
+	{
+		double[] vals = new double[profile.length];
+
+		VectorTools.toDouble(profile, profile.length, vals);
+
+		return vals;
+	}
+
+}
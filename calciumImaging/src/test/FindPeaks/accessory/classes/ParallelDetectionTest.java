@@ -0,0 +1,180 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import tbgitoo.tools.PixelSpans;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * The peak detection distributed over threads (StackPeakDetector.findPeaks on the transposed stack, as run by
+ * FindPeaks) against the serial scan of the pixels it replaces, with the per-pixel detection of the former
+ * FindPeaks.findPeaksInSection (threshold from the histogram of the z-profile, then FindPeaksTools.findPeaks on
+ * newly allocated arrays): the same peaks for every pixel, whatever the number of threads, with a pool shared
+ * by several stacks, and with a mask
+ * @author thomasbraschler
+ *
+ */
+public class ParallelDetectionTest {
+
+	/** Detection parameters, as in the FindPeaks dialog */
+	protected static final double PEAK_FRACTION=0.3, MIN_D=8, MIN_W=1, MAX_W=30, MIN_H=2;
+
+	@Test
+	public void threadsGiveSerialPeaks()
+	{
+		Random random = new Random(1);
+
+		ForkJoinPool pool = new ForkJoinPool(3);
+
+		try
+		{
+			for(int trial=0; trial<4; trial++)
+			{
+				// Sizes that are not multiples of the tiles
+				ImageStack stack = StackPeakDetectorTest.getStack(random, 1+random.nextInt(70), 1+random.nextInt(40),
+						50+random.nextInt(250), 8);
+
+				boolean doFiltering = random.nextBoolean();
+
+				int[][] expected = findPeaksSerially(stack, doFiltering);
+
+				for(int n_threads : new int[]{1, 2, 5, 0})
+				{
+					StackPeakDetector detector = new StackPeakDetector(stack, PEAK_FRACTION, MIN_D, doFiltering, 
+							MIN_W, MAX_W, MIN_H);
+					detector.cacheProfiles();
+
+					assertPeaks(expected, detector.findPeaks(n_threads, false), null);
+				}
+
+				// The pool of a batch, which outlives the stack
+				StackPeakDetector detector = new StackPeakDetector(stack, PEAK_FRACTION, MIN_D, doFiltering, 
+						MIN_W, MAX_W, MIN_H);
+				detector.setPool(pool);
+				detector.cacheProfiles();
+
+				assertPeaks(expected, detector.findPeaks(3, false), null);
+			}
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void maskedThreadsGiveSerialPeaks()
+	{
+		Random random = new Random(2);
+
+		ImageStack stack = StackPeakDetectorTest.getStack(random, 67, 45, 200, 8);
+
+		int[][] expected = findPeaksSerially(stack, true);
+
+		ByteProcessor mask = new ByteProcessor(stack.getWidth(), stack.getHeight());
+
+		for(int i=0; i<stack.getWidth()*stack.getHeight(); i++)
+		{
+			mask.set(i, random.nextInt(3)==0 ? 255 : 0);
+		}
+
+		PixelSpans spans = PixelSpans.fromProcessor(mask, stack.getWidth(), stack.getHeight());
+
+		for(int n_threads : new int[]{1, 4})
+		{
+			StackPeakDetector detector = new StackPeakDetector(stack, PEAK_FRACTION, MIN_D, true, MIN_W, MAX_W, MIN_H);
+			detector.setSpans(spans);
+			detector.cacheProfiles();
+
+			assertPeaks(expected, detector.findPeaks(n_threads, false), spans);
+		}
+	}
+
+	/**
+	 * Check the peaks of each pixel
+	 * @param expected Peaks of the serial scan, per pixel y*width+x
+	 * @param table Peaks of the parallel detection
+	 * @param spans The pixels analyzed, the others have no peaks; null for all the pixels
+	 */
+	protected static void assertPeaks(int[][] expected, PeakEventTable table, PixelSpans spans)
+	{
+		for(int y=0; y<table.getHeight(); y++)
+		{
+			for(int x=0; x<table.getWidth(); x++)
+			{
+				int[] peaks = (spans==null || spans.contains(x, y)) ? expected[y*table.getWidth()+x] : new int[0];
+
+				assertArrayEquals(peaks, table.getPeaks(x, y));
+			}
+		}
+	}
+
+	/**
+	 * Serial scan of the pixels, x by x and y by y, with the per-pixel detection of the former
+	 * FindPeaks.findPeaksInSection
+	 * @param stack 8-bit stack
+	 * @param doFiltering Filter the peaks for width and height
+	 * @return The peaks of each pixel y*width+x, sorted
+	 */
+	protected static int[][] findPeaksSerially(ImageStack stack, boolean doFiltering)
+	{
+		int width = stack.getWidth();
+		int depth = stack.getSize();
+
+		int[][] peaks = new int[width*stack.getHeight()][];
+
+		for(int x=0; x<width; x++)
+		{
+			for(int y=0; y<stack.getHeight(); y++)
+			{
+				int[] intSection = new int[depth];
+
+				for(int z=0; z<depth; z++)
+				{
+					intSection[z] = ((byte[])stack.getPixels(z+1))[y*width+x]&0xff;
+				}
+
+				double threshold = StatisticsTools.getQuantile(StatisticsTools.getHistogram(intSection), 1-PEAK_FRACTION);
+
+				double[] theSection = new double[depth];
+
+				for(int z=0; z<depth; z++)
+				{
+					theSection[z] = intSection[z]-threshold;
+				}
+
+				int[] idx = FindPeaksTools.findPeaks(theSection, 0, MIN_D, doFiltering, MIN_W, MAX_W, MIN_H);
+
+				Arrays.sort(idx);
+
+				peaks[y*width+x] = idx;
+			}
+		}
+
+		return peaks;
+	}
+
+}
@@ -0,0 +1,86 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.process.ByteProcessor;
+
+/**
+ * The JSON report of the plugins: written next to the file of the analyzed image, also for the images computed
+ * from it (the peak images analyzed by LocalPhase and LocalFrequency), and not for images without a file
+ * @author thomasbraschler
+ *
+ */
+public class PeakDetectionStatisticsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reportIsWrittenNextToTheImageFile() throws Exception
+	{
+		File directory = folder.getRoot();
+
+		ImagePlus imp = new ImagePlus("cells.tif", new ByteProcessor(4, 3));
+
+		// Not saved, no report
+		assertNull(PeakDetectionStatistics.getReportFile(imp, "FindPeaks"));
+
+		FileInfo fi = new FileInfo();
+		fi.directory = directory.getPath()+File.separator;
+		fi.fileName = "cells.tif";
+		imp.setFileInfo(fi);
+
+		File report = PeakDetectionStatistics.getReportFile(imp, "FindPeaks");
+
+		assertEquals(new File(directory, "cells_FindPeaks_report.json"), report);
+
+		// The peak image computed from it reports next to the same file
+		ImagePlus peaks = new ImagePlus("Result findpeaks - cells.tif", new ByteProcessor(4, 3));
+		PeakDetectionStatistics.setReportLocation(peaks, PeakDetectionStatistics.getReportLocation(imp));
+
+		assertEquals(new File(directory, "cells_LocalPhase_report.json"),
+				PeakDetectionStatistics.getReportFile(peaks, "LocalPhase"));
+
+		PeakDetectionStatistics statistics = new PeakDetectionStatistics();
+		statistics.start(false);
+		statistics.addTime(PeakDetectionStatistics.STAGE_FREQUENCY_PHASE, System.nanoTime());
+		statistics.getCounters().pixels+=12;
+		statistics.stop();
+		statistics.writeJSON(report, imp.getTitle());
+
+		String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+
+		assertTrue(json.contains("\"label\": \"cells.tif\""));
+		assertTrue(json.contains("\"pixels\": 12"));
+		assertTrue(json.contains("\"frequency_phase\""));
+	}
+
+}
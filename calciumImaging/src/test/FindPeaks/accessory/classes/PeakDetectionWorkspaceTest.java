@@ -0,0 +1,355 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import tbgitoo.tools.FitParabola;
+import tbgitoo.tools.VectorTools;
+
+/**
+ * The peak detection with a workspace reused from pixel to pixel, as in FindPeaks, against the detection with a 
+ * new workspace for each z-profile: no state of a profile may leak into the next, whatever the order of the profile
+ * lengths and pixel types. The parabola fits on a window of the values, which use no regressor arrays, against the 
+ * former fits, which allocated them (kept here as reference): the coefficients must be bit-identical
+ * @author thomasbraschler
+ *
+ */
+public class PeakDetectionWorkspaceTest {
+
+	@Test
+	public void reusedWorkspaceGivesFreshResults()
+	{
+		Random random = new Random(4);
+
+		PeakDetectionWorkspace reused = new PeakDetectionWorkspace(1);
+
+		for(int trial=0; trial<3000; trial++)
+		{
+			// Longer and shorter profiles in turn, so that buffers are both grown and reused partly
+			int n = 1+random.nextInt(random.nextBoolean() ? 50 : 1500);
+			int bit_depth = new int[]{8, 16, 32}[random.nextInt(3)];
+			int window = random.nextBoolean() ? 0 : 1+random.nextInt(2*n);
+
+			double peak_fraction = 0.05+0.9*random.nextDouble();
+			double minD = random.nextDouble()*20;
+			boolean doFiltering = random.nextBoolean();
+
+			int[] profile = CandidateOrderTest.getProfile(random, n, bit_depth==8 ? 255 : 65535);
+
+			PeakDetectionWorkspace fresh = new PeakDetectionWorkspace(n);
+			reused.ensureCapacity(n);
+
+			int n_fresh = findPeaks(fresh, profile, bit_depth, window, peak_fraction, minD, doFiltering);
+			int n_reused = findPeaks(reused, profile, bit_depth, window, peak_fraction, minD, doFiltering);
+
+			assertArrayEquals(Arrays.copyOf(fresh.getPeaks(), n_fresh), Arrays.copyOf(reused.getPeaks(), n_reused));
+		}
+	}
+
+	@Test
+	public void windowFitsMatchAllocatingFits()
+	{
+		Random random = new Random(5);
+
+		double[] params = new double[3];
+
+		for(int trial=0; trial<20000; trial++)
+		{
+			int length = random.nextInt(60);
+			int offset = random.nextInt(20);
+
+			double[] vals = new double[offset+length+random.nextInt(20)];
+
+			for(int ind=0; ind<vals.length; ind++)
+			{
+				vals[ind] = random.nextInt(3)==0 ? random.nextInt(10) : 100*random.nextGaussian();
+			}
+
+			double[] window = Arrays.copyOfRange(vals, offset, offset+length);
+
+			FitParabola.fitParabola(vals, offset, length, params);
+
+			assertArrayEquals(fitParabola(window), params, 0);
+
+			// Apexes outside the window are moved into it
+			boolean force = random.nextBoolean() || length==0;
+			int xm = force ? random.nextInt(length+4)-2 : random.nextInt(length);
+
+			FitParabola.fitParabolaFixedExtremum(vals, offset, length, xm, force, params);
+
+			assertArrayEquals(fitParabolaFixedExtremum(window, xm, force), params, 0);
+		}
+	}
+
+	/**
+	 * Peak detection of FindPeaks for a pixel
+	 * @param ws Workspace, with capacity at least the profile length
+	 * @param profile z-profile
+	 * @param bit_depth 8, 16 or 32; for 32-bit, the profile is divided by 7, for values that are not integers
+	 * @param window Length of the window for a running threshold, 0 for a threshold over the whole profile
+	 * @param peak_fraction Expected fraction of values above the threshold
+	 * @param minD Minimal distance between peaks
+	 * @param doFiltering Filter the peaks for width and height
+	 * @return Number of peaks, in the workspace
+	 */
+	protected static int findPeaks(PeakDetectionWorkspace ws, int[] profile, int bit_depth, int window, 
+			double peak_fraction, double minD, boolean doFiltering)
+	{
+		int n = profile.length;
+
+		if(bit_depth==32)
+		{
+			for(int z=0; z<n; z++)
+			{
+				ws.getValues()[z] = (float)(profile[z]/7.0);
+			}
+
+			if(window>0)
+			{
+				return FindPeaksTools.findPeaksInFloatProfileRollingThreshold(ws, n, peak_fraction, window, minD, 
+						doFiltering, 1, 30, 2);
+			}
+
+			return FindPeaksTools.findPeaksInFloatProfile(ws, n, peak_fraction, minD, doFiltering, 1, 30, 2);
+		}
+
+		System.arraycopy(profile, 0, ws.getSection(), 0, n);
+
+		if(window>0)
+		{
+			return FindPeaksTools.findPeaksInProfileRollingThreshold(ws, n, peak_fraction, window, minD, 
+					doFiltering, 1, 30, 2);
+		}
+
+		if(bit_depth==16)
+		{
+			return FindPeaksTools.findPeaksInShortProfile(ws, n, peak_fraction, minD, doFiltering, 1, 30, 2);
+		}
+
+		return FindPeaksTools.findPeaksInProfile(ws, n, peak_fraction, minD, doFiltering, 1, 30, 2);
+	}
+
+	/**
+	 * Scalar product, summed in order as at the time of the former fits (VectorTools.scalar_product now uses 
+	 * partial sums)
+	 * @param x First vector
+	 * @param y Second vector, of the same length
+	 * @return The scalar product
+	 */
+	protected static double scalarProduct(double[] x, double[] y)
+	{
+		double sum=0;
+
+		for(int ind=0; ind<x.length; ind++)
+		{
+			sum=sum+x[ind]*y[ind];
+		}
+
+		return sum;
+	}
+
+	/**
+	 * @param x Vector
+	 * @return The sum of its values, in order
+	 */
+	protected static double sum(double[] x)
+	{
+		double s=0;
+
+		for(int ind=0; ind<x.length; ind++)
+		{
+			s=s+x[ind];
+		}
+
+		return s;
+	}
+
+	/**
+	 * Former FitParabola.fitParabola, with newly allocated regressors
+	 * @param vals Values, at x=0,1,2...
+	 * @return The coefficients (offset, linear, squared)
+	 */
+	protected static double[] fitParabola(double[] vals)
+	{
+		double[] params = new double[3];
+
+		if(vals.length==0)
+		{
+			return params;
+		}
+
+		if(vals.length==1)
+		{
+			params[0]=vals[0];
+			params[2]=-1;
+			return params;
+		}
+
+		if(vals.length==2)
+		{
+			params[0]=vals[0];
+			params[1]=2*vals[1]-2*vals[0];
+			params[2]=vals[0]-vals[1];
+			return params;
+		}
+
+		double xbar=((double)vals.length-1)/2.0;
+
+		double[] x_regression = new double[vals.length];
+
+		for(int ind=0; ind<x_regression.length; ind++)
+		{
+			x_regression[ind]=(double)ind-xbar;
+		}
+
+		double n_x_regression = Math.sqrt(scalarProduct(x_regression,x_regression));
+
+		for(int ind=0; ind<x_regression.length; ind++)
+		{
+			x_regression[ind]=x_regression[ind]/n_x_regression;
+		}
+
+		double b=scalarProduct(vals,x_regression)/n_x_regression;
+
+		double[] x2_regression = new double[vals.length];
+
+		for(int ind=0; ind<x_regression.length; ind++)
+		{
+			x2_regression[ind]=((double)ind-xbar)*((double)ind-xbar);
+		}
+
+		double x2_regression_mean = VectorTools.mean(x2_regression);
+
+		for(int ind=0; ind<x_regression.length; ind++)
+		{
+			x2_regression[ind]=x2_regression[ind]-x2_regression_mean;
+		}
+
+		double n_x2_regression = Math.sqrt(scalarProduct(x2_regression,x2_regression));
+
+		for(int ind=0; ind<x_regression.length; ind++)
+		{
+			x2_regression[ind]=x2_regression[ind]/n_x2_regression;
+		}
+
+		double c=scalarProduct(vals,x2_regression)/n_x2_regression;
+
+		double[] vals_reduced = new double[vals.length];
+
+		for(int ind=0; ind<vals.length; ind++)
+		{
+			vals_reduced[ind] = vals[ind]-b*((double)ind-xbar)-c*((double)ind-xbar)*((double)ind-xbar);
+		}
+
+		double a = VectorTools.mean(vals_reduced);
+
+		params[0]=a-b*xbar+c*xbar*xbar;
+		params[1]=b-2*c*xbar;
+		params[2]=c;
+
+		return params;
+	}
+
+	/**
+	 * Former FitParabola.fitParabolaFixedExtremum, with newly allocated regressors
+	 * @param vals Values, at x=0,1,2...
+	 * @param xm Location of the apex
+	 * @param force_xm_in_array_domain Move xm into 0 .. length(vals)-1
+	 * @return The coefficients (offset, linear, squared)
+	 */
+	protected static double[] fitParabolaFixedExtremum(double[] vals, int xm, boolean force_xm_in_array_domain)
+	{
+		if(force_xm_in_array_domain)
+		{
+			if(xm<0)
+			{
+				xm=0;
+			}
+			if(xm>=vals.length)
+			{
+				xm=vals.length-1;
+			}
+		}
+
+		double[] params = new double[3];
+
+		if(vals.length==0)
+		{
+			return params;
+		}
+
+		if(vals.length==1)
+		{
+			params[0]=vals[0];
+			params[2]=-1;
+			return params;
+		}
+
+		if(vals.length==2)
+		{
+			if(xm==0)
+			{
+				params[0]=vals[0];
+				params[2]=vals[1]-vals[0];
+			} else
+			{
+				params[0]=vals[0];
+				params[1]=2*(vals[1]-vals[0]);
+				params[2]=-vals[1]-vals[0];
+			}
+			return params;
+		}
+
+		double H = vals[xm];
+
+		double[] x_rel = new double[vals.length];
+		double[] relative_height = new double[vals.length];
+
+		for(int x_ind=0; x_ind<vals.length; x_ind++)
+		{
+			x_rel[x_ind]=(double)x_ind-xm;
+			relative_height[x_ind]=vals[x_ind]-H;
+		}
+
+		double[] x_rel2 = VectorTools.element_wise_multiplication(x_rel,x_rel);
+		double[] x_rel3 = VectorTools.element_wise_multiplication(x_rel2,x_rel);
+		double[] x_rel4 = VectorTools.element_wise_multiplication(x_rel3,x_rel);
+
+		double A = scalarProduct(relative_height,x_rel);
+		double B = sum(x_rel2);
+		double C = sum(x_rel3);
+		double D = scalarProduct(relative_height,x_rel2);
+		double E = sum(x_rel4);
+
+		double c=(D*B-A*C)/(E*B-C*C);
+		double b=(A-c*C)/B;
+		double a=H;
+
+		params[0]=a-b*xm+c*xm*xm;
+		params[1]=b-2*c*xm;
+		params[2]=c;
+
+		return params;
+	}
+
+}
@@ -0,0 +1,268 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import tbgitoo.tools.ParallelTools;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * The peak table against the dense peak image it replaces: the peaks of each pixel, the image rebuilt from the 
+ * table, and the table built concurrently pixel by pixel as by FindPeaks; the local frequency from the table against
+ * the former sum projection of the peak image. The peak table kept with a peak image (PeakEventTable.get): it remains 
+ * valid while the image is only redrawn (selection, title, slice shown), and is invalid once the pixels are edited 
+ * or replaced
+ * @author thomasbraschler
+ *
+ */
+public class PeakEventTableTest {
+
+	@Test
+	public void indexFollowsPixelChanges()
+	{
+		Random random = new Random(22);
+
+		ImageStack stack = getPeakStack(random, 20, 10, 8);
+		ImagePlus imp = new ImagePlus("peaks", stack);
+
+		int[] hashes = new int[stack.getSize()];
+		PeakEventTable table = PeakEventTable.fromStack(stack, hashes);
+		PeakEventTable.StackIndex index = new PeakEventTable.StackIndex(stack, table, hashes);
+
+		assertTrue(index.isCurrent(imp));
+
+		// Redrawing only
+		imp.setRoi(new Roi(2, 2, 5, 5));
+		imp.setTitle("renamed");
+		imp.setSlice(4);
+		imp.updateAndDraw();
+
+		assertTrue(index.isCurrent(imp));
+
+		// Pixel edited in place, and restored
+		int value = imp.getProcessor().get(3, 3);
+		imp.getProcessor().set(3, 3, value==0 ? 255 : 0);
+
+		assertFalse(index.isCurrent(imp));
+
+		imp.getProcessor().set(3, 3, value);
+
+		assertTrue(index.isCurrent(imp));
+
+		// Slice replaced with the same content
+		stack.setPixels(((byte[])stack.getPixels(2)).clone(), 2);
+
+		assertFalse(index.isCurrent(imp));
+
+		// Stack replaced
+		ImagePlus other = new ImagePlus("peaks", getPeakStack(random, 20, 10, 8));
+
+		assertFalse(index.isCurrent(other));
+
+		assertArrayEquals(table.getFrames(), PeakEventTable.fromStack(stack).getFrames());
+	}
+
+	@Test
+	public void tableMatchesDenseStack()
+	{
+		Random random = new Random(7);
+
+		for(int trial=0; trial<30; trial++)
+		{
+			int width = 1+random.nextInt(40);
+			int height = 1+random.nextInt(30);
+			int depth = 1+random.nextInt(60);
+			int bit_depth = new int[]{8, 16, 32}[random.nextInt(3)];
+
+			// Any non-zero value is a peak, but only positive values in 32-bit images
+			ImageStack stack = ImageStack.create(width, height, depth, bit_depth);
+
+			for(int z=0; z<depth; z++)
+			{
+				for(int i=0; i<width*height; i++)
+				{
+					if(random.nextInt(8)==0)
+					{
+						stack.getProcessor(z+1).setf(i, bit_depth==32 ? (float)random.nextGaussian() : 1+random.nextInt(255));
+					}
+				}
+			}
+
+			PeakEventTable table = PeakEventTable.fromStack(stack);
+
+			assertEquals(depth, table.getDepth());
+
+			ImageProcessor[] slices = new ImageProcessor[depth];
+
+			for(int z=0; z<depth; z++)
+			{
+				slices[z] = stack.getProcessor(z+1);
+			}
+
+			int n_total = 0;
+
+			for(int y=0; y<height; y++)
+			{
+				for(int x=0; x<width; x++)
+				{
+					int[] expected = new int[depth];
+					int n = 0;
+
+					for(int z=0; z<depth; z++)
+					{
+						boolean peak = slices[z].getf(x, y)>0;
+
+						assertEquals(peak, table.isPeak(x, y, z));
+
+						if(peak)
+						{
+							expected[n++]=z;
+						}
+					}
+
+					assertArrayEquals(Arrays.copyOf(expected, n), table.getPeaks(x, y));
+					assertEquals(n, table.getNumberOfPeaks(x, y));
+
+					n_total += n;
+				}
+			}
+
+			assertEquals(n_total, table.getNumberOfPeaks());
+
+			// The image rebuilt from the table, and the view of the table
+			ImageStack bytes = table.toByteStack();
+			PeakEventStack view = new PeakEventStack(table);
+
+			for(int z=0; z<depth; z++)
+			{
+				ImageProcessor byte_slice = bytes.getProcessor(z+1);
+				ImageProcessor view_slice = view.getProcessor(z+1);
+
+				for(int i=0; i<width*height; i++)
+				{
+					int value = slices[z].getf(i)>0 ? 255 : 0;
+
+					assertEquals(value, byte_slice.get(i));
+					assertEquals(value, view_slice.get(i));
+				}
+			}
+
+			// Built concurrently, one pixel at a time, in any order of the peaks
+			final PeakEventTable.Builder builder = new PeakEventTable.Builder(width, height, depth);
+			final PeakEventTable expected = table;
+
+			ParallelTools.processSpans(PixelSpans.all(width, height), 4, new ParallelTools.SpanProcessor() {
+				public void processSpan(int y, int x_start, int x_end) {
+					for(int x=x_start; x<x_end; x++)
+					{
+						int[] idx = expected.getPeaks(x, y);
+
+						// Reversed, with room to spare
+						int[] reversed = new int[idx.length+3];
+
+						for(int ind=0; ind<idx.length; ind++)
+						{
+							reversed[ind]=idx[idx.length-1-ind];
+						}
+
+						builder.setPeaks(x, y, reversed, idx.length);
+					}
+				}
+			}, false);
+
+			PeakEventTable built = builder.build();
+
+			assertArrayEquals(table.getOffsets(), built.getOffsets());
+			assertArrayEquals(table.getFrames(), built.getFrames());
+		}
+	}
+
+	@Test
+	public void frequencyMatchesSumProjection()
+	{
+		Random random = new Random(8);
+
+		for(int trial=0; trial<10; trial++)
+		{
+			ImageStack stack = getPeakStack(random, 1+random.nextInt(40), 1+random.nextInt(30), 1+random.nextInt(100));
+			ImagePlus imp = new ImagePlus("peaks", stack);
+
+			double frame_rate = 1+random.nextDouble()*50;
+
+			// Former LocalFrequency: sum of the 0/255 peak image over the frames
+			ZProjector zp = new ZProjector();
+			zp.setImage(imp);
+			zp.setMethod(ZProjector.SUM_METHOD);
+			zp.setStartSlice(1);
+			zp.setStopSlice(imp.getStackSize());
+			zp.doProjection();
+
+			FloatProcessor sum = (FloatProcessor)zp.getProjection().getProcessor();
+
+			FloatProcessor frequency = LocalFrequencyTools.getFrequencyImage(PeakEventTable.fromStack(stack), frame_rate);
+
+			for(int i=0; i<stack.getWidth()*stack.getHeight(); i++)
+			{
+				float expected = (float)(sum.getf(i)/((double)imp.getStackSize())*frame_rate/255.0*60.0);
+
+				assertEquals(expected, frequency.getf(i), Math.ulp(expected));
+			}
+		}
+	}
+
+	/**
+	 * 8-bit peak image with random peaks (255)
+	 */
+	protected static ImageStack getPeakStack(Random random, int width, int height, int depth)
+	{
+		ImageStack stack = new ImageStack(width, height);
+
+		for(int z=0; z<depth; z++)
+		{
+			ByteProcessor bp = new ByteProcessor(width, height);
+
+			for(int i=0; i<width*height; i++)
+			{
+				if(random.nextInt(10)==0)
+				{
+					bp.set(i, 255);
+				}
+			}
+
+			stack.addSlice("", bp);
+		}
+
+		return stack;
+	}
+
+}
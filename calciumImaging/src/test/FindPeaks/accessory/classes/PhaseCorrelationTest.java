@@ -0,0 +1,91 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The merge-based phase correlation of LocalPhaseTools (getCorrelationInformationSorted and the functions built on it)
+ * against the scanning version getCorrelationInformation, which looks up the nearest reference peak and the period
+ * for each peak separately. The results must be bit-identical, including duplicate peaks, peaks out of order, peaks
+ * before the first or after the last reference peak, and references with no or a single peak
+ * @author thomasbraschler
+ *
+ */
+public class PhaseCorrelationTest {
+
+	@Test
+	public void mergeMatchesScanning()
+	{
+		Random random = new Random(10);
+
+		double[] expected = new double[3];
+		double[] info = new double[3];
+
+		for(int trial=0; trial<100000; trial++)
+		{
+			int depth = 1+random.nextInt(500);
+
+			int[] idx_ref = RandomPeaksTools.getPeaks(random, random.nextInt(4)==0 ? random.nextInt(3) : random.nextInt(60), depth);
+			Arrays.sort(idx_ref);
+
+			int[] frames = RandomPeaksTools.getPeaks(random, random.nextInt(60), depth);
+
+			// Mostly sorted peaks, as they come from the peak table, but also peaks out of order
+			if(random.nextInt(4)!=0)
+			{
+				Arrays.sort(frames);
+			}
+
+			int from = random.nextInt(frames.length+1);
+			int to = from+random.nextInt(frames.length-from+1);
+
+			LocalPhaseTools.getCorrelationInformation(frames, from, to, idx_ref, expected);
+			LocalPhaseTools.getCorrelationInformationSorted(frames, from, to, idx_ref, info);
+
+			assertArrayEquals(expected, info, 0);
+		}
+	}
+
+	@Test
+	public void sortedPhaseAndStrengthMatchScanning()
+	{
+		Random random = new Random(11);
+
+		for(int trial=0; trial<20000; trial++)
+		{
+			int depth = 1+random.nextInt(2000);
+
+			int[] idx_ref = RandomPeaksTools.getPeaks(random, random.nextInt(100), depth);
+			int[] idx = RandomPeaksTools.getPeaks(random, random.nextInt(100), depth);
+
+			Arrays.sort(idx_ref);
+			Arrays.sort(idx);
+
+			assertEquals(LocalPhaseTools.getPhase(idx, idx_ref), LocalPhaseTools.getPhaseSorted(idx, idx_ref), 0);
+			assertEquals(LocalPhaseTools.getCorrelationStrength(idx, idx_ref),
+					LocalPhaseTools.getCorrelationStrengthSorted(idx, idx_ref), 0);
+		}
+	}
+
+}
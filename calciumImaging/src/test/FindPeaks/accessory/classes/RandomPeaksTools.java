@@ -0,0 +1,54 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import java.util.Random;
+
+/**
+ * Peak lists for the tests of the phase correlation (PhaseCorrelationTest, ReferencePhaseTableTest)
+ * @author thomasbraschler
+ *
+ */
+public class RandomPeaksTools {
+
+	/**
+	 * Random peak frames, with duplicates. The frames are not negative, as in a recording: the scanning version
+	 * of the phase correlation (LocalPhaseTools.getCorrelationInformation) uses -1 for a missing reference peak
+	 * @param random Random number generator
+	 * @param n Number of peaks
+	 * @param depth Number of frames of the recording; the peaks are in 0..depth-1
+	 * @return The peaks, unsorted
+	 */
+	public static int[] getPeaks(Random random, int n, int depth)
+	{
+		int[] peaks = new int[n];
+
+		for(int ind=0; ind<n; ind++)
+		{
+			if(ind>0 && random.nextInt(10)==0)
+			{
+				peaks[ind] = peaks[random.nextInt(ind)];
+			} else
+			{
+				peaks[ind] = random.nextInt(depth);
+			}
+		}
+
+		return peaks;
+	}
+
+}
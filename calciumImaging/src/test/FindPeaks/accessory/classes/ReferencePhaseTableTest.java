@@ -0,0 +1,72 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The phase of peaks from the per-frame table of ReferencePhaseTable against LocalPhaseTools.getCorrelationInformation,
+ * which looks up the nearest reference peak and the period for each peak. The results must be bit-identical,
+ * including peaks beyond the frames of the table, which are evaluated without it
+ * @author thomasbraschler
+ *
+ */
+public class ReferencePhaseTableTest {
+
+	@Test
+	public void tableMatchesScanning()
+	{
+		Random random = new Random(12);
+
+		double[] expected = new double[3];
+		double[] info = new double[3];
+
+		for(int trial=0; trial<2000; trial++)
+		{
+			int depth = 1+random.nextInt(1000);
+
+			int[] idx_ref = RandomPeaksTools.getPeaks(random, random.nextInt(4)==0 ? random.nextInt(3) : random.nextInt(100), depth);
+			Arrays.sort(idx_ref);
+
+			ReferencePhaseTable table = new ReferencePhaseTable(idx_ref, depth);
+
+			for(int pixel=0; pixel<50; pixel++)
+			{
+				// A few peaks beyond the last frame of the table
+				int[] frames = RandomPeaksTools.getPeaks(random, random.nextInt(100), depth+(random.nextInt(5)==0 ? 10 : 0));
+				Arrays.sort(frames);
+
+				int from = random.nextInt(frames.length+1);
+				int to = from+random.nextInt(frames.length-from+1);
+
+				LocalPhaseTools.getCorrelationInformation(frames, from, to, idx_ref, expected);
+				table.getCorrelationInformation(frames, from, to, info);
+
+				assertArrayEquals(expected, info, 0);
+
+				assertEquals(LocalPhaseTools.getPhase(expected), table.getPhase(frames, from, to, info), 0);
+			}
+		}
+	}
+
+}
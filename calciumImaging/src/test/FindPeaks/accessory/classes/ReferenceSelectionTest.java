@@ -0,0 +1,386 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * The reference chosen by ReferenceSelection, on a synthetic recording with a known best pixel, and against a
+ * brute-force evaluation of regularity times reliability times coverage over all the pixels, with the
+ * scanning LocalPhaseTools.getCorrelationStrength for the coverage
+ * @author thomasbraschler
+ *
+ */
+public class ReferenceSelectionTest {
+
+	/** Width of the synthetic recording */
+	protected static final int WIDTH=16;
+
+	/** Height of the synthetic recording */
+	protected static final int HEIGHT=12;
+
+	/** Number of frames of the synthetic recording */
+	protected static final int DEPTH=800;
+
+	/** Period of the pacemaker */
+	protected static final int PERIOD=25;
+
+	/** Position of the pacemaker, which beats strictly periodically and which the other pixels follow */
+	protected static final int PACEMAKER_X=11, PACEMAKER_Y=7;
+
+	/** Position of a strictly periodic pixel with more peaks than the pacemaker, but which no other pixel follows */
+	protected static final int DECOY_X=2, DECOY_Y=3;
+
+	/** Position of a pixel with many irregular peaks */
+	protected static final int NOISE_X=5, NOISE_Y=9;
+
+	@Test
+	public void pacemakerIsSelected()
+	{
+		PeakEventTable table = getRecording(new Random(25));
+
+		ReferenceSelection selection = new ReferenceSelection(table, null);
+
+		assertTrue(selection.select());
+
+		assertEquals(PACEMAKER_X, selection.getReferenceX());
+		assertEquals(PACEMAKER_Y, selection.getReferenceY());
+		assertEquals(table.getNumberOfPeaks(PACEMAKER_X, PACEMAKER_Y), selection.getNumberOfPeaks());
+		assertEquals(1, selection.getRegularity(), 1e-12);
+
+		// The decoy comes first by regularity and number of peaks alone, so that it is the coverage that decides
+		assertTrue(getPriorScore(table.getPeaks(DECOY_X, DECOY_Y))>getPriorScore(table.getPeaks(PACEMAKER_X, PACEMAKER_Y)));
+
+		assertSelectionIsBest(table, selection, null);
+	}
+
+	@Test
+	public void referenceIsInMask()
+	{
+		PeakEventTable table = getRecording(new Random(26));
+
+		// Everything but the left part of the image, with the pacemaker but without the decoy and the noise
+		ByteProcessor mask = new ByteProcessor(WIDTH, HEIGHT);
+		mask.setValue(255);
+		mask.setRoi(8, 0, WIDTH-8, HEIGHT);
+		mask.fill();
+
+		PixelSpans spans = PixelSpans.fromProcessor(mask, WIDTH, HEIGHT);
+
+		ReferenceSelection selection = new ReferenceSelection(table, spans);
+
+		assertTrue(selection.select(WIDTH*HEIGHT, WIDTH*HEIGHT));
+		assertEquals(PACEMAKER_X, selection.getReferenceX());
+		assertEquals(PACEMAKER_Y, selection.getReferenceY());
+
+		// Without the pacemaker, the best remaining pixel within the mask
+		mask.setValue(0);
+		mask.fill();
+		mask.setValue(255);
+		mask.setRoi(0, 0, 8, HEIGHT);
+		mask.fill();
+
+		spans = PixelSpans.fromProcessor(mask, WIDTH, HEIGHT);
+
+		selection = new ReferenceSelection(table, spans);
+
+		assertTrue(selection.select(WIDTH*HEIGHT, WIDTH*HEIGHT));
+		assertTrue(selection.getReferenceX()<8);
+
+		assertSelectionIsBest(table, selection, spans);
+	}
+
+	@Test
+	public void selectionMatchesBruteForce()
+	{
+		Random random = new Random(27);
+
+		for(int trial=0; trial<30; trial++)
+		{
+			int width = 1+random.nextInt(12);
+			int height = 1+random.nextInt(12);
+			int depth = 50+random.nextInt(400);
+
+			PeakEventTable.Builder builder = new PeakEventTable.Builder(width, height, depth);
+
+			for(int y=0; y<height; y++)
+			{
+				for(int x=0; x<width; x++)
+				{
+					int[] idx = getBeats(random, 3+random.nextInt(40), random.nextInt(40), random.nextInt(4)*random.nextInt(4),
+							random.nextDouble()*0.3, depth);
+
+					builder.setPeaks(x, y, idx, idx.length);
+				}
+			}
+
+			PeakEventTable table = builder.build();
+
+			ReferenceSelection selection = new ReferenceSelection(table, null);
+
+			boolean found = selection.select(width*height, width*height);
+
+			assertEquals(getBestScore(table, null)>=0, found);
+
+			if(found)
+			{
+				assertSelectionIsBest(table, selection, null);
+			}
+		}
+	}
+
+	@Test
+	public void noReferenceWithoutRegularPeaks()
+	{
+		PeakEventTable.Builder builder = new PeakEventTable.Builder(4, 3, 100);
+
+		builder.addPeak(1, 1, 10);
+		builder.addPeak(1, 1, 40);
+		builder.addPeak(2, 0, 70);
+
+		ReferenceSelection selection = new ReferenceSelection(builder.build(), null);
+
+		assertFalse(selection.select());
+		assertEquals(-1, selection.getReferenceX());
+		assertEquals(-1, selection.getReferenceY());
+	}
+
+	/**
+	 * Check that the selected reference has the highest regularity times reliability times coverage, and that
+	 * the values reported by the selection are those of the reference; all the pixels must have been candidates
+	 * and samples
+	 * @param table Peaks of the image
+	 * @param selection The selection, done
+	 * @param spans The pixels evaluated, null for all
+	 */
+	protected static void assertSelectionIsBest(PeakEventTable table, ReferenceSelection selection, PixelSpans spans)
+	{
+		int[] idx_ref = table.getPeaks(selection.getReferenceX(), selection.getReferenceY());
+
+		double coverage = getCoverage(table, spans, idx_ref);
+
+		assertEquals(getBestScore(table, spans), getPriorScore(idx_ref)*coverage, 1e-12);
+
+		assertEquals(idx_ref.length, selection.getNumberOfPeaks());
+		assertEquals(getRegularity(idx_ref), selection.getRegularity(), 1e-12);
+		assertEquals(coverage, selection.getCoverage(), 1e-12);
+	}
+
+	/**
+	 * Highest regularity times reliability times coverage over the pixels with at least 3 peaks
+	 * @param table Peaks of the image
+	 * @param spans The pixels evaluated, null for all
+	 * @return The highest score, -1 if no pixel has at least 3 peaks
+	 */
+	protected static double getBestScore(PeakEventTable table, PixelSpans spans)
+	{
+		double best = -1;
+
+		for(int y=0; y<table.getHeight(); y++)
+		{
+			for(int x=0; x<table.getWidth(); x++)
+			{
+				int[] idx_ref = table.getPeaks(x, y);
+
+				if(idx_ref.length<3 || !isEvaluated(spans, x, y))
+				{
+					continue;
+				}
+
+				best = Math.max(best, getPriorScore(idx_ref)*getCoverage(table, spans, idx_ref));
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Regularity times reliability, 1/(1+cv^2)*(1-1/sqrt(n-1)) for n peaks
+	 * @param idx Peaks, sorted, at least 3
+	 * @return The score before the coverage
+	 */
+	protected static double getPriorScore(int[] idx)
+	{
+		return (1.0-1.0/Math.sqrt(idx.length-1))*getRegularity(idx);
+	}
+
+	/**
+	 * Regularity of the intervals, 1/(1+cv^2), from the mean and the variance in two passes
+	 * @param idx Peaks, sorted, at least 2
+	 * @return The regularity
+	 */
+	protected static double getRegularity(int[] idx)
+	{
+		int n = idx.length-1;
+
+		double mean = (idx[n]-idx[0])/(double)n;
+
+		double variance = 0;
+
+		for(int ind=1; ind<=n; ind++)
+		{
+			double d = idx[ind]-idx[ind-1]-mean;
+			variance += d*d;
+		}
+
+		variance /= n;
+
+		return 1.0/(1.0+variance/(mean*mean));
+	}
+
+	/**
+	 * Mean correlation strength of all the evaluated pixels with at least 2 peaks
+	 * @param table Peaks of the image
+	 * @param spans The pixels evaluated, null for all
+	 * @param idx_ref Peaks of the reference
+	 * @return The coverage, 0 without such pixels
+	 */
+	protected static double getCoverage(PeakEventTable table, PixelSpans spans, int[] idx_ref)
+	{
+		double strength = 0;
+		int n = 0;
+
+		for(int y=0; y<table.getHeight(); y++)
+		{
+			for(int x=0; x<table.getWidth(); x++)
+			{
+				int[] idx = table.getPeaks(x, y);
+
+				if(idx.length<2 || !isEvaluated(spans, x, y))
+				{
+					continue;
+				}
+
+				strength += LocalPhaseTools.getCorrelationStrength(idx, idx_ref);
+				n++;
+			}
+		}
+
+		return (n>0) ? strength/n : 0;
+	}
+
+	/**
+	 * @param spans The pixels evaluated, null for all
+	 * @param x x-position
+	 * @param y y-position
+	 * @return Whether the pixel is among the evaluated ones
+	 */
+	protected static boolean isEvaluated(PixelSpans spans, int x, int y)
+	{
+		if(spans==null)
+		{
+			return true;
+		}
+
+		for(int s=0; s<spans.getNumberOfSpans(); s++)
+		{
+			if(spans.getRow(s)==y && x>=spans.getStart(s) && x<spans.getEnd(s))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Synthetic recording: a strictly periodic pacemaker, followed by the other pixels with a delay growing
+	 * along x, a jitter and some missed beats; a strictly periodic decoy with a shorter, unrelated period;
+	 * a pixel with many random peaks; a few pixels without peaks
+	 * @param random Random number generator
+	 * @return The peak table
+	 */
+	protected static PeakEventTable getRecording(Random random)
+	{
+		PeakEventTable.Builder builder = new PeakEventTable.Builder(WIDTH, HEIGHT, DEPTH);
+
+		for(int y=0; y<HEIGHT; y++)
+		{
+			for(int x=0; x<WIDTH; x++)
+			{
+				int[] idx;
+
+				if(x==PACEMAKER_X && y==PACEMAKER_Y)
+				{
+					idx = getBeats(random, PERIOD, 5, 0, 0, DEPTH);
+				} else if(x==DECOY_X && y==DECOY_Y)
+				{
+					idx = getBeats(random, 13, 0, 0, 0, DEPTH);
+				} else if(x==NOISE_X && y==NOISE_Y)
+				{
+					idx = new int[200];
+
+					for(int ind=0; ind<idx.length; ind++)
+					{
+						idx[ind] = random.nextInt(DEPTH);
+					}
+				} else if((x+y)%17==0)
+				{
+					idx = new int[0];
+				} else
+				{
+					idx = getBeats(random, PERIOD, 5+x/2, 2, 0.05, DEPTH);
+				}
+
+				builder.setPeaks(x, y, idx, idx.length);
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Periodic peaks with jitter and missed beats
+	 * @param random Random number generator
+	 * @param period Period of the beats
+	 * @param first Frame of the first beat, before jitter
+	 * @param jitter Each beat is shifted by up to this many frames either way
+	 * @param missed Probability that a beat is missed
+	 * @param depth Number of frames; the peaks outside 0..depth-1 are dropped
+	 * @return The peaks, unsorted
+	 */
+	protected static int[] getBeats(Random random, int period, int first, int jitter, double missed, int depth)
+	{
+		int[] beats = new int[depth/period+1];
+		int n = 0;
+
+		for(int beat=first; beat<depth; beat+=period)
+		{
+			int z = beat+((jitter>0) ? random.nextInt(2*jitter+1)-jitter : 0);
+
+			if(z>=0 && z<depth && random.nextDouble()>=missed)
+			{
+				beats[n++]=z;
+			}
+		}
+
+		int[] idx = new int[n];
+		System.arraycopy(beats, 0, idx, 0, n);
+
+		return idx;
+	}
+
+}
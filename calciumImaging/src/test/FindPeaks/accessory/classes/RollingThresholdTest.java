@@ -0,0 +1,180 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import tbgitoo.tools.SlidingHistogram;
+import tbgitoo.tools.StatisticsTools;
+
+/**
+ * The running threshold of the peak detection (FindPeaksTools.subtractRollingThreshold) against the quantile
+ * of each window computed from scratch, and the peaks with a window covering the whole profile against
+ * the peaks with the global threshold
+ * @author thomasbraschler
+ *
+ */
+public class RollingThresholdTest {
+
+	/** Tolerance on the thresholded values */
+	protected static final double TOLERANCE=1e-9;
+
+	@Test
+	public void thresholdMatchesQuantileOfWindow()
+	{
+		Random random = new Random(2);
+
+		SlidingHistogram sliding = new SlidingHistogram(1);
+
+		for(int trial=0; trial<200; trial++)
+		{
+			int n = 1+random.nextInt(400);
+			int n_bins = 1+random.nextInt(256);
+			int window = 1+random.nextInt(2*n);
+			double p = random.nextDouble();
+			double lower = random.nextGaussian()*100;
+			double bin_width = 0.1+random.nextDouble()*5;
+
+			int[] bins = new int[n];
+			double[] vals = new double[n];
+
+			for(int ind=0; ind<n; ind++)
+			{
+				bins[ind] = random.nextInt(n_bins);
+				vals[ind] = lower+(bins[ind]+random.nextDouble())*bin_width;
+			}
+
+			double[] expected = new double[n];
+			double[] hist = new double[n_bins];
+			double[] cumsum = new double[n_bins+1];
+
+			for(int z=0; z<n; z++)
+			{
+				// Window z-window/2 <= z' < z-window/2+window, truncated to the series
+				Arrays.fill(hist, 0);
+
+				for(int ind=Math.max(0, z-window/2); ind<Math.min(n, z-window/2+window); ind++)
+				{
+					hist[bins[ind]]++;
+				}
+
+				expected[z] = vals[z]-(lower+StatisticsTools.getQuantile(hist, 0, n_bins, p, cumsum)*bin_width);
+			}
+
+			FindPeaksTools.subtractRollingThreshold(vals, bins, n, lower, bin_width, n_bins, p, window, sliding);
+
+			assertArrayEquals(expected, vals, TOLERANCE);
+		}
+	}
+
+	@Test
+	public void wholeProfileWindowGivesGlobalThreshold()
+	{
+		Random random = new Random(3);
+
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(1);
+
+		int n_trials = 500;
+		int n_compared = 0;
+
+		for(int trial=0; trial<n_trials; trial++)
+		{
+			int n = 20+random.nextInt(1000);
+			int[] profile = getProfile(random, n);
+
+			// When 0.8*n is a whole number of values, the quantile lies on a plateau of the cumulative sum (the empty
+			// bins between two values) and the normalized cumulative sum of the global threshold can land on either
+			// side of it by rounding, while the counts of the running threshold are exact
+			if(Math.abs(0.8*n-Math.rint(0.8*n))<TOLERANCE)
+			{
+				continue;
+			}
+
+			ws.ensureCapacity(n);
+
+			System.arraycopy(profile, 0, ws.getSection(), 0, n);
+			int n_global = FindPeaksTools.findPeaksInProfile(ws, n, 0.2, 5, true, 1, 20, 2);
+			int[] global = Arrays.copyOf(ws.getPeaks(), n_global);
+			double[] global_values = Arrays.copyOf(ws.getValues(), n);
+
+			System.arraycopy(profile, 0, ws.getSection(), 0, n);
+			int n_running = FindPeaksTools.findPeaksInProfileRollingThreshold(ws, n, 0.2, 2*n, 5, true, 1, 20, 2);
+			int[] running = Arrays.copyOf(ws.getPeaks(), n_running);
+			double[] running_values = Arrays.copyOf(ws.getValues(), n);
+
+			assertArrayEquals(global_values, running_values, TOLERANCE);
+
+			// Likewise, the global threshold can be off by a rounding error, so that a value exactly at the threshold
+			// may count as above it in one search only
+			boolean tie = false;
+
+			for(int z=0; z<n; z++)
+			{
+				tie |= Math.abs(global_values[z])<TOLERANCE;
+			}
+
+			if(tie)
+			{
+				continue;
+			}
+
+			// Both searches visit the candidates from the highest value, but the peaks are compared as sets
+			Arrays.sort(global);
+			Arrays.sort(running);
+
+			assertArrayEquals(global, running);
+
+			n_compared++;
+		}
+
+		assertTrue(n_compared>n_trials/2);
+	}
+
+	/**
+	 * Random 8-bit z-profile with periodic peaks, noise and a decaying baseline
+	 * @param random Random number generator
+	 * @param n Length of the profile
+	 * @return The profile
+	 */
+	protected static int[] getProfile(Random random, int n)
+	{
+		int[] profile = new int[n];
+
+		double period = 10+random.nextInt(50);
+		double phase = random.nextDouble()*2*Math.PI;
+		double amplitude = random.nextInt(100);
+		double noise = 1+random.nextInt(8);
+
+		for(int z=0; z<n; z++)
+		{
+			double value = 80*Math.exp(-z/(double)n)+40
+					+amplitude*Math.pow(Math.max(0, Math.sin(2*Math.PI*z/period+phase)), 4)
+					+random.nextGaussian()*noise;
+
+			profile[z] = Math.max(0, Math.min(255, (int)Math.round(value)));
+		}
+
+		return profile;
+	}
+
+}
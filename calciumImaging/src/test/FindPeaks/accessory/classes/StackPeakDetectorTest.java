@@ -0,0 +1,220 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import tbgitoo.tools.PixelSpans;
+import tbgitoo.tools.ZProfileCache;
+
+/**
+ * The peak detection on virtual stacks against the detection on the same stacks in memory: virtual 16-bit and 
+ * 32-bit stacks (and 8-bit stacks with a running threshold) are transposed band of rows by band of rows, with
+ * a reading of the slices per band rather than per voxel, and give the same peaks. With a mask, only the masked
+ * pixels are transposed, and the peaks are those of the whole stack restricted to the mask
+ * @author thomasbraschler
+ *
+ */
+public class StackPeakDetectorTest {
+
+	/**
+	 * Virtual stack serving the slices of a stack in memory, counting the slices read
+	 */
+	protected static class CountingVirtualStack extends VirtualStack
+	{
+		protected final ImageStack stack;
+
+		protected int n_reads=0;
+
+		protected CountingVirtualStack(ImageStack stack)
+		{
+			super(stack.getWidth(), stack.getHeight(), null, null);
+			this.stack=stack;
+			setBitDepth(stack.getBitDepth());
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int n)
+		{
+			n_reads++;
+			return stack.getProcessor(n).duplicate();
+		}
+
+		@Override
+		public Object getPixels(int n)
+		{
+			return getProcessor(n).getPixels();
+		}
+
+		@Override
+		public int getSize()
+		{
+			return stack.getSize();
+		}
+
+		@Override
+		public int size()
+		{
+			return stack.getSize();
+		}
+	}
+
+	@Test
+	public void virtualStacksGiveSamePeaks()
+	{
+		Random random = new Random(6);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 23, 17, 300, bit_depth);
+
+			for(int threshold_window : new int[]{0, 50})
+			{
+				// 8-bit stacks with a single threshold per z-profile are streamed (StreamingPeakFinderTest)
+				if(bit_depth==8 && threshold_window==0)
+				{
+					continue;
+				}
+
+				PeakEventTable expected = findPeaks(stack, threshold_window, Long.MAX_VALUE);
+
+				// A single band, and bands of a few rows
+				for(long band_memory : new long[]{Long.MAX_VALUE, 5L*stack.getWidth()*stack.getSize()*(bit_depth/8)})
+				{
+					CountingVirtualStack virtual = new CountingVirtualStack(stack);
+
+					PeakEventTable table = findPeaks(virtual, threshold_window, band_memory);
+
+					assertArrayEquals(expected.getOffsets(), table.getOffsets());
+					assertArrayEquals(expected.getFrames(), table.getFrames());
+
+					// Each band reads every slice once
+					int n_bands = band_memory==Long.MAX_VALUE ? 1 : (stack.getHeight()+4)/5;
+
+					assertTrue(virtual.n_reads<=n_bands*stack.getSize());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void maskedStacksGiveSamePeaksInMask()
+	{
+		Random random = new Random(14);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 23, 17, 300, bit_depth);
+
+			PeakEventTable expected = findPeaks(stack, 0, Long.MAX_VALUE);
+
+			// Random mask of about a third of the pixels
+			ByteProcessor mask = new ByteProcessor(stack.getWidth(), stack.getHeight());
+
+			for(int i=0; i<stack.getWidth()*stack.getHeight(); i++)
+			{
+				mask.set(i, random.nextInt(3)==0 ? 255 : 0);
+			}
+
+			PixelSpans spans = PixelSpans.fromProcessor(mask, stack.getWidth(), stack.getHeight());
+
+			StackPeakDetector detector = new StackPeakDetector(stack, 0.3, 8, true, 1, 30, 2);
+			detector.setSpans(spans);
+			detector.cacheProfiles();
+
+			// Only the masked pixels are transposed
+			ZProfileCache profiles = detector.getProfiles();
+			assertSame(spans, profiles.getSpans());
+
+			PeakEventTable table = detector.findPeaks(4, false);
+
+			for(int y=0; y<stack.getHeight(); y++)
+			{
+				for(int x=0; x<stack.getWidth(); x++)
+				{
+					assertEquals(spans.contains(x, y), profiles.contains(x, y));
+
+					int[] peaks = spans.contains(x, y) ? expected.getPeaks(x, y) : new int[0];
+
+					assertArrayEquals(peaks, table.getPeaks(x, y));
+				}
+			}
+
+			// The profiles outside the mask are read from the stack
+			double[] vals = new double[stack.getSize()];
+
+			for(int y=0; y<stack.getHeight(); y++)
+			{
+				for(int x=0; x<stack.getWidth(); x++)
+				{
+					detector.getProfile(x, y, vals);
+
+					for(int z=0; z<stack.getSize(); z++)
+					{
+						assertEquals(stack.getProcessor(z+1).getPixelValue(x, y), vals[z], 0);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Peaks of all the pixels of a stack, on 4 threads
+	 */
+	protected static PeakEventTable findPeaks(ImageStack stack, int threshold_window, long band_memory)
+	{
+		StackPeakDetector detector = new StackPeakDetector(stack, 0.3, 8, true, 1, 30, 2);
+		detector.setThresholdWindow(threshold_window);
+		detector.setBandMemory(band_memory);
+		detector.cacheProfiles();
+
+		return detector.findPeaks(4, false);
+	}
+
+	/**
+	 * Stack of random z-profiles (CandidateOrderTest.getProfile), scaled to the pixel type
+	 */
+	protected static ImageStack getStack(Random random, int width, int height, int depth, int bit_depth)
+	{
+		ImageStack stack = ImageStack.create(width, height, depth, bit_depth);
+
+		for(int i=0; i<width*height; i++)
+		{
+			int[] profile = CandidateOrderTest.getProfile(random, depth, bit_depth==8 ? 255 : 65535);
+
+			for(int z=0; z<depth; z++)
+			{
+				double value = bit_depth==32 ? profile[z]/7.0 : profile[z];
+				stack.getProcessor(z+1).setf(i, (float)value);
+			}
+		}
+
+		return stack;
+	}
+
+}
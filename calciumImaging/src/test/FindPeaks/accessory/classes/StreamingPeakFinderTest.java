@@ -0,0 +1,174 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package FindPeaks.accessory.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+
+/**
+ * The slice-sequential peak detection against the detection z-profile by z-profile
+ * (FindPeaksTools.findPeaksInProfile), on 8-bit stacks with clusters of peak candidates longer than the
+ * clusters held in the ring buffer: the peaks must be the same for every pixel
+ * @author thomasbraschler
+ *
+ */
+public class StreamingPeakFinderTest {
+
+	@Test
+	public void defaultClusterLengthGivesSamePeaks()
+	{
+		Random random = new Random(5);
+
+		// Half of the values above threshold: the noisy pixels have candidates all along their z-profile
+		ImageStack stack = getStack(random, 16, 16, 700);
+
+		assertTrue(getLongestCluster(stack, 0.5, 20)>StreamingPeakFinder.DEFAULT_MAX_CLUSTER_LENGTH);
+
+		assertSamePeaks(stack, 0.5, 20, true, 1, 100, 5.5, StreamingPeakFinder.DEFAULT_MAX_CLUSTER_LENGTH);
+	}
+
+	@Test
+	public void shortClusterLengthGivesSamePeaks()
+	{
+		Random random = new Random(6);
+
+		for(int trial=0; trial<40; trial++)
+		{
+			ImageStack stack = getStack(random, 1+random.nextInt(8), 1+random.nextInt(8), 1+random.nextInt(600));
+
+			double peak_fraction = 0.05+0.9*random.nextDouble();
+			double minD = 1+random.nextInt(25)+(random.nextBoolean() ? 0.5 : 0);
+			boolean doFiltering = random.nextBoolean();
+
+			assertSamePeaks(stack, peak_fraction, minD, doFiltering, 1, 30, 2, 1+random.nextInt(40));
+		}
+	}
+
+	/**
+	 * Compare the peaks of the streaming detection with those found z-profile by z-profile, for every pixel
+	 */
+	protected static void assertSamePeaks(ImageStack stack, double peak_fraction, double minD, boolean doFiltering,
+			double minW, double maxW, double minH, int max_cluster_length)
+	{
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int depth = stack.getSize();
+
+		final int[][] streamed = new int[width*height][depth];
+		final int[] n_streamed = new int[width*height];
+
+		StreamingPeakFinder finder = new StreamingPeakFinder(peak_fraction, minD, doFiltering, minW, maxW, minH);
+		finder.setMaxClusterLength(max_cluster_length);
+		finder.findPeaks(stack, new StreamingPeakFinder.PeakListener() {
+			public void peakFound(int x, int y, int z) {
+				int i = y*stack.getWidth()+x;
+				streamed[i][n_streamed[i]]=z;
+				n_streamed[i]++;
+			}
+		});
+
+		PeakDetectionWorkspace ws = new PeakDetectionWorkspace(depth);
+
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				int[] section = ws.getSection();
+
+				for(int z=0; z<depth; z++)
+				{
+					section[z]=(int)stack.getVoxel(x, y, z);
+				}
+
+				int n_peaks = FindPeaksTools.findPeaksInProfile(ws, depth, peak_fraction, minD, doFiltering, minW, maxW, minH);
+				int[] expected = Arrays.copyOf(ws.getPeaks(), n_peaks);
+				Arrays.sort(expected);
+
+				assertArrayEquals(expected, Arrays.copyOf(streamed[y*width+x], n_streamed[y*width+x]));
+			}
+		}
+	}
+
+	/**
+	 * Longest cluster of peak candidates (candidates closer than minD to the previous one) over all the pixels
+	 */
+	protected static int getLongestCluster(ImageStack stack, double peak_fraction, double minD)
+	{
+		StreamingPeakFinder finder = new StreamingPeakFinder(peak_fraction, minD, false, 0, 0, 0);
+		double[] thresholds = finder.getThresholds(stack);
+
+		int width = stack.getWidth();
+		int longest = 0;
+
+		for(int i=0; i<width*stack.getHeight(); i++)
+		{
+			int start = -1;
+			int last = -1;
+
+			for(int z=0; z<stack.getSize(); z++)
+			{
+				if(stack.getVoxel(i%width, i/width, z)-thresholds[i]>=0)
+				{
+					if(start<0 || z-last>=minD)
+					{
+						start = z;
+					}
+					last = z;
+					longest = Math.max(longest, last-start+1);
+				}
+			}
+		}
+
+		return longest;
+	}
+
+	/**
+	 * 8-bit stack of random z-profiles (CandidateOrderTest.getProfile), every other pixel with noise only
+	 */
+	protected static ImageStack getStack(Random random, int width, int height, int depth)
+	{
+		ImageStack stack = new ImageStack(width, height);
+
+		byte[][] slices = new byte[depth][width*height];
+
+		for(int i=0; i<width*height; i++)
+		{
+			int[] profile = CandidateOrderTest.getProfile(random, depth, 255);
+
+			for(int z=0; z<depth; z++)
+			{
+				int value = i%2==0 ? profile[z] : 100+(int)Math.round(10*random.nextGaussian());
+				slices[z][i]=(byte)value;
+			}
+		}
+
+		for(int z=0; z<depth; z++)
+		{
+			stack.addSlice("", slices[z]);
+		}
+
+		return stack;
+	}
+
+}
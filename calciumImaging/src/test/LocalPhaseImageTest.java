@@ -0,0 +1,328 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import FindPeaks.accessory.classes.LocalPhaseTools;
+import FindPeaks.accessory.classes.PeakEventStack;
+import FindPeaks.accessory.classes.PeakEventTable;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import tbgitoo.tools.PixelSpans;
+
+/**
+ * The phase image of LocalPhase, computed in parallel from the peak table, against the former sequential 
+ * evaluation pixel by pixel (z-profile read from the stack, indexes of the non-zero frames, phase by 
+ * LocalPhaseTools.getPhase, mask checked pixel by pixel): bit-identical for any number of threads, for peak 
+ * images with and without the peak table of FindPeaks, with and without a mask, also smaller than the image.
+ * The phase maps relative to several references in a single pass against a run per reference, and their 
+ * correlation strength and peak count slices against the scanning LocalPhaseTools.getCorrelationStrength
+ * @author thomasbraschler
+ *
+ */
+public class LocalPhaseImageTest {
+
+	@Test
+	public void parallelImageMatchesSequentialEvaluation()
+	{
+		Random random = new Random(19);
+
+		for(int trial=0; trial<6; trial++)
+		{
+			int width = 1+random.nextInt(60);
+			int height = 1+random.nextInt(40);
+
+			ImageStack stack = getPeakStack(random, width, height, 20+random.nextInt(300));
+
+			int ref_x = random.nextInt(width);
+			int ref_y = random.nextInt(height);
+
+			ImagePlus dense = new ImagePlus("peaks", stack);
+
+			PeakEventTable table = PeakEventTable.fromStack(stack);
+			ImagePlus indexed = new ImagePlus("peaks", new PeakEventStack(table));
+			table.attachTo(indexed);
+
+			// Mask over part of the image, or smaller than the image
+			ImagePlus mask = null;
+
+			if(trial%2==1)
+			{
+				ByteProcessor bp = new ByteProcessor(Math.max(1, width-random.nextInt(5)), Math.max(1, height-random.nextInt(5)));
+
+				for(int i=0; i<bp.getPixelCount(); i++)
+				{
+					bp.set(i, random.nextInt(3)==0 ? 0 : 255);
+				}
+
+				mask = new ImagePlus("mask", bp);
+			}
+
+			FloatProcessor expected = getPhaseImageSequentially(dense, ref_x, ref_y, mask);
+
+			int previous_threads = FindPeaks.n_threads;
+
+			try
+			{
+				for(int n_threads : new int[]{1, 3, 0})
+				{
+					FindPeaks.n_threads = n_threads;
+
+					for(ImagePlus imp : new ImagePlus[]{dense, indexed})
+					{
+						ImageStack phase = LocalPhase.getPhaseImage(imp, ref_x, ref_y, mask, false);
+
+						assertEquals(1, phase.getSize());
+
+						float[] pixels = (float[])phase.getPixels(1);
+
+						for(int i=0; i<pixels.length; i++)
+						{
+							assertEquals(Float.floatToIntBits(expected.getf(i)), Float.floatToIntBits(pixels[i]));
+						}
+					}
+				}
+			} finally
+			{
+				FindPeaks.n_threads = previous_threads;
+			}
+		}
+	}
+
+	@Test
+	public void severalReferencesMatchSingleRuns()
+	{
+		Random random = new Random(23);
+
+		for(int trial=0; trial<6; trial++)
+		{
+			int width = 1+random.nextInt(60);
+			int height = 1+random.nextInt(40);
+
+			ImageStack stack = getPeakStack(random, width, height, 20+random.nextInt(300));
+
+			PeakEventTable table = PeakEventTable.fromStack(stack);
+			ImagePlus imp = new ImagePlus("peaks", new PeakEventStack(table));
+			table.attachTo(imp);
+
+			// Up to 10 references, possibly the same pixel twice
+			int n_references = 1+random.nextInt(10);
+
+			int[] ref_x = new int[n_references];
+			int[] ref_y = new int[n_references];
+
+			for(int k=0; k<n_references; k++)
+			{
+				ref_x[k] = random.nextInt(width);
+				ref_y[k] = random.nextInt(height);
+			}
+
+			PixelSpans spans = null;
+
+			if(trial%2==1)
+			{
+				ByteProcessor mask = new ByteProcessor(width, height);
+
+				for(int i=0; i<width*height; i++)
+				{
+					mask.set(i, random.nextInt(3)==0 ? 0 : 255);
+				}
+
+				spans = PixelSpans.fromProcessor(mask, width, height);
+			}
+
+			int n_threads = random.nextInt(4);
+
+			ImageStack phases = LocalPhase.getPhaseImage(imp, ref_x, ref_y, spans, n_threads, false);
+			ImageStack outputs = LocalPhase.getPhaseImage(imp, ref_x, ref_y, spans, n_threads, true, false);
+
+			assertEquals(n_references, phases.getSize());
+			assertEquals(2*n_references+1, outputs.getSize());
+
+			for(int k=0; k<n_references; k++)
+			{
+				float[] expected = (float[])LocalPhase.getPhaseImage(imp, ref_x[k], ref_y[k], spans, 1, false).getPixels(1);
+
+				assertArrayEquals(expected, (float[])phases.getPixels(k+1), 0);
+				assertArrayEquals(expected, (float[])outputs.getPixels(k+1), 0);
+
+				if(n_references>1)
+				{
+					assertEquals("Reference "+ref_x[k]+","+ref_y[k], phases.getSliceLabel(k+1));
+				}
+
+				int[] idx_ref = table.getPeaks(ref_x[k], ref_y[k]);
+
+				float[] strength = (float[])outputs.getPixels(n_references+k+1);
+				float[] peaks = (float[])outputs.getPixels(2*n_references+1);
+
+				for(int y=0; y<height; y++)
+				{
+					for(int x=0; x<width; x++)
+					{
+						int i = y*width+x;
+
+						if(spans!=null && !spans.contains(x, y))
+						{
+							assertEquals(Float.NaN, strength[i], 0);
+							assertEquals(Float.NaN, peaks[i], 0);
+							continue;
+						}
+
+						int[] idx = table.getPeaks(x, y);
+
+						assertEquals((float)LocalPhaseTools.getCorrelationStrength(idx, idx_ref), strength[i], 0);
+						assertEquals(idx.length, peaks[i], 0);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void pointSelectionGivesReferences()
+	{
+		PointRoi points = new PointRoi(new int[]{3, 12, -1, 5}, new int[]{4, 2, 3, 9}, 4);
+
+		int[][] references = LocalPhase.getReferencePoints(points, 10, 10);
+
+		// The point outside the image is left out
+		assertArrayEquals(new int[]{3, 5}, references[0]);
+		assertArrayEquals(new int[]{4, 9}, references[1]);
+
+		// Other selections give their center
+		references = LocalPhase.getReferencePoints(new Roi(2, 4, 5, 3), 10, 10);
+
+		assertArrayEquals(new int[]{4}, references[0]);
+		assertArrayEquals(new int[]{5}, references[1]);
+	}
+
+	/**
+	 * Former LocalPhase.getPhaseImage: x by x and y by y, the phase of the non-zero frames of the z-profile relative 
+	 * to those of the reference, in degrees
+	 * @param inputImage Peak image
+	 * @param ref_x x-coordinate of the reference
+	 * @param ref_y y-coordinate of the reference
+	 * @param theMask Mask, null for none; NaN outside the mask, and where the mask is not positive
+	 * @return The phase image
+	 */
+	protected static FloatProcessor getPhaseImageSequentially(ImagePlus inputImage, int ref_x, int ref_y, ImagePlus theMask)
+	{
+		int[] idx_ref = LocalPhaseTools.indices_to_positive_elements(getStackSection(inputImage, ref_x, ref_y));
+
+		FloatProcessor fp = new FloatProcessor(inputImage.getWidth(), inputImage.getHeight());
+
+		for(int x=0; x<inputImage.getWidth(); x++)
+		{
+			for(int y=0; y<inputImage.getHeight(); y++)
+			{
+				double phase;
+
+				if(theMask!=null && (x>=theMask.getWidth() || y>=theMask.getHeight() 
+						|| theMask.getImageStack().getProcessor(1).getPixelValue(x, y)<=0))
+				{
+					phase = Double.NaN;
+				} else
+				{
+					int[] idx = LocalPhaseTools.indices_to_positive_elements(getStackSection(inputImage, x, y));
+
+					phase = LocalPhaseTools.getPhase(idx, idx_ref)/Math.PI*180.0;
+				}
+
+				fp.putPixelValue(x, y, phase);
+			}
+		}
+
+		return fp;
+	}
+
+	/**
+	 * Former LocalPhase.getStackSection
+	 * @param theImage Peak image
+	 * @param x x-position
+	 * @param y y-position
+	 * @return The z-profile at x,y
+	 */
+	protected static int[] getStackSection(ImagePlus theImage, int x, int y)
+	{
+		int[] vals = new int[theImage.getStackSize()];
+
+		for(int z=1; z<=theImage.getStackSize(); z++)
+		{
+			ImageProcessor p = theImage.getStack().getProcessor(z);
+			vals[z-1] = (int)p.getPixelValue(x, y);
+		}
+
+		return vals;
+	}
+
+	/**
+	 * Peak image of pixels beating with a common period, each with its own delay, with jitter and missed
+	 * beats; some pixels have no or a single peak
+	 * @param random Random number generator
+	 * @param width Image width
+	 * @param height Image height
+	 * @param depth Number of frames
+	 * @return 8-bit stack, 255 at the peaks
+	 */
+	protected static ImageStack getPeakStack(Random random, int width, int height, int depth)
+	{
+		ImageStack stack = ImageStack.create(width, height, depth, 8);
+
+		int period = 5+random.nextInt(30);
+
+		for(int i=0; i<width*height; i++)
+		{
+			int kind = random.nextInt(10);
+
+			if(kind==0)
+			{
+				continue;
+			}
+
+			if(kind==1)
+			{
+				((byte[])stack.getPixels(1+random.nextInt(depth)))[i] = (byte)255;
+				continue;
+			}
+
+			int delay = random.nextInt(period);
+
+			for(int beat=delay; beat<depth; beat+=period)
+			{
+				int z = beat+random.nextInt(3)-1;
+
+				if(z>=0 && z<depth && random.nextInt(10)!=0)
+				{
+					((byte[])stack.getPixels(z+1))[i] = (byte)255;
+				}
+			}
+		}
+
+		return stack;
+	}
+
+}
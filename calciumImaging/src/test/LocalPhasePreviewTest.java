@@ -0,0 +1,133 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import FindPeaks.accessory.classes.PeakEventStack;
+import FindPeaks.accessory.classes.PeakEventTable;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * The LocalPhase preview: requests arriving during a calculation are coalesced, and the phase map of a
+ * 512x512 peak image, with the peaks indexed, is calculated well within the second aimed at for the preview
+ * @author thomasbraschler
+ *
+ */
+public class LocalPhasePreviewTest {
+
+	/**
+	 * LocalPhase with a preview that only counts its calculations, each taking some time
+	 */
+	protected static class CountingLocalPhase extends LocalPhase
+	{
+		protected int n_previews=0;
+
+		protected void updatePreview()
+		{
+			synchronized(this)
+			{
+				n_previews++;
+			}
+
+			try
+			{
+				Thread.sleep(50);
+			} catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Test
+	public void requestsAreCoalesced()
+	{
+		CountingLocalPhase plugin = new CountingLocalPhase();
+		plugin.preview=true;
+
+		// As when typing a coordinate: the first request starts a preview, the others wait for a single next one
+		for(int k=0; k<20; k++)
+		{
+			plugin.requestPreview();
+		}
+
+		plugin.waitForPreview();
+
+		assertTrue(plugin.n_previews>=1 && plugin.n_previews<=2);
+
+		int n_previews = plugin.n_previews;
+
+		plugin.requestPreview();
+		plugin.waitForPreview();
+
+		assertEquals(n_previews+1, plugin.n_previews);
+
+		// Switched off: pending requests are dropped
+		plugin.preview=false;
+		plugin.requestPreview();
+		plugin.waitForPreview();
+
+		assertEquals(n_previews+1, plugin.n_previews);
+	}
+
+	@Test
+	public void previewOf512x512FieldIsFast()
+	{
+		int width = 512;
+		int height = 512;
+		int depth = 1000;
+
+		// Peaks every 50 frames, with a delay depending on the position
+		PeakEventTable.Builder builder = new PeakEventTable.Builder(width, height, depth);
+
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				for(int z=(x+y)%50; z<depth; z+=50)
+				{
+					builder.addPeak(x, y, z);
+				}
+			}
+		}
+
+		PeakEventTable table = builder.build();
+
+		// As the output of FindPeaks
+		ImagePlus imp = new ImagePlus("peaks", new PeakEventStack(table));
+		table.attachTo(imp);
+
+		int[] ref_x = new int[]{width/2};
+		int[] ref_y = new int[]{height/2};
+
+		// The first run includes the compilation of the correlation code
+		LocalPhase.getPhaseImage(imp, ref_x, ref_y, null, 0, false, false);
+
+		long start = System.nanoTime();
+
+		ImageStack phase = LocalPhase.getPhaseImage(imp, ref_x, ref_y, null, 0, false, false);
+
+		double seconds = (System.nanoTime()-start)*1e-9;
+
+		assertEquals(width, phase.getWidth());
+		assertTrue("Preview took "+seconds+" s", seconds<1);
+	}
+
+}
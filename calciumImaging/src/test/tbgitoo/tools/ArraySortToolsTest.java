@@ -0,0 +1,174 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The primitive index sorts of ArraySortTools against the stable sort of boxed indexes with ArrayIndexComparator
+ * which they replace, on random values with many ties, for the double, float and integer (counting and radix sort)
+ * versions, in both directions
+ * @author thomasbraschler
+ *
+ */
+public class ArraySortToolsTest {
+
+	@Test
+	public void doubleSortIsStable()
+	{
+		Random random = new Random(6);
+
+		for(int trial=0; trial<2000; trial++)
+		{
+			int n = random.nextInt(300);
+			double[] vals = new double[n+random.nextInt(5)];
+
+			// Few distinct values, so that the order of equal values is tested
+			int n_levels = 1+random.nextInt(2*n+1);
+
+			for(int ind=0; ind<vals.length; ind++)
+			{
+				vals[ind] = random.nextInt(n_levels)*0.25-n_levels*0.125;
+			}
+
+			int[] order = new int[n];
+
+			ArraySortTools.sortIndexes(vals, n, false, order);
+			assertArrayEquals(getReferenceOrder(vals, n, false), order);
+
+			ArraySortTools.sortIndexes(vals, n, true, order);
+			assertArrayEquals(getReferenceOrder(vals, n, true), order);
+
+			if(n==vals.length)
+			{
+				assertArrayEquals(getReferenceOrder(vals, n, false), ArraySortTools.getIndexesOfSortedArray(vals));
+			}
+		}
+	}
+
+	@Test
+	public void floatSortIsStable()
+	{
+		Random random = new Random(7);
+
+		for(int trial=0; trial<2000; trial++)
+		{
+			int n = random.nextInt(300);
+			float[] vals = new float[n];
+			double[] dvals = new double[n];
+
+			int n_levels = 1+random.nextInt(2*n+1);
+
+			for(int ind=0; ind<n; ind++)
+			{
+				vals[ind] = (float)(random.nextInt(n_levels)*0.1);
+				dvals[ind] = vals[ind];
+			}
+
+			int[] order = new int[n];
+
+			ArraySortTools.sortIndexes(vals, n, false, order);
+			assertArrayEquals(getReferenceOrder(dvals, n, false), order);
+
+			ArraySortTools.sortIndexes(vals, n, true, order);
+			assertArrayEquals(getReferenceOrder(dvals, n, true), order);
+		}
+	}
+
+	@Test
+	public void integerSortIsStable()
+	{
+		Random random = new Random(8);
+
+		// Counting sort (8-bit values and 256 counts, 16-bit values and 65536 counts) and radix sort (16-bit 
+		// and arbitrary values with 256 counts)
+		int[][] ranges = { {0, 256, ArraySortTools.RADIX}, {0, 65536, 65536}, {0, 65536, ArraySortTools.RADIX},
+				{-1000, 1000, ArraySortTools.RADIX}, {Integer.MIN_VALUE, Integer.MAX_VALUE, ArraySortTools.RADIX} };
+
+		for(int[] range : ranges)
+		{
+			int[] counts = new int[range[2]];
+
+			for(int trial=0; trial<500; trial++)
+			{
+				int n = random.nextInt(500);
+				int[] vals = new int[n];
+				double[] dvals = new double[n];
+
+				// Values drawn from a few distinct values in the range, including its ends
+				int[] levels = new int[1+random.nextInt(2*n+1)];
+
+				for(int ind=0; ind<levels.length; ind++)
+				{
+					long span = (long)range[1]-range[0];
+					levels[ind] = (int)(range[0]+(ind==0 ? 0 : ind==1 ? span-1 : (long)(random.nextDouble()*span)));
+				}
+
+				for(int ind=0; ind<n; ind++)
+				{
+					vals[ind] = levels[random.nextInt(levels.length)];
+					dvals[ind] = vals[ind];
+				}
+
+				int[] order = new int[n];
+				int[] work = new int[n];
+
+				ArraySortTools.sortIndexes(vals, n, false, order, work, counts);
+				assertArrayEquals(getReferenceOrder(dvals, n, false), order);
+
+				ArraySortTools.sortIndexes(vals, n, true, order, work, counts);
+				assertArrayEquals(getReferenceOrder(dvals, n, true), order);
+			}
+		}
+	}
+
+	/**
+	 * Stable order of the indexes by sorting boxed indexes with ArrayIndexComparator (merge sort, stable)
+	 * @param vals Values
+	 * @param n Number of values to consider
+	 * @param descending Sort from the largest to the smallest value?
+	 * @return The indexes 0 to n-1, equal values keeping the order of their indexes
+	 */
+	@SuppressWarnings("deprecation")
+	protected static int[] getReferenceOrder(double[] vals, int n, boolean descending)
+	{
+		ArrayIndexComparator comparator = new ArrayIndexComparator(Arrays.copyOf(vals, n));
+
+		Integer[] indexes = comparator.createIndexArray();
+
+		Comparator<Integer> order = descending ? Collections.reverseOrder(comparator) : comparator;
+
+		Arrays.sort(indexes, order);
+
+		int[] result = new int[n];
+
+		for(int ind=0; ind<n; ind++)
+		{
+			result[ind] = indexes[ind];
+		}
+
+		return result;
+	}
+
+}
@@ -0,0 +1,154 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads of MappedFile against the same reads from a ByteBuffer holding the whole file, with chunks of a few 
+ * bytes so that single values and bulk reads cross the chunk boundaries at every alignment
+ * @author thomasbraschler
+ *
+ */
+public class MappedFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void singleValuesAcrossChunks() throws IOException
+	{
+		Random random = new Random(16);
+
+		byte[] bytes = getBytes(random, 517);
+		File file = write(bytes);
+
+		for(int chunk_bits : new int[]{3, 4, 5, 7, MappedFile.CHUNK_BITS})
+		{
+			for(ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+			{
+				MappedFile mapped = new MappedFile(file, chunk_bits);
+				mapped.setOrder(order);
+
+				assertEquals(bytes.length, mapped.length());
+
+				ByteBuffer expected = ByteBuffer.wrap(bytes).order(order);
+
+				for(int position=0; position<bytes.length; position++)
+				{
+					assertEquals(expected.get(position), mapped.getByte(position));
+
+					if(position+2<=bytes.length)
+					{
+						assertEquals(expected.getShort(position), mapped.getShort(position));
+					}
+					if(position+4<=bytes.length)
+					{
+						assertEquals(expected.getInt(position), mapped.getInt(position));
+						assertEquals(Float.floatToRawIntBits(expected.getFloat(position)), 
+								Float.floatToRawIntBits(mapped.getFloat(position)));
+					}
+					if(position+8<=bytes.length)
+					{
+						assertEquals(expected.getLong(position), mapped.getLong(position));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void bulkReadsAcrossChunks() throws IOException
+	{
+		Random random = new Random(160);
+
+		byte[] bytes = getBytes(random, 1031);
+		File file = write(bytes);
+
+		for(int chunk_bits : new int[]{3, 5, 6, MappedFile.CHUNK_BITS})
+		{
+			for(ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+			{
+				MappedFile mapped = new MappedFile(file, chunk_bits);
+				mapped.setOrder(order);
+
+				ByteBuffer expected = ByteBuffer.wrap(bytes).order(order);
+
+				for(int trial=0; trial<300; trial++)
+				{
+					int position = random.nextInt(bytes.length);
+					int n = random.nextInt((bytes.length-position)/4+1);
+					int offset = random.nextInt(5);
+
+					byte[] b = new byte[offset+n];
+					short[] s = new short[offset+n];
+					float[] f = new float[offset+n];
+
+					mapped.get(position, b, offset, n);
+					mapped.get(position, s, offset, n);
+					mapped.get(position, f, offset, n);
+
+					for(int k=0; k<n; k++)
+					{
+						assertEquals(expected.get(position+k), b[offset+k]);
+						assertEquals(expected.getShort(position+2*k), s[offset+k]);
+						assertEquals(Float.floatToRawIntBits(expected.getFloat(position+4*k)), 
+								Float.floatToRawIntBits(f[offset+k]));
+					}
+				}
+			}
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void chunksHoldTheLargestValue() throws IOException
+	{
+		new MappedFile(write(new byte[16]), 2);
+	}
+
+	/**
+	 * Random bytes
+	 */
+	protected static byte[] getBytes(Random random, int n)
+	{
+		byte[] bytes = new byte[n];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Write bytes to a new temporary file
+	 */
+	protected File write(byte[] bytes) throws IOException
+	{
+		File file = folder.newFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+}
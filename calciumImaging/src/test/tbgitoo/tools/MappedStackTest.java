@@ -0,0 +1,409 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+/**
+ * Stacks mapped from TIFF files written by ImageJ, from TIFF and BigTIFF files with several strips per slice, 
+ * gaps between the strips, both byte orders and a thumbnail to skip, and from raw files, against the stacks 
+ * written. The files are mapped in chunks of a few bytes, so that the slices and the z-profiles are read 
+ * across the chunk boundaries
+ * @author thomasbraschler
+ *
+ */
+public class MappedStackTest {
+
+	/** Chunk size for the tests, 32 bytes */
+	protected static final int CHUNK_BITS=5;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void tiffWrittenByImageJ() throws IOException
+	{
+		Random random = new Random(161);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 7, 5, 13, bit_depth);
+
+			File file = folder.newFile("stack"+bit_depth+".tif");
+			new FileSaver(new ImagePlus("stack", stack)).saveAsTiffStack(file.getPath());
+
+			assertSameStack(stack, MappedStack.openTiff(file, CHUNK_BITS));
+			assertSameStack(stack, MappedStack.openTiff(file));
+		}
+	}
+
+	@Test
+	public void tiffAndBigTiff() throws IOException
+	{
+		Random random = new Random(162);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 7, 5, 9, bit_depth);
+
+			for(boolean big : new boolean[]{false, true})
+			{
+				for(ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+				{
+					// Single strip, strips following each other, and strips apart
+					for(int[] layout : new int[][]{{5, 0}, {2, 0}, {2, 3}})
+					{
+						File file = folder.newFile();
+						writeTiff(file, stack, big, order, layout[0], layout[1]);
+
+						assertSameStack(stack, MappedStack.openTiff(file, CHUNK_BITS));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void raw() throws IOException
+	{
+		Random random = new Random(163);
+
+		for(int bit_depth : new int[]{8, 16, 32})
+		{
+			ImageStack stack = getStack(random, 7, 5, 11, bit_depth);
+
+			for(ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+			{
+				int offset = 5;
+				int gap = 3;
+				int slice_bytes = 7*5*(bit_depth/8);
+
+				ByteBuffer buffer = ByteBuffer.allocate(offset+11*(slice_bytes+gap)).order(order);
+				buffer.position(offset);
+
+				for(int z=0; z<stack.getSize(); z++)
+				{
+					putRows(buffer, stack.getProcessor(z+1), 0, stack.getHeight());
+					buffer.position(buffer.position()+gap);
+				}
+
+				File file = folder.newFile();
+				Files.write(file.toPath(), buffer.array());
+
+				boolean little_endian = order==ByteOrder.LITTLE_ENDIAN;
+
+				// As many slices as the file holds
+				assertSameStack(stack, MappedStack.openRaw(file, 7, 5, bit_depth, offset, gap, little_endian, 0, CHUNK_BITS));
+
+				// The first slices
+				ImageStack first = new ImageStack(7, 5);
+
+				for(int z=1; z<=4; z++)
+				{
+					first.addSlice(stack.getProcessor(z));
+				}
+
+				assertSameStack(first, MappedStack.openRaw(file, 7, 5, bit_depth, offset, gap, little_endian, 4, CHUNK_BITS));
+			}
+		}
+	}
+
+	/**
+	 * Same slices, read as slices and as z-profiles
+	 */
+	protected static void assertSameStack(ImageStack expected, MappedStack mapped)
+	{
+		assertEquals(expected.getWidth(), mapped.getWidth());
+		assertEquals(expected.getHeight(), mapped.getHeight());
+		assertEquals(expected.getSize(), mapped.getSize());
+		assertEquals(expected.getBitDepth(), mapped.getBitDepth());
+
+		for(int z=1; z<=expected.getSize(); z++)
+		{
+			ImageProcessor ip = expected.getProcessor(z);
+			ImageProcessor mapped_ip = mapped.getProcessor(z);
+
+			for(int i=0; i<expected.getWidth()*expected.getHeight(); i++)
+			{
+				assertEquals(ip.getf(i), mapped_ip.getf(i), 0);
+			}
+		}
+
+		ZProfileCache profiles = mapped.getProfiles();
+		double[] vals = new double[expected.getSize()];
+
+		for(int y=0; y<expected.getHeight(); y++)
+		{
+			for(int x=0; x<expected.getWidth(); x++)
+			{
+				profiles.getProfile(x, y, vals);
+
+				for(int z=0; z<expected.getSize(); z++)
+				{
+					assertEquals(expected.getProcessor(z+1).getf(x, y), vals[z], 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stack of random values, over the whole range of the integer types
+	 */
+	protected static ImageStack getStack(Random random, int width, int height, int depth, int bit_depth)
+	{
+		ImageStack stack = ImageStack.create(width, height, depth, bit_depth);
+
+		for(int z=1; z<=depth; z++)
+		{
+			ImageProcessor ip = stack.getProcessor(z);
+
+			for(int i=0; i<width*height; i++)
+			{
+				switch(bit_depth)
+				{
+				case 8:
+					ip.set(i, random.nextInt(256));
+					break;
+				case 16:
+					ip.set(i, random.nextInt(65536));
+					break;
+				default:
+					ip.setf(i, (float)(random.nextGaussian()*1000));
+				}
+			}
+		}
+
+		return stack;
+	}
+
+	/**
+	 * Write rows of a slice, in the order of the buffer
+	 */
+	protected static void putRows(ByteBuffer buffer, ImageProcessor ip, int first_row, int n_rows)
+	{
+		for(int y=first_row; y<first_row+n_rows; y++)
+		{
+			for(int x=0; x<ip.getWidth(); x++)
+			{
+				switch(ip.getBitDepth())
+				{
+				case 8:
+					buffer.put((byte)ip.get(x, y));
+					break;
+				case 16:
+					buffer.putShort((short)ip.get(x, y));
+					break;
+				default:
+					buffer.putFloat(ip.getf(x, y));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write an uncompressed TIFF or BigTIFF file with one directory per slice, and a thumbnail directory 
+	 * (2x2 pixels, 8-bit) after the first slice
+	 * @param file The file
+	 * @param stack The stack
+	 * @param big BigTIFF (64-bit offsets)?
+	 * @param order Byte order
+	 * @param rows_per_strip Rows per strip
+	 * @param strip_gap Bytes left between the strips
+	 */
+	protected static void writeTiff(File file, ImageStack stack, boolean big, ByteOrder order, int rows_per_strip,
+			int strip_gap) throws IOException
+	{
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int bit_depth = stack.getBitDepth();
+		int n_strips = (height+rows_per_strip-1)/rows_per_strip;
+
+		ByteBuffer buffer = ByteBuffer.allocate(1<<16).order(order);
+
+		// Header, with the offset of the first directory written later
+		buffer.put((byte)(order==ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+		buffer.put((byte)(order==ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+
+		long next_position;
+
+		if(big)
+		{
+			buffer.putShort((short)43);
+			buffer.putShort((short)8);
+			buffer.putShort((short)0);
+			next_position = buffer.position();
+			buffer.putLong(0);
+		} else
+		{
+			buffer.putShort((short)42);
+			next_position = buffer.position();
+			buffer.putInt(0);
+		}
+
+		long[][] offsets = new long[stack.getSize()][n_strips];
+		long[] counts = new long[n_strips];
+
+		for(int z=0; z<stack.getSize(); z++)
+		{
+			for(int s=0; s<n_strips; s++)
+			{
+				int n_rows = Math.min(rows_per_strip, height-s*rows_per_strip);
+
+				offsets[z][s] = buffer.position();
+				counts[s] = ((long)n_rows)*width*(bit_depth/8);
+
+				putRows(buffer, stack.getProcessor(z+1), s*rows_per_strip, n_rows);
+				buffer.position(buffer.position()+strip_gap);
+			}
+		}
+
+		for(int z=0; z<stack.getSize(); z++)
+		{
+			next_position = putDirectory(buffer, big, next_position, width, height, bit_depth, rows_per_strip,
+					offsets[z], counts);
+
+			if(z==0)
+			{
+				next_position = putDirectory(buffer, big, next_position, 2, 2, 8, 2, new long[]{offsets[0][0]}, 
+						new long[]{4});
+			}
+		}
+
+		Files.write(file.toPath(), Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+
+	/**
+	 * Write an image file directory at the current position of the buffer, and link it from the previous one
+	 * @return Position of the offset to the next directory
+	 */
+	protected static long putDirectory(ByteBuffer buffer, boolean big, long previous, int width, int height, 
+			int bit_depth, int rows_per_strip, long[] strip_offsets, long[] strip_counts)
+	{
+		int position = buffer.position();
+
+		// Word alignment
+		position+=position%2;
+
+		if(big)
+		{
+			buffer.putLong((int)previous, position);
+		} else
+		{
+			buffer.putInt((int)previous, position);
+		}
+
+		long[][] entries = {
+				{256, 4, width},
+				{257, 4, height},
+				{258, 3, bit_depth},
+				{259, 3, 1},
+				{273, big ? 16 : 4},
+				{277, 3, 1},
+				{278, 4, rows_per_strip},
+				{279, 4},
+				{339, 3, bit_depth==32 ? 3 : 1}};
+
+		int entry_size = big ? 20 : 12;
+		int value_size = big ? 8 : 4;
+
+		int entry = position+(big ? 8 : 2);
+		int next = entry+entries.length*entry_size;
+		int extra = next+value_size;
+
+		if(big)
+		{
+			buffer.putLong(position, entries.length);
+		} else
+		{
+			buffer.putShort(position, (short)entries.length);
+		}
+
+		for(long[] e : entries)
+		{
+			int tag = (int)e[0];
+			int type = (int)e[1];
+			long[] values = tag==273 ? strip_offsets : (tag==279 ? strip_counts : new long[]{e[2]});
+			int size = type==3 ? 2 : (type==4 ? 4 : 8);
+
+			buffer.putShort(entry, (short)tag);
+			buffer.putShort(entry+2, (short)type);
+
+			if(big)
+			{
+				buffer.putLong(entry+4, values.length);
+			} else
+			{
+				buffer.putInt(entry+4, values.length);
+			}
+
+			int value_position = entry+(big ? 12 : 8);
+
+			// Values that do not fit into the entry are written after the directory
+			if(values.length*size>value_size)
+			{
+				if(big)
+				{
+					buffer.putLong(value_position, extra);
+				} else
+				{
+					buffer.putInt(value_position, extra);
+				}
+				value_position = extra;
+				extra+=values.length*size;
+			}
+
+			for(int k=0; k<values.length; k++)
+			{
+				switch(size)
+				{
+				case 2:
+					buffer.putShort(value_position+2*k, (short)values[k]);
+					break;
+				case 4:
+					buffer.putInt(value_position+4*k, (int)values[k]);
+					break;
+				default:
+					buffer.putLong(value_position+8*k, values[k]);
+				}
+			}
+
+			entry+=entry_size;
+		}
+
+		buffer.position(extra);
+
+		return next;
+	}
+
+}
@@ -0,0 +1,162 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The parabola fits of ParabolaFitter, from prefix sums, against the direct fits of FitParabola, on random
+ * series and windows, including windows that span two blocks of the prefix sums and long series with a large 
+ * baseline, where plain prefix sums would lose precision
+ * @author thomasbraschler
+ *
+ */
+public class ParabolaFitterTest {
+
+	/** Tolerance, relative to the scale of each coefficient */
+	protected static final double TOLERANCE=1e-9;
+
+	@Test
+	public void freeFitMatchesFitParabola()
+	{
+		Random random = new Random(4);
+
+		ParabolaFitter fitter = new ParabolaFitter(1);
+
+		double[] expected = new double[3];
+		double[] params = new double[3];
+
+		for(int trial=0; trial<200; trial++)
+		{
+			int n = 1+random.nextInt(5000);
+			double[] vals = getSeries(random, n);
+			double scale = getScale(vals);
+
+			fitter.setValues(vals, n);
+
+			for(int fit=0; fit<200; fit++)
+			{
+				int length = random.nextInt(Math.min(n, ParabolaFitter.BLOCK+10)+1);
+				int offset = random.nextInt(n-length+1);
+
+				FitParabola.fitParabola(vals, offset, length, expected);
+				fitter.fitParabola(offset, length, params);
+
+				assertParams(expected, params, scale, length);
+			}
+		}
+	}
+
+	@Test
+	public void fixedExtremumFitMatchesFitParabola()
+	{
+		Random random = new Random(5);
+
+		ParabolaFitter fitter = new ParabolaFitter(1);
+
+		double[] expected = new double[3];
+		double[] params = new double[3];
+
+		for(int trial=0; trial<200; trial++)
+		{
+			int n = 1+random.nextInt(5000);
+			double[] vals = getSeries(random, n);
+			double scale = getScale(vals);
+
+			fitter.setValues(vals, n);
+
+			for(int fit=0; fit<200; fit++)
+			{
+				int length = 1+random.nextInt(Math.min(n, ParabolaFitter.BLOCK+10));
+				int offset = random.nextInt(n-length+1);
+
+				// Apex mostly in the window, sometimes outside, forced into it or not
+				int xm = random.nextInt(length+4)-2;
+				boolean force = random.nextBoolean();
+
+				if(!force && (xm<0 || xm>=length))
+				{
+					// Outside the window, the apex value is not in the series either
+					xm = Math.min(Math.max(xm, -offset), n-1-offset);
+				}
+
+				FitParabola.fitParabolaFixedExtremum(vals, offset, length, xm, force, expected);
+				fitter.fitParabolaFixedExtremum(offset, length, xm, force, params);
+
+				assertParams(expected, params, scale, length);
+			}
+		}
+	}
+
+	/**
+	 * Compare the coefficients a, b, c of a fit, each relative to its scale: the largest value of the series
+	 * (the rounding errors of the prefix sums depend on the values around the window, not only in it), divided
+	 * by the window length for b and by its square for c
+	 */
+	protected static void assertParams(double[] expected, double[] params, double scale, int length)
+	{
+		double x_scale = Math.max(length, 1);
+
+		assertEquals(expected[0], params[0], TOLERANCE*scale);
+		assertEquals(expected[1], params[1], TOLERANCE*scale/x_scale);
+		assertEquals(expected[2], params[2], TOLERANCE*scale/(x_scale*x_scale));
+	}
+
+	/**
+	 * @param vals Series of values
+	 * @return The largest absolute value of the series, at least 1
+	 */
+	protected static double getScale(double[] vals)
+	{
+		double scale = 1;
+
+		for(int ind=0; ind<vals.length; ind++)
+		{
+			scale = Math.max(scale, Math.abs(vals[ind]));
+		}
+
+		return scale;
+	}
+
+	/**
+	 * Random series with peaks, noise and a baseline up to several thousands
+	 * @param random Random number generator
+	 * @param n Length of the series
+	 * @return The series
+	 */
+	protected static double[] getSeries(Random random, int n)
+	{
+		double[] vals = new double[n];
+
+		double baseline = random.nextInt(3)==0 ? 0 : random.nextDouble()*5000;
+		double period = 5+random.nextInt(60);
+		double amplitude = random.nextDouble()*200;
+
+		for(int ind=0; ind<n; ind++)
+		{
+			vals[ind] = baseline+amplitude*Math.pow(Math.max(0, Math.sin(2*Math.PI*ind/period)), 2)
+					+random.nextGaussian()*5;
+		}
+
+		return vals;
+	}
+
+}
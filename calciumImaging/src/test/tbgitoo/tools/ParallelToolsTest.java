@@ -0,0 +1,149 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+
+/**
+ * The distribution of the pixels over threads by ParallelTools: the tiles, and the spans of a mask, cover
+ * every pixel exactly once, for image sizes that are not multiples of the tile size, with one or several
+ * threads and on a shared pool
+ * @author thomasbraschler
+ *
+ */
+public class ParallelToolsTest {
+
+	@Test
+	public void tilesCoverEveryPixelOnce()
+	{
+		Random random = new Random(1);
+
+		ForkJoinPool pool = new ForkJoinPool(3);
+
+		try
+		{
+			for(int trial=0; trial<50; trial++)
+			{
+				final int width = 1+random.nextInt(150);
+				final int height = 1+random.nextInt(150);
+				int tile_size = random.nextInt(4)==0 ? ParallelTools.DEFAULT_TILE_SIZE : random.nextInt(40);
+
+				for(int n_threads : new int[]{1, 4, 0, -1})
+				{
+					final AtomicIntegerArray visits = new AtomicIntegerArray(width*height);
+
+					ParallelTools.TileProcessor processor = new ParallelTools.TileProcessor() {
+						public void processTile(int x_start, int y_start, int x_end, int y_end) {
+							for(int y=y_start; y<y_end; y++)
+							{
+								for(int x=x_start; x<x_end; x++)
+								{
+									visits.incrementAndGet(y*width+x);
+								}
+							}
+						}
+					};
+
+					if(n_threads<0)
+					{
+						ParallelTools.processTiles(width, height, tile_size, pool, processor, false);
+					} else
+					{
+						ParallelTools.processTiles(width, height, tile_size, n_threads, processor, false);
+					}
+
+					for(int i=0; i<width*height; i++)
+					{
+						assertEquals(1, visits.get(i));
+					}
+				}
+			}
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void spansCoverMaskOnce()
+	{
+		Random random = new Random(2);
+
+		ForkJoinPool pool = new ForkJoinPool(3);
+
+		try
+		{
+			for(int trial=0; trial<50; trial++)
+			{
+				final int width = 1+random.nextInt(200);
+				final int height = 1+random.nextInt(200);
+
+				ByteProcessor mask = new ByteProcessor(width, height);
+				int density = 1+random.nextInt(4);
+
+				for(int i=0; i<width*height; i++)
+				{
+					mask.set(i, random.nextInt(density)==0 ? 255 : 0);
+				}
+
+				PixelSpans spans = PixelSpans.fromProcessor(mask, width, height);
+
+				for(int n_threads : new int[]{1, 4, -1})
+				{
+					final AtomicIntegerArray visits = new AtomicIntegerArray(width*height);
+
+					ParallelTools.SpanProcessor processor = new ParallelTools.SpanProcessor() {
+						public void processSpan(int y, int x_start, int x_end) {
+							for(int x=x_start; x<x_end; x++)
+							{
+								visits.incrementAndGet(y*width+x);
+							}
+						}
+					};
+
+					if(n_threads<0)
+					{
+						ParallelTools.processSpans(spans, pool, processor, false);
+					} else
+					{
+						ParallelTools.processSpans(spans, n_threads, processor, false);
+					}
+
+					for(int y=0; y<height; y++)
+					{
+						for(int x=0; x<width; x++)
+						{
+							assertEquals(spans.contains(x, y) ? 1 : 0, visits.get(y*width+x));
+						}
+					}
+				}
+			}
+		} finally
+		{
+			pool.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+/* Copyright (c) 2019 Thomas Braschler <thomas.braschler@unige.ch>
+##
+## This program is free software; you can redistribute it and/or modify
+## it under the terms of the GNU General Public License as published by
+## the Free Software Foundation; either version 3 of the License, or
+## (at your option) any later version.
+##
+## This program is distributed in the hope that it will be useful,
+## but WITHOUT ANY WARRANTY; without even the implied warranty of
+## MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+## GNU General Public License for more details.
+##
+## You should have received a copy of the GNU General Public License
+## along with this program; if not, see <http://www.gnu.org/licenses/>
+ */
+
+package tbgitoo.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The running quantile of SlidingHistogram against the quantile of a histogram of the window built from
+ * scratch (StatisticsTools.getQuantile), on random series with windows entering and leaving in random order
+ * @author thomasbraschler
+ *
+ */
+public class SlidingHistogramTest {
+
+	/** Tolerance on the quantile, in bin units */
+	protected static final double TOLERANCE=1e-9;
+
+	@Test
+	public void quantileMatchesHistogram()
+	{
+		Random random = new Random(1);
+
+		SlidingHistogram sliding = new SlidingHistogram(1);
+
+		for(int trial=0; trial<200; trial++)
+		{
+			int n_bins = 1+random.nextInt(300);
+			int n = 1+random.nextInt(500);
+			int window = 1+random.nextInt(2*n);
+			double p = random.nextDouble();
+
+			int[] bins = new int[n];
+
+			for(int ind=0; ind<n; ind++)
+			{
+				// Mostly clustered values, as in a z-profile, with some spread over the whole range
+				bins[ind] = random.nextInt(4)==0 ? random.nextInt(n_bins) : Math.min(n_bins-1, random.nextInt(1+n_bins/10));
+			}
+
+			sliding.reset(n_bins);
+
+			double[] hist = new double[n_bins];
+			double[] cumsum = new double[n_bins+1];
+
+			int first = 0;
+			int next = 0;
+
+			// The window grows on the right and shrinks on the left in random steps, so that the cursor
+			// moves in both directions
+			while(first<n)
+			{
+				if(next<n && (next-first<window || random.nextBoolean()) )
+				{
+					sliding.add(bins[next]);
+					hist[bins[next]]++;
+					next++;
+				} else
+				{
+					sliding.remove(bins[first]);
+					hist[bins[first]]--;
+					first++;
+				}
+
+				if(next>first)
+				{
+					assertEquals(StatisticsTools.getQuantile(hist, 0, n_bins, p, cumsum), sliding.getQuantile(p), TOLERANCE);
+				}
+			}
+
+			assertEquals(0, sliding.getTotal());
+		}
+	}
+
+	@Test
+	public void limitsAsHistogramQuantile()
+	{
+		SlidingHistogram sliding = new SlidingHistogram(10);
+
+		assertEquals(Double.NaN, sliding.getQuantile(0.5), 0);
+
+		sliding.add(3);
+		sliding.add(7);
+
+		assertEquals(-1, sliding.getQuantile(0), 0);
+		assertEquals(10, sliding.getQuantile(1), 0);
+	}
+
+}